@@ -11,6 +11,9 @@ public class OcrInfo implements Comparable<OcrInfo> {
 
   private static final Pattern PAYLOAD_PAT = Pattern.compile("(\\D+):([0-9.]+),?");
 
+  /** Number of bits for values that are not stored in a payload and can take any non-negative value **/
+  private static final int UNBOUNDED = -1;
+
   private boolean hasAbsoluteCoordinates = false;
   private float horizontalOffset = -1.0f;
   private float verticalOffset = -1.0f;
@@ -19,8 +22,11 @@ public class OcrInfo implements Comparable<OcrInfo> {
   private int pageIndex = -1;
   private int lineIndex = -1;
   private int wordIndex = -1;
+  private float confidence = -1.0f;
 
   private String term; // optional, only when returning search results
+  private String context; // optional, only when returning search results with context
+  private int position = -1; // optional, token position of the hit in the field, only when returning search results
 
   OcrInfo() {
     // NOP
@@ -92,6 +98,8 @@ public class OcrInfo implements Comparable<OcrInfo> {
    *          OR absolute position as unsigned integer in range [0...2^coordBits] (mandatory)
    * - **h**: Height as floating point percentage in range [0...100]
    *          OR absolute position as unsigned integer in range [0...2^coordBits] (mandatory)
+   * - **c**: OCR confidence of the word as floating point percentage in range [0...100] (optional, only stored if
+   *          `confidenceBits` is non-zero, words without a confidence are treated as fully confident)
    *
    * Here es an example: `p:27,l:50,n:13,x:13.1,y:52.7,w:87.9,h:5.3`
    * or, with integral (absolute) coordinate
@@ -108,10 +116,43 @@ public class OcrInfo implements Comparable<OcrInfo> {
    */
   public static OcrInfo parse(char[] buffer, int offset, int length, int wordBits, int lineBits, int pageBits,
           int coordBits, boolean absoluteCoordinates) {
+    return parse(buffer, offset, length, wordBits, lineBits, pageBits, coordBits, 0, absoluteCoordinates);
+  }
+
+  /**
+   * Parse an {@link OcrInfo} object from a character buffer, including the confidence.
+   *
+   * See {@link #parse(char[], int, int, int, int, int, int, boolean)} for the format and the other parameters.
+   *
+   * @param confidenceBits Number of bits used for encoding the confidence, 0 if it is not stored
+   */
+  public static OcrInfo parse(char[] buffer, int offset, int length, int wordBits, int lineBits, int pageBits,
+          int coordBits, int confidenceBits, boolean absoluteCoordinates) {
+    return parse(new String(buffer, offset, length), wordBits, lineBits, pageBits, coordBits, confidenceBits,
+            absoluteCoordinates);
+  }
+
+  /**
+   * Parse an {@link OcrInfo} object from a string that is not stored in a payload.
+   *
+   * Accepts the same format as {@link #parse(char[], int, int, int, int, int, int, boolean)}, but the indices and
+   * coordinates are not limited to a number of bits and the page, line and word indices are optional. The confidence
+   * is ignored.
+   *
+   * @param ocrInfo             The encoded character information
+   * @param absoluteCoordinates Whether the coordinates are absolute or relative (percent-values)
+   * @return The decoded {@link OcrInfo} instance
+   */
+  public static OcrInfo parse(String ocrInfo, boolean absoluteCoordinates) {
+    return parse(ocrInfo, UNBOUNDED, UNBOUNDED, UNBOUNDED, UNBOUNDED, 0, absoluteCoordinates);
+  }
+
+  private static OcrInfo parse(String ocrInfo, int wordBits, int lineBits, int pageBits, int coordBits,
+          int confidenceBits, boolean absoluteCoordinates) {
     OcrInfo info = new OcrInfo();
     info.setHasAbsoluteCoordinates(absoluteCoordinates);
 
-    String payload = new String(buffer, offset, length).toLowerCase();
+    String payload = ocrInfo.toLowerCase();
     Matcher m = PAYLOAD_PAT.matcher(payload);
     Set<Character> seenKeys = new HashSet<>();
     while (m.find()) {
@@ -160,13 +201,18 @@ public class OcrInfo implements Comparable<OcrInfo> {
             info.setHeight(Float.parseFloat(value) / 100f);
           }
           break;
+        case 'c':
+          if (confidenceBits > 0) {
+            info.setConfidence(Float.parseFloat(value) / 100f);
+          }
+          break;
         default:
           throw new IllegalArgumentException(String.format(
                   "Could not parse OCR bounding box information, string was %s, invalid character was %c",
-                  new String(buffer, offset, length), key));
+                  ocrInfo, key));
       }
     }
-    if (info.getHorizontalOffset() < 0 || info.getHorizontalOffset() < 0 || info.getWidth() < 0 || info.getHeight() < 0) {
+    if (info.getHorizontalOffset() < 0 || info.getVerticalOffset() < 0 || info.getWidth() < 0 || info.getHeight() < 0) {
       throw new IllegalArgumentException(String.format(
               "One or more coordinates are missing from payload (was %s), make sure you have 'x', 'y', 'w' and 'h' set!",
               payload));
@@ -188,7 +234,7 @@ public class OcrInfo implements Comparable<OcrInfo> {
 
   private static int parseIntValue(String value, int numBits, String type, String payload) {
     int index = Integer.parseInt(value);
-    if (index >= IntMath.pow(2, numBits)) {
+    if (numBits != UNBOUNDED && index >= IntMath.pow(2, numBits)) {
       throw new IllegalArgumentException(String.format("Value %d for %s needs more than %d bits (valid values range from 0 to %d). Payload=%s",
               index, type, numBits, IntMath.pow(2, numBits) - 1, payload));
     }
@@ -258,6 +304,35 @@ public class OcrInfo implements Comparable<OcrInfo> {
     this.term = term;
   }
 
+  public String getContext() {
+    return context;
+  }
+
+  public void setContext(String context) {
+    this.context = context;
+  }
+
+  /** @return The OCR confidence of the word between 0 and 1, or -1 if it is not known **/
+  public float getConfidence() {
+    return confidence;
+  }
+
+  public void setConfidence(float confidence) {
+    if (confidence > 1) {
+      throw new IllegalArgumentException(String.format("Confidence can at most be 100, was %1f!", confidence * 100));
+    }
+    this.confidence = confidence;
+  }
+
+  /** @return The token position of the hit in its field, or -1 if it is not known **/
+  public int getPosition() {
+    return position;
+  }
+
+  public void setPosition(int position) {
+    this.position = position;
+  }
+
   public int getLineIndex() {
     return lineIndex;
   }
@@ -284,6 +359,7 @@ public class OcrInfo implements Comparable<OcrInfo> {
             + ", pageIndex=" + pageIndex
             + ", lineIndex=" + lineIndex
             + ", wordIndex=" + wordIndex
+            + ", confidence=" + confidence
             + ", term='" + term + '\''
             + '}';
   }
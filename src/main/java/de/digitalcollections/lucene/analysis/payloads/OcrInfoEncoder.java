@@ -27,7 +27,9 @@ public class OcrInfoEncoder extends AbstractEncoder implements PayloadEncoder {
   private final int wordBits;
   private final int lineBits;
   private final int pageBits;
+  private final int confidenceBits;
   private final boolean absoluteCoordinates;
+  private final int version;
 
   /**
    * Configure a new OcrInfoEncoder.
@@ -42,11 +44,47 @@ public class OcrInfoEncoder extends AbstractEncoder implements PayloadEncoder {
    * @param absoluteCoordinates Whether the coordinates are stored as absolute (integral position) or relative (percentage position)
    */
   public OcrInfoEncoder(int coordBits, int wordBits, int lineBits, int pageBits, boolean absoluteCoordinates) {
+    this(coordBits, wordBits, lineBits, pageBits, absoluteCoordinates, OcrPayloadHelper.FIXED_WIDTH_VERSION);
+  }
+
+  /**
+   * Configure a new OcrInfoEncoder for a specific version of the payload format.
+   *
+   * With {@link OcrPayloadHelper#VARIABLE_WIDTH_VERSION}, the bits of the indices are only an upper bound, every index
+   * is stored with as few bytes as possible (see {@link OcrPayloadHelper#encodeVariableWidth}).
+   *
+   * @param coordBits       Number of bits to use for storing the OCR coordinates in the index, must be an even number.
+   * @param wordBits        Number of bits to use for storing the word index (0 to disable)
+   * @param lineBits        Number of bits to use for storing the line index (0 to disable)
+   * @param pageBits        Number of bits to use for storing the page index (0 to disable)
+   * @param absoluteCoordinates Whether the coordinates are stored as absolute (integral position) or relative (percentage position)
+   * @param version         Version of the payload format
+   */
+  public OcrInfoEncoder(int coordBits, int wordBits, int lineBits, int pageBits, boolean absoluteCoordinates,
+          int version) {
+    this(coordBits, wordBits, lineBits, pageBits, 0, absoluteCoordinates, version);
+  }
+
+  /**
+   * Configure a new OcrInfoEncoder that also stores the OCR confidence of every word.
+   *
+   * @param coordBits       Number of bits to use for storing the OCR coordinates in the index, must be an even number.
+   * @param wordBits        Number of bits to use for storing the word index (0 to disable)
+   * @param lineBits        Number of bits to use for storing the line index (0 to disable)
+   * @param pageBits        Number of bits to use for storing the page index (0 to disable)
+   * @param confidenceBits  Number of bits to use for storing the confidence (0 to disable)
+   * @param absoluteCoordinates Whether the coordinates are stored as absolute (integral position) or relative (percentage position)
+   * @param version         Version of the payload format
+   */
+  public OcrInfoEncoder(int coordBits, int wordBits, int lineBits, int pageBits, int confidenceBits,
+          boolean absoluteCoordinates, int version) {
     this.coordBits = coordBits;
     this.wordBits = wordBits;
     this.lineBits = lineBits;
     this.pageBits = pageBits;
+    this.confidenceBits = confidenceBits;
     this.absoluteCoordinates = absoluteCoordinates;
+    this.version = version;
   }
 
   /**
@@ -62,8 +100,11 @@ public class OcrInfoEncoder extends AbstractEncoder implements PayloadEncoder {
    */
   @Override
   public BytesRef encode(char[] chars, int offset, int length) {
-    OcrInfo info = OcrInfo.parse(chars, offset, length, wordBits, lineBits, pageBits, coordBits, absoluteCoordinates);
-    byte[] data = OcrPayloadHelper.encodeOcrInfo(info, coordBits, wordBits, lineBits, pageBits);
+    OcrInfo info = OcrInfo.parse(
+            chars, offset, length, wordBits, lineBits, pageBits, coordBits, confidenceBits, absoluteCoordinates);
+    byte[] data = version == OcrPayloadHelper.VARIABLE_WIDTH_VERSION
+            ? OcrPayloadHelper.encodeVariableWidth(info, coordBits, wordBits, lineBits, pageBits, confidenceBits)
+            : OcrPayloadHelper.encodeOcrInfo(info, coordBits, wordBits, lineBits, pageBits, confidenceBits);
     return new BytesRef(data);
   }
 }
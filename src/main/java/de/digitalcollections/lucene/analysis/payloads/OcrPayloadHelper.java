@@ -8,6 +8,15 @@ import org.apache.lucene.util.BytesRef;
 /** Helper class to decode and encode OCR information from/into an efficient binary representation. **/
 public class OcrPayloadHelper {
 
+  /** Version of the payload format with fixed-width indices, see {@link #encodeOcrInfo} **/
+  public static final int FIXED_WIDTH_VERSION = 1;
+
+  /** Version of the payload format with variable-width indices, see {@link #encodeVariableWidth} **/
+  public static final int VARIABLE_WIDTH_VERSION = 2;
+
+  /** Largest index that can be stored in the variable-width format **/
+  public static final int MAX_VARIABLE_WIDTH_INDEX = (1 << 28) - 1;
+
   private OcrPayloadHelper() {
     // Cannot be instantiated, is only here for the static methods
   }
@@ -72,8 +81,23 @@ public class OcrPayloadHelper {
    * @return                    The resulting byte payload
    */
   public static byte[] encodeOcrInfo(OcrInfo info, int coordBits, int wordBits, int lineBits, int pageBits) {
+    return encodeOcrInfo(info, coordBits, wordBits, lineBits, pageBits, 0);
+  }
+
+  /**
+   * Encode a {@link OcrInfo} object into a byte array, including the OCR confidence of the word.
+   *
+   * The confidence is stored in the `confidenceBits` least significant bits, after the coordinates, so it can be read
+   * with a single masked read from the end of the payload (see {@link #decodeRawConfidence}), no matter how many
+   * leading null-bytes were stripped. See {@link #encodeOcrInfo(OcrInfo, int, int, int, int)} for the other
+   * parameters.
+   *
+   * @param confidenceBits The number of bits to encode the confidence into, 0 to not store it
+   */
+  public static byte[] encodeOcrInfo(OcrInfo info, int coordBits, int wordBits, int lineBits, int pageBits,
+          int confidenceBits) {
     // To make bit-fiddling easier, we encode all the values into an arbitrary-length BigInteger
-    int numBitsTotal = getOutputSize(coordBits, wordBits, lineBits, pageBits);
+    int numBitsTotal = getOutputSize(coordBits, wordBits, lineBits, pageBits, confidenceBits);
     int outSize = (int) Math.ceil((double) numBitsTotal / 8.0);
     BigInteger encoded = new BigInteger(new byte[outSize]);
 
@@ -110,6 +134,11 @@ public class OcrPayloadHelper {
               .shiftLeft(coordBits)
               .or(BigInteger.valueOf(encodeValue(info.getHeight(), coordBits)));
     }
+    if (confidenceBits > 0) {
+      encoded = encoded
+              .shiftLeft(confidenceBits)
+              .or(BigInteger.valueOf(encodeConfidence(info.getConfidence(), confidenceBits)));
+    }
 
     byte[] out = encoded.toByteArray();
 
@@ -139,9 +168,24 @@ public class OcrPayloadHelper {
     return value;
   }
 
+  /**
+   * Calculate the number of bytes needed for a payload with the given parameters.
+   *
+   * Note that the payloads produced by {@link #encodeOcrInfo(OcrInfo, int, int, int, int)} can be shorter, since
+   * leading null-bytes are stripped.
+   */
+  public static int getPayloadLength(int coordBits, int wordBits, int lineBits, int pageBits) {
+    return getPayloadLength(coordBits, wordBits, lineBits, pageBits, 0);
+  }
+
+  /** Calculate the number of bytes needed for a payload with the given parameters, including the confidence **/
+  public static int getPayloadLength(int coordBits, int wordBits, int lineBits, int pageBits, int confidenceBits) {
+    return (int) Math.ceil((double) getOutputSize(coordBits, wordBits, lineBits, pageBits, confidenceBits) / 8.0);
+  }
+
   /** Calculate the size of the payload resulting from the parameters **/
-  private static int getOutputSize(int coordBits, int wordBits, int lineBits, int pageBits) {
-    int outSize = coordBits * 4;
+  private static int getOutputSize(int coordBits, int wordBits, int lineBits, int pageBits, int confidenceBits) {
+    int outSize = coordBits * 4 + Math.max(confidenceBits, 0);
     if (pageBits > 0) {
       outSize += pageBits;
     }
@@ -161,6 +205,36 @@ public class OcrPayloadHelper {
     return (int) Math.round(source * Math.pow(2, numBits));
   }
 
+  /**
+   * Encode a confidence (between 0 and 1) to an integer with the given number of bits, the largest value stands for
+   * full confidence. Words without a confidence are treated as fully confident.
+   **/
+  private static int encodeConfidence(float confidence, int numBits) {
+    int maxValue = (1 << numBits) - 1;
+    if (confidence < 0) {
+      return maxValue;
+    }
+    return Math.round(confidence * maxValue);
+  }
+
+  /**
+   * Decode a confidence that was encoded with the given number of bits.
+   **/
+  public static float decodeConfidence(int rawConfidence, int numBits) {
+    return (float) rawConfidence / ((1 << numBits) - 1);
+  }
+
+  /**
+   * Determine the smallest raw confidence value that satisfies a minimum confidence.
+   *
+   * @param minConfidence Minimum confidence between 0 and 1
+   * @param numBits Number of bits the confidence was encoded with
+   * @return The smallest raw value that is still accepted
+   */
+  public static int getRawConfidenceThreshold(float minConfidence, int numBits) {
+    return Math.round(Math.max(0f, Math.min(1f, minConfidence)) * ((1 << numBits) - 1));
+  }
+
   /**
    * Decode a given integer (encoded with a certain number of bits) to a floating point value.
    **/
@@ -175,6 +249,205 @@ public class OcrPayloadHelper {
     return BigInteger.valueOf(IntMath.pow(2, numBits) - 1);
   }
 
+  /**
+   * Read an unsigned integer value from the encoded byte array, without decoding the rest of the payload.
+   *
+   * Since the payload is right-aligned (i.e. leading null-bytes may have been stripped during encoding), the bit
+   * offset is counted from the least significant bit of the last byte.
+   *
+   * @param data    Buffer with encoded binary OCR information
+   * @param shift   Offset of the value's least significant bit from the end of the payload
+   * @param numBits Number of bits the value was encoded with, at most 31
+   * @return The decoded value
+   */
+  static int readBits(BytesRef data, int shift, int numBits) {
+    int end = data.offset + data.length;
+    int firstByte = shift / 8;
+    int lastByte = (shift + numBits - 1) / 8;
+    long accumulator = 0;
+    for (int byteIdx = lastByte; byteIdx >= firstByte; byteIdx--) {
+      int pos = end - 1 - byteIdx;
+      accumulator = (accumulator << 8) | (pos >= data.offset ? data.bytes[pos] & 0xFF : 0);
+    }
+    return (int) ((accumulator >>> (shift % 8)) & ((1L << numBits) - 1));
+  }
+
+  /**
+   * Decode only the page index from the encoded byte array.
+   *
+   * This is much cheaper than {@link #decodeOcrInfo(BytesRef, int, int, int, int, boolean)} and should be used
+   * whenever the coordinates are not needed, e.g. when counting hits per page.
+   *
+   * @param data      Buffer with encoded binary OCR information
+   * @param coordBits Number of bits the OCR information was encoded with
+   * @param wordBits  Number of bits the word index was encoded with
+   * @param lineBits  Number of bits the line index was encoded with
+   * @param pageBits  Number of bits the page index was encoded with
+   * @return The decoded page index or -1 if the payload does not contain a page index
+   */
+  public static int decodePageIndex(BytesRef data, int coordBits, int wordBits, int lineBits, int pageBits) {
+    return decodePageIndex(data, coordBits, wordBits, lineBits, pageBits, 0);
+  }
+
+  /**
+   * Decode only the page index from a payload that also contains the confidence.
+   *
+   * See {@link #decodePageIndex(BytesRef, int, int, int, int)} for the parameters.
+   */
+  public static int decodePageIndex(BytesRef data, int coordBits, int wordBits, int lineBits, int pageBits,
+          int confidenceBits) {
+    if (pageBits <= 0) {
+      return -1;
+    }
+    return readBits(data, getIndexShift(coordBits, confidenceBits) + Math.max(wordBits, 0) + Math.max(lineBits, 0),
+            pageBits);
+  }
+
+  /**
+   * Decode only the page index from a fixed-width payload that is given as an unsigned integer.
+   *
+   * This is how payloads are handed out in bulk by
+   * {@link de.digitalcollections.lucene.codecs.OcrPayloadPostingsEnum#nextPayloads(long[], long[])}, see
+   * {@link #decodePageIndex(BytesRef, int, int, int, int)} for the other parameters.
+   *
+   * @param lowBits  The lower 64 bits of the payload
+   * @param highBits The upper 64 bits of the payload
+   */
+  public static int decodePageIndex(long lowBits, long highBits, int coordBits, int wordBits, int lineBits,
+          int pageBits, int confidenceBits) {
+    if (pageBits <= 0) {
+      return -1;
+    }
+    return readBits(lowBits, highBits,
+            getIndexShift(coordBits, confidenceBits) + Math.max(wordBits, 0) + Math.max(lineBits, 0), pageBits);
+  }
+
+  /**
+   * Read a value from a payload that is given as an unsigned integer of at most 128 bits, see
+   * {@link #readBits(BytesRef, int, int)}.
+   */
+  static int readBits(long lowBits, long highBits, int shift, int numBits) {
+    long value;
+    if (shift >= 64) {
+      value = highBits >>> (shift - 64);
+    } else if (shift == 0) {
+      value = lowBits;
+    } else {
+      value = (lowBits >>> shift) | (highBits << (64 - shift));
+    }
+    return (int) (value & ((1L << numBits) - 1));
+  }
+
+  /**
+   * Decode only the line index from the encoded byte array.
+   *
+   * See {@link #decodePageIndex(BytesRef, int, int, int, int)} for the parameters.
+   *
+   * @return The line index or -1 if the layout has no line indices
+   */
+  public static int decodeLineIndex(BytesRef data, int coordBits, int wordBits, int lineBits) {
+    return decodeLineIndex(data, coordBits, wordBits, lineBits, 0);
+  }
+
+  /**
+   * Decode only the line index from a payload that also contains the confidence.
+   */
+  public static int decodeLineIndex(BytesRef data, int coordBits, int wordBits, int lineBits, int confidenceBits) {
+    if (lineBits <= 0) {
+      return -1;
+    }
+    return readBits(data, getIndexShift(coordBits, confidenceBits) + Math.max(wordBits, 0), lineBits);
+  }
+
+  /**
+   * Decode only the line index from a fixed-width payload that is given as an unsigned integer, see
+   * {@link #decodePageIndex(long, long, int, int, int, int, int)}.
+   *
+   * @return The line index or -1 if the layout has no line indices
+   */
+  public static int decodeLineIndex(long lowBits, long highBits, int coordBits, int wordBits, int lineBits,
+          int confidenceBits) {
+    if (lineBits <= 0) {
+      return -1;
+    }
+    return readBits(lowBits, highBits, getIndexShift(coordBits, confidenceBits) + Math.max(wordBits, 0), lineBits);
+  }
+
+  /**
+   * Decode only the word index from the encoded byte array.
+   *
+   * See {@link #decodePageIndex(BytesRef, int, int, int, int)} for the parameters.
+   *
+   * @return The word index or -1 if the layout has no word indices
+   */
+  public static int decodeWordIndex(BytesRef data, int coordBits, int wordBits) {
+    return decodeWordIndex(data, coordBits, wordBits, 0);
+  }
+
+  /**
+   * Decode only the word index from a payload that also contains the confidence.
+   */
+  public static int decodeWordIndex(BytesRef data, int coordBits, int wordBits, int confidenceBits) {
+    if (wordBits <= 0) {
+      return -1;
+    }
+    return readBits(data, getIndexShift(coordBits, confidenceBits), wordBits);
+  }
+
+  /** Number of bits after the indices in the fixed-width format, i.e. the coordinates and the confidence **/
+  private static int getIndexShift(int coordBits, int confidenceBits) {
+    return coordBits * 4 + Math.max(confidenceBits, 0);
+  }
+
+  /**
+   * Read the raw confidence from the end of a payload in either format, without decoding anything else.
+   *
+   * This is a single masked read of the last byte or two, cheap enough to filter the positions in a postings loop
+   * before decoding them. Compare the result against {@link #getRawConfidenceThreshold(float, int)}.
+   *
+   * @param data           Buffer with encoded binary OCR information
+   * @param confidenceBits Number of bits the confidence was encoded with, must be positive
+   * @return The raw confidence value
+   */
+  public static int decodeRawConfidence(BytesRef data, int confidenceBits) {
+    return readBits(data, 0, confidenceBits);
+  }
+
+  /**
+   * Decode a single coordinate from the encoded byte array, without scaling it.
+   *
+   * For relative coordinates, the returned value has to be divided by `2^coordBits` to obtain the percentage value,
+   * absolute coordinates can be used as-is.
+   *
+   * @param data       Buffer with encoded binary OCR information
+   * @param coordBits  Number of bits the OCR information was encoded with
+   * @param coordIndex Which coordinate to decode: 0 for x, 1 for y, 2 for the width and 3 for the height
+   * @return The encoded coordinate value
+   */
+  public static int decodeRawCoordinate(BytesRef data, int coordBits, int coordIndex) {
+    return decodeRawCoordinate(data, coordBits, 0, coordIndex);
+  }
+
+  /**
+   * Decode a single coordinate from a payload that also contains the confidence, without scaling it.
+   *
+   * See {@link #decodeRawCoordinate(BytesRef, int, int)} for the parameters.
+   */
+  public static int decodeRawCoordinate(BytesRef data, int coordBits, int confidenceBits, int coordIndex) {
+    return readBits(data, (3 - coordIndex) * coordBits + Math.max(confidenceBits, 0), coordBits);
+  }
+
+  /**
+   * Decode a single coordinate from a payload that is given as an unsigned integer, without scaling it.
+   *
+   * See {@link #decodeRawCoordinate(BytesRef, int, int)} and
+   * {@link #decodePageIndex(long, long, int, int, int, int, int)} for the parameters.
+   */
+  public static int decodeRawCoordinate(long lowBits, long highBits, int coordBits, int confidenceBits,
+          int coordIndex) {
+    return readBits(lowBits, highBits, (3 - coordIndex) * coordBits + Math.max(confidenceBits, 0), coordBits);
+  }
+
   /**
    * Decode an {@link OcrInfo} instance from the encoded byte array.
    *
@@ -188,10 +461,27 @@ public class OcrPayloadHelper {
    */
   public static OcrInfo decodeOcrInfo(BytesRef data, int coordBits, int wordBits, int lineBits, int pageBits,
           boolean absoluteCoordinates) {
+    return decodeOcrInfo(data, coordBits, wordBits, lineBits, pageBits, 0, absoluteCoordinates);
+  }
+
+  /**
+   * Decode an {@link OcrInfo} instance from a payload that also contains the confidence.
+   *
+   * See {@link #decodeOcrInfo(BytesRef, int, int, int, int, boolean)} for the other parameters.
+   *
+   * @param confidenceBits Number of bits the confidence was encoded with, 0 if it was not stored
+   */
+  public static OcrInfo decodeOcrInfo(BytesRef data, int coordBits, int wordBits, int lineBits, int pageBits,
+          int confidenceBits, boolean absoluteCoordinates) {
     int coordMask = IntMath.pow(2, coordBits) - 1;
     OcrInfo info = new OcrInfo();
     info.setHasAbsoluteCoordinates(absoluteCoordinates);
-    BigInteger encoded = new BigInteger(Arrays.copyOfRange(data.bytes, data.offset, data.offset + data.length));
+    // Always treat the payload as unsigned, otherwise a set high bit would result in a negative value
+    BigInteger encoded = new BigInteger(1, Arrays.copyOfRange(data.bytes, data.offset, data.offset + data.length));
+    if (confidenceBits > 0) {
+      info.setConfidence(decodeConfidence(encoded.and(makeBitMask(confidenceBits)).intValue(), confidenceBits));
+      encoded = encoded.shiftRight(confidenceBits);
+    }
 
     if (absoluteCoordinates) {
       info.setHeight(encoded.and(BigInteger.valueOf(coordMask)).intValue());
@@ -230,4 +520,266 @@ public class OcrPayloadHelper {
 
     return info;
   }
+
+  /**
+   * Decode an {@link OcrInfo} instance from a fixed-width payload that is given as an unsigned integer.
+   *
+   * Yields the same result as {@link #decodeOcrInfo(BytesRef, int, int, int, int, int, boolean)}, but every value is
+   * read with a shift and a mask, so no bytes have to be copied. See
+   * {@link #decodePageIndex(long, long, int, int, int, int, int)} and
+   * {@link #decodeOcrInfo(BytesRef, int, int, int, int, int, boolean)} for the parameters.
+   */
+  public static OcrInfo decodeOcrInfo(long lowBits, long highBits, int coordBits, int wordBits, int lineBits,
+          int pageBits, int confidenceBits, boolean absoluteCoordinates) {
+    OcrInfo info = new OcrInfo();
+    info.setHasAbsoluteCoordinates(absoluteCoordinates);
+    if (confidenceBits > 0) {
+      info.setConfidence(decodeConfidence(readBits(lowBits, highBits, 0, confidenceBits), confidenceBits));
+    }
+    int x = decodeRawCoordinate(lowBits, highBits, coordBits, confidenceBits, 0);
+    int y = decodeRawCoordinate(lowBits, highBits, coordBits, confidenceBits, 1);
+    int width = decodeRawCoordinate(lowBits, highBits, coordBits, confidenceBits, 2);
+    int height = decodeRawCoordinate(lowBits, highBits, coordBits, confidenceBits, 3);
+    if (absoluteCoordinates) {
+      info.setHorizontalOffset(x);
+      info.setVerticalOffset(y);
+      info.setWidth(width);
+      info.setHeight(height);
+    } else {
+      info.setHorizontalOffset(decodeValue(x, coordBits));
+      info.setVerticalOffset(decodeValue(y, coordBits));
+      info.setWidth(decodeValue(width, coordBits));
+      info.setHeight(decodeValue(height, coordBits));
+    }
+
+    int shift = getIndexShift(coordBits, confidenceBits);
+    if (wordBits > 0) {
+      info.setWordIndex(readBits(lowBits, highBits, shift, wordBits));
+      shift += wordBits;
+    }
+    if (lineBits > 0) {
+      info.setLineIndex(readBits(lowBits, highBits, shift, lineBits));
+      shift += lineBits;
+    }
+    if (pageBits > 0) {
+      info.setPageIndex(readBits(lowBits, highBits, shift, pageBits));
+    }
+    return info;
+  }
+
+  /**
+   * Encode a {@link OcrInfo} object into a byte array with variable-width indices (version 2 of the payload format).
+   *
+   * Most documents only have a few pages, but with the fixed-width format every token has to pay for the largest
+   * page index in the index. In this format, the page, line and word index (in that order, only those that are
+   * enabled) are stored as prefix varints and followed by the coordinates, which are packed into exactly
+   * `coordBits / 2` bytes like in the fixed-width format. The number of leading one-bits in the first byte of a
+   * varint determines how many bytes follow, so its length can be determined without looking at the other bytes:
+   *
+   * ```
+   * <pre>{@code
+   * first byte | total length | value bits
+   * =======================================
+   * 0xxxxxxx   | 1 byte       |  7
+   * 10xxxxxx   | 2 bytes      | 14
+   * 110xxxxx   | 3 bytes      | 21
+   * 1110xxxx   | 4 bytes      | 28
+   * }</pre>
+   * ```
+   *
+   * With the example from {@link #encodeOcrInfo}, a token on page 17, line 13 and word 20 takes 8 bytes instead of
+   * 9, a token on page 837 still takes 9 bytes. Since the coordinates are right-aligned at the end of the payload in
+   * both formats, {@link #decodeRawCoordinate} works for both of them.
+   *
+   * @param info      The {@link OcrInfo} to encode
+   * @param coordBits The number of bits to encode each OCR coordinate value into, an even number of at most 16
+   * @param wordBits  The maximum number of bits of the word index, 0 to not store it
+   * @param lineBits  The maximum number of bits of the line index, 0 to not store it
+   * @param pageBits  The maximum number of bits of the page index, 0 to not store it
+   * @return The resulting byte payload
+   */
+  public static byte[] encodeVariableWidth(OcrInfo info, int coordBits, int wordBits, int lineBits, int pageBits) {
+    return encodeVariableWidth(info, coordBits, wordBits, lineBits, pageBits, 0);
+  }
+
+  /**
+   * Encode a {@link OcrInfo} object into the variable-width format, including the OCR confidence of the word.
+   *
+   * The confidence is packed into the least significant bits after the coordinates, like in the fixed-width format.
+   * The coordinates and the confidence together must not take more than 64 bits.
+   *
+   * @param confidenceBits The number of bits to encode the confidence into, 0 to not store it
+   */
+  public static byte[] encodeVariableWidth(OcrInfo info, int coordBits, int wordBits, int lineBits, int pageBits,
+          int confidenceBits) {
+    int coordBytes = getCoordinateBytes(coordBits, confidenceBits);
+    byte[] buf = new byte[4 * 3 + coordBytes];
+    int pos = 0;
+    if (pageBits > 0) {
+      pos = writeVarInt(info.getPageIndex(), buf, pos);
+    }
+    if (lineBits > 0) {
+      pos = writeVarInt(info.getLineIndex(), buf, pos);
+    }
+    if (wordBits > 0) {
+      pos = writeVarInt(info.getWordIndex(), buf, pos);
+    }
+    long coords;
+    if (info.getHasAbsoluteCoordinates()) {
+      coords = verifyAbsoluteValue((int) info.getHorizontalOffset(), coordBits);
+      coords = (coords << coordBits) | verifyAbsoluteValue((int) info.getVerticalOffset(), coordBits);
+      coords = (coords << coordBits) | verifyAbsoluteValue((int) info.getWidth(), coordBits);
+      coords = (coords << coordBits) | verifyAbsoluteValue((int) info.getHeight(), coordBits);
+    } else {
+      coords = encodeValue(info.getHorizontalOffset(), coordBits);
+      coords = (coords << coordBits) | encodeValue(info.getVerticalOffset(), coordBits);
+      coords = (coords << coordBits) | encodeValue(info.getWidth(), coordBits);
+      coords = (coords << coordBits) | encodeValue(info.getHeight(), coordBits);
+    }
+    if (confidenceBits > 0) {
+      coords = (coords << confidenceBits) | encodeConfidence(info.getConfidence(), confidenceBits);
+    }
+    for (int i = coordBytes - 1; i >= 0; i--) {
+      buf[pos + i] = (byte) coords;
+      coords >>>= 8;
+    }
+    return Arrays.copyOf(buf, pos + coordBytes);
+  }
+
+  /**
+   * Write a prefix varint.
+   *
+   * @return The position after the varint
+   */
+  private static int writeVarInt(int value, byte[] buf, int pos) {
+    if (value < 0 || value > MAX_VARIABLE_WIDTH_INDEX) {
+      throw new IllegalArgumentException(String.format(
+              "Value %d exceeds legal range of variable-width indices (0 to %d).", value, MAX_VARIABLE_WIDTH_INDEX));
+    }
+    int numBytes = value < (1 << 7) ? 1 : value < (1 << 14) ? 2 : value < (1 << 21) ? 3 : 4;
+    // The prefix consists of numBytes - 1 one-bits followed by a zero-bit
+    int prefix = (0xFF << (9 - numBytes)) & 0xFF;
+    for (int i = numBytes - 1; i >= 0; i--) {
+      buf[pos + i] = (byte) value;
+      value >>>= 8;
+    }
+    buf[pos] |= (byte) prefix;
+    return pos + numBytes;
+  }
+
+  /** Determine the length of a prefix varint from its first byte, without branching **/
+  private static int varIntLength(byte firstByte) {
+    return Integer.numberOfLeadingZeros(~(firstByte << 24)) + 1;
+  }
+
+  /** Read the prefix varint that starts at the given position **/
+  private static int readVarInt(byte[] bytes, int pos) {
+    int numBytes = varIntLength(bytes[pos]);
+    int value = 0;
+    for (int i = 0; i < numBytes; i++) {
+      value = (value << 8) | (bytes[pos + i] & 0xFF);
+    }
+    return value & ((1 << (7 * numBytes)) - 1);
+  }
+
+  /**
+   * Decode a single index from a payload in the variable-width format, without decoding the rest of the payload.
+   *
+   * @param data      Buffer with encoded binary OCR information
+   * @param indexSlot Position of the index among the enabled indices, i.e. the number of indices stored before it
+   * @return The decoded index
+   */
+  public static int decodeVariableWidthIndex(BytesRef data, int indexSlot) {
+    int pos = data.offset;
+    for (int i = 0; i < indexSlot; i++) {
+      pos += varIntLength(data.bytes[pos]);
+    }
+    return readVarInt(data.bytes, pos);
+  }
+
+  /**
+   * Determine the length of a payload in the variable-width format from its first bytes.
+   *
+   * Payloads in this format are self-delimiting, so they can be stored back to back without any padding.
+   *
+   * @param bytes      Buffer that contains the payload
+   * @param offset     Start of the payload in the buffer
+   * @param coordBits  Number of bits the coordinates were encoded with
+   * @param numIndices Number of enabled indices
+   * @return The length of the payload in bytes
+   */
+  public static int getVariableWidthLength(byte[] bytes, int offset, int coordBits, int numIndices) {
+    return getVariableWidthLength(bytes, offset, coordBits, 0, numIndices);
+  }
+
+  /**
+   * Determine the length of a payload in the variable-width format that also contains the confidence.
+   */
+  public static int getVariableWidthLength(byte[] bytes, int offset, int coordBits, int confidenceBits,
+          int numIndices) {
+    int pos = offset;
+    for (int i = 0; i < numIndices; i++) {
+      pos += varIntLength(bytes[pos]);
+    }
+    return pos - offset + getCoordinateBytes(coordBits, confidenceBits);
+  }
+
+  /**
+   * Number of bytes of the coordinates (and the confidence) at the end of a payload in the variable-width format.
+   */
+  public static int getCoordinateBytes(int coordBits, int confidenceBits) {
+    return (4 * coordBits + Math.max(confidenceBits, 0) + 7) / 8;
+  }
+
+  /**
+   * Decode an {@link OcrInfo} instance from a payload in the variable-width format.
+   *
+   * See {@link #decodeOcrInfo(BytesRef, int, int, int, int, boolean)} for the parameters, the widths of the indices
+   * only determine if an index is present.
+   */
+  public static OcrInfo decodeVariableWidth(BytesRef data, int coordBits, int wordBits, int lineBits, int pageBits,
+          boolean absoluteCoordinates) {
+    return decodeVariableWidth(data, coordBits, wordBits, lineBits, pageBits, 0, absoluteCoordinates);
+  }
+
+  /**
+   * Decode an {@link OcrInfo} instance from a payload in the variable-width format that also contains the
+   * confidence.
+   */
+  public static OcrInfo decodeVariableWidth(BytesRef data, int coordBits, int wordBits, int lineBits, int pageBits,
+          int confidenceBits, boolean absoluteCoordinates) {
+    OcrInfo info = new OcrInfo();
+    info.setHasAbsoluteCoordinates(absoluteCoordinates);
+    int pos = data.offset;
+    if (pageBits > 0) {
+      info.setPageIndex(readVarInt(data.bytes, pos));
+      pos += varIntLength(data.bytes[pos]);
+    }
+    if (lineBits > 0) {
+      info.setLineIndex(readVarInt(data.bytes, pos));
+      pos += varIntLength(data.bytes[pos]);
+    }
+    if (wordBits > 0) {
+      info.setWordIndex(readVarInt(data.bytes, pos));
+    }
+    if (confidenceBits > 0) {
+      info.setConfidence(decodeConfidence(decodeRawConfidence(data, confidenceBits), confidenceBits));
+    }
+    int x = decodeRawCoordinate(data, coordBits, confidenceBits, 0);
+    int y = decodeRawCoordinate(data, coordBits, confidenceBits, 1);
+    int width = decodeRawCoordinate(data, coordBits, confidenceBits, 2);
+    int height = decodeRawCoordinate(data, coordBits, confidenceBits, 3);
+    if (absoluteCoordinates) {
+      info.setHorizontalOffset(x);
+      info.setVerticalOffset(y);
+      info.setWidth(width);
+      info.setHeight(height);
+    } else {
+      info.setHorizontalOffset(decodeValue(x, coordBits));
+      info.setVerticalOffset(decodeValue(y, coordBits));
+      info.setWidth(decodeValue(width, coordBits));
+      info.setHeight(decodeValue(height, coordBits));
+    }
+    return info;
+  }
 }
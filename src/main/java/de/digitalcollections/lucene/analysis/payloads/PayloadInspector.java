@@ -0,0 +1,266 @@
+package de.digitalcollections.lucene.analysis.payloads;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Command line tool that analyzes the OCR payloads in a Lucene index and recommends the bit widths for the layout.
+ *
+ * Opens the index read-only and streams the payloads of all positions of the given fields through the decoder. Every
+ * segment is analyzed in its own thread and only the histograms of the bit lengths are kept (see
+ * {@link PayloadStats}), so the memory usage does not depend on the size of the index.
+ *
+ * Usage (with the plugin jar and the Lucene jars of the Solr installation on the classpath):
+ * ```
+ * java de.digitalcollections.lucene.analysis.payloads.PayloadInspector [--threads N] [--headroom N] \
+ *      /var/solr/data/core/data/index \
+ *      ocr_text:coordinateBits=10,pageBits=12,lineBits=11,wordBits=9
+ * ```
+ *
+ * Every field is followed by the options of its `DelimitedOcrInfoPayloadTokenFilterFactory`, i.e. `coordinateBits`,
+ * `pageBits`, `lineBits`, `wordBits`, `confidenceBits`, `absoluteCoordinates` and `payloadVersion`.
+ *
+ * `--threads`
+ * : Number of segments to analyze in parallel (default: number of processors)
+ *
+ * `--headroom`
+ * : Number of bits to add to the maximum values for the recommended layout, to leave room for larger documents in the
+ *   future (default: 1)
+ */
+public class PayloadInspector {
+
+  private final int numThreads;
+  private final int headroom;
+
+  /**
+   * @param numThreads Number of segments to analyze in parallel
+   * @param headroom Number of bits to add to the maximum values for the recommended layout
+   */
+  public PayloadInspector(int numThreads, int headroom) {
+    this.numThreads = numThreads;
+    this.headroom = headroom;
+  }
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    int numThreads = Runtime.getRuntime().availableProcessors();
+    int headroom = 1;
+    Path indexPath = null;
+    Map<String, PayloadLayout> layouts = new LinkedHashMap<>();
+    try {
+      for (int i = 0; i < args.length; i++) {
+        if ("--threads".equals(args[i]) && i + 1 < args.length) {
+          numThreads = Integer.parseInt(args[++i]);
+        } else if ("--headroom".equals(args[i]) && i + 1 < args.length) {
+          headroom = Integer.parseInt(args[++i]);
+        } else if (indexPath == null) {
+          indexPath = Paths.get(args[i]);
+        } else {
+          int sep = args[i].indexOf(':');
+          String fieldName = sep < 0 ? args[i] : args[i].substring(0, sep);
+          layouts.put(fieldName, parseLayout(sep < 0 ? "" : args[i].substring(sep + 1)));
+        }
+      }
+    } catch (IllegalArgumentException e) {
+      System.err.println(e.getMessage());
+      indexPath = null;
+    }
+    if (indexPath == null || layouts.isEmpty()) {
+      System.err.println("Usage: PayloadInspector [--threads N] [--headroom N] <indexDir> "
+              + "<field>:coordinateBits=10,pageBits=12,lineBits=0,wordBits=0,confidenceBits=0,"
+              + "absoluteCoordinates=false,payloadVersion=1 [<field>:...]");
+      System.exit(1);
+    }
+
+    PayloadInspector inspector = new PayloadInspector(numThreads, headroom);
+    try (Directory directory = FSDirectory.open(indexPath);
+         DirectoryReader reader = DirectoryReader.open(directory)) {
+      for (Map.Entry<String, PayloadLayout> entry : layouts.entrySet()) {
+        PayloadStats stats = inspector.inspect(reader, entry.getKey(), entry.getValue());
+        inspector.report(entry.getKey(), entry.getValue(), stats, System.out);
+      }
+      inspector.reportPayloadFiles(directory, System.out);
+    }
+  }
+
+  /**
+   * Parse a layout from the options of the filter factory, e.g. `coordinateBits=10,pageBits=12`.
+   *
+   * @param options Comma-separated `name=value` pairs, options that are left out have the filter's defaults
+   * @return The layout
+   * @throws IllegalArgumentException An option is unknown or malformed
+   */
+  public static PayloadLayout parseLayout(String options) {
+    Map<String, String> args = new LinkedHashMap<>();
+    for (String option : options.split(",")) {
+      if (option.isEmpty()) {
+        continue;
+      }
+      int sep = option.indexOf('=');
+      if (sep < 0) {
+        throw new IllegalArgumentException("Invalid option '" + option + "', expected 'name=value'.");
+      }
+      args.put(option.substring(0, sep).trim(), option.substring(sep + 1).trim());
+    }
+    PayloadLayout layout = new PayloadLayout(
+            Integer.parseInt(args.getOrDefault("coordinateBits", "10")),
+            Integer.parseInt(args.getOrDefault("wordBits", "0")),
+            Integer.parseInt(args.getOrDefault("lineBits", "0")),
+            Integer.parseInt(args.getOrDefault("pageBits", "0")),
+            Integer.parseInt(args.getOrDefault("confidenceBits", "0")),
+            Boolean.parseBoolean(args.getOrDefault("absoluteCoordinates", "false")),
+            Integer.parseInt(args.getOrDefault("payloadVersion", "1")));
+    args.keySet().removeAll(Arrays.asList(
+            "coordinateBits", "wordBits", "lineBits", "pageBits", "confidenceBits", "absoluteCoordinates",
+            "payloadVersion"));
+    if (!args.isEmpty()) {
+      throw new IllegalArgumentException("Unknown options: " + args.keySet());
+    }
+    return layout;
+  }
+
+  /**
+   * Collect the statistics over all payloads of a field, analyzing the segments in parallel.
+   *
+   * @param reader Reader for the index
+   * @param fieldName Field to analyze
+   * @param layout Layout the payloads of the field were encoded with
+   * @return The statistics over all segments
+   * @throws IOException Error during retrieval from index
+   * @throws InterruptedException The analysis was interrupted
+   */
+  PayloadStats inspect(DirectoryReader reader, String fieldName, PayloadLayout layout)
+          throws IOException, InterruptedException {
+    ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, numThreads));
+    try {
+      List<Future<PayloadStats>> futures = new ArrayList<>();
+      for (LeafReaderContext leafReaderContext : reader.leaves()) {
+        futures.add(executor.submit(() -> inspectSegment(leafReaderContext.reader(), fieldName, layout)));
+      }
+      PayloadStats stats = new PayloadStats();
+      for (Future<PayloadStats> future : futures) {
+        stats.merge(future.get());
+      }
+      return stats;
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IllegalStateException(e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Stream all payloads of a field in a single segment.
+   */
+  static PayloadStats inspectSegment(LeafReader reader, String fieldName, PayloadLayout layout) throws IOException {
+    PayloadStats stats = new PayloadStats();
+    Terms terms = reader.terms(fieldName);
+    if (terms == null || !terms.hasPayloads()) {
+      return stats;
+    }
+    TermsEnum termsEnum = terms.iterator();
+    PostingsEnum postingsEnum = null;
+    while (termsEnum.next() != null) {
+      postingsEnum = termsEnum.postings(postingsEnum, PostingsEnum.PAYLOADS);
+      while (postingsEnum.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+        int freq = postingsEnum.freq();
+        for (int i = 0; i < freq; i++) {
+          postingsEnum.nextPosition();
+          BytesRef payload = postingsEnum.getPayload();
+          if (payload != null) {
+            stats.add(payload, layout);
+          }
+        }
+      }
+    }
+    return stats;
+  }
+
+  /**
+   * Print the statistics of a field and the recommended layout.
+   */
+  void report(String fieldName, PayloadLayout layout, PayloadStats stats, PrintStream out) {
+    out.printf("Field %s (%s)%n", fieldName, layout);
+    out.printf("  Payloads: %d, %d bytes%n", stats.getNumPayloads(), stats.getPayloadBytes());
+    if (stats.getNumMalformed() > 0) {
+      out.printf("  WARNING: %d payloads do not match the layout and were skipped%n", stats.getNumMalformed());
+    }
+    if (stats.getNumPayloads() == 0) {
+      return;
+    }
+    int[] configuredBits = {layout.getPageBits(), layout.getLineBits(), layout.getWordBits()};
+    for (int component = 0; component < PayloadStats.COMPONENTS.length; component++) {
+      int maximum = stats.getMaximum(component);
+      if (maximum < 0) {
+        continue;
+      }
+      int bits = component < PayloadStats.X ? configuredBits[component] : layout.getCoordBits();
+      out.printf("  %s: maximum %d (%d of %d bits)%s%n", PayloadStats.COMPONENTS[component], maximum,
+              PayloadStats.bitLength(maximum), bits,
+              PayloadStats.bitLength(maximum) >= bits ? ", close to overflowing" : "");
+      for (int b = 0; b <= 32; b++) {
+        long count = stats.getCount(component, b);
+        if (count > 0) {
+          out.printf("    %2d bits (< %d): %d (%.1f%%)%n", b, 1L << b, count,
+                  100.0 * count / stats.getNumPayloads());
+        }
+      }
+    }
+    long wastedBits = stats.countWastedBits(layout);
+    out.printf("  Wasted bits: %d (%.1f%% of the payload bytes)%n", wastedBits,
+            100.0 * wastedBits / (8.0 * stats.getPayloadBytes()));
+
+    PayloadLayout recommended = stats.recommend(layout, headroom);
+    out.printf("  Recommended layout (with %d bits of headroom): %s%n", headroom, recommended);
+    reportEstimate("with the recommended layout", stats, recommended, out);
+    PayloadLayout variable = new PayloadLayout(recommended.getCoordBits(), recommended.getWordBits(),
+            recommended.getLineBits(), recommended.getPageBits(), recommended.getConfidenceBits(),
+            recommended.hasAbsoluteCoordinates(), OcrPayloadHelper.VARIABLE_WIDTH_VERSION);
+    if (recommended.isFixedWidth() && variable.getCoordBits() <= 16
+            && 4 * variable.getCoordBits() + variable.getConfidenceBits() <= 64) {
+      reportEstimate("with payloadVersion=2", stats, variable, out);
+    }
+  }
+
+  private static void reportEstimate(String label, PayloadStats stats, PayloadLayout layout, PrintStream out) {
+    long estimated = stats.estimatePayloadBytes(layout);
+    out.printf("  Estimated payload bytes %s: %d (%+.1f%%)%n", label, estimated,
+            100.0 * (estimated - stats.getPayloadBytes()) / stats.getPayloadBytes());
+  }
+
+  /**
+   * Print the size of the payload files, the savings in payload bytes directly translate to these.
+   */
+  void reportPayloadFiles(Directory directory, PrintStream out) throws IOException {
+    long payFileBytes = 0;
+    for (String file : directory.listAll()) {
+      if (file.endsWith(".pay")) {
+        payFileBytes += directory.fileLength(file);
+      }
+    }
+    out.printf("Size of all .pay files: %d bytes (segments in compound files are not included)%n", payFileBytes);
+  }
+}
@@ -0,0 +1,287 @@
+package de.digitalcollections.lucene.analysis.payloads;
+
+import java.util.Objects;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Layout of the OCR information in the payloads of a field.
+ *
+ * Bundles the version of the payload format and the bit widths that a field was indexed with, so they only have to
+ * be passed around (and looked up) once. All decoding methods delegate to {@link OcrPayloadHelper}.
+ */
+public class PayloadLayout {
+
+  private final int coordBits;
+  private final int wordBits;
+  private final int lineBits;
+  private final int pageBits;
+  private final int confidenceBits;
+  private final boolean absoluteCoordinates;
+  private final int version;
+
+  /**
+   * Create a layout for the fixed-width payload format.
+   *
+   * @param coordBits           Number of bits the OCR information was encoded with
+   * @param wordBits            Number of bits the word index was encoded with
+   * @param lineBits            Number of bits the line index was encoded with
+   * @param pageBits            Number of bits the page index was encoded with
+   * @param absoluteCoordinates Whether the coordinates are stored absolute or relative (percent-values)
+   */
+  public PayloadLayout(int coordBits, int wordBits, int lineBits, int pageBits, boolean absoluteCoordinates) {
+    this(coordBits, wordBits, lineBits, pageBits, absoluteCoordinates, OcrPayloadHelper.FIXED_WIDTH_VERSION);
+  }
+
+  /**
+   * @param coordBits           Number of bits the OCR information was encoded with
+   * @param wordBits            Number of bits the word index was encoded with
+   * @param lineBits            Number of bits the line index was encoded with
+   * @param pageBits            Number of bits the page index was encoded with
+   * @param absoluteCoordinates Whether the coordinates are stored absolute or relative (percent-values)
+   * @param version             Version of the payload format, {@link OcrPayloadHelper#FIXED_WIDTH_VERSION} or
+   *                            {@link OcrPayloadHelper#VARIABLE_WIDTH_VERSION}
+   */
+  public PayloadLayout(int coordBits, int wordBits, int lineBits, int pageBits, boolean absoluteCoordinates,
+          int version) {
+    this(coordBits, wordBits, lineBits, pageBits, 0, absoluteCoordinates, version);
+  }
+
+  /**
+   * @param coordBits           Number of bits the OCR information was encoded with
+   * @param wordBits            Number of bits the word index was encoded with
+   * @param lineBits            Number of bits the line index was encoded with
+   * @param pageBits            Number of bits the page index was encoded with
+   * @param confidenceBits      Number of bits the OCR confidence was encoded with, 0 if it was not stored
+   * @param absoluteCoordinates Whether the coordinates are stored absolute or relative (percent-values)
+   * @param version             Version of the payload format, {@link OcrPayloadHelper#FIXED_WIDTH_VERSION} or
+   *                            {@link OcrPayloadHelper#VARIABLE_WIDTH_VERSION}
+   */
+  public PayloadLayout(int coordBits, int wordBits, int lineBits, int pageBits, int confidenceBits,
+          boolean absoluteCoordinates, int version) {
+    if (version != OcrPayloadHelper.FIXED_WIDTH_VERSION && version != OcrPayloadHelper.VARIABLE_WIDTH_VERSION) {
+      throw new IllegalArgumentException("Unknown payload version: " + version);
+    }
+    this.coordBits = coordBits;
+    this.wordBits = wordBits;
+    this.lineBits = lineBits;
+    this.pageBits = pageBits;
+    this.confidenceBits = Math.max(confidenceBits, 0);
+    this.absoluteCoordinates = absoluteCoordinates;
+    this.version = version;
+  }
+
+  public int getCoordBits() {
+    return coordBits;
+  }
+
+  public int getWordBits() {
+    return wordBits;
+  }
+
+  public int getLineBits() {
+    return lineBits;
+  }
+
+  public int getPageBits() {
+    return pageBits;
+  }
+
+  public int getConfidenceBits() {
+    return confidenceBits;
+  }
+
+  public boolean hasAbsoluteCoordinates() {
+    return absoluteCoordinates;
+  }
+
+  public int getVersion() {
+    return version;
+  }
+
+  /** Whether all payloads have the same length **/
+  public boolean isFixedWidth() {
+    return version == OcrPayloadHelper.FIXED_WIDTH_VERSION;
+  }
+
+  /** Length of an encoded payload in bytes, the maximum length for the variable-width format **/
+  public int getPayloadLength() {
+    if (isFixedWidth()) {
+      return OcrPayloadHelper.getPayloadLength(coordBits, wordBits, lineBits, pageBits, confidenceBits);
+    }
+    return varIntLength(pageBits) + varIntLength(lineBits) + varIntLength(wordBits)
+            + OcrPayloadHelper.getCoordinateBytes(coordBits, confidenceBits);
+  }
+
+  /** Length of the encoded payload that starts at the given offset **/
+  public int getPayloadLength(byte[] bytes, int offset) {
+    if (isFixedWidth()) {
+      return getPayloadLength();
+    }
+    return OcrPayloadHelper.getVariableWidthLength(bytes, offset, coordBits, confidenceBits, numIndices());
+  }
+
+  public byte[] encodeOcrInfo(OcrInfo info) {
+    if (isFixedWidth()) {
+      return OcrPayloadHelper.encodeOcrInfo(info, coordBits, wordBits, lineBits, pageBits, confidenceBits);
+    }
+    return OcrPayloadHelper.encodeVariableWidth(info, coordBits, wordBits, lineBits, pageBits, confidenceBits);
+  }
+
+  public OcrInfo decodeOcrInfo(BytesRef data) {
+    if (isFixedWidth()) {
+      return OcrPayloadHelper.decodeOcrInfo(
+              data, coordBits, wordBits, lineBits, pageBits, confidenceBits, absoluteCoordinates);
+    }
+    return OcrPayloadHelper.decodeVariableWidth(
+            data, coordBits, wordBits, lineBits, pageBits, confidenceBits, absoluteCoordinates);
+  }
+
+  /** @return The page index or -1 if the layout has no page indices **/
+  public int decodePageIndex(BytesRef data) {
+    if (isFixedWidth() || pageBits <= 0) {
+      return OcrPayloadHelper.decodePageIndex(data, coordBits, wordBits, lineBits, pageBits, confidenceBits);
+    }
+    return OcrPayloadHelper.decodeVariableWidthIndex(data, 0);
+  }
+
+  /**
+   * Decode the page index from a fixed-width payload that is given as an unsigned integer, split into its lower and
+   * upper 64 bits, as returned by {@link de.digitalcollections.lucene.codecs.OcrPayloadPostingsEnum#nextPayloads}.
+   *
+   * @return The page index or -1 if the layout has no page indices
+   */
+  public int decodePageIndex(long lowBits, long highBits) {
+    checkFixedWidth();
+    return OcrPayloadHelper.decodePageIndex(
+            lowBits, highBits, coordBits, wordBits, lineBits, pageBits, confidenceBits);
+  }
+
+  /**
+   * Decode a fixed-width payload that is given as an unsigned integer, see {@link #decodePageIndex(long, long)}.
+   */
+  public OcrInfo decodeOcrInfo(long lowBits, long highBits) {
+    checkFixedWidth();
+    return OcrPayloadHelper.decodeOcrInfo(
+            lowBits, highBits, coordBits, wordBits, lineBits, pageBits, confidenceBits, absoluteCoordinates);
+  }
+
+  /**
+   * Decode the line index from a fixed-width payload that is given as an unsigned integer, see
+   * {@link #decodePageIndex(long, long)}.
+   *
+   * @return The line index or -1 if the layout has no line indices
+   */
+  public int decodeLineIndex(long lowBits, long highBits) {
+    checkFixedWidth();
+    return OcrPayloadHelper.decodeLineIndex(lowBits, highBits, coordBits, wordBits, lineBits, confidenceBits);
+  }
+
+  /**
+   * Decode a coordinate from a payload that is given as an unsigned integer, see
+   * {@link #decodeRawCoordinate(BytesRef, int)} and {@link #decodePageIndex(long, long)}.
+   */
+  public int decodeRawCoordinate(long lowBits, long highBits, int coordIndex) {
+    checkFixedWidth();
+    return OcrPayloadHelper.decodeRawCoordinate(lowBits, highBits, coordBits, confidenceBits, coordIndex);
+  }
+
+  private void checkFixedWidth() {
+    if (!isFixedWidth()) {
+      throw new IllegalStateException("Only payloads in the fixed-width format can be decoded from integers.");
+    }
+  }
+
+  /** @return The line index or -1 if the layout has no line indices **/
+  public int decodeLineIndex(BytesRef data) {
+    if (isFixedWidth() || lineBits <= 0) {
+      return OcrPayloadHelper.decodeLineIndex(data, coordBits, wordBits, lineBits, confidenceBits);
+    }
+    return OcrPayloadHelper.decodeVariableWidthIndex(data, pageBits > 0 ? 1 : 0);
+  }
+
+  /** @return The word index or -1 if the layout has no word indices **/
+  public int decodeWordIndex(BytesRef data) {
+    if (isFixedWidth() || wordBits <= 0) {
+      return OcrPayloadHelper.decodeWordIndex(data, coordBits, wordBits, confidenceBits);
+    }
+    return OcrPayloadHelper.decodeVariableWidthIndex(data, (pageBits > 0 ? 1 : 0) + (lineBits > 0 ? 1 : 0));
+  }
+
+  private int numIndices() {
+    return (pageBits > 0 ? 1 : 0) + (lineBits > 0 ? 1 : 0) + (wordBits > 0 ? 1 : 0);
+  }
+
+  /** Maximum number of bytes of a varint with the given number of bits **/
+  private static int varIntLength(int numBits) {
+    return numBits > 0 ? (Math.min(numBits, 28) + 6) / 7 : 0;
+  }
+
+  /** See {@link OcrPayloadHelper#decodeRawCoordinate(BytesRef, int, int, int)} **/
+  public int decodeRawCoordinate(BytesRef data, int coordIndex) {
+    return OcrPayloadHelper.decodeRawCoordinate(data, coordBits, confidenceBits, coordIndex);
+  }
+
+  /**
+   * Determine the smallest raw confidence that satisfies a minimum confidence between 0 and 1.
+   *
+   * @return The threshold for {@link #isConfident(BytesRef, int)}, 0 if the layout has no confidences
+   */
+  public int getConfidenceThreshold(float minConfidence) {
+    if (confidenceBits <= 0) {
+      return 0;
+    }
+    return OcrPayloadHelper.getRawConfidenceThreshold(minConfidence, confidenceBits);
+  }
+
+  /**
+   * Check the confidence of a payload against a threshold from {@link #getConfidenceThreshold(float)}.
+   *
+   * Only the last bits of the payload are read, so this should be done before anything else is decoded.
+   */
+  public boolean isConfident(BytesRef data, int threshold) {
+    return threshold <= 0 || OcrPayloadHelper.decodeRawConfidence(data, confidenceBits) >= threshold;
+  }
+
+  /**
+   * Check the confidence of a payload that is given as an unsigned integer, see {@link #decodePageIndex(long, long)}.
+   */
+  public boolean isConfident(long lowBits, int threshold) {
+    return threshold <= 0 || OcrPayloadHelper.readBits(lowBits, 0, 0, confidenceBits) >= threshold;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+    PayloadLayout other = (PayloadLayout) o;
+    return coordBits == other.coordBits
+            && wordBits == other.wordBits
+            && lineBits == other.lineBits
+            && pageBits == other.pageBits
+            && confidenceBits == other.confidenceBits
+            && absoluteCoordinates == other.absoluteCoordinates
+            && version == other.version;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(coordBits, wordBits, lineBits, pageBits, confidenceBits, absoluteCoordinates, version);
+  }
+
+  @Override
+  public String toString() {
+    return "PayloadLayout{"
+            + "coordBits=" + coordBits
+            + ", wordBits=" + wordBits
+            + ", lineBits=" + lineBits
+            + ", pageBits=" + pageBits
+            + ", confidenceBits=" + confidenceBits
+            + ", absoluteCoordinates=" + absoluteCoordinates
+            + ", version=" + version
+            + '}';
+  }
+}
@@ -0,0 +1,220 @@
+package de.digitalcollections.lucene.analysis.payloads;
+
+import java.util.Arrays;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Statistics over the OCR payloads of a field.
+ *
+ * Instead of the values themselves, only a histogram of their bit lengths is kept for every component of the
+ * payloads, which is all that is needed to determine how many bits a layout needs and how large the payloads would be
+ * with a different layout. The memory usage is constant, no matter how many payloads are added, and the statistics of
+ * different segments can be merged.
+ */
+class PayloadStats {
+
+  static final int PAGE = 0;
+  static final int LINE = 1;
+  static final int WORD = 2;
+  static final int X = 3;
+  static final int HEIGHT = 6;
+  static final String[] COMPONENTS = {"page", "line", "word", "x", "y", "width", "height"};
+
+  /** Histograms of the bit lengths of all components, indexed by component and number of bits **/
+  private final long[][] bitLengths = new long[COMPONENTS.length][33];
+  private final int[] maxima = new int[COMPONENTS.length];
+  private long numPayloads = 0;
+  private long payloadBytes = 0;
+  private long numMalformed = 0;
+
+  PayloadStats() {
+    Arrays.fill(maxima, -1);
+  }
+
+  /**
+   * Add a payload to the statistics.
+   *
+   * @param payload The encoded payload
+   * @param layout The layout the payload was encoded with
+   */
+  void add(BytesRef payload, PayloadLayout layout) {
+    int[] values = new int[COMPONENTS.length];
+    try {
+      // Fixed-width payloads can be shorter than the full length, since leading null-bytes are stripped
+      boolean valid = layout.isFixedWidth()
+              ? payload.length <= layout.getPayloadLength()
+              : payload.length == layout.getPayloadLength(payload.bytes, payload.offset);
+      if (!valid) {
+        numMalformed++;
+        return;
+      }
+      values[PAGE] = layout.decodePageIndex(payload);
+      values[LINE] = layout.decodeLineIndex(payload);
+      values[WORD] = layout.decodeWordIndex(payload);
+      for (int i = 0; i < 4; i++) {
+        values[X + i] = layout.decodeRawCoordinate(payload, i);
+      }
+    } catch (IndexOutOfBoundsException e) {
+      numMalformed++;
+      return;
+    }
+    for (int i = 0; i < values.length; i++) {
+      if (values[i] < 0) {
+        continue;
+      }
+      bitLengths[i][bitLength(values[i])]++;
+      maxima[i] = Math.max(maxima[i], values[i]);
+    }
+    numPayloads++;
+    payloadBytes += payload.length;
+  }
+
+  /**
+   * Add the statistics of another segment.
+   */
+  void merge(PayloadStats other) {
+    for (int i = 0; i < COMPONENTS.length; i++) {
+      for (int b = 0; b < bitLengths[i].length; b++) {
+        bitLengths[i][b] += other.bitLengths[i][b];
+      }
+      maxima[i] = Math.max(maxima[i], other.maxima[i]);
+    }
+    numPayloads += other.numPayloads;
+    payloadBytes += other.payloadBytes;
+    numMalformed += other.numMalformed;
+  }
+
+  long getNumPayloads() {
+    return numPayloads;
+  }
+
+  long getPayloadBytes() {
+    return payloadBytes;
+  }
+
+  long getNumMalformed() {
+    return numMalformed;
+  }
+
+  /** @return The largest value of the component or -1 if it was never present **/
+  int getMaximum(int component) {
+    return maxima[component];
+  }
+
+  /** @return The number of values of the component with the given bit length **/
+  long getCount(int component, int numBits) {
+    return bitLengths[component][numBits];
+  }
+
+  /**
+   * Determine the smallest layout that can hold all values seen so far.
+   *
+   * Only the indices that are enabled in the current layout are considered. Relative coordinates always span the full
+   * range of values, their number of bits is a matter of precision and is kept. For the fixed-width format, the bits
+   * that would otherwise be used for padding the payload to full bytes go to the page index, since they are free.
+   *
+   * @param layout The layout the payloads were encoded with
+   * @param headroom Number of additional bits for every component, to leave room for larger values in the future
+   * @return The recommended layout
+   */
+  PayloadLayout recommend(PayloadLayout layout, int headroom) {
+    int pageBits = layout.getPageBits() > 0 ? bitLength(Math.max(maxima[PAGE], 1)) + headroom : 0;
+    int lineBits = layout.getLineBits() > 0 ? bitLength(Math.max(maxima[LINE], 1)) + headroom : 0;
+    int wordBits = layout.getWordBits() > 0 ? bitLength(Math.max(maxima[WORD], 1)) + headroom : 0;
+    int coordBits = layout.getCoordBits();
+    if (layout.hasAbsoluteCoordinates()) {
+      int maxCoordinate = 1;
+      for (int i = X; i <= HEIGHT; i++) {
+        maxCoordinate = Math.max(maxCoordinate, maxima[i]);
+      }
+      coordBits = bitLength(maxCoordinate) + headroom;
+      // The coordinates have to fill complete bytes
+      coordBits += coordBits % 2;
+    }
+    int confidenceBits = layout.getConfidenceBits();
+    if (layout.isFixedWidth()) {
+      int padding = (8 - (4 * coordBits + confidenceBits + pageBits + lineBits + wordBits) % 8) % 8;
+      if (pageBits > 0) {
+        pageBits += padding;
+      } else if (lineBits > 0) {
+        lineBits += padding;
+      } else if (wordBits > 0) {
+        wordBits += padding;
+      }
+    }
+    return new PayloadLayout(coordBits, wordBits, lineBits, pageBits, confidenceBits, layout.hasAbsoluteCoordinates(),
+            layout.getVersion());
+  }
+
+  /**
+   * Estimate the total size of the payloads if they were encoded with the given layout.
+   *
+   * For the variable-width format, the estimate is exact. For the fixed-width format, the leading null-bytes of
+   * payloads with a small page index are stripped, which is taken into account for all payloads with a non-zero page
+   * index.
+   */
+  long estimatePayloadBytes(PayloadLayout layout) {
+    if (!layout.isFixedWidth()) {
+      long bytes = numPayloads * OcrPayloadHelper.getCoordinateBytes(layout.getCoordBits(), layout.getConfidenceBits());
+      int[] indices = {PAGE, LINE, WORD};
+      int[] indexBits = {layout.getPageBits(), layout.getLineBits(), layout.getWordBits()};
+      for (int i = 0; i < indices.length; i++) {
+        if (indexBits[i] <= 0) {
+          continue;
+        }
+        for (int b = 0; b < bitLengths[indices[i]].length; b++) {
+          bytes += bitLengths[indices[i]][b] * varIntLength(b);
+        }
+      }
+      return bytes;
+    }
+    if (layout.getPageBits() <= 0) {
+      return numPayloads * layout.getPayloadLength();
+    }
+    int lowerBits = 4 * layout.getCoordBits() + layout.getConfidenceBits() + Math.max(layout.getLineBits(), 0)
+            + Math.max(layout.getWordBits(), 0);
+    long bytes = 0;
+    for (int b = 0; b < bitLengths[PAGE].length; b++) {
+      bytes += bitLengths[PAGE][b] * ((lowerBits + Math.max(b, 1) + 7) / 8);
+    }
+    return bytes;
+  }
+
+  /**
+   * Count the bits that are stored without carrying information, i.e. the leading zero-bits of the indices (and of
+   * absolute coordinates) and the padding to full bytes. For the fixed-width format, this is counted before the
+   * leading null-bytes are stripped.
+   */
+  long countWastedBits(PayloadLayout layout) {
+    int[] widths = {layout.getPageBits(), layout.getLineBits(), layout.getWordBits()};
+    int numComponents = layout.hasAbsoluteCoordinates() ? COMPONENTS.length : X;
+    long wasted = 0;
+    for (int i = 0; i < numComponents; i++) {
+      for (int b = 0; b < bitLengths[i].length; b++) {
+        int storedBits;
+        if (i >= X) {
+          storedBits = layout.getCoordBits();
+        } else if (layout.isFixedWidth()) {
+          storedBits = widths[i];
+        } else {
+          storedBits = varIntLength(b) * 8;
+        }
+        wasted += bitLengths[i][b] * (storedBits - b);
+      }
+    }
+    if (layout.isFixedWidth()) {
+      int bitSum = 4 * layout.getCoordBits() + layout.getConfidenceBits() + Math.max(widths[0], 0)
+              + Math.max(widths[1], 0) + Math.max(widths[2], 0);
+      wasted += numPayloads * (layout.getPayloadLength() * 8 - bitSum);
+    }
+    return wasted;
+  }
+
+  static int bitLength(int value) {
+    return 32 - Integer.numberOfLeadingZeros(value);
+  }
+
+  private static int varIntLength(int numBits) {
+    return Math.max(1, (numBits + 6) / 7);
+  }
+}
@@ -3,6 +3,8 @@ package de.digitalcollections.lucene.analysis.util;
 import de.digitalcollections.lucene.analysis.payloads.OcrInfo;
 import de.digitalcollections.lucene.analysis.payloads.OcrInfoEncoder;
 import de.digitalcollections.lucene.analysis.payloads.OcrPayloadHelper;
+import de.digitalcollections.lucene.analysis.payloads.PayloadLayout;
+import de.digitalcollections.lucene.jfr.OcrEvents;
 import java.util.Map;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.payloads.DelimitedPayloadTokenFilter;
@@ -34,6 +36,15 @@ import org.slf4j.LoggerFactory;
  * `wordBits`
  * : Number of bits to use for encoding the word index. 0 will disable word indices (default).
  *
+ * `confidenceBits`
+ * : Number of bits to use for encoding the OCR confidence of a word (the `c` key). 0 will disable confidences
+ *   (default), 7 bits are enough to keep the full precision of integral percentages.
+ *
+ * `payloadVersion`
+ * : Version of the payload format. `1` (default) stores all indices with the configured number of bits, `2` stores
+ *   every index with as few bytes as possible and uses the configured bits only as an upper bound, which makes the
+ *   index smaller if most documents only have a few pages. Requires `coordinateBits` to be at most 16.
+ *
  * Here is a sample configuration with page indices enabled:
  * ```
  * <pre>{@code
@@ -52,12 +63,17 @@ public class DelimitedOcrInfoPayloadTokenFilterFactory extends TokenFilterFactor
   private static final String LINE_BITS_ATTR = "lineBits";
   private static final String WORD_BITS_ATTR = "wordBits";
   private static final String ABSOLUTE_COORDS_ATTR = "absoluteCoordinates";
+  private static final String CONFIDENCE_BITS_ATTR = "confidenceBits";
+  private static final String VERSION_ATTR = "payloadVersion";
 
   /** Delimiter to use for splitting OCR information from the tokens **/
   private final char delimiter;
 
   private OcrInfoEncoder encoder;
 
+  /** Layout of the encoded payloads, needed for decoding **/
+  private final PayloadLayout layout;
+
   public DelimitedOcrInfoPayloadTokenFilterFactory(Map<String, String> args) {
     super(args);
     delimiter = getChar(args, DELIMITER_ATTR, '|');
@@ -67,27 +83,59 @@ public class DelimitedOcrInfoPayloadTokenFilterFactory extends TokenFilterFactor
     final int pageBits = getInt(args, PAGE_BITS_ATTR, 0);
     final int lineBits = getInt(args, LINE_BITS_ATTR, 0);
     final int wordBits = getInt(args, WORD_BITS_ATTR, 0);
+    final int confidenceBits = getInt(args, CONFIDENCE_BITS_ATTR, 0);
     final boolean absoluteCoordinates = getBoolean(args, ABSOLUTE_COORDS_ATTR, false);
+    final int version = getInt(args, VERSION_ATTR, OcrPayloadHelper.FIXED_WIDTH_VERSION);
 
     int coordWidth = coordinateBits * 4;
     int remainder = coordWidth % 8;
     if (remainder != 0) {
       throw new IllegalArgumentException("coordinateBits must be an even number.");
     }
-    int bitSum = coordWidth + pageBits + lineBits + wordBits;
-    remainder = bitSum % 8;
-    if (remainder != 0) {
-      LOGGER.warn("Final payload size {} is not divisible by 8, will be padded. This is wasting {} bits, try playing "
-              + "with the wordBits, lineBits and/or pageBits options.", bitSum, remainder);
+    if (confidenceBits < 0 || confidenceBits > 16) {
+      throw new IllegalArgumentException("confidenceBits must be between 0 and 16.");
     }
-    encoder = new OcrInfoEncoder(coordinateBits, wordBits, lineBits, pageBits, absoluteCoordinates);
+    if (version == OcrPayloadHelper.VARIABLE_WIDTH_VERSION) {
+      if (coordinateBits > 16) {
+        throw new IllegalArgumentException("payloadVersion 2 supports at most 16 coordinateBits.");
+      }
+      if (Math.max(pageBits, Math.max(lineBits, wordBits)) > 28) {
+        throw new IllegalArgumentException("payloadVersion 2 supports at most 28 bits for the indices.");
+      }
+      if (coordWidth + confidenceBits > 64) {
+        throw new IllegalArgumentException(
+                "payloadVersion 2 supports at most 64 bits for the coordinates and the confidence together.");
+      }
+    } else if (version == OcrPayloadHelper.FIXED_WIDTH_VERSION) {
+      int bitSum = coordWidth + pageBits + lineBits + wordBits + confidenceBits;
+      remainder = bitSum % 8;
+      if (remainder != 0) {
+        LOGGER.warn("Final payload size {} is not divisible by 8, will be padded. This is wasting {} bits, try "
+                + "playing with the wordBits, lineBits and/or pageBits options.", bitSum, remainder);
+      }
+    } else {
+      throw new IllegalArgumentException("Unknown payloadVersion " + version + ", must be 1 or 2.");
+    }
+    encoder = new OcrInfoEncoder(
+            coordinateBits, wordBits, lineBits, pageBits, confidenceBits, absoluteCoordinates, version);
+    layout = new PayloadLayout(
+            coordinateBits, wordBits, lineBits, pageBits, confidenceBits, absoluteCoordinates, version);
     if (!args.isEmpty()) {
       throw new IllegalArgumentException("Unknown parameters: " + args);
     }
   }
 
+  /**
+   * Get the layout of the payloads produced by this filter, used by the highlighter to decode them.
+   */
+  public PayloadLayout getLayout() {
+    return layout;
+  }
+
   @Override
   public TokenStream create(TokenStream input) {
-    return new DelimitedPayloadTokenFilter(input, delimiter, encoder);
+    TokenStream filter = new DelimitedPayloadTokenFilter(input, delimiter, encoder);
+    // Only wrap the filter if the events could ever be recorded in this JVM
+    return OcrEvents.isAvailable() ? new PayloadEncodingEventFilter(filter) : filter;
   }
 }
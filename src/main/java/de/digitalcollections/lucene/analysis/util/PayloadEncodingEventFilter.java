@@ -0,0 +1,68 @@
+package de.digitalcollections.lucene.analysis.util;
+
+import de.digitalcollections.lucene.jfr.OcrEvents;
+import java.io.IOException;
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.PayloadAttribute;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Records the number of tokens and the size of the payloads of every field value in a Flight Recorder event, see
+ * {@link OcrEvents#beginPayloadEncoding()}.
+ *
+ * The event spans the whole token stream, from {@link #reset()} to {@link #end()}, so the encoding throughput of a
+ * value is its payload bytes over the duration of the event.
+ */
+final class PayloadEncodingEventFilter extends TokenFilter {
+
+  private final PayloadAttribute payloadAtt = addAttribute(PayloadAttribute.class);
+
+  private Object event;
+  private int numTokens;
+  private int numPayloads;
+  private long payloadBytes;
+
+  PayloadEncodingEventFilter(TokenStream input) {
+    super(input);
+  }
+
+  @Override
+  public void reset() throws IOException {
+    super.reset();
+    event = OcrEvents.beginPayloadEncoding();
+    numTokens = 0;
+    numPayloads = 0;
+    payloadBytes = 0;
+  }
+
+  @Override
+  public boolean incrementToken() throws IOException {
+    if (!input.incrementToken()) {
+      return false;
+    }
+    if (event != null) {
+      numTokens++;
+      BytesRef payload = payloadAtt.getPayload();
+      if (payload != null) {
+        numPayloads++;
+        payloadBytes += payload.length;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public void end() throws IOException {
+    super.end();
+    OcrEvents.endPayloadEncoding(event, numTokens, numPayloads, payloadBytes);
+    event = null;
+  }
+
+  @Override
+  public void close() throws IOException {
+    super.close();
+    // The stream was aborted if it wasn't ended, its event is dropped
+    event = null;
+  }
+}
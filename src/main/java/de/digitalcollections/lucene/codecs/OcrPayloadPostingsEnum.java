@@ -0,0 +1,241 @@
+package de.digitalcollections.lucene.codecs;
+
+import java.io.IOException;
+import java.util.Arrays;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.LongValues;
+import org.apache.lucene.util.packed.DirectReader;
+
+/**
+ * Postings of a term whose payloads were packed by the {@link OcrPayloadPostingsFormat}.
+ *
+ * Documents and positions come from the delegate format. The payload of a position is looked up by its ordinal in
+ * the term's position stream, which is the number of positions in all previous documents of the term plus the
+ * position's index within its document.
+ *
+ * Besides the usual {@link #getPayload()}, which has to turn the packed value back into bytes, the payloads of the
+ * current document can be read in bulk with {@link #nextPayloads(long[], long[])}, or together with their positions
+ * with {@link #nextPositions(int[], long[], long[])}.
+ */
+public final class OcrPayloadPostingsEnum extends PostingsEnum {
+
+  /** Recommended size of the buffers for {@link #nextPayloads(long[], long[])} **/
+  public static final int BLOCK_SIZE = 128;
+
+  private final IndexInput dataIn;
+  private final IndexInput meta;
+  private final BytesRef payload = new BytesRef(new byte[OcrPayloadPostingsFormat.MAX_PAYLOAD_BYTES]);
+
+  private PostingsEnum in;
+  private LongValues lowValues;
+  private LongValues highValues;
+  private int numSkips;
+  private int[] skipDocs;
+  private long[] skipOrdinals;
+  private boolean skipsLoaded;
+
+  private int doc;
+  private int freq;
+  /** Ordinal of the first position of the current document **/
+  private long docStart;
+  /** Number of positions of the current document that were consumed **/
+  private int posIndex;
+
+  OcrPayloadPostingsEnum(IndexInput dataIn) {
+    this.dataIn = dataIn;
+    this.meta = dataIn.clone();
+  }
+
+  boolean canReuse(IndexInput dataIn) {
+    return this.dataIn == dataIn;
+  }
+
+  PostingsEnum getDelegate() {
+    return in;
+  }
+
+  /**
+   * Position the enum on the postings of a new term.
+   *
+   * @param in     Postings of the term from the delegate format
+   * @param metaFp File pointer of the term's metadata in the payload file
+   */
+  OcrPayloadPostingsEnum reset(PostingsEnum in, long metaFp) throws IOException {
+    this.in = in;
+    meta.seek(metaFp);
+    int lowBitsPerValue = meta.readByte();
+    int highBitsPerValue = meta.readByte();
+    long lowStart = metaFp - meta.readVLong();
+    long highStart = metaFp - meta.readVLong();
+    lowValues = DirectReader.getInstance(dataIn.randomAccessSlice(lowStart, highStart - lowStart), lowBitsPerValue);
+    highValues = highBitsPerValue > 0
+            ? DirectReader.getInstance(dataIn.randomAccessSlice(highStart, metaFp - highStart), highBitsPerValue)
+            : null;
+    // The skip entries are only read once a document is skipped
+    numSkips = meta.readVInt();
+    skipsLoaded = false;
+    doc = -1;
+    freq = 0;
+    docStart = 0;
+    posIndex = 0;
+    return this;
+  }
+
+  @Override
+  public int docID() {
+    return doc;
+  }
+
+  @Override
+  public int freq() throws IOException {
+    return freq;
+  }
+
+  @Override
+  public int nextDoc() throws IOException {
+    docStart += freq;
+    doc = in.nextDoc();
+    onDoc();
+    return doc;
+  }
+
+  @Override
+  public int advance(int target) throws IOException {
+    if (numSkips > 0) {
+      loadSkips();
+      int idx = Arrays.binarySearch(skipDocs, 0, numSkips, target);
+      idx = idx >= 0 ? idx : -idx - 2;
+      if (idx >= 0 && skipDocs[idx] > doc) {
+        // The delegate lands exactly on the recorded document, whose ordinal is known
+        doc = in.advance(skipDocs[idx]);
+        docStart = skipOrdinals[idx];
+        onDoc();
+      }
+    }
+    while (doc < target) {
+      nextDoc();
+    }
+    return doc;
+  }
+
+  private void onDoc() throws IOException {
+    freq = doc == NO_MORE_DOCS ? 0 : in.freq();
+    posIndex = 0;
+  }
+
+  private void loadSkips() throws IOException {
+    if (skipsLoaded) {
+      return;
+    }
+    if (skipDocs == null || skipDocs.length < numSkips) {
+      skipDocs = new int[numSkips];
+      skipOrdinals = new long[numSkips];
+    }
+    int lastDoc = 0;
+    long lastOrdinal = 0;
+    for (int i = 0; i < numSkips; i++) {
+      lastDoc += meta.readVInt();
+      lastOrdinal += meta.readVLong();
+      skipDocs[i] = lastDoc;
+      skipOrdinals[i] = lastOrdinal;
+    }
+    skipsLoaded = true;
+  }
+
+  @Override
+  public int nextPosition() throws IOException {
+    int position = in.nextPosition();
+    posIndex++;
+    return position;
+  }
+
+  @Override
+  public int startOffset() throws IOException {
+    return in.startOffset();
+  }
+
+  @Override
+  public int endOffset() throws IOException {
+    return in.endOffset();
+  }
+
+  /**
+   * Get the payload of the current position as bytes, without leading null-bytes.
+   *
+   * The returned {@link BytesRef} is reused for the next position.
+   */
+  @Override
+  public BytesRef getPayload() throws IOException {
+    long ordinal = docStart + posIndex - 1;
+    long low = lowValues.get(ordinal);
+    long high = highValues != null ? highValues.get(ordinal) : 0;
+    int numBytes = high != 0
+            ? 16 - Long.numberOfLeadingZeros(high) / 8
+            : Math.max(1, 8 - Long.numberOfLeadingZeros(low) / 8);
+    for (int i = numBytes - 1, shift = 0; i >= 0; i--, shift += 8) {
+      payload.bytes[i] = (byte) (shift < 64 ? low >>> shift : high >>> (shift - 64));
+    }
+    payload.length = numBytes;
+    return payload;
+  }
+
+  /**
+   * Read the payloads of the next positions of the current document in bulk.
+   *
+   * Every payload is returned as an unsigned integer, split into its lower and upper 64 bits, that can be decoded
+   * with e.g. {@link de.digitalcollections.lucene.analysis.payloads.PayloadLayout#decodePageIndex(long, long)}. The
+   * positions themselves are not read, so this cannot be mixed with {@link #nextPosition()} within a document.
+   *
+   * @param lowBits  Buffer for the lower 64 bits of the payloads, usually {@value #BLOCK_SIZE} long
+   * @param highBits Buffer for the upper 64 bits of the payloads, at least as long as `lowBits`
+   * @return The number of payloads that were read, 0 once all positions of the document have been consumed
+   */
+  public int nextPayloads(long[] lowBits, long[] highBits) {
+    int count = Math.min(freq - posIndex, lowBits.length);
+    readPayloads(lowBits, highBits, count);
+    return count;
+  }
+
+  /**
+   * Read the next positions of the current document together with their payloads, in bulk.
+   *
+   * The payloads are returned like with {@link #nextPayloads(long[], long[])}. Since the positions are read, this
+   * can be mixed with {@link #nextPosition()}, but not with {@link #nextPayloads(long[], long[])}.
+   *
+   * @param positions Buffer for the positions, usually {@value #BLOCK_SIZE} long
+   * @param lowBits   Buffer for the lower 64 bits of the payloads, at least as long as `positions`
+   * @param highBits  Buffer for the upper 64 bits of the payloads, at least as long as `positions`
+   * @return The number of positions that were read, 0 once all positions of the document have been consumed
+   * @throws IOException Error while reading the positions from the delegate
+   */
+  public int nextPositions(int[] positions, long[] lowBits, long[] highBits) throws IOException {
+    int count = Math.min(freq - posIndex, positions.length);
+    for (int i = 0; i < count; i++) {
+      positions[i] = in.nextPosition();
+    }
+    readPayloads(lowBits, highBits, count);
+    return count;
+  }
+
+  private void readPayloads(long[] lowBits, long[] highBits, int count) {
+    long ordinal = docStart + posIndex;
+    for (int i = 0; i < count; i++) {
+      lowBits[i] = lowValues.get(ordinal + i);
+    }
+    if (highValues != null) {
+      for (int i = 0; i < count; i++) {
+        highBits[i] = highValues.get(ordinal + i);
+      }
+    } else {
+      Arrays.fill(highBits, 0, count, 0L);
+    }
+    posIndex += count;
+  }
+
+  @Override
+  public long cost() {
+    return in.cost();
+  }
+}
@@ -0,0 +1,109 @@
+package de.digitalcollections.lucene.codecs;
+
+import java.io.IOException;
+import org.apache.lucene.codecs.FieldsConsumer;
+import org.apache.lucene.codecs.FieldsProducer;
+import org.apache.lucene.codecs.PostingsFormat;
+import org.apache.lucene.codecs.PostingsReaderBase;
+import org.apache.lucene.codecs.PostingsWriterBase;
+import org.apache.lucene.codecs.blocktree.BlockTreeTermsReader;
+import org.apache.lucene.codecs.blocktree.BlockTreeTermsWriter;
+import org.apache.lucene.codecs.lucene50.Lucene50PostingsReader;
+import org.apache.lucene.codecs.lucene50.Lucene50PostingsWriter;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.SegmentReadState;
+import org.apache.lucene.index.SegmentWriteState;
+import org.apache.lucene.util.IOUtils;
+
+/**
+ * Postings format that stores fixed-width OCR payloads bit-packed, instead of as byte blobs with a length per
+ * position.
+ *
+ * Terms, documents and positions are written by the default Lucene 5.0 postings format, only the payloads of fields
+ * with payloads are taken out and written to a separate file. Every payload is read as an unsigned integer and all
+ * payloads of a term are packed with the number of bits that the largest of them needs, which is usually less than
+ * the payload length rounded to full bytes. This has three consequences:
+ *
+ * - Only payloads in the fixed-width format (`payloadVersion="1"`) can be stored, since their value does not depend
+ *   on leading null-bytes. The variable-width format does not fit the packing anyway.
+ * - Payloads can be at most 16 bytes long.
+ * - Leading null-bytes are not preserved and positions without a payload read back as a single null-byte.
+ *
+ * The payload of a position is located by its ordinal in the term's position stream, the postings enum keeps track
+ * of it while iterating. To keep {@link org.apache.lucene.search.DocIdSetIterator#advance(int)} cheap, every
+ * {@value #SKIP_INTERVAL}th document of a term is recorded with its ordinal. Highlighting code that needs the
+ * payloads of all positions of a document can read them in bulk without going through {@link
+ * org.apache.lucene.util.BytesRef}s, see {@link OcrPayloadPostingsEnum#nextPayloads(long[], long[])}.
+ *
+ * Enable it per field type with the `SchemaCodecFactory`:
+ *
+ * ```xml
+ * <pre>{@code
+ * <codecFactory class="solr.SchemaCodecFactory"/>
+ * <fieldtype name="text_ocr" class="solr.TextField" postingsFormat="OcrPayload"> ...
+ * }</pre>
+ * ```
+ */
+public final class OcrPayloadPostingsFormat extends PostingsFormat {
+
+  /** Name of the format for the SPI lookup and the `postingsFormat` attribute of a field type **/
+  public static final String NAME = "OcrPayload";
+
+  /** Payloads longer than this cannot be packed into two longs **/
+  public static final int MAX_PAYLOAD_BYTES = 16;
+
+  static final String DATA_EXTENSION = "ocp";
+  static final String DATA_CODEC = "OcrPayloadData";
+  static final String TERMS_CODEC = "OcrPayloadTerms";
+  static final int VERSION_START = 0;
+  static final int VERSION_CURRENT = VERSION_START;
+
+  /** Number of documents between two entries of the skip data of a term **/
+  static final int SKIP_INTERVAL = 128;
+
+  public OcrPayloadPostingsFormat() {
+    super(NAME);
+  }
+
+  /** Whether the payloads of a field are taken out of the postings and packed **/
+  static boolean packsPayloads(FieldInfo fieldInfo) {
+    return fieldInfo.hasPayloads()
+            && fieldInfo.getIndexOptions().compareTo(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS) >= 0;
+  }
+
+  @Override
+  public FieldsConsumer fieldsConsumer(SegmentWriteState state) throws IOException {
+    PostingsWriterBase luceneWriter = new Lucene50PostingsWriter(state);
+    PostingsWriterBase postingsWriter = null;
+    boolean success = false;
+    try {
+      postingsWriter = new OcrPayloadPostingsWriter(luceneWriter, state);
+      FieldsConsumer consumer = new BlockTreeTermsWriter(state, postingsWriter,
+              BlockTreeTermsWriter.DEFAULT_MIN_BLOCK_SIZE, BlockTreeTermsWriter.DEFAULT_MAX_BLOCK_SIZE);
+      success = true;
+      return consumer;
+    } finally {
+      if (!success) {
+        IOUtils.closeWhileHandlingException(postingsWriter, luceneWriter);
+      }
+    }
+  }
+
+  @Override
+  public FieldsProducer fieldsProducer(SegmentReadState state) throws IOException {
+    PostingsReaderBase luceneReader = new Lucene50PostingsReader(state);
+    PostingsReaderBase postingsReader = null;
+    boolean success = false;
+    try {
+      postingsReader = new OcrPayloadPostingsReader(luceneReader, state);
+      FieldsProducer producer = new BlockTreeTermsReader(postingsReader, state);
+      success = true;
+      return producer;
+    } finally {
+      if (!success) {
+        IOUtils.closeWhileHandlingException(postingsReader, luceneReader);
+      }
+    }
+  }
+}
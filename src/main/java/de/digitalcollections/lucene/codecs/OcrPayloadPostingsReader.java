@@ -0,0 +1,116 @@
+package de.digitalcollections.lucene.codecs;
+
+import java.io.IOException;
+import org.apache.lucene.codecs.BlockTermState;
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.codecs.PostingsReaderBase;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.ImpactsEnum;
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.SegmentReadState;
+import org.apache.lucene.store.DataInput;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.util.IOUtils;
+
+/**
+ * Reads the postings with the delegate format and puts the packed payloads back in, see
+ * {@link OcrPayloadPostingsWriter} for the file layout.
+ */
+final class OcrPayloadPostingsReader extends PostingsReaderBase {
+
+  private final PostingsReaderBase delegate;
+  private final IndexInput data;
+
+  OcrPayloadPostingsReader(PostingsReaderBase delegate, SegmentReadState state) throws IOException {
+    this.delegate = delegate;
+    String fileName = IndexFileNames.segmentFileName(
+            state.segmentInfo.name, state.segmentSuffix, OcrPayloadPostingsFormat.DATA_EXTENSION);
+    IndexInput input = state.directory.openInput(fileName, state.context);
+    boolean success = false;
+    try {
+      CodecUtil.checkIndexHeader(input, OcrPayloadPostingsFormat.DATA_CODEC, OcrPayloadPostingsFormat.VERSION_START,
+              OcrPayloadPostingsFormat.VERSION_CURRENT, state.segmentInfo.getId(), state.segmentSuffix);
+      CodecUtil.retrieveChecksum(input);
+      success = true;
+    } finally {
+      if (!success) {
+        IOUtils.closeWhileHandlingException(input);
+      }
+    }
+    this.data = input;
+  }
+
+  @Override
+  public void init(IndexInput termsIn, SegmentReadState state) throws IOException {
+    delegate.init(termsIn, state);
+    CodecUtil.checkIndexHeader(termsIn, OcrPayloadPostingsFormat.TERMS_CODEC, OcrPayloadPostingsFormat.VERSION_START,
+            OcrPayloadPostingsFormat.VERSION_CURRENT, state.segmentInfo.getId(), state.segmentSuffix);
+  }
+
+  @Override
+  public BlockTermState newTermState() throws IOException {
+    return new OcrPayloadTermState(delegate.newTermState(), -1);
+  }
+
+  @Override
+  public void decodeTerm(long[] longs, DataInput in, FieldInfo fieldInfo, BlockTermState state, boolean absolute)
+          throws IOException {
+    OcrPayloadTermState termState = (OcrPayloadTermState) state;
+    delegate.decodeTerm(longs, in, fieldInfo, termState.syncDelegate(), absolute);
+    if (OcrPayloadPostingsFormat.packsPayloads(fieldInfo)) {
+      if (absolute) {
+        termState.metaFp = 0;
+      }
+      termState.metaFp += in.readVLong();
+    }
+  }
+
+  @Override
+  public PostingsEnum postings(FieldInfo fieldInfo, BlockTermState state, PostingsEnum reuse, int flags)
+          throws IOException {
+    OcrPayloadTermState termState = (OcrPayloadTermState) state;
+    if (!OcrPayloadPostingsFormat.packsPayloads(fieldInfo)
+            || !PostingsEnum.featureRequested(flags, PostingsEnum.PAYLOADS)) {
+      return delegate.postings(fieldInfo, termState.syncDelegate(),
+              reuse instanceof OcrPayloadPostingsEnum ? null : reuse, flags);
+    }
+    OcrPayloadPostingsEnum postings;
+    if (reuse instanceof OcrPayloadPostingsEnum && ((OcrPayloadPostingsEnum) reuse).canReuse(data)) {
+      postings = (OcrPayloadPostingsEnum) reuse;
+    } else {
+      postings = new OcrPayloadPostingsEnum(data);
+    }
+    // The delegate only stores empty payloads for the field, there is no need to read them
+    int delegateFlags = (flags & ~PostingsEnum.PAYLOADS) | PostingsEnum.POSITIONS;
+    PostingsEnum in = delegate.postings(fieldInfo, termState.syncDelegate(), postings.getDelegate(), delegateFlags);
+    return postings.reset(in, termState.metaFp);
+  }
+
+  @Override
+  public ImpactsEnum impacts(FieldInfo fieldInfo, BlockTermState state, int flags) throws IOException {
+    // Impacts are only used for scoring, which never looks at the payloads
+    return delegate.impacts(fieldInfo, ((OcrPayloadTermState) state).syncDelegate(), flags);
+  }
+
+  @Override
+  public void checkIntegrity() throws IOException {
+    delegate.checkIntegrity();
+    CodecUtil.checksumEntireFile(data);
+  }
+
+  @Override
+  public long ramBytesUsed() {
+    return delegate.ramBytesUsed();
+  }
+
+  @Override
+  public void close() throws IOException {
+    IOUtils.close(data, delegate);
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + "(delegate=" + delegate + ")";
+  }
+}
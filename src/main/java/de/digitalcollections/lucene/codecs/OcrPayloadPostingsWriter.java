@@ -0,0 +1,264 @@
+package de.digitalcollections.lucene.codecs;
+
+import java.io.IOException;
+import org.apache.lucene.codecs.BlockTermState;
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.codecs.NormsProducer;
+import org.apache.lucene.codecs.PostingsWriterBase;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.FilterLeafReader;
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.SegmentWriteState;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.store.DataOutput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.packed.DirectWriter;
+import org.apache.lucene.util.packed.PackedInts;
+import org.apache.lucene.util.packed.PackedLongValues;
+
+/**
+ * Writes the postings with the delegate format, minus the payloads of the fields with payloads, which are collected
+ * per term and written bit-packed to a separate file.
+ *
+ * Layout of the payload file, for every term of a field with payloads:
+ *
+ * - The lower 64 bits of all payloads of the term, in position order, written with {@link DirectWriter}
+ * - The upper 64 bits of all payloads, only if any payload is longer than 8 bytes
+ * - The metadata: the bits per value of both streams, their offsets relative to the metadata and the skip entries
+ *   as `(document delta, ordinal delta)` pairs
+ *
+ * The file pointer of the metadata is added to the term's entry in the terms dictionary.
+ */
+final class OcrPayloadPostingsWriter extends PostingsWriterBase {
+
+  private final PostingsWriterBase delegate;
+  private final IndexOutput data;
+  private final PayloadCollector collector = new PayloadCollector();
+
+  private FieldInfo fieldInfo;
+  private long lastMetaFp;
+
+  OcrPayloadPostingsWriter(PostingsWriterBase delegate, SegmentWriteState state) throws IOException {
+    this.delegate = delegate;
+    String fileName = IndexFileNames.segmentFileName(
+            state.segmentInfo.name, state.segmentSuffix, OcrPayloadPostingsFormat.DATA_EXTENSION);
+    IndexOutput output = state.directory.createOutput(fileName, state.context);
+    boolean success = false;
+    try {
+      CodecUtil.writeIndexHeader(output, OcrPayloadPostingsFormat.DATA_CODEC,
+              OcrPayloadPostingsFormat.VERSION_CURRENT, state.segmentInfo.getId(), state.segmentSuffix);
+      success = true;
+    } finally {
+      if (!success) {
+        IOUtils.closeWhileHandlingException(output);
+      }
+    }
+    this.data = output;
+  }
+
+  @Override
+  public void init(IndexOutput termsOut, SegmentWriteState state) throws IOException {
+    delegate.init(termsOut, state);
+    CodecUtil.writeIndexHeader(termsOut, OcrPayloadPostingsFormat.TERMS_CODEC,
+            OcrPayloadPostingsFormat.VERSION_CURRENT, state.segmentInfo.getId(), state.segmentSuffix);
+  }
+
+  @Override
+  public int setField(FieldInfo fieldInfo) {
+    this.fieldInfo = fieldInfo;
+    this.lastMetaFp = 0;
+    return delegate.setField(fieldInfo);
+  }
+
+  @Override
+  public BlockTermState writeTerm(BytesRef term, TermsEnum termsEnum, FixedBitSet docsSeen, NormsProducer norms)
+          throws IOException {
+    if (!OcrPayloadPostingsFormat.packsPayloads(fieldInfo)) {
+      BlockTermState state = delegate.writeTerm(term, termsEnum, docsSeen, norms);
+      return state == null ? null : new OcrPayloadTermState(state, -1);
+    }
+    collector.reset();
+    BlockTermState state = delegate.writeTerm(term, collector.wrap(termsEnum), docsSeen, norms);
+    if (state == null) {
+      return null;
+    }
+    return new OcrPayloadTermState(state, collector.write(data));
+  }
+
+  @Override
+  public void encodeTerm(long[] longs, DataOutput out, FieldInfo fieldInfo, BlockTermState state, boolean absolute)
+          throws IOException {
+    OcrPayloadTermState termState = (OcrPayloadTermState) state;
+    delegate.encodeTerm(longs, out, fieldInfo, termState.delegate, absolute);
+    if (OcrPayloadPostingsFormat.packsPayloads(fieldInfo)) {
+      if (absolute) {
+        lastMetaFp = 0;
+      }
+      out.writeVLong(termState.metaFp - lastMetaFp);
+      lastMetaFp = termState.metaFp;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    boolean success = false;
+    try {
+      CodecUtil.writeFooter(data);
+      success = true;
+    } finally {
+      if (success) {
+        IOUtils.close(data, delegate);
+      } else {
+        IOUtils.closeWhileHandlingException(data, delegate);
+      }
+    }
+  }
+
+  /**
+   * Collects the payloads of a term while the delegate iterates its postings, and hides them from the delegate.
+   */
+  private static final class PayloadCollector {
+    private PackedLongValues.Builder lowBits;
+    private PackedLongValues.Builder highBits;
+    private int numPayloads;
+    private long allLowBits;
+    private long allHighBits;
+    private int numDocs;
+    private int[] skipDocs = new int[8];
+    private long[] skipOrdinals = new long[8];
+    private int numSkips;
+
+    void reset() {
+      // The payloads of a frequent term can be numerous, so they are kept compressed until they are written
+      lowBits = PackedLongValues.packedBuilder(PackedInts.COMPACT);
+      highBits = PackedLongValues.packedBuilder(PackedInts.COMPACT);
+      numPayloads = 0;
+      allLowBits = 0;
+      allHighBits = 0;
+      numDocs = 0;
+      numSkips = 0;
+    }
+
+    TermsEnum wrap(TermsEnum termsEnum) {
+      return new FilterLeafReader.FilterTermsEnum(termsEnum) {
+        @Override
+        public PostingsEnum postings(PostingsEnum reuse, int flags) throws IOException {
+          return new CollectingPostingsEnum(in.postings(null, flags));
+        }
+      };
+    }
+
+    private void startDoc(int docId) {
+      if (numDocs > 0 && numDocs % OcrPayloadPostingsFormat.SKIP_INTERVAL == 0) {
+        skipDocs = ArrayUtil.grow(skipDocs, numSkips + 1);
+        skipOrdinals = ArrayUtil.grow(skipOrdinals, numSkips + 1);
+        skipDocs[numSkips] = docId;
+        skipOrdinals[numSkips] = numPayloads;
+        numSkips++;
+      }
+      numDocs++;
+    }
+
+    private void addPayload(BytesRef payload) {
+      long low = 0;
+      long high = 0;
+      if (payload != null) {
+        if (payload.length > OcrPayloadPostingsFormat.MAX_PAYLOAD_BYTES) {
+          throw new IllegalArgumentException(String.format(
+                  "Payload has %d bytes, the %s postings format supports at most %d bytes.",
+                  payload.length, OcrPayloadPostingsFormat.NAME, OcrPayloadPostingsFormat.MAX_PAYLOAD_BYTES));
+        }
+        for (int i = payload.offset; i < payload.offset + payload.length; i++) {
+          high = (high << 8) | (low >>> 56);
+          low = (low << 8) | (payload.bytes[i] & 0xFF);
+        }
+      }
+      lowBits.add(low);
+      highBits.add(high);
+      allLowBits |= low;
+      allHighBits |= high;
+      numPayloads++;
+    }
+
+    /**
+     * Write the collected payloads of the term and its metadata.
+     *
+     * @return The file pointer of the metadata
+     */
+    long write(IndexOutput out) throws IOException {
+      long lowStart = out.getFilePointer();
+      int lowBitsPerValue = DirectWriter.unsignedBitsRequired(allLowBits);
+      writeValues(out, lowBits.build(), lowBitsPerValue);
+      long highStart = out.getFilePointer();
+      int highBitsPerValue = allHighBits == 0 ? 0 : DirectWriter.unsignedBitsRequired(allHighBits);
+      if (highBitsPerValue > 0) {
+        writeValues(out, highBits.build(), highBitsPerValue);
+      }
+
+      long metaFp = out.getFilePointer();
+      out.writeByte((byte) lowBitsPerValue);
+      out.writeByte((byte) highBitsPerValue);
+      out.writeVLong(metaFp - lowStart);
+      out.writeVLong(metaFp - highStart);
+      out.writeVInt(numSkips);
+      int lastDoc = 0;
+      long lastOrdinal = 0;
+      for (int i = 0; i < numSkips; i++) {
+        out.writeVInt(skipDocs[i] - lastDoc);
+        out.writeVLong(skipOrdinals[i] - lastOrdinal);
+        lastDoc = skipDocs[i];
+        lastOrdinal = skipOrdinals[i];
+      }
+      return metaFp;
+    }
+
+    private void writeValues(IndexOutput out, PackedLongValues values, int bitsPerValue) throws IOException {
+      DirectWriter writer = DirectWriter.getInstance(out, numPayloads, bitsPerValue);
+      for (PackedLongValues.Iterator it = values.iterator(); it.hasNext(); ) {
+        writer.add(it.next());
+      }
+      writer.finish();
+    }
+
+    /**
+     * Passes the postings through to the delegate, without the payloads.
+     */
+    private final class CollectingPostingsEnum extends FilterLeafReader.FilterPostingsEnum {
+
+      CollectingPostingsEnum(PostingsEnum in) {
+        super(in);
+      }
+
+      @Override
+      public int nextDoc() throws IOException {
+        int docId = in.nextDoc();
+        if (docId != NO_MORE_DOCS) {
+          startDoc(docId);
+        }
+        return docId;
+      }
+
+      @Override
+      public int advance(int target) {
+        throw new UnsupportedOperationException("Postings are only iterated while writing.");
+      }
+
+      @Override
+      public int nextPosition() throws IOException {
+        int position = in.nextPosition();
+        addPayload(in.getPayload());
+        return position;
+      }
+
+      @Override
+      public BytesRef getPayload() {
+        return null;
+      }
+    }
+  }
+}
@@ -0,0 +1,56 @@
+package de.digitalcollections.lucene.codecs;
+
+import org.apache.lucene.codecs.BlockTermState;
+import org.apache.lucene.index.TermState;
+
+/**
+ * Term state that wraps the state of the delegate postings format and adds the location of the packed payloads.
+ */
+final class OcrPayloadTermState extends BlockTermState {
+
+  /** State of the delegate postings format **/
+  BlockTermState delegate;
+
+  /** File pointer of the term's metadata in the payload file, -1 if the field's payloads are not packed **/
+  long metaFp;
+
+  OcrPayloadTermState(BlockTermState delegate, long metaFp) {
+    this.delegate = delegate;
+    this.metaFp = metaFp;
+    this.docFreq = delegate.docFreq;
+    this.totalTermFreq = delegate.totalTermFreq;
+  }
+
+  /**
+   * Hand the statistics that the terms dictionary set on this state to the delegate state.
+   *
+   * @return The delegate state
+   */
+  BlockTermState syncDelegate() {
+    delegate.docFreq = docFreq;
+    delegate.totalTermFreq = totalTermFreq;
+    delegate.termBlockOrd = termBlockOrd;
+    delegate.blockFilePointer = blockFilePointer;
+    return delegate;
+  }
+
+  @Override
+  public OcrPayloadTermState clone() {
+    OcrPayloadTermState other = (OcrPayloadTermState) super.clone();
+    other.delegate = (BlockTermState) delegate.clone();
+    return other;
+  }
+
+  @Override
+  public void copyFrom(TermState other) {
+    super.copyFrom(other);
+    OcrPayloadTermState otherState = (OcrPayloadTermState) other;
+    delegate.copyFrom(otherState.delegate);
+    metaFp = otherState.metaFp;
+  }
+
+  @Override
+  public String toString() {
+    return super.toString() + " metaFp=" + metaFp;
+  }
+}
@@ -0,0 +1,34 @@
+package de.digitalcollections.lucene.jfr;
+
+/**
+ * Records the events of {@link OcrEvents}, see there for the meaning of the methods.
+ *
+ * The only implementation uses the Flight Recorder API and lives in a separate source set that is only compiled with
+ * JDK 11 or later, so the rest of the plugin still builds on JDKs without `jdk.jfr`.
+ */
+interface EventRecorder {
+
+  Object beginHighlightRequest(int numDocs, int numFields);
+
+  void endHighlightRequest(Object request, boolean partial);
+
+  Object beginDocumentHighlight(int docId, String field);
+
+  void endDocumentHighlight(Object document, int numHits, boolean truncated);
+
+  void addHits(int numHits, boolean truncated);
+
+  void addPayloads(int numPayloads, long payloadBytes);
+
+  Object beginTermExtraction(String field);
+
+  void endTermExtraction(Object extraction, int numTerms);
+
+  Object beginBulkDecode(String field);
+
+  void endBulkDecode(Object decode, int numDocs, long numPayloads, long numPacked);
+
+  Object beginPayloadEncoding();
+
+  void endPayloadEncoding(Object encoding, int numTokens, int numPayloads, long payloadBytes);
+}
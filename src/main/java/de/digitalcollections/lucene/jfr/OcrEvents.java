@@ -0,0 +1,169 @@
+package de.digitalcollections.lucene.jfr;
+
+/**
+ * Emits JDK Flight Recorder events for the phases of the highlighting and of the payload encoding, so their cost
+ * can be correlated with the GC and I/O events of the JVM in the same recording.
+ *
+ * The plugin targets Java 8, where the `jdk.jfr` API is only present in recent OpenJDK builds. The events and the
+ * {@link EventRecorder} that emits them are therefore compiled separately, only when building with JDK 11 or later
+ * (see the `jfr` profile in the `pom.xml`), and are loaded reflectively if both they and the API are available at
+ * runtime. Callers never touch the event classes: all methods take and return plain values. As long as no running
+ * recording has one of the events enabled, every method only reads a single flag and no event objects are allocated.
+ *
+ * Methods that begin an event return an opaque handle, `null` if the event is not recorded, which has to be passed
+ * to the corresponding method that ends the event. A handle must be ended on the thread that began it.
+ */
+public final class OcrEvents {
+
+  private static final String RECORDER_CLASS = "de.digitalcollections.lucene.jfr.JfrEventRecorder";
+
+  /** Whether any of the events is enabled in a running recording, updated whenever a recording changes its state **/
+  private static volatile boolean enabled = false;
+
+  /** Null if the plugin was built without the events or the JVM has no Flight Recorder **/
+  private static final EventRecorder RECORDER = loadRecorder();
+
+  private OcrEvents() {
+  }
+
+  private static EventRecorder loadRecorder() {
+    try {
+      Class.forName("jdk.jfr.FlightRecorder");
+      return (EventRecorder) Class.forName(RECORDER_CLASS).getDeclaredConstructor().newInstance();
+    } catch (ReflectiveOperationException | LinkageError e) {
+      return null;
+    }
+  }
+
+  /**
+   * Called by the recorder whenever a recording changes its state.
+   */
+  static void setEnabled(boolean anyEnabled) {
+    enabled = anyEnabled;
+  }
+
+  /**
+   * Whether the events can be recorded in this JVM at all.
+   */
+  public static boolean isAvailable() {
+    return RECORDER != null;
+  }
+
+  /**
+   * Begin the highlighting of a request.
+   *
+   * @param numDocs Number of documents to highlight
+   * @param numFields Number of fields to highlight in every document
+   * @return handle for {@link #endHighlightRequest(Object, boolean)}
+   */
+  public static Object beginHighlightRequest(int numDocs, int numFields) {
+    return enabled ? RECORDER.beginHighlightRequest(numDocs, numFields) : null;
+  }
+
+  /**
+   * End the highlighting of a request, with the hits of all documents that were highlighted since it began.
+   *
+   * @param request Handle from {@link #beginHighlightRequest(int, int)}
+   * @param partial Whether the deadline passed before all documents were highlighted
+   */
+  public static void endHighlightRequest(Object request, boolean partial) {
+    if (request != null) {
+      RECORDER.endHighlightRequest(request, partial);
+    }
+  }
+
+  /**
+   * Begin the highlighting of a field of a document.
+   *
+   * @param docId Internal id of the document
+   * @param field Name of the field
+   * @return handle for {@link #endDocumentHighlight(Object, int, boolean)}
+   */
+  public static Object beginDocumentHighlight(int docId, String field) {
+    return enabled ? RECORDER.beginDocumentHighlight(docId, field) : null;
+  }
+
+  /**
+   * End the highlighting of a field of a document and add its hits to the current request.
+   *
+   * @param document Handle from {@link #beginDocumentHighlight(int, String)}
+   * @param numHits Number of hits of the field
+   * @param truncated Whether the hits were cut off by a limit or the deadline
+   */
+  public static void endDocumentHighlight(Object document, int numHits, boolean truncated) {
+    if (document != null || enabled) {
+      RECORDER.endDocumentHighlight(document, numHits, truncated);
+    }
+  }
+
+  /**
+   * Add hits that were highlighted outside of a document event to the current request.
+   *
+   * @param numHits Number of hits
+   * @param truncated Whether the hits were cut off by a limit or the deadline
+   */
+  public static void addHits(int numHits, boolean truncated) {
+    if (enabled) {
+      RECORDER.addHits(numHits, truncated);
+    }
+  }
+
+  /**
+   * Add payloads that were read from the postings to the current document.
+   *
+   * @param numPayloads Number of payloads
+   * @param payloadBytes Total size of the payloads
+   */
+  public static void addPayloads(int numPayloads, long payloadBytes) {
+    if (enabled) {
+      RECORDER.addPayloads(numPayloads, payloadBytes);
+    }
+  }
+
+  /**
+   * Begin the extraction of the terms of a field from a query.
+   *
+   * @param field Name of the field
+   * @return handle for {@link #endTermExtraction(Object, int)}
+   */
+  public static Object beginTermExtraction(String field) {
+    return enabled ? RECORDER.beginTermExtraction(field) : null;
+  }
+
+  public static void endTermExtraction(Object extraction, int numTerms) {
+    if (extraction != null) {
+      RECORDER.endTermExtraction(extraction, numTerms);
+    }
+  }
+
+  /**
+   * Begin the decoding of the payloads of all matching documents of a field.
+   *
+   * @param field Name of the field
+   * @return handle for {@link #endBulkDecode(Object, int, long, long)}
+   */
+  public static Object beginBulkDecode(String field) {
+    return enabled ? RECORDER.beginBulkDecode(field) : null;
+  }
+
+  public static void endBulkDecode(Object decode, int numDocs, long numPayloads, long numPacked) {
+    if (decode != null) {
+      RECORDER.endBulkDecode(decode, numDocs, numPayloads, numPacked);
+    }
+  }
+
+  /**
+   * Begin the encoding of the payloads of a field value.
+   *
+   * @return handle for {@link #endPayloadEncoding(Object, int, int, long)}
+   */
+  public static Object beginPayloadEncoding() {
+    return enabled ? RECORDER.beginPayloadEncoding() : null;
+  }
+
+  public static void endPayloadEncoding(Object encoding, int numTokens, int numPayloads, long payloadBytes) {
+    if (encoding != null) {
+      RECORDER.endPayloadEncoding(encoding, numTokens, numPayloads, payloadBytes);
+    }
+  }
+}
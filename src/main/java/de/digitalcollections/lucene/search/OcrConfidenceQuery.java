@@ -0,0 +1,125 @@
+package de.digitalcollections.lucene.search;
+
+import de.digitalcollections.lucene.analysis.payloads.PayloadLayout;
+import java.io.IOException;
+import java.util.Objects;
+import java.util.Set;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.ConstantScoreScorer;
+import org.apache.lucene.search.ConstantScoreWeight;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.TwoPhaseIterator;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Matches the documents in which a term occurs at least once with a minimum OCR confidence.
+ *
+ * The postings of the term serve as the approximation, the positions of every candidate document are then checked
+ * until one with a sufficient confidence shows up. Only the last bits of the payloads are read for this (see
+ * {@link PayloadLayout#isConfident}), nothing else is decoded. All matching documents get the same score.
+ */
+public class OcrConfidenceQuery extends Query {
+
+  private final Term term;
+  private final PayloadLayout layout;
+  private final float minConfidence;
+
+  /**
+   * @param term          Term to search for
+   * @param layout        Layout of the payloads in the term's field, must include confidences
+   * @param minConfidence Minimum confidence between 0 and 1
+   */
+  public OcrConfidenceQuery(Term term, PayloadLayout layout, float minConfidence) {
+    if (layout.getConfidenceBits() <= 0) {
+      throw new IllegalArgumentException("Field '" + term.field() + "' was indexed without confidences.");
+    }
+    this.term = Objects.requireNonNull(term);
+    this.layout = layout;
+    this.minConfidence = minConfidence;
+  }
+
+  public Term getTerm() {
+    return term;
+  }
+
+  public float getMinConfidence() {
+    return minConfidence;
+  }
+
+  @Override
+  public Weight createWeight(IndexSearcher searcher, boolean needsScores, float boost) throws IOException {
+    final int threshold = layout.getConfidenceThreshold(minConfidence);
+    return new ConstantScoreWeight(this, boost) {
+      @Override
+      public void extractTerms(Set<Term> terms) {
+        // Needed by the highlighter
+        terms.add(term);
+      }
+
+      @Override
+      public Scorer scorer(LeafReaderContext context) throws IOException {
+        Terms terms = context.reader().terms(term.field());
+        if (terms == null || !terms.hasPayloads()) {
+          return null;
+        }
+        TermsEnum termsEnum = terms.iterator();
+        if (!termsEnum.seekExact(term.bytes())) {
+          return null;
+        }
+        final float positionsPerDoc = (float) termsEnum.totalTermFreq() / termsEnum.docFreq();
+        final PostingsEnum postingsEnum = termsEnum.postings(null, PostingsEnum.PAYLOADS);
+        TwoPhaseIterator confidentPositions = new TwoPhaseIterator(postingsEnum) {
+          @Override
+          public boolean matches() throws IOException {
+            int freq = postingsEnum.freq();
+            for (int i = 0; i < freq; i++) {
+              postingsEnum.nextPosition();
+              BytesRef payload = postingsEnum.getPayload();
+              if (payload != null && layout.isConfident(payload, threshold)) {
+                return true;
+              }
+            }
+            return false;
+          }
+
+          @Override
+          public float matchCost() {
+            return positionsPerDoc;
+          }
+        };
+        return new ConstantScoreScorer(this, score(), confidentPositions);
+      }
+
+      @Override
+      public boolean isCacheable(LeafReaderContext ctx) {
+        return true;
+      }
+    };
+  }
+
+  @Override
+  public String toString(String field) {
+    String termString = term.field().equals(field) ? term.text() : term.toString();
+    return "ocr_confidence(" + termString + ", min=" + minConfidence + ")";
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    return sameClassAs(other)
+            && term.equals(((OcrConfidenceQuery) other).term)
+            && layout.equals(((OcrConfidenceQuery) other).layout)
+            && Float.compare(minConfidence, ((OcrConfidenceQuery) other).minConfidence) == 0;
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * classHash() + Objects.hash(term, layout, minConfidence);
+  }
+}
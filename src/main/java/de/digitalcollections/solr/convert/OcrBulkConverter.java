@@ -0,0 +1,457 @@
+package de.digitalcollections.solr.convert;
+
+import de.digitalcollections.lucene.analysis.payloads.PayloadInspector;
+import de.digitalcollections.lucene.analysis.payloads.PayloadLayout;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.xml.stream.XMLStreamException;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.impl.BinaryRequestWriter;
+import org.apache.solr.client.solrj.impl.HttpSolrClient;
+import org.apache.solr.common.SolrInputDocument;
+
+/**
+ * Converts directories of hOCR and ALTO files into OCR fields and sends them to Solr, one document per file.
+ *
+ * Files are parsed in parallel by a bounded pool of workers (see {@link OcrParser}) and turned into tokens that are
+ * validated against the payload layout of the target field (see {@link TokenWriter}). The documents are passed to a
+ * number of sender threads through a bounded queue, the senders send them in batches, in the javabin format. If
+ * Solr can't keep up, the queue fills up and the workers wait, if the workers can't keep up, the directory walk
+ * waits, so the memory usage only depends on the settings and the size of the largest files.
+ *
+ * The progress and the errors are reported per file to a {@link Listener}. If a batch fails, its documents are sent
+ * one by one to find the files that caused the failure. If the listener throws an exception, the remaining documents
+ * are still sent and the first exception is thrown once all of them were sent.
+ *
+ * The unique key of a document is the path of its file relative to the directory that was passed, without the
+ * extension, e.g. `volume42/page_0001` for `/data/ocr/volume42/page_0001.hocr` and `/data/ocr`, or only the file
+ * name without the extension.
+ *
+ * Usage (with the plugin jar and the SolrJ jars on the classpath):
+ * ```
+ * java de.digitalcollections.solr.convert.OcrBulkConverter [--threads N] [--senders N] [--batch N] \
+ *      [--field ocr_text] [--id-field id] [--id-from-name] [--delimiter '|'] [--commit] \
+ *      --layout coordinateBits=10,pageBits=12,lineBits=11,wordBits=9 \
+ *      http://localhost:8983/solr/ocr /data/ocr [/data/more_ocr ...]
+ * ```
+ *
+ * `--layout`
+ * : The options of the `DelimitedOcrInfoPayloadTokenFilterFactory` of the field (mandatory), see
+ *   {@link PayloadInspector#parseLayout(String)}. With relative coordinates, the boxes are converted into percentages
+ *   of the page size.
+ *
+ * `--threads`
+ * : Number of files to parse in parallel (default: number of processors)
+ *
+ * `--senders`
+ * : Number of update requests to send in parallel (default: 2)
+ *
+ * `--batch`
+ * : Number of documents per update request (default: 100)
+ *
+ * `--field` and `--id-field`
+ * : Names of the OCR field and the unique key field (default: `ocr_text` and `id`)
+ *
+ * `--id-from-name`
+ * : Use the file name without the extension as the unique key instead of the relative path
+ *
+ * `--delimiter`
+ * : Delimiter between the words and their OCR information, as configured for the filter (default: `|`)
+ *
+ * `--commit`
+ * : Commit once all files were sent
+ */
+public class OcrBulkConverter {
+
+  /**
+   * Receives the progress of every file. Called from the worker and sender threads, so it has to be thread-safe.
+   */
+  public interface Listener {
+    /** The file was parsed and its document is waiting to be sent **/
+    void converted(Path file, int numPages, int numWords);
+
+    /** The document of the file was accepted by Solr **/
+    void indexed(Path file);
+
+    /** The file could not be parsed, was invalid or was rejected by Solr **/
+    void failed(Path file, Exception e);
+  }
+
+  private static final class Pending {
+    final Path file;
+    final SolrInputDocument doc;
+
+    Pending(Path file, SolrInputDocument doc) {
+      this.file = file;
+      this.doc = doc;
+    }
+  }
+
+  /** Tells a sender that no more documents will follow **/
+  private static final Pending END = new Pending(null, null);
+
+  private static final List<String> EXTENSIONS = Arrays.asList(".hocr", ".html", ".htm", ".xhtml", ".xml");
+
+  private final SolrClient client;
+  private final String collection;
+  private final PayloadLayout layout;
+  private final Listener listener;
+  /** The first exception that the listener threw **/
+  private final AtomicReference<RuntimeException> listenerError = new AtomicReference<>();
+
+  private int numThreads = Runtime.getRuntime().availableProcessors();
+  private int numSenders = 2;
+  private int batchSize = 100;
+  private String idField = "id";
+  private String textField = "ocr_text";
+  private boolean idsFromNames = false;
+  private char delimiter = '|';
+
+  /**
+   * @param client Client for the Solr instance, not closed by the converter
+   * @param collection Collection to send the documents to, `null` for the default collection of the client
+   * @param layout Payload layout of the OCR field
+   * @param listener Receives the progress of every file
+   */
+  public OcrBulkConverter(SolrClient client, String collection, PayloadLayout layout, Listener listener) {
+    this.client = client;
+    this.collection = collection;
+    this.layout = layout;
+    this.listener = listener;
+  }
+
+  /**
+   * @param numThreads Number of files to parse in parallel
+   * @param numSenders Number of update requests to send in parallel
+   */
+  public OcrBulkConverter withThreads(int numThreads, int numSenders) {
+    this.numThreads = Math.max(1, numThreads);
+    this.numSenders = Math.max(1, numSenders);
+    return this;
+  }
+
+  /**
+   * @param batchSize Number of documents per update request
+   */
+  public OcrBulkConverter withBatchSize(int batchSize) {
+    this.batchSize = Math.max(1, batchSize);
+    return this;
+  }
+
+  /**
+   * @param idField Name of the unique key field
+   * @param textField Name of the OCR field
+   */
+  public OcrBulkConverter withFields(String idField, String textField) {
+    this.idField = idField;
+    this.textField = textField;
+    return this;
+  }
+
+  /**
+   * @param idsFromNames Whether the unique key is the file name instead of the relative path
+   */
+  public OcrBulkConverter withIdsFromNames(boolean idsFromNames) {
+    this.idsFromNames = idsFromNames;
+    return this;
+  }
+
+  /**
+   * @param delimiter Delimiter between the words and their OCR information
+   */
+  public OcrBulkConverter withDelimiter(char delimiter) {
+    this.delimiter = delimiter;
+    return this;
+  }
+
+  public static void main(String[] args) throws IOException, InterruptedException, SolrServerException {
+    String solrUrl = null;
+    List<Path> roots = new ArrayList<>();
+    PayloadLayout layout = null;
+    int numThreads = Runtime.getRuntime().availableProcessors();
+    int numSenders = 2;
+    int batchSize = 100;
+    String idField = "id";
+    String textField = "ocr_text";
+    boolean idsFromNames = false;
+    char delimiter = '|';
+    boolean commit = false;
+    try {
+      for (int i = 0; i < args.length; i++) {
+        boolean hasValue = i + 1 < args.length;
+        if ("--layout".equals(args[i]) && hasValue) {
+          layout = PayloadInspector.parseLayout(args[++i]);
+        } else if ("--threads".equals(args[i]) && hasValue) {
+          numThreads = Integer.parseInt(args[++i]);
+        } else if ("--senders".equals(args[i]) && hasValue) {
+          numSenders = Integer.parseInt(args[++i]);
+        } else if ("--batch".equals(args[i]) && hasValue) {
+          batchSize = Integer.parseInt(args[++i]);
+        } else if ("--field".equals(args[i]) && hasValue) {
+          textField = args[++i];
+        } else if ("--id-field".equals(args[i]) && hasValue) {
+          idField = args[++i];
+        } else if ("--delimiter".equals(args[i]) && hasValue && args[i + 1].length() == 1) {
+          delimiter = args[++i].charAt(0);
+        } else if ("--id-from-name".equals(args[i])) {
+          idsFromNames = true;
+        } else if ("--commit".equals(args[i])) {
+          commit = true;
+        } else if (args[i].startsWith("--")) {
+          throw new IllegalArgumentException("Unknown or incomplete option " + args[i]);
+        } else if (solrUrl == null) {
+          solrUrl = args[i];
+        } else {
+          roots.add(Paths.get(args[i]));
+        }
+      }
+    } catch (IllegalArgumentException e) {
+      System.err.println(e.getMessage());
+      solrUrl = null;
+    }
+    if (solrUrl == null || roots.isEmpty() || layout == null) {
+      System.err.println("Usage: OcrBulkConverter --layout coordinateBits=10,pageBits=12,lineBits=0,wordBits=0,"
+              + "confidenceBits=0,absoluteCoordinates=false,payloadVersion=1 [--threads N] [--senders N] "
+              + "[--batch N] [--field ocr_text] [--id-field id] [--id-from-name] [--delimiter '|'] [--commit] "
+              + "<solrUrl> <dir> [<dir> ...]");
+      System.exit(1);
+    }
+
+    ConsoleReporter reporter = new ConsoleReporter(System.out, System.err);
+    try (HttpSolrClient client = new HttpSolrClient.Builder(solrUrl).build()) {
+      client.setRequestWriter(new BinaryRequestWriter());
+      new OcrBulkConverter(client, null, layout, reporter)
+              .withThreads(numThreads, numSenders)
+              .withBatchSize(batchSize)
+              .withFields(idField, textField)
+              .withIdsFromNames(idsFromNames)
+              .withDelimiter(delimiter)
+              .convert(roots);
+      if (commit) {
+        client.commit();
+      }
+    }
+    reporter.summarize();
+    System.exit(reporter.getNumFailed() > 0 ? 2 : 0);
+  }
+
+  /**
+   * Convert and send all hOCR and ALTO files in the given directories and their subdirectories.
+   *
+   * Returns once all documents were sent, which doesn't include a commit.
+   *
+   * @param roots Directories, or single files
+   * @throws IOException A directory could not be read, errors in single files are passed to the listener
+   * @throws InterruptedException The conversion was interrupted, documents in flight are lost
+   * @throws RuntimeException The first exception that the listener threw, once all documents were sent
+   */
+  public void convert(List<Path> roots) throws IOException, InterruptedException {
+    listenerError.set(null);
+    BlockingQueue<Pending> queue = new ArrayBlockingQueue<>(2 * batchSize * numSenders);
+    ExecutorService senders = Executors.newFixedThreadPool(numSenders);
+    // Once all workers are busy and the backlog is full, the walk parses the next file itself and thus slows down
+    ThreadPoolExecutor workers = new ThreadPoolExecutor(numThreads, numThreads, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(2 * numThreads), new ThreadPoolExecutor.CallerRunsPolicy());
+    boolean finished = false;
+    try {
+      for (int i = 0; i < numSenders; i++) {
+        senders.execute(() -> send(queue));
+      }
+      for (Path root : roots) {
+        try (Stream<Path> files = Files.walk(root)) {
+          Iterator<Path> it = files.filter(Files::isRegularFile).filter(OcrBulkConverter::isOcrFile).iterator();
+          while (it.hasNext()) {
+            Path file = it.next();
+            workers.execute(() -> convert(root, file, queue));
+          }
+        }
+      }
+      workers.shutdown();
+      workers.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+      for (int i = 0; i < numSenders; i++) {
+        queue.put(END);
+      }
+      senders.shutdown();
+      senders.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+      finished = true;
+    } finally {
+      if (!finished) {
+        workers.shutdownNow();
+        senders.shutdownNow();
+      }
+    }
+    if (listenerError.get() != null) {
+      throw listenerError.get();
+    }
+  }
+
+  private static boolean isOcrFile(Path file) {
+    String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+    return EXTENSIONS.stream().anyMatch(name::endsWith);
+  }
+
+  /**
+   * Parse a file and queue its document, waiting for space in the queue.
+   */
+  private void convert(Path root, Path file, BlockingQueue<Pending> queue) {
+    TokenWriter writer = new TokenWriter(delimiter, layout);
+    try (InputStream in = new BufferedInputStream(Files.newInputStream(file))) {
+      OcrParser.parse(in, writer);
+    } catch (IOException | XMLStreamException | RuntimeException e) {
+      report(() -> listener.failed(file, e));
+      return;
+    }
+    report(() -> listener.converted(file, writer.getNumPages(), writer.getNumWords()));
+    SolrInputDocument doc = new SolrInputDocument();
+    doc.addField(idField, getId(root, file));
+    doc.addField(textField, writer.getTokens());
+    try {
+      queue.put(new Pending(file, doc));
+    } catch (InterruptedException e) {
+      // The document never reaches a sender, so it would otherwise be lost without a trace
+      report(() -> listener.failed(file, e));
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private String getId(Path root, Path file) {
+    Path relative = idsFromNames || root.equals(file) ? file.getFileName() : root.relativize(file);
+    String id = relative.toString().replace(relative.getFileSystem().getSeparator(), "/");
+    int dot = id.lastIndexOf('.');
+    return dot > id.lastIndexOf('/') + 1 ? id.substring(0, dot) : id;
+  }
+
+  /**
+   * Send the queued documents in batches until the end of the queue is reached.
+   */
+  private void send(BlockingQueue<Pending> queue) {
+    List<Pending> batch = new ArrayList<>(batchSize);
+    try {
+      boolean end = false;
+      while (!end) {
+        Pending next = queue.take();
+        // Every sender consumes exactly one end marker, so the batch is cut short when it is reached
+        while (next != null && next != END) {
+          batch.add(next);
+          next = batch.size() < batchSize ? queue.poll() : null;
+        }
+        end = next == END;
+        if (!batch.isEmpty()) {
+          add(batch);
+          batch.clear();
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void add(List<Pending> batch) {
+    try {
+      client.add(collection, batch.stream().map(p -> p.doc).collect(Collectors.toList()));
+    } catch (SolrServerException | IOException | RuntimeException e) {
+      if (batch.size() == 1) {
+        report(() -> listener.failed(batch.get(0).file, e));
+        return;
+      }
+      for (Pending pending : batch) {
+        add(Collections.singletonList(pending));
+      }
+      return;
+    }
+    batch.forEach(p -> report(() -> listener.indexed(p.file)));
+  }
+
+  /**
+   * Call the listener, its exceptions are kept and thrown by {@link #convert(List)} at the end. A sender must not
+   * stop, nothing else would take the documents from the queue and the workers would wait for space forever.
+   */
+  private void report(Runnable call) {
+    try {
+      call.run();
+    } catch (RuntimeException e) {
+      listenerError.compareAndSet(null, e);
+    }
+  }
+
+  /**
+   * Prints the failed files as they occur and the progress every few seconds.
+   */
+  static class ConsoleReporter implements Listener {
+
+    private static final long INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private final PrintStream out;
+    private final PrintStream err;
+    private final long start = System.nanoTime();
+    private long lastReport = start;
+    private long numConverted = 0;
+    private long numIndexed = 0;
+    private long numFailed = 0;
+    private long numPages = 0;
+    private long numWords = 0;
+
+    ConsoleReporter(PrintStream out, PrintStream err) {
+      this.out = out;
+      this.err = err;
+    }
+
+    @Override
+    public synchronized void converted(Path file, int numPages, int numWords) {
+      numConverted++;
+      this.numPages += numPages;
+      this.numWords += numWords;
+    }
+
+    @Override
+    public synchronized void indexed(Path file) {
+      numIndexed++;
+      long now = System.nanoTime();
+      if (now - lastReport >= INTERVAL_NANOS) {
+        lastReport = now;
+        report(now);
+      }
+    }
+
+    @Override
+    public synchronized void failed(Path file, Exception e) {
+      numFailed++;
+      err.printf("FAILED %s: %s%n", file, e.getMessage());
+    }
+
+    private void report(long now) {
+      double seconds = Math.max(1, now - start) / 1e9;
+      out.printf("%d files converted (%d pages, %d words), %d indexed, %d failed, %.1f files/s%n",
+              numConverted, numPages, numWords, numIndexed, numFailed, numIndexed / seconds);
+    }
+
+    synchronized void summarize() {
+      report(System.nanoTime());
+    }
+
+    synchronized long getNumFailed() {
+      return numFailed;
+    }
+  }
+}
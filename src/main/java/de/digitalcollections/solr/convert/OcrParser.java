@@ -0,0 +1,285 @@
+package de.digitalcollections.solr.convert;
+
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Streaming parser for hOCR and ALTO files that reports every word with its box to a {@link Handler}.
+ *
+ * The format is detected from the root element: `html` for hOCR, `alto` for ALTO, in any namespace. The file is
+ * read with StAX in a single pass, nothing but the current word is kept in memory. hOCR has to be well-formed XHTML,
+ * as produced by Tesseract and most other OCR engines.
+ *
+ * Pages, lines and words are numbered from 0 in document order: pages within the file, lines within their page and
+ * words within their line.
+ *
+ * - hOCR: pages are `ocr_page` elements, lines are `ocr_line`, `ocr_textfloat`, `ocr_header` or `ocr_caption`
+ *   elements and words are `ocrx_word` or `ocr_cinfo` elements. Boxes are taken from the `bbox` and confidences from
+ *   the `x_wconf` property in the `title` attribute.
+ * - ALTO: pages are `Page` elements (with `WIDTH` and `HEIGHT`), lines are `TextLine` elements and words are `String`
+ *   elements (with `CONTENT`, `HPOS`, `VPOS`, `WIDTH`, `HEIGHT` and `WC`). Fractional coordinates are rounded.
+ */
+final class OcrParser {
+
+  private static final XMLInputFactory FACTORY = createFactory();
+
+  private static final Set<String> HOCR_LINE_CLASSES = new HashSet<>(
+          Arrays.asList("ocr_line", "ocr_textfloat", "ocr_header", "ocr_caption"));
+  private static final Set<String> HOCR_WORD_CLASSES = new HashSet<>(Arrays.asList("ocrx_word", "ocr_cinfo"));
+
+  /**
+   * Receives the pages and words of a file in document order.
+   */
+  interface Handler {
+    /**
+     * A new page begins.
+     *
+     * @param pageIndex Index of the page within the file
+     * @param width Width of the page, 0 if unknown
+     * @param height Height of the page, 0 if unknown
+     */
+    void page(int pageIndex, int width, int height);
+
+    /**
+     * A word on the current page.
+     *
+     * @param text Text of the word
+     * @param lineIndex Index of the line within the page, -1 for words outside of a line
+     * @param wordIndex Index of the word within the line
+     * @param x Horizontal offset of the box
+     * @param y Vertical offset of the box
+     * @param width Width of the box
+     * @param height Height of the box
+     * @param confidence OCR confidence of the word between 0 and 1, -1 if unknown
+     */
+    void word(String text, int lineIndex, int wordIndex, int x, int y, int width, int height, float confidence);
+  }
+
+  private OcrParser() {
+  }
+
+  private static XMLInputFactory createFactory() {
+    XMLInputFactory factory = XMLInputFactory.newInstance();
+    // OCR files never need a DTD, and resolving it would mean fetching the XHTML DTD for every hOCR file
+    factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+    return factory;
+  }
+
+  /**
+   * Parse a hOCR or ALTO file.
+   *
+   * @param in The file's content, not closed by the parser
+   * @param handler Receives the pages and words
+   * @throws XMLStreamException The file is not well-formed or neither hOCR nor ALTO
+   */
+  static void parse(InputStream in, Handler handler) throws XMLStreamException {
+    XMLStreamReader reader = FACTORY.createXMLStreamReader(in);
+    try {
+      // Skip the prolog, including the doctype that hOCR files usually have
+      while (reader.hasNext() && reader.next() != XMLStreamConstants.START_ELEMENT) {
+        continue;
+      }
+      if (!reader.isStartElement()) {
+        throw new XMLStreamException("Empty document.", reader.getLocation());
+      }
+      String root = reader.getLocalName();
+      if ("html".equalsIgnoreCase(root)) {
+        parseHocr(reader, handler);
+      } else if ("alto".equalsIgnoreCase(root)) {
+        parseAlto(reader, handler);
+      } else {
+        throw new XMLStreamException("Unknown root element '" + root + "', expected hOCR or ALTO.",
+                reader.getLocation());
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  private static void parseHocr(XMLStreamReader reader, Handler handler) throws XMLStreamException {
+    int pageIndex = -1;
+    int lineIndex = -1;
+    int wordIndex = 0;
+    // Depth of the current line element, to notice when it ends, lines themselves can't be nested
+    int depth = 0;
+    int lineDepth = -1;
+    while (reader.hasNext()) {
+      int event = reader.next();
+      if (event == XMLStreamConstants.END_ELEMENT) {
+        if (depth-- == lineDepth) {
+          lineDepth = -1;
+        }
+        continue;
+      }
+      if (event != XMLStreamConstants.START_ELEMENT) {
+        continue;
+      }
+      depth++;
+      String cssClass = reader.getAttributeValue(null, "class");
+      if (cssClass == null) {
+        continue;
+      }
+      String title = reader.getAttributeValue(null, "title");
+      if (hasClass(cssClass, "ocr_page")) {
+        int[] bbox = parseBbox(title);
+        handler.page(++pageIndex, bbox != null ? bbox[2] - bbox[0] : 0, bbox != null ? bbox[3] - bbox[1] : 0);
+        lineIndex = -1;
+        wordIndex = 0;
+      } else if (hasAnyClass(cssClass, HOCR_LINE_CLASSES)) {
+        lineIndex++;
+        lineDepth = depth;
+        wordIndex = 0;
+      } else if (hasAnyClass(cssClass, HOCR_WORD_CLASSES)) {
+        if (pageIndex < 0) {
+          throw new XMLStreamException("Word outside of an 'ocr_page' element.", reader.getLocation());
+        }
+        int[] bbox = parseBbox(title);
+        if (bbox == null) {
+          throw new XMLStreamException("Word without a 'bbox' in its title.", reader.getLocation());
+        }
+        String xWconf = getProperty(title, "x_wconf");
+        float confidence = xWconf != null ? Float.parseFloat(xWconf) / 100f : -1;
+        // The text of the word can be wrapped in formatting elements, this consumes the word's end element
+        String text = readText(reader);
+        depth--;
+        handler.word(text, lineDepth >= 0 ? lineIndex : -1, wordIndex++, bbox[0], bbox[1], bbox[2] - bbox[0],
+                bbox[3] - bbox[1], confidence);
+      }
+    }
+  }
+
+  private static void parseAlto(XMLStreamReader reader, Handler handler) throws XMLStreamException {
+    int pageIndex = -1;
+    int lineIndex = -1;
+    int wordIndex = 0;
+    boolean inLine = false;
+    while (reader.hasNext()) {
+      int event = reader.next();
+      if (event == XMLStreamConstants.END_ELEMENT && "TextLine".equals(reader.getLocalName())) {
+        inLine = false;
+        continue;
+      }
+      if (event != XMLStreamConstants.START_ELEMENT) {
+        continue;
+      }
+      switch (reader.getLocalName()) {
+        case "Page":
+          handler.page(++pageIndex, parseDimension(reader, "WIDTH", 0), parseDimension(reader, "HEIGHT", 0));
+          lineIndex = -1;
+          wordIndex = 0;
+          break;
+        case "TextLine":
+          lineIndex++;
+          wordIndex = 0;
+          inLine = true;
+          break;
+        case "String":
+          if (pageIndex < 0) {
+            throw new XMLStreamException("String outside of a 'Page' element.", reader.getLocation());
+          }
+          String wc = reader.getAttributeValue(null, "WC");
+          handler.word(reader.getAttributeValue(null, "CONTENT"), inLine ? lineIndex : -1, wordIndex++,
+                  parseDimension(reader, "HPOS", -1), parseDimension(reader, "VPOS", -1),
+                  parseDimension(reader, "WIDTH", -1), parseDimension(reader, "HEIGHT", -1),
+                  wc != null ? Float.parseFloat(wc) : -1);
+          break;
+        default:
+          break;
+      }
+    }
+  }
+
+  private static int parseDimension(XMLStreamReader reader, String name, int defaultValue)
+          throws XMLStreamException {
+    String value = reader.getAttributeValue(null, name);
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      return Math.round(Float.parseFloat(value));
+    } catch (NumberFormatException e) {
+      throw new XMLStreamException("Invalid " + name + " '" + value + "'.", reader.getLocation(), e);
+    }
+  }
+
+  /**
+   * Read all text up to the end of the current element.
+   */
+  private static String readText(XMLStreamReader reader) throws XMLStreamException {
+    StringBuilder text = new StringBuilder();
+    int depth = 1;
+    while (depth > 0) {
+      int event = reader.next();
+      if (event == XMLStreamConstants.START_ELEMENT) {
+        depth++;
+      } else if (event == XMLStreamConstants.END_ELEMENT) {
+        depth--;
+      } else if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA) {
+        text.append(reader.getText());
+      }
+    }
+    return text.toString();
+  }
+
+  private static boolean hasClass(String cssClass, String name) {
+    for (String c : cssClass.split("\\s+")) {
+      if (c.equals(name)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean hasAnyClass(String cssClass, Set<String> names) {
+    for (String c : cssClass.split("\\s+")) {
+      if (names.contains(c)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Get a property from a hOCR `title` attribute, e.g. `bbox 10 20 30 40; x_wconf 93`.
+   */
+  private static String getProperty(String title, String name) {
+    if (title == null) {
+      return null;
+    }
+    for (String property : title.split(";")) {
+      property = property.trim();
+      if (property.startsWith(name + " ")) {
+        return property.substring(name.length() + 1).trim();
+      }
+    }
+    return null;
+  }
+
+  private static int[] parseBbox(String title) throws XMLStreamException {
+    String bbox = getProperty(title, "bbox");
+    if (bbox == null) {
+      return null;
+    }
+    String[] parts = bbox.split("\\s+");
+    if (parts.length != 4) {
+      throw new XMLStreamException("Invalid bbox '" + bbox + "', expected four coordinates.");
+    }
+    try {
+      int[] coordinates = new int[4];
+      for (int i = 0; i < 4; i++) {
+        coordinates[i] = Integer.parseInt(parts[i]);
+      }
+      return coordinates;
+    } catch (NumberFormatException e) {
+      throw new XMLStreamException("Invalid bbox '" + bbox + "', expected four coordinates.", e);
+    }
+  }
+}
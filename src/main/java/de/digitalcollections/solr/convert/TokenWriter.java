@@ -0,0 +1,189 @@
+package de.digitalcollections.solr.convert;
+
+import de.digitalcollections.lucene.analysis.payloads.OcrInfo;
+import de.digitalcollections.lucene.analysis.payloads.PayloadLayout;
+
+/**
+ * Writes the words of a file as whitespace-separated tokens in the input format of the
+ * {@link de.digitalcollections.lucene.analysis.util.DelimitedOcrInfoPayloadTokenFilterFactory}, e.g.
+ * `word|p:3,l:12,n:4,x:10.5,y:20.25,w:3.1,h:1.2`.
+ *
+ * Every token is validated against the payload layout of the target field before it is written, by encoding it the
+ * same way the filter will: indices have to fit into their number of bits and absolute coordinates into the
+ * coordinate bits. Invalid words fail the whole file, so they are reported before anything is sent to Solr instead
+ * of failing the update request. Only the indices the layout stores are written, since the filter rejects the others.
+ *
+ * With relative coordinates, the pixel boxes are converted into percentages of the page size and clamped to the page.
+ * Whitespace and the delimiter are removed from the words, since they would break the tokenization.
+ *
+ * Not thread-safe, every file needs its own writer.
+ */
+final class TokenWriter implements OcrParser.Handler {
+
+  private final char delimiter;
+  private final PayloadLayout layout;
+  private final StringBuilder tokens = new StringBuilder();
+
+  private int pageIndex = -1;
+  private int pageWidth;
+  private int pageHeight;
+  private int numPages = 0;
+  private int numWords = 0;
+
+  /**
+   * @param delimiter Delimiter between the word and its OCR information
+   * @param layout Payload layout of the target field
+   */
+  TokenWriter(char delimiter, PayloadLayout layout) {
+    this.delimiter = delimiter;
+    this.layout = layout;
+  }
+
+  @Override
+  public void page(int pageIndex, int width, int height) {
+    this.pageIndex = pageIndex;
+    this.pageWidth = width;
+    this.pageHeight = height;
+    numPages++;
+  }
+
+  @Override
+  public void word(String text, int lineIndex, int wordIndex, int x, int y, int width, int height,
+          float confidence) {
+    String word = sanitize(text);
+    if (word.isEmpty()) {
+      return;
+    }
+    if (x < 0 || y < 0 || width < 0 || height < 0) {
+      throw new IllegalArgumentException("Word '" + word + "' on page " + pageIndex + " has an incomplete box.");
+    }
+    checkIndex(pageIndex, layout.getPageBits(), "page", word);
+    checkIndex(lineIndex, layout.getLineBits(), "line", word);
+    checkIndex(wordIndex, layout.getWordBits(), "word", word);
+
+    OcrInfo info;
+    float[] percentages = null;
+    if (layout.hasAbsoluteCoordinates()) {
+      info = new OcrInfo(pageIndex, lineIndex, wordIndex, x, y, width, height);
+    } else {
+      if (pageWidth <= 0 || pageHeight <= 0) {
+        throw new IllegalArgumentException(
+                "Page " + pageIndex + " has no dimensions, they are needed for relative coordinates.");
+      }
+      percentages = new float[]{
+          percentage(x, pageWidth), percentage(y, pageHeight),
+          percentage(Math.min(width, pageWidth - x), pageWidth),
+          percentage(Math.min(height, pageHeight - y), pageHeight)};
+      info = new OcrInfo(pageIndex, lineIndex, wordIndex, percentages[0] / 100f, percentages[1] / 100f,
+              percentages[2] / 100f, percentages[3] / 100f);
+    }
+    boolean hasConfidence = layout.getConfidenceBits() > 0 && confidence >= 0;
+    if (hasConfidence) {
+      info.setConfidence(Math.min(confidence, 1f));
+    }
+    try {
+      layout.encodeOcrInfo(info);
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException(
+              "Word '" + word + "' on page " + pageIndex + " doesn't fit the payload layout: " + e.getMessage(), e);
+    }
+
+    if (numWords++ > 0) {
+      tokens.append(' ');
+    }
+    tokens.append(word).append(delimiter);
+    if (layout.getPageBits() > 0) {
+      tokens.append("p:").append(pageIndex).append(',');
+    }
+    if (layout.getLineBits() > 0) {
+      tokens.append("l:").append(lineIndex).append(',');
+    }
+    if (layout.getWordBits() > 0) {
+      tokens.append("n:").append(wordIndex).append(',');
+    }
+    if (percentages == null) {
+      tokens.append("x:").append(x).append(",y:").append(y).append(",w:").append(width).append(",h:").append(height);
+    } else {
+      appendPercentage(tokens.append("x:"), percentages[0]);
+      appendPercentage(tokens.append(",y:"), percentages[1]);
+      appendPercentage(tokens.append(",w:"), percentages[2]);
+      appendPercentage(tokens.append(",h:"), percentages[3]);
+    }
+    if (hasConfidence) {
+      appendPercentage(tokens.append(",c:"), Math.min(confidence, 1f) * 100f);
+    }
+  }
+
+  private String sanitize(String text) {
+    if (text == null) {
+      return "";
+    }
+    StringBuilder word = new StringBuilder(text.length());
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c != delimiter && !Character.isWhitespace(c) && !Character.isSpaceChar(c)) {
+        word.append(c);
+      }
+    }
+    return word.toString();
+  }
+
+  private void checkIndex(int index, int numBits, String type, String word) {
+    if (numBits <= 0) {
+      return;
+    }
+    if (index < 0) {
+      throw new IllegalArgumentException(String.format(
+              "Word '%s' on page %d has no %s index, but the layout stores %s indices.", word, pageIndex, type, type));
+    }
+    if (numBits < 31 && index >= 1 << numBits) {
+      throw new IllegalArgumentException(String.format(
+              "The %s index %d of word '%s' on page %d needs more than %d bits.", type, index, word, pageIndex,
+              numBits));
+    }
+  }
+
+  /**
+   * Convert a pixel value into a percentage of the page size, rounded to three decimals and clamped to the page.
+   */
+  private static float percentage(int value, int total) {
+    return Math.max(0, Math.min(100_000, Math.round(value * 100_000.0 / total))) / 1000f;
+  }
+
+  /**
+   * Append a percentage with up to three decimals, without the overhead of {@link String#format}.
+   */
+  private static void appendPercentage(StringBuilder out, float percentage) {
+    int thousandths = Math.round(percentage * 1000);
+    out.append(thousandths / 1000);
+    int fraction = thousandths % 1000;
+    if (fraction != 0) {
+      out.append('.');
+      if (fraction < 100) {
+        out.append('0');
+      }
+      if (fraction < 10) {
+        out.append('0');
+      }
+      while (fraction % 10 == 0) {
+        fraction /= 10;
+      }
+      out.append(fraction);
+    }
+  }
+
+  /**
+   * @return the tokens of all words of the file
+   */
+  String getTokens() {
+    return tokens.toString();
+  }
+
+  int getNumPages() {
+    return numPages;
+  }
+
+  int getNumWords() {
+    return numWords;
+  }
+}
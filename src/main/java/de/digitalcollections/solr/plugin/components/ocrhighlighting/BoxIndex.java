@@ -0,0 +1,303 @@
+package de.digitalcollections.solr.plugin.components.ocrhighlighting;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.store.DataOutput;
+import org.apache.lucene.store.OutputStreamDataOutput;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+
+/**
+ * Spatial index of the word boxes of a page, as stored in the doc values of an {@link OcrBoxIndexField}.
+ *
+ * Every page of a document has its own index, stored as a separate value keyed by the page index, see
+ * {@link PagedDocValues}, so a lookup only reads the page it needs. The boxes of the page are sorted in reading order
+ * and assigned to the cells of a regular grid over the page that they intersect. A lookup only reads the cells that
+ * intersect the requested region and the boxes in them. All structures that are needed for a lookup have a fixed
+ * width, so nothing else has to be decoded:
+ *
+ * - Header: the size of the grid, the extent of the grid (the page size for absolute coordinates, 1 for relative
+ *   coordinates), the number of boxes and the offset of the dictionary
+ * - The start of every grid cell in the cell entries, the cell entries (the ordinals of the boxes in the cell) and the
+ *   boxes in reading order as `(word ordinal, line, word, x, y, width, height)`
+ * - Dictionary of the distinct words of the page: the number of words, the offset of every word and the UTF-8
+ *   encoded words
+ */
+final class BoxIndex {
+
+  private static final int HEADER_BYTES = 20;
+  private static final int BOX_BYTES = 28;
+
+  private final ByteArrayDataInput in;
+  /** Start of the index in the buffer of the input, all offsets are relative to it **/
+  private final int base;
+  private final int page;
+  private final int gridSize;
+  private final float extentX;
+  private final float extentY;
+  private final int numBoxes;
+  private final int dictOffset;
+
+  private BoxIndex(int page, BytesRef data) {
+    this.in = new ByteArrayDataInput(data.bytes, data.offset, data.length);
+    this.base = data.offset;
+    this.page = page;
+    this.gridSize = in.readInt();
+    this.extentX = Float.intBitsToFloat(in.readInt());
+    this.extentY = Float.intBitsToFloat(in.readInt());
+    this.numBoxes = in.readInt();
+    this.dictOffset = in.readInt();
+  }
+
+  /**
+   * Open the index of a page of a document.
+   *
+   * @param reader    Reader for the segment of the document
+   * @param fieldName Field with the box index
+   * @param docId     Identifier of the document in the segment
+   * @param page      Index of the page
+   * @return the index or null if the document doesn't have the page
+   * @throws IOException Error during retrieval from index
+   */
+  static BoxIndex open(LeafReader reader, String fieldName, int docId, int page) throws IOException {
+    PagedDocValues pages = PagedDocValues.open(reader, fieldName, docId);
+    BytesRef data = pages != null ? pages.readPage(page) : null;
+    return data != null ? new BoxIndex(page, data) : null;
+  }
+
+  /**
+   * A word with its box, as passed to the {@link Builder} and returned by a lookup.
+   */
+  static final class Box {
+    final String text;
+    final int page;
+    final int line;
+    final int word;
+    final float x;
+    final float y;
+    final float width;
+    final float height;
+
+    Box(String text, int page, int line, int word, float x, float y, float width, float height) {
+      this.text = text;
+      this.page = page;
+      this.line = line;
+      this.word = word;
+      this.x = x;
+      this.y = y;
+      this.width = width;
+      this.height = height;
+    }
+  }
+
+  /**
+   * Find the words whose boxes intersect a region of the page.
+   *
+   * @param x      Horizontal offset of the region
+   * @param y      Vertical offset of the region
+   * @param width  Width of the region
+   * @param height Height of the region
+   * @return the intersecting words in reading order
+   */
+  List<Box> lookup(float x, float y, float width, float height) {
+    int cellsStart = HEADER_BYTES;
+    int entriesStart = cellsStart + (gridSize * gridSize + 1) * 4;
+    int boxesStart = entriesStart + readIntAt(cellsStart + gridSize * gridSize * 4) * 4;
+
+    // The ordinals of the boxes are their ranks in reading order, so collecting them in a bit set sorts them
+    FixedBitSet matches = new FixedBitSet(Math.max(numBoxes, 1));
+    int firstCol = cell(x, extentX, gridSize);
+    int lastCol = cell(x + width, extentX, gridSize);
+    int firstRow = cell(y, extentY, gridSize);
+    int lastRow = cell(y + height, extentY, gridSize);
+    for (int row = firstRow; row <= lastRow; row++) {
+      for (int col = firstCol; col <= lastCol; col++) {
+        int cell = row * gridSize + col;
+        int start = readIntAt(cellsStart + cell * 4);
+        int end = readIntAt(cellsStart + (cell + 1) * 4);
+        for (int i = start; i < end; i++) {
+          int ord = readIntAt(entriesStart + i * 4);
+          if (matches.get(ord)) {
+            continue;
+          }
+          seek(boxesStart + ord * BOX_BYTES + 12);
+          float boxX = Float.intBitsToFloat(in.readInt());
+          float boxY = Float.intBitsToFloat(in.readInt());
+          float boxWidth = Float.intBitsToFloat(in.readInt());
+          float boxHeight = Float.intBitsToFloat(in.readInt());
+          if (boxX < x + width && boxX + boxWidth > x && boxY < y + height && boxY + boxHeight > y) {
+            matches.set(ord);
+          }
+        }
+      }
+    }
+
+    List<Box> boxes = new ArrayList<>();
+    for (int ord = matches.nextSetBit(0); ord != DocIdSetIterator.NO_MORE_DOCS;
+         ord = ord + 1 < matches.length() ? matches.nextSetBit(ord + 1) : DocIdSetIterator.NO_MORE_DOCS) {
+      seek(boxesStart + ord * BOX_BYTES);
+      int wordOrd = in.readInt();
+      int line = in.readInt();
+      int word = in.readInt();
+      float boxX = Float.intBitsToFloat(in.readInt());
+      float boxY = Float.intBitsToFloat(in.readInt());
+      float boxWidth = Float.intBitsToFloat(in.readInt());
+      float boxHeight = Float.intBitsToFloat(in.readInt());
+      boxes.add(new Box(readWord(wordOrd), page, line, word, boxX, boxY, boxWidth, boxHeight));
+    }
+    return boxes;
+  }
+
+  /**
+   * Determine the row or column of the grid cell that contains a coordinate.
+   */
+  private static int cell(float coordinate, float extent, int gridSize) {
+    int cell = (int) (coordinate / extent * gridSize);
+    return Math.max(0, Math.min(gridSize - 1, cell));
+  }
+
+  private String readWord(int ord) {
+    int start = readIntAt(dictOffset + 4 + ord * 4);
+    int end = readIntAt(dictOffset + 4 + (ord + 1) * 4);
+    byte[] bytes = new byte[end - start];
+    seek(start);
+    in.readBytes(bytes, 0, bytes.length);
+    return new BytesRef(bytes).utf8ToString();
+  }
+
+  private int readIntAt(int position) {
+    seek(position);
+    return in.readInt();
+  }
+
+  private void seek(int position) {
+    in.setPosition(base + position);
+  }
+
+  /**
+   * Collects the boxes of a document and encodes them.
+   */
+  static final class Builder {
+    private final int gridSize;
+    private final boolean absoluteCoordinates;
+    private final Map<Integer, List<Box>> pages = new TreeMap<>();
+
+    Builder(int gridSize, boolean absoluteCoordinates) {
+      this.gridSize = gridSize;
+      this.absoluteCoordinates = absoluteCoordinates;
+    }
+
+    void add(Box box) {
+      pages.computeIfAbsent(box.page, p -> new ArrayList<>()).add(box);
+    }
+
+    /**
+     * @return the encoded index of every page, by page index
+     */
+    Map<Integer, byte[]> build() {
+      Map<Integer, byte[]> encoded = new TreeMap<>();
+      pages.forEach((page, boxes) -> encoded.put(page, encodePage(boxes)));
+      return encoded;
+    }
+
+    private byte[] encodePage(List<Box> boxes) {
+      Map<String, Integer> dictionary = new LinkedHashMap<>();
+      Box[] sorted = boxes.toArray(new Box[0]);
+      Arrays.sort(sorted, Comparator
+          .comparingInt((Box b) -> b.line >= 0 ? b.line : 0)
+          .thenComparingDouble(b -> b.line >= 0 ? 0 : b.y)
+          .thenComparingInt(b -> b.word >= 0 ? b.word : 0)
+          .thenComparingDouble(b -> b.x));
+
+      float extentX = 1f;
+      float extentY = 1f;
+      if (absoluteCoordinates) {
+        for (Box box : sorted) {
+          extentX = Math.max(extentX, box.x + box.width);
+          extentY = Math.max(extentY, box.y + box.height);
+        }
+      }
+
+      // Every box is assigned to all cells it intersects
+      int numCells = gridSize * gridSize;
+      List<List<Integer>> cells = new ArrayList<>(numCells);
+      for (int i = 0; i < numCells; i++) {
+        cells.add(new ArrayList<>());
+      }
+      for (int ord = 0; ord < sorted.length; ord++) {
+        Box box = sorted[ord];
+        int firstCol = cell(box.x, extentX, gridSize);
+        int lastCol = cell(box.x + box.width, extentX, gridSize);
+        int firstRow = cell(box.y, extentY, gridSize);
+        int lastRow = cell(box.y + box.height, extentY, gridSize);
+        for (int row = firstRow; row <= lastRow; row++) {
+          for (int col = firstCol; col <= lastCol; col++) {
+            cells.get(row * gridSize + col).add(ord);
+          }
+        }
+      }
+
+      int numEntries = cells.stream().mapToInt(List::size).sum();
+      int dictOffset = HEADER_BYTES + (numCells + 1) * 4 + numEntries * 4 + sorted.length * BOX_BYTES;
+      try {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutput out = new OutputStreamDataOutput(bytes);
+        out.writeInt(gridSize);
+        out.writeInt(Float.floatToIntBits(extentX));
+        out.writeInt(Float.floatToIntBits(extentY));
+        out.writeInt(sorted.length);
+        out.writeInt(dictOffset);
+        int start = 0;
+        for (List<Integer> cell : cells) {
+          out.writeInt(start);
+          start += cell.size();
+        }
+        out.writeInt(start);
+        for (List<Integer> cell : cells) {
+          for (int ord : cell) {
+            out.writeInt(ord);
+          }
+        }
+        for (Box box : sorted) {
+          out.writeInt(dictionary.computeIfAbsent(box.text, t -> dictionary.size()));
+          out.writeInt(box.line);
+          out.writeInt(box.word);
+          out.writeInt(Float.floatToIntBits(box.x));
+          out.writeInt(Float.floatToIntBits(box.y));
+          out.writeInt(Float.floatToIntBits(box.width));
+          out.writeInt(Float.floatToIntBits(box.height));
+        }
+
+        // The offsets of the words are relative to the start of the page, like all other offsets
+        List<byte[]> words = new ArrayList<>();
+        dictionary.keySet().forEach(word -> words.add(word.getBytes(StandardCharsets.UTF_8)));
+        out.writeInt(words.size());
+        int wordOffset = dictOffset + 4 + (words.size() + 1) * 4;
+        for (byte[] word : words) {
+          out.writeInt(wordOffset);
+          wordOffset += word.length;
+        }
+        out.writeInt(wordOffset);
+        for (byte[] word : words) {
+          out.writeBytes(word, word.length);
+        }
+        return bytes.toByteArray();
+      } catch (IOException e) {
+        // Writing into memory doesn't fail
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+}
@@ -0,0 +1,202 @@
+package de.digitalcollections.solr.plugin.components.ocrhighlighting;
+
+import com.carrotsearch.hppc.IntArrayList;
+import de.digitalcollections.lucene.analysis.payloads.OcrInfo;
+import de.digitalcollections.lucene.analysis.payloads.PayloadLayout;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.search.join.BitSetProducer;
+import org.apache.lucene.util.BitSet;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Highlights the child documents of the parents returned by a block-join (`{!parent}`) query.
+ *
+ * In a block-join index, the children of a parent are the documents directly preceding it in the same segment, i.e.
+ * everything between the previous parent and the parent itself. The parents are visited in document order, which
+ * lets both the child query and the postings of the query terms be advanced monotonically: Every segment is read in a
+ * single pass, no matter how many parents are returned, and no additional query is run per parent.
+ */
+class ChildHighlighter {
+
+  private final PayloadReader payloads;
+
+  ChildHighlighter(PayloadLayout layout) {
+    this.payloads = new PayloadReader(layout);
+  }
+
+  /**
+   * Find the children of every parent that match the child query.
+   *
+   * @param searcher Searcher to run the child query on
+   * @param parentIds Identifiers of the parents, in any order
+   * @param parentsFilter Producer for the bit set of all parent documents in a segment
+   * @param childQuery Query that the children have to match
+   * @param maxChildren Maximum number of children per parent, -1 for all children
+   * @param deadline Deadline for the highlighting, no more children are collected once it has passed
+   * @return For every parent, the identifiers of its matching children in ascending order
+   * @throws IOException Error during retrieval from index
+   */
+  static int[][] findChildren(IndexSearcher searcher, int[] parentIds, BitSetProducer parentsFilter,
+          Query childQuery, int maxChildren, HighlightDeadline deadline) throws IOException {
+    int[][] children = new int[parentIds.length][];
+    Weight childWeight = searcher.createNormalizedWeight(childQuery, false);
+    List<LeafReaderContext> leaves = searcher.getIndexReader().leaves();
+
+    LeafReaderContext leaf = null;
+    BitSet parentBits = null;
+    Bits liveDocs = null;
+    DocIdSetIterator childIterator = null;
+    for (int idx : sortedIndices(parentIds)) {
+      int parentId = parentIds[idx];
+      if (leaf == null || parentId >= leaf.docBase + leaf.reader().maxDoc()) {
+        leaf = leaves.get(ReaderUtil.subIndex(parentId, leaves));
+        parentBits = parentsFilter.getBitSet(leaf);
+        liveDocs = leaf.reader().getLiveDocs();
+        Scorer scorer = childWeight.scorer(leaf);
+        childIterator = scorer != null ? scorer.iterator() : null;
+      }
+      int parent = parentId - leaf.docBase;
+      if (parentBits == null || childIterator == null || parent == 0 || !parentBits.get(parent)
+              || deadline.checkExpired()) {
+        children[idx] = new int[0];
+        continue;
+      }
+      // The children of a parent are all documents since the previous parent
+      int firstChild = parentBits.prevSetBit(parent - 1) + 1;
+      int child = childIterator.docID();
+      if (child < firstChild) {
+        child = childIterator.advance(firstChild);
+      }
+      IntArrayList matches = new IntArrayList();
+      while (child < parent && (maxChildren < 0 || matches.size() < maxChildren)) {
+        // Scorers don't skip deleted documents on their own
+        if (liveDocs == null || liveDocs.get(child)) {
+          matches.add(leaf.docBase + child);
+        }
+        child = childIterator.nextDoc();
+      }
+      children[idx] = matches.toArray();
+    }
+    return children;
+  }
+
+  /**
+   * Retrieve the hits of the matching terms in a field for a set of children.
+   *
+   * @param reader A reader into the search index
+   * @param childIds Identifiers of the children, in ascending order
+   * @param fieldName Field to obtain OCR information from
+   * @param termSet Set of matching terms
+   * @param maxHighlightsPerChild Maximum number of hits per child, -1 for all hits
+   * @param minConfidence Raw confidence threshold from {@link PayloadLayout#getConfidenceThreshold}, 0 for all hits
+   * @param deadline Deadline for the highlighting, the remaining children get no hits once it has passed
+   * @return For every child, its hits in document order
+   * @throws IOException Error during retrieval from index
+   */
+  OcrInfo[][] highlight(IndexReader reader, int[] childIds, String fieldName, Set<BytesRef> termSet,
+          int maxHighlightsPerChild, int minConfidence, HighlightDeadline deadline) throws IOException {
+    OcrInfo[][] hits = new OcrInfo[childIds.length][];
+    List<LeafReaderContext> leaves = reader.leaves();
+
+    LeafReaderContext leaf = null;
+    List<PostingsEnum> enums = new ArrayList<>();
+    List<String> terms = new ArrayList<>();
+    for (int i = 0; i < childIds.length; i++) {
+      if (leaf == null || childIds[i] >= leaf.docBase + leaf.reader().maxDoc()) {
+        leaf = leaves.get(ReaderUtil.subIndex(childIds[i], leaves));
+        enums.clear();
+        terms.clear();
+        Terms leafTerms = leaf.reader().terms(fieldName);
+        if (leafTerms != null && leafTerms.hasPositions() && leafTerms.hasPayloads()) {
+          TermsEnum termsEnum = leafTerms.iterator();
+          for (BytesRef term : termSet) {
+            if (termsEnum.seekExact(term)) {
+              enums.add(termsEnum.postings(null, PostingsEnum.PAYLOADS));
+              terms.add(term.utf8ToString());
+            }
+          }
+        }
+      }
+      if (deadline.checkExpired()) {
+        hits[i] = new OcrInfo[0];
+        continue;
+      }
+      hits[i] = readHits(enums, terms, childIds[i] - leaf.docBase, maxHighlightsPerChild, minConfidence);
+    }
+    return hits;
+  }
+
+  /**
+   * Read the hits of a single child, the postings are only ever advanced.
+   */
+  private OcrInfo[] readHits(List<PostingsEnum> enums, List<String> terms, int child, int maxHighlights,
+          int minConfidence) throws IOException {
+    List<OcrInfo> infos = new ArrayList<>();
+    IntArrayList positions = new IntArrayList();
+    for (int t = 0; t < enums.size(); t++) {
+      PostingsEnum postingsEnum = enums.get(t);
+      if (postingsEnum.docID() < child) {
+        postingsEnum.advance(child);
+      }
+      if (postingsEnum.docID() != child) {
+        continue;
+      }
+      payloads.reset(postingsEnum);
+      for (int position = payloads.nextPosition(); position != PayloadReader.NO_MORE_POSITIONS;
+              position = payloads.nextPosition()) {
+        if (!payloads.isConfident(minConfidence)) {
+          continue;
+        }
+        positions.add(position);
+        OcrInfo info = payloads.decodeOcrInfo();
+        info.setTerm(terms.get(t));
+        infos.add(info);
+      }
+    }
+
+    // Bring the hits of all terms into document order before applying the limit
+    long[] order = new long[infos.size()];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = ((long) positions.get(i) << 32) | i;
+    }
+    Arrays.sort(order);
+    int numHits = maxHighlights < 0 ? order.length : Math.min(order.length, maxHighlights);
+    OcrInfo[] hits = new OcrInfo[numHits];
+    for (int i = 0; i < numHits; i++) {
+      hits[i] = infos.get((int) order[i]);
+    }
+    return hits;
+  }
+
+  /**
+   * Get the indices of the documents, ordered by their identifiers.
+   */
+  private static int[] sortedIndices(int[] docIds) {
+    long[] order = new long[docIds.length];
+    for (int i = 0; i < docIds.length; i++) {
+      order[i] = ((long) docIds[i] << 32) | i;
+    }
+    Arrays.sort(order);
+    int[] indices = new int[order.length];
+    for (int i = 0; i < order.length; i++) {
+      indices[i] = (int) order[i];
+    }
+    return indices;
+  }
+}
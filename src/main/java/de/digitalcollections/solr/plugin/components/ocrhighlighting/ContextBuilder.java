@@ -0,0 +1,63 @@
+package de.digitalcollections.solr.plugin.components.ocrhighlighting;
+
+import de.digitalcollections.lucene.analysis.payloads.OcrInfo;
+import de.digitalcollections.lucene.analysis.payloads.PayloadLayout;
+import java.io.IOException;
+import java.util.List;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.solr.common.SolrException;
+
+/**
+ * Adds the original text around hits, read from the {@link LineIndex} of the document.
+ *
+ * Only the parts of the line index with the lines of the hits (and, for a number of words, the lines next to them)
+ * are read, never the complete text of the document. The hits are located in the index with their page, line and
+ * word indices, so the payloads need line indices and, for a number of words, word indices.
+ */
+class ContextBuilder {
+
+  private final PayloadLayout layout;
+
+  ContextBuilder(PayloadLayout layout) {
+    this.layout = layout;
+  }
+
+  /**
+   * Add the context to the hits of a document.
+   *
+   * @param reader A reader into the search index
+   * @param docId Identifier of the document
+   * @param lineField {@link OcrLineIndexField} with the lines of the field the hits are from
+   * @param hits Hits to add the context to
+   * @param numWords Number of words before and after each hit, -1 to use the text of the hit's line as the context
+   * @throws IOException Error during retrieval from index
+   */
+  void addContext(IndexReader reader, int docId, String lineField, OcrInfo[] hits, int numWords)
+          throws IOException {
+    if (hits.length == 0) {
+      return;
+    }
+    boolean lineContext = numWords < 0;
+    if (layout.getLineBits() <= 0) {
+      throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+              "ocr_hl.context needs line indices in the payloads, set 'lineBits'.");
+    }
+    if (!lineContext && layout.getWordBits() <= 0) {
+      throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+              "ocr_hl.context with a number of words needs word indices in the payloads, set 'wordBits'.");
+    }
+    List<LeafReaderContext> leaves = reader.leaves();
+    LeafReaderContext leaf = leaves.get(ReaderUtil.subIndex(docId, leaves));
+    LineIndex index = LineIndex.open(leaf.reader(), lineField, docId - leaf.docBase);
+    if (index == null) {
+      return;
+    }
+    for (OcrInfo hit : hits) {
+      hit.setContext(lineContext
+              ? index.lineText(hit.getPageIndex(), hit.getLineIndex())
+              : index.wordContext(hit.getPageIndex(), hit.getLineIndex(), hit.getWordIndex(), numWords));
+    }
+  }
+}
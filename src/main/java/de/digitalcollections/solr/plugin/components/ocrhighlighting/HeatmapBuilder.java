@@ -0,0 +1,119 @@
+package de.digitalcollections.solr.plugin.components.ocrhighlighting;
+
+import com.carrotsearch.hppc.IntObjectHashMap;
+import com.carrotsearch.hppc.cursors.IntObjectCursor;
+import de.digitalcollections.lucene.analysis.payloads.PayloadLayout;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+
+/**
+ * Bins the centres of matching OCR boxes into a fixed-size grid for every page.
+ *
+ * The coordinates are read directly from the payloads, no intermediate {@link
+ * de.digitalcollections.lucene.analysis.payloads.OcrInfo} instances are created. The grids are plain `int[]`
+ * arrays that are recycled once a document's heatmaps have been encoded, so a single builder should be used for all
+ * documents of a request.
+ */
+class HeatmapBuilder {
+
+  private static final Pattern GRID_PAT = Pattern.compile("(\\d+)x(\\d+)");
+  private static final int MAX_CELLS = 256 * 256;
+
+  private final int columns;
+  private final int rows;
+  private final long pageWidth;
+  private final long pageHeight;
+  private final PayloadLayout layout;
+
+  private final IntObjectHashMap<int[]> grids = new IntObjectHashMap<>();
+  private final Deque<int[]> pool = new ArrayDeque<>();
+
+  /**
+   * Create a new heatmap builder.
+   *
+   * @param gridSpec Size of the grid as `<columns>x<rows>`, e.g. `16x24`
+   * @param pageWidth Width of the page in coordinate units, i.e. `2^coordBits` for relative coordinates
+   * @param pageHeight Height of the page in coordinate units, i.e. `2^coordBits` for relative coordinates
+   * @param layout Layout of the payloads
+   */
+  HeatmapBuilder(String gridSpec, long pageWidth, long pageHeight, PayloadLayout layout) {
+    Matcher m = GRID_PAT.matcher(gridSpec);
+    if (!m.matches()) {
+      throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+              "Invalid value for ocr_hl.heatmap: '" + gridSpec + "', must be of the form '<columns>x<rows>'.");
+    }
+    this.columns = Integer.parseInt(m.group(1));
+    this.rows = Integer.parseInt(m.group(2));
+    if (columns <= 0 || rows <= 0 || (long) columns * rows > MAX_CELLS) {
+      throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, String.format(
+              "Invalid heatmap size %s, must have at least one and at most %d cells.", gridSpec, MAX_CELLS));
+    }
+    if (pageWidth <= 0 || pageHeight <= 0) {
+      throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "Page dimensions must be positive.");
+    }
+    this.pageWidth = pageWidth;
+    this.pageHeight = pageHeight;
+    this.layout = layout;
+  }
+
+  PayloadLayout getLayout() {
+    return layout;
+  }
+
+  /**
+   * Add the box from the current payload of a reader to the heatmap of its page.
+   */
+  void add(PayloadReader payload) {
+    int page = payload.pageIndex();
+    long centerX = payload.rawCoordinate(0) + payload.rawCoordinate(2) / 2;
+    long centerY = payload.rawCoordinate(1) + payload.rawCoordinate(3) / 2;
+    int column = (int) Math.min(columns - 1, centerX * columns / pageWidth);
+    int row = (int) Math.min(rows - 1, centerY * rows / pageHeight);
+
+    int[] grid = grids.get(page);
+    if (grid == null) {
+      grid = pool.isEmpty() ? new int[columns * rows] : pool.pop();
+      grids.put(page, grid);
+    }
+    grid[row * columns + column]++;
+  }
+
+  /**
+   * Encode the heatmaps of all pages that had at least one hit and reset the builder for the next document.
+   *
+   * Only the cells with hits are encoded, as consecutive pairs of the index of the cell in row-major order and its
+   * count. A grid usually has far more cells than hits, so the encoding is much smaller than the complete grid.
+   *
+   * @return NamedList with `(page index, cells)` pairs, ordered by page index
+   */
+  NamedList<Object> finish() {
+    int[] pages = grids.keys().toArray();
+    Arrays.sort(pages);
+    NamedList<Object> heatmaps = new SimpleOrderedMap<>();
+    for (int page : pages) {
+      int[] grid = grids.get(page);
+      List<Integer> cells = new ArrayList<>();
+      for (int cell = 0; cell < grid.length; cell++) {
+        if (grid[cell] > 0) {
+          cells.add(cell);
+          cells.add(grid[cell]);
+        }
+      }
+      heatmaps.add(Integer.toString(page), cells);
+    }
+    for (IntObjectCursor<int[]> cursor : grids) {
+      Arrays.fill(cursor.value, 0);
+      pool.push(cursor.value);
+    }
+    grids.clear();
+    return heatmaps;
+  }
+}
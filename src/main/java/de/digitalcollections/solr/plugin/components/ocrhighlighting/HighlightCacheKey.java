@@ -0,0 +1,115 @@
+package de.digitalcollections.solr.plugin.components.ocrhighlighting;
+
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Key for the highlighting cache.
+ *
+ * Identifies the hits of a single field in a single document. Documents are referenced by their unique key instead
+ * of their Lucene document identifier, so the entries can be regenerated on a new searcher. Instead of the query,
+ * only the terms extracted from it are part of the key, since these are all that the highlighting depends on.
+ */
+class HighlightCacheKey {
+
+  private final String componentName;
+  private final String fieldName;
+  private final Set<BytesRef> termSet;
+  private final String uniqueKey;
+  private final int maxHighlights;
+  private final int maxHighlightsPerPage;
+  private final int[] pageRange;
+  private final int minConfidence;
+  private final int hashCode;
+
+  HighlightCacheKey(String componentName, String fieldName, Set<BytesRef> termSet, String uniqueKey,
+          int maxHighlights, int maxHighlightsPerPage, int[] pageRange, int minConfidence) {
+    this.componentName = componentName;
+    this.fieldName = fieldName;
+    this.termSet = new TreeSet<>();
+    for (BytesRef term : termSet) {
+      this.termSet.add(BytesRef.deepCopyOf(term));
+    }
+    this.uniqueKey = uniqueKey;
+    this.maxHighlights = maxHighlights;
+    this.maxHighlightsPerPage = maxHighlightsPerPage;
+    this.pageRange = pageRange;
+    this.minConfidence = minConfidence;
+    this.hashCode = Objects.hash(fieldName, this.termSet, uniqueKey, maxHighlights, maxHighlightsPerPage,
+            Arrays.hashCode(pageRange), minConfidence);
+  }
+
+  /** Name of the highlighting component that created the entry, needed for regenerating it **/
+  String getComponentName() {
+    return componentName;
+  }
+
+  String getFieldName() {
+    return fieldName;
+  }
+
+  Set<BytesRef> getTermSet() {
+    return termSet;
+  }
+
+  String getUniqueKey() {
+    return uniqueKey;
+  }
+
+  int getMaxHighlights() {
+    return maxHighlights;
+  }
+
+  int getMaxHighlightsPerPage() {
+    return maxHighlightsPerPage;
+  }
+
+  int[] getPageRange() {
+    return pageRange;
+  }
+
+  /** Raw confidence threshold the hits were filtered with, 0 if they were not filtered **/
+  int getMinConfidence() {
+    return minConfidence;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+    HighlightCacheKey other = (HighlightCacheKey) o;
+    return maxHighlights == other.maxHighlights
+            && maxHighlightsPerPage == other.maxHighlightsPerPage
+            && minConfidence == other.minConfidence
+            && Objects.equals(componentName, other.componentName)
+            && fieldName.equals(other.fieldName)
+            && uniqueKey.equals(other.uniqueKey)
+            && Arrays.equals(pageRange, other.pageRange)
+            && termSet.equals(other.termSet);
+  }
+
+  @Override
+  public int hashCode() {
+    return hashCode;
+  }
+
+  @Override
+  public String toString() {
+    return "HighlightCacheKey{"
+            + "fieldName='" + fieldName + '\''
+            + ", termSet=" + termSet
+            + ", uniqueKey='" + uniqueKey + '\''
+            + ", maxHighlights=" + maxHighlights
+            + ", maxHighlightsPerPage=" + maxHighlightsPerPage
+            + ", pageRange=" + Arrays.toString(pageRange)
+            + ", minConfidence=" + minConfidence
+            + '}';
+  }
+}
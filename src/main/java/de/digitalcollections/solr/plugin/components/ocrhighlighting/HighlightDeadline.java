@@ -0,0 +1,88 @@
+package de.digitalcollections.solr.plugin.components.ocrhighlighting;
+
+import java.util.concurrent.TimeUnit;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.request.SolrQueryRequest;
+
+/**
+ * Deadline for the highlighting of a single request.
+ *
+ * Designed to be checked inside the postings loops: The clock is only consulted every couple of calls and once the
+ * deadline has passed, it stays expired for the rest of the request.
+ */
+class HighlightDeadline {
+
+  /** Only check the clock on every 256th call **/
+  private static final int CHECK_INTERVAL_MASK = 0xFF;
+
+  private final boolean enabled;
+  private final long deadlineNanos;
+  private int numChecks = 0;
+  private boolean expired = false;
+
+  private HighlightDeadline(boolean enabled, long deadlineNanos) {
+    this.enabled = enabled;
+    this.deadlineNanos = deadlineNanos;
+  }
+
+  /**
+   * Create a deadline that never expires.
+   */
+  static HighlightDeadline none() {
+    return new HighlightDeadline(false, Long.MAX_VALUE);
+  }
+
+  /**
+   * Create the deadline from the request parameters.
+   *
+   * `ocr_hl.timeAllowed` limits the time spent on highlighting alone, while Solr's `timeAllowed` is counted from
+   * the start of the request, i.e. it includes the time needed for the query itself. If both are set, the earlier
+   * deadline wins.
+   */
+  static HighlightDeadline fromRequest(SolrQueryRequest req) {
+    SolrParams params = req.getParams();
+    long now = System.nanoTime();
+    long deadline = Long.MAX_VALUE;
+    boolean enabled = false;
+
+    long highlightTimeAllowed = params.getLong("ocr_hl.timeAllowed", -1L);
+    if (highlightTimeAllowed >= 0) {
+      deadline = now + TimeUnit.MILLISECONDS.toNanos(highlightTimeAllowed);
+      enabled = true;
+    }
+    long timeAllowed = params.getLong(CommonParams.TIME_ALLOWED, -1L);
+    if (timeAllowed >= 0) {
+      long remaining = timeAllowed - (System.currentTimeMillis() - req.getStartTime());
+      long requestDeadline = now + TimeUnit.MILLISECONDS.toNanos(remaining);
+      if (!enabled || requestDeadline - deadline < 0) {
+        deadline = requestDeadline;
+      }
+      enabled = true;
+    }
+    return new HighlightDeadline(enabled, deadline);
+  }
+
+  /**
+   * Check if the deadline has passed.
+   *
+   * Cheap enough to be called for every position, since the clock is only read on every 256th call.
+   */
+  boolean checkExpired() {
+    if (expired) {
+      return true;
+    }
+    if (!enabled || (numChecks++ & CHECK_INTERVAL_MASK) != 0) {
+      return false;
+    }
+    expired = System.nanoTime() - deadlineNanos >= 0;
+    return expired;
+  }
+
+  /**
+   * Whether a previous call to {@link #checkExpired()} found the deadline to have passed.
+   */
+  boolean hasExpired() {
+    return expired;
+  }
+}
@@ -0,0 +1,87 @@
+package de.digitalcollections.solr.plugin.components.ocrhighlighting;
+
+import java.util.Arrays;
+
+/**
+ * Distributes a global budget of highlights across the documents of a request.
+ *
+ * The result is the same as handing out one highlight at a time to every document that still has hits left, in
+ * order of document rank, until the budget is used up. This makes sure that the first documents can't use up the
+ * complete budget, while documents with fewer hits than their fair share pass the remainder on to the others.
+ */
+class HitBudget {
+
+  private HitBudget() {
+    // Cannot be instantiated, is only here for the static methods
+  }
+
+  /**
+   * Allocate the budget.
+   *
+   * @param demands Number of hits for each document, in order of document rank
+   * @param budget Total number of highlights available
+   * @return Maximum number of highlights for each document, in order of document rank
+   */
+  static int[] allocate(int[] demands, int budget) {
+    long[] level = waterLevel(demands, 0, budget);
+    long remaining = level[1];
+    int[] allocation = new int[demands.length];
+    for (int i = 0; i < demands.length; i++) {
+      allocation[i] = (int) Math.min(demands[i], level[0]);
+      // The last, incomplete round goes to the highest ranked documents
+      if (demands[i] > level[0] && remaining > 0) {
+        allocation[i]++;
+        remaining--;
+      }
+    }
+    return allocation;
+  }
+
+  /**
+   * Determine the share of a single document in what's left of the budget, which is shared with the documents that
+   * are ranked lower.
+   *
+   * This is the same as `allocate(Arrays.copyOfRange(demands, doc, demands.length), budget)[0]`, so the documents
+   * can be highlighted one after the other, with the budget that the previous ones didn't use.
+   *
+   * @param demands Number of hits for each document, in order of document rank
+   * @param doc Index of the document
+   * @param budget Number of highlights that are left for the document and all that are ranked lower
+   * @return Maximum number of highlights for the document
+   */
+  static int share(int[] demands, int doc, int budget) {
+    long[] level = waterLevel(demands, doc, budget);
+    // The document is the highest ranked one, so it is first in line for the last, incomplete round
+    return demands[doc] > level[0] ? (int) level[0] + (level[1] > 0 ? 1 : 0) : demands[doc];
+  }
+
+  /**
+   * Raise a common "water level" until either every document is satisfied or the budget doesn't suffice to raise it
+   * for all remaining documents.
+   *
+   * @return The level and the number of highlights that are left over for the last, incomplete round
+   */
+  private static long[] waterLevel(int[] demands, int from, int budget) {
+    int[] sorted = Arrays.copyOfRange(demands, from, demands.length);
+    Arrays.sort(sorted);
+    long remaining = Math.max(budget, 0);
+    long level = 0;
+    for (int i = 0; i < sorted.length; i++) {
+      if (sorted[i] <= level) {
+        continue;
+      }
+      long numActive = sorted.length - i;
+      long needed = (sorted[i] - level) * numActive;
+      if (needed <= remaining) {
+        remaining -= needed;
+        level = sorted[i];
+      } else {
+        long increment = remaining / numActive;
+        level += increment;
+        remaining -= increment * numActive;
+        break;
+      }
+    }
+    return new long[]{level, remaining};
+  }
+}
@@ -0,0 +1,209 @@
+package de.digitalcollections.solr.plugin.components.ocrhighlighting;
+
+import de.digitalcollections.lucene.analysis.payloads.OcrInfo;
+import de.digitalcollections.lucene.analysis.payloads.PayloadLayout;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.BytesRef;
+import org.apache.solr.common.SolrException;
+
+/**
+ * Retrieves a window of hits from a field of a single document, in document order.
+ *
+ * The positions of all matching terms are merged by their position in the field, which is cheap since it does not
+ * require decoding any payloads. Only the payloads of the hits inside of the requested window are decoded, packed
+ * payloads are read a block at a time, see {@link PayloadReader}.
+ *
+ * Since the hits are ordered by their position, the last returned position is all that's needed to resume
+ * retrieval at the next hit, this is what the cursors encode, together with the unique key of the document they
+ * belong to.
+ */
+class HitPager {
+
+  /** A window of hits. **/
+  static class Window {
+    final OcrInfo[] hits;
+    /** Position of the last hit that was visited, either returned or skipped **/
+    final int lastPosition;
+    /** Whether there are more hits after the window **/
+    final boolean hasMore;
+
+    Window(OcrInfo[] hits, int lastPosition, boolean hasMore) {
+      this.hits = hits;
+      this.lastPosition = lastPosition;
+      this.hasMore = hasMore;
+    }
+  }
+
+  /** The position to resume at in every field of a document. **/
+  static class Cursor {
+    /** Unique key of the document, empty if the schema has no unique key **/
+    final String uniqueKey;
+    /** Last visited position in every field that has more hits **/
+    final Map<String, Integer> lastPositions;
+
+    Cursor(String uniqueKey, Map<String, Integer> lastPositions) {
+      this.uniqueKey = uniqueKey;
+      this.lastPositions = lastPositions;
+    }
+
+    /** Whether the cursor was created for the document with the given unique key **/
+    boolean appliesTo(String key) {
+      return uniqueKey.equals(key != null ? key : "");
+    }
+  }
+
+  private final PayloadLayout layout;
+
+  HitPager(PayloadLayout layout) {
+    this.layout = layout;
+  }
+
+  /**
+   * Retrieve a window of hits.
+   *
+   * @param leafReader Reader for the segment the document is in
+   * @param docId Identifier of the document, relative to the segment
+   * @param fieldName Field to obtain OCR information from
+   * @param termSet Set of matching terms
+   * @param afterPosition Only hits after this position are considered, -1 to start at the beginning of the field
+   * @param start Number of hits to skip
+   * @param rows Maximum number of hits to return, negative values disable the limit
+   * @param pageRange First and last page to retrieve hits from, null to retrieve hits from all pages
+   * @param minConfidence Raw confidence threshold from {@link PayloadLayout#getConfidenceThreshold}, 0 to retrieve
+   *                      all hits
+   * @param deadline Deadline for the highlighting, the window ends early once it has passed
+   * @return The window of hits, in document order
+   * @throws IOException Error during retrieval from index
+   */
+  Window read(LeafReader leafReader, int docId, String fieldName, Set<BytesRef> termSet, int afterPosition,
+          int start, int rows, int[] pageRange, int minConfidence, HighlightDeadline deadline) throws IOException {
+    final Terms terms = leafReader.terms(fieldName);
+    if (terms == null || !terms.hasPositions() || !terms.hasPayloads()) {
+      return new Window(new OcrInfo[]{}, afterPosition, false);
+    }
+
+    final TermsEnum termsEnum = terms.iterator();
+    List<PayloadReader> readers = new ArrayList<>(termSet.size());
+    List<String> termStrings = new ArrayList<>(termSet.size());
+    for (BytesRef term : termSet) {
+      if (!termsEnum.seekExact(term)) {
+        continue;
+      }
+      PostingsEnum postingsEnum = termsEnum.postings(null, PostingsEnum.PAYLOADS);
+      if (docId == postingsEnum.advance(docId)) {
+        readers.add(new PayloadReader(layout).reset(postingsEnum));
+        termStrings.add(term.utf8ToString());
+      }
+    }
+
+    // Current position for every term
+    int[] positions = new int[readers.size()];
+    for (int i = 0; i < positions.length; i++) {
+      do {
+        positions[i] = readers.get(i).nextPosition();
+      } while (positions[i] <= afterPosition);
+    }
+
+    List<OcrInfo> hits = new ArrayList<>();
+    int numSkipped = 0;
+    int lastPosition = afterPosition;
+    boolean hasMore = false;
+    while (true) {
+      int next = 0;
+      for (int i = 1; i < positions.length; i++) {
+        if (positions[i] < positions[next]) {
+          next = i;
+        }
+      }
+      if (positions.length == 0 || positions[next] == PayloadReader.NO_MORE_POSITIONS) {
+        break;
+      }
+      if (deadline.checkExpired()) {
+        hasMore = true;
+        break;
+      }
+      PayloadReader payload = readers.get(next);
+      boolean skip = !payload.isConfident(minConfidence);
+      if (!skip && pageRange != null) {
+        int page = payload.pageIndex();
+        skip = page < pageRange[0] || page > pageRange[1];
+      }
+      if (skip) {
+        lastPosition = positions[next];
+        positions[next] = payload.nextPosition();
+        continue;
+      }
+      // Only a hit that passes the filters after a full window means that there are more hits
+      if (rows >= 0 && hits.size() >= rows) {
+        hasMore = true;
+        break;
+      }
+      if (numSkipped < start) {
+        numSkipped++;
+      } else {
+        OcrInfo info = payload.decodeOcrInfo();
+        info.setTerm(termStrings.get(next));
+        info.setPosition(positions[next]);
+        hits.add(info);
+      }
+      lastPosition = positions[next];
+      positions[next] = payload.nextPosition();
+    }
+    return new Window(hits.toArray(new OcrInfo[0]), lastPosition, hasMore);
+  }
+
+  /**
+   * Encode the last visited position in every field of a document into an opaque cursor string.
+   *
+   * Fields without any more hits are left out.
+   *
+   * @param uniqueKey Unique key of the document, null if the schema has no unique key
+   * @param lastPositions Mapping from field names to the last visited position in the field
+   */
+  static String encodeCursor(String uniqueKey, Map<String, Integer> lastPositions) {
+    // Field names can't contain line breaks, so the first one separates the positions from the key
+    String cursor = lastPositions.entrySet().stream()
+            .map(e -> e.getKey() + "=" + e.getValue())
+            .collect(Collectors.joining(";")) + "\n" + (uniqueKey != null ? uniqueKey : "");
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(cursor.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Decode a cursor string obtained from {@link #encodeCursor(String, Map)}.
+   */
+  static Cursor decodeCursor(String cursor) {
+    Map<String, Integer> lastPositions = new LinkedHashMap<>();
+    String uniqueKey;
+    try {
+      String decoded = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+      int keySep = decoded.indexOf('\n');
+      if (keySep < 0) {
+        throw new IllegalArgumentException("Cursor without a unique key.");
+      }
+      uniqueKey = decoded.substring(keySep + 1);
+      decoded = decoded.substring(0, keySep);
+      if (decoded.isEmpty()) {
+        return new Cursor(uniqueKey, lastPositions);
+      }
+      for (String entry : decoded.split(";")) {
+        int sep = entry.lastIndexOf('=');
+        lastPositions.put(entry.substring(0, sep), Integer.parseInt(entry.substring(sep + 1)));
+      }
+    } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+      throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "Invalid value for ocr_hl.cursor: " + cursor, e);
+    }
+    return new Cursor(uniqueKey, lastPositions);
+  }
+}
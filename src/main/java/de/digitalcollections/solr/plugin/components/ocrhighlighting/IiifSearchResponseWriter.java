@@ -0,0 +1,399 @@
+package de.digitalcollections.solr.plugin.components.ocrhighlighting;
+
+import de.digitalcollections.lucene.analysis.payloads.OcrInfo;
+import de.digitalcollections.lucene.analysis.payloads.PayloadLayout;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.QueryResponseWriter;
+import org.apache.solr.response.SolrQueryResponse;
+
+/**
+ * Writes the OCR highlighting of a response as an
+ * <a href="https://iiif.io/api/search/">IIIF Content Search API</a> response.
+ *
+ * Every hit becomes an annotation that targets a region of its page's canvas. The hits are written to the response
+ * as they are read from the highlighting, no intermediate representation is built. With `ocr_hl.format=packed`, the
+ * hits are decoded straight from their compact binary representation, which spares the highlighter from encoding
+ * every hit into a NamedList. The total number of hits is written at the end of the response.
+ *
+ * Takes the following request parameters:
+ *
+ * `iiif.version`
+ * : Version of the Content Search API, `1` (annotation list with `within` and `hits`) or `2` (annotation page that
+ *   is `partOf` an annotation collection). Defaults to the `version` of the configuration.
+ *
+ * `iiif.id`
+ * : Identifier of the search response, defaults to the path and parameters of the request
+ *
+ * `iiif.pageWidth`, `iiif.pageHeight`
+ * : Size of the pages in pixels, used to scale relative coordinates to pixels. Without them, relative coordinates
+ *   are written as `percent:` fragments. Hits that were scaled with `ocr_hl.scale=pixels` are used as they are.
+ *
+ * Configuration:
+ * ```
+ * <pre>{@code
+ * <queryResponseWriter name="iiif"
+ *                      class="de.digitalcollections.solr.plugin.components.ocrhighlighting.IiifSearchResponseWriter">
+ *   <str name="canvasTemplate">https://iiif.example.com/{id}/canvas/p{page}</str>
+ *   <str name="annotationTemplate">https://iiif.example.com/{id}/annotation/{field}-{n}</str>
+ *   <int name="version">1</int>
+ * </queryResponseWriter>
+ * }</pre>
+ * ```
+ *
+ * In the templates, `{id}` is replaced with the unique key of the highlighted document, `{page}` with the page
+ * index of the hit, `{field}` with the highlighted field and `{n}` with the number of the hit in the response.
+ * The annotation template can also refer to the hit's `{canvas}`.
+ */
+public class IiifSearchResponseWriter implements QueryResponseWriter {
+
+  static final String CONTENT_TYPE = "application/ld+json; charset=UTF-8";
+
+  private static final String DEFAULT_ANNOTATION_TEMPLATE = "urn:ocr-highlighting:{id}:{field}:{n}";
+  private static final List<String> NON_FIELD_ENTRIES = Arrays.asList(
+          "bestPages", "partialResults", "truncated", "nextCursor");
+
+  private UriTemplate canvasTemplate;
+  private UriTemplate annotationTemplate;
+  private int defaultVersion = 1;
+
+  @Override
+  public void init(NamedList args) {
+    Object canvas = args.get("canvasTemplate");
+    if (canvas == null) {
+      throw new SolrException(SolrException.ErrorCode.SERVER_ERROR,
+              "The IIIF response writer needs a canvasTemplate to map the page indices to canvases.");
+    }
+    canvasTemplate = new UriTemplate(canvas.toString(), false);
+    Object annotation = args.get("annotationTemplate");
+    annotationTemplate = new UriTemplate(
+            annotation != null ? annotation.toString() : DEFAULT_ANNOTATION_TEMPLATE, true);
+    Object version = args.get("version");
+    if (version != null) {
+      defaultVersion = parseVersion(version.toString());
+    }
+  }
+
+  @Override
+  public String getContentType(SolrQueryRequest request, SolrQueryResponse response) {
+    return CONTENT_TYPE;
+  }
+
+  @Override
+  public void write(Writer writer, SolrQueryRequest req, SolrQueryResponse rsp) throws IOException {
+    if (rsp.getException() != null) {
+      writeError(writer, rsp.getException());
+      return;
+    }
+    SolrParams params = req.getParams();
+    int version = parseVersion(params.get("iiif.version", Integer.toString(defaultVersion)));
+    NamedList<?> highlighting = (NamedList<?>) rsp.getValues().get("ocr_highlighting");
+    NamedList<?> layouts = (NamedList<?>) rsp.getValues().get("ocr_highlightingLayout");
+    AnnotationWriter out = new AnnotationWriter(writer, params.getInt("iiif.pageWidth", -1),
+            params.getInt("iiif.pageHeight", -1));
+    String searchId = params.get("iiif.id");
+    if (searchId == null) {
+      Object path = req.getContext().get("path");
+      searchId = (path != null ? path.toString() : "") + "?" + params.toQueryString().replaceFirst("^\\?", "");
+    }
+
+    int total;
+    if (version == 1) {
+      writer.write("{\"@context\":[\"http://iiif.io/api/presentation/2/context.json\","
+              + "\"http://iiif.io/api/search/1/context.json\"],\"@id\":");
+      writeString(writer, searchId);
+      writer.write(",\"@type\":\"sc:AnnotationList\",\"resources\":[");
+      total = visitHits(highlighting, layouts, out::writeAnnotationV1);
+      // A second pass over the same hits yields the same annotation identifiers
+      writer.write("],\"hits\":[");
+      visitHits(highlighting, layouts, out::writeHitV1);
+      writer.write("],\"within\":{\"@type\":\"sc:Layer\",\"total\":");
+      writer.write(Integer.toString(total));
+      writer.write("}}");
+    } else {
+      writer.write("{\"@context\":\"http://iiif.io/api/search/2/context.json\",\"id\":");
+      writeString(writer, searchId);
+      writer.write(",\"type\":\"AnnotationPage\",\"items\":[");
+      total = visitHits(highlighting, layouts, out::writeAnnotationV2);
+      writer.write("],\"partOf\":{\"id\":");
+      writeString(writer, searchId);
+      writer.write(",\"type\":\"AnnotationCollection\",\"total\":");
+      writer.write(Integer.toString(total));
+      writer.write("}}");
+    }
+  }
+
+  private static int parseVersion(String version) {
+    if (!"1".equals(version) && !"2".equals(version)) {
+      throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+              "Unsupported IIIF Content Search API version: " + version + ", must be 1 or 2.");
+    }
+    return Integer.parseInt(version);
+  }
+
+  private static void writeError(Writer writer, Exception e) throws IOException {
+    int code = e instanceof SolrException ? ((SolrException) e).code() : 500;
+    writer.write("{\"error\":{\"code\":");
+    writer.write(Integer.toString(code));
+    writer.write(",\"msg\":");
+    writeString(writer, String.valueOf(e.getMessage()));
+    writer.write("}}");
+  }
+
+  /**
+   * Pass every hit of the highlighting to a visitor, in the order of the documents and fields.
+   *
+   * @return the number of hits
+   */
+  private int visitHits(NamedList<?> highlighting, NamedList<?> layouts, HitVisitor visitor) throws IOException {
+    if (highlighting == null) {
+      return 0;
+    }
+    int[] count = {0};
+    for (int i = 0; i < highlighting.size(); i++) {
+      visitSummary(highlighting.getName(i), (NamedList<?>) highlighting.getVal(i), layouts, visitor, count);
+    }
+    return count[0];
+  }
+
+  private void visitSummary(String docKey, NamedList<?> summary, NamedList<?> layouts, HitVisitor visitor,
+          int[] count) throws IOException {
+    for (int j = 0; j < summary.size(); j++) {
+      String name = summary.getName(j);
+      Object value = summary.getVal(j);
+      if (NON_FIELD_ENTRIES.contains(name)) {
+        continue;
+      }
+      if (PackedHits.isPacked(value)) {
+        PayloadLayout layout = layouts != null ? decodeLayout((NamedList<?>) layouts.get(name)) : null;
+        if (layout == null) {
+          throw new SolrException(SolrException.ErrorCode.SERVER_ERROR,
+                  "Packed hits of field '" + name + "' without a payload layout in the response.");
+        }
+        PackedHits.forEach((NamedList<?>) value, layout, info -> visitor.visit(docKey, name, count[0]++, info));
+      } else if (value instanceof NamedList) {
+        // The hits of a child document, the canvases still belong to the parent
+        visitSummary(docKey, (NamedList<?>) value, layouts, visitor, count);
+      } else {
+        Iterable<?> hits = value instanceof Object[] ? Arrays.asList((Object[]) value) : (Iterable<?>) value;
+        for (Object hit : hits) {
+          visitor.visit(docKey, name, count[0]++, toOcrInfo((NamedList<?>) hit));
+        }
+      }
+    }
+  }
+
+  /**
+   * Read a hit or passage from its NamedList representation, see {@link OcrHighlighting}.
+   */
+  private static OcrInfo toOcrInfo(NamedList<?> hit) {
+    Object page = hit.get("page");
+    Object x = hit.get("x");
+    OcrInfo info = new OcrInfo(page != null ? ((Number) page).intValue() : -1, ((Number) x).floatValue(),
+            ((Number) hit.get("y")).floatValue(), ((Number) hit.get("width")).floatValue(),
+            ((Number) hit.get("height")).floatValue());
+    info.setHasAbsoluteCoordinates(x instanceof Integer);
+    Object term = hit.get("term");
+    if (term == null && hit.get("terms") instanceof Iterable) {
+      // Passages only have the distinct terms they contain
+      List<String> terms = new ArrayList<>();
+      ((Iterable<?>) hit.get("terms")).forEach(t -> terms.add(t.toString()));
+      term = String.join(LineMerger.TERM_SEPARATOR, terms);
+    }
+    info.setTerm(term != null ? term.toString() : "");
+    return info;
+  }
+
+  private static PayloadLayout decodeLayout(NamedList<?> encoded) {
+    if (encoded == null) {
+      return null;
+    }
+    return new PayloadLayout(
+            ((Number) encoded.get("coordinateBits")).intValue(),
+            ((Number) encoded.get("wordBits")).intValue(),
+            ((Number) encoded.get("lineBits")).intValue(),
+            ((Number) encoded.get("pageBits")).intValue(),
+            ((Number) encoded.get("confidenceBits")).intValue(),
+            (Boolean) encoded.get("absoluteCoordinates"),
+            ((Number) encoded.get("payloadVersion")).intValue());
+  }
+
+  static void writeString(Writer writer, CharSequence value) throws IOException {
+    writer.write('"');
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      switch (c) {
+        case '"':
+          writer.write("\\\"");
+          break;
+        case '\\':
+          writer.write("\\\\");
+          break;
+        case '\n':
+          writer.write("\\n");
+          break;
+        case '\r':
+          writer.write("\\r");
+          break;
+        case '\t':
+          writer.write("\\t");
+          break;
+        default:
+          if (c < 0x20) {
+            writer.write(String.format("\\u%04x", (int) c));
+          } else {
+            writer.write(c);
+          }
+      }
+    }
+    writer.write('"');
+  }
+
+  private interface HitVisitor {
+    void visit(String docKey, String field, int n, OcrInfo info) throws IOException;
+  }
+
+  /**
+   * Writes the annotations for the hits, reusing its buffers for every hit.
+   */
+  private final class AnnotationWriter {
+    private final Writer writer;
+    private final int pageWidth;
+    private final int pageHeight;
+    private final StringBuilder canvas = new StringBuilder();
+    private final StringBuilder target = new StringBuilder();
+    private final StringBuilder annotationId = new StringBuilder();
+
+    AnnotationWriter(Writer writer, int pageWidth, int pageHeight) {
+      this.writer = writer;
+      this.pageWidth = pageWidth;
+      this.pageHeight = pageHeight;
+    }
+
+    void writeAnnotationV1(String docKey, String field, int n, OcrInfo info) throws IOException {
+      expand(docKey, field, n, info);
+      writer.write(n > 0 ? ",{\"@id\":" : "{\"@id\":");
+      writeString(writer, annotationId);
+      writer.write(",\"@type\":\"oa:Annotation\",\"motivation\":\"sc:painting\","
+              + "\"resource\":{\"@type\":\"cnt:ContentAsText\",\"chars\":");
+      writeString(writer, info.getTerm());
+      writer.write("},\"on\":");
+      writeString(writer, target);
+      writer.write('}');
+    }
+
+    void writeHitV1(String docKey, String field, int n, OcrInfo info) throws IOException {
+      canvasTemplate.expand(canvas, docKey, info.getPageIndex(), field, n, null);
+      annotationTemplate.expand(annotationId, docKey, info.getPageIndex(), field, n, canvas);
+      writer.write(n > 0 ? ",{" : "{");
+      writer.write("\"@type\":\"search:Hit\",\"annotations\":[");
+      writeString(writer, annotationId);
+      writer.write("],\"match\":");
+      writeString(writer, info.getTerm());
+      writer.write('}');
+    }
+
+    void writeAnnotationV2(String docKey, String field, int n, OcrInfo info) throws IOException {
+      expand(docKey, field, n, info);
+      writer.write(n > 0 ? ",{\"id\":" : "{\"id\":");
+      writeString(writer, annotationId);
+      writer.write(",\"type\":\"Annotation\",\"motivation\":\"highlighting\","
+              + "\"body\":{\"type\":\"TextualBody\",\"format\":\"text/plain\",\"value\":");
+      writeString(writer, info.getTerm());
+      writer.write("},\"target\":");
+      writeString(writer, target);
+      writer.write('}');
+    }
+
+    /**
+     * Expand the canvas and the annotation identifier of a hit and build its target.
+     */
+    private void expand(String docKey, String field, int n, OcrInfo info) {
+      canvasTemplate.expand(canvas, docKey, info.getPageIndex(), field, n, null);
+      annotationTemplate.expand(annotationId, docKey, info.getPageIndex(), field, n, canvas);
+      target.setLength(0);
+      target.append(canvas).append("#xywh=");
+      if (info.getHasAbsoluteCoordinates()) {
+        target.append((int) info.getHorizontalOffset()).append(',')
+                .append((int) info.getVerticalOffset()).append(',')
+                .append((int) info.getWidth()).append(',')
+                .append((int) info.getHeight());
+      } else if (pageWidth > 0 && pageHeight > 0) {
+        // Relative coordinates are fractions of the page size
+        target.append(Math.round(info.getHorizontalOffset() * pageWidth)).append(',')
+                .append(Math.round(info.getVerticalOffset() * pageHeight)).append(',')
+                .append(Math.round(info.getWidth() * pageWidth)).append(',')
+                .append(Math.round(info.getHeight() * pageHeight));
+      } else {
+        target.append("percent:")
+                .append(Math.round(info.getHorizontalOffset() * 10000) / 100.0).append(',')
+                .append(Math.round(info.getVerticalOffset() * 10000) / 100.0).append(',')
+                .append(Math.round(info.getWidth() * 10000) / 100.0).append(',')
+                .append(Math.round(info.getHeight() * 10000) / 100.0);
+      }
+    }
+  }
+
+  /**
+   * URI template with `{id}`, `{page}`, `{field}`, `{n}` and optionally `{canvas}` placeholders, parsed once.
+   */
+  static final class UriTemplate {
+    private final List<String> literals = new ArrayList<>();
+    private final List<String> placeholders = new ArrayList<>();
+
+    UriTemplate(String template, boolean allowCanvas) {
+      int start = 0;
+      int open = template.indexOf('{');
+      while (open >= 0) {
+        int close = template.indexOf('}', open);
+        if (close < 0) {
+          break;
+        }
+        String name = template.substring(open + 1, close);
+        if (!Arrays.asList("id", "page", "field", "n").contains(name) && !(allowCanvas && "canvas".equals(name))) {
+          throw new SolrException(SolrException.ErrorCode.SERVER_ERROR,
+                  "Unknown placeholder '{" + name + "}' in URI template '" + template + "'.");
+        }
+        literals.add(template.substring(start, open));
+        placeholders.add(name);
+        start = close + 1;
+        open = template.indexOf('{', start);
+      }
+      literals.add(template.substring(start));
+    }
+
+    /**
+     * Expand the template into a buffer, which is cleared first.
+     */
+    void expand(StringBuilder out, String id, int page, String field, int n, CharSequence canvas) {
+      out.setLength(0);
+      for (int i = 0; i < placeholders.size(); i++) {
+        out.append(literals.get(i));
+        switch (placeholders.get(i)) {
+          case "id":
+            out.append(id);
+            break;
+          case "page":
+            out.append(page);
+            break;
+          case "field":
+            out.append(field);
+            break;
+          case "n":
+            out.append(n);
+            break;
+          default:
+            out.append(canvas);
+        }
+      }
+      out.append(literals.get(literals.size() - 1));
+    }
+  }
+}
@@ -0,0 +1,326 @@
+package de.digitalcollections.solr.plugin.components.ocrhighlighting;
+
+import com.carrotsearch.hppc.IntObjectHashMap;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.TreeMap;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.store.DataOutput;
+import org.apache.lucene.store.OutputStreamDataOutput;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Index of the original text of the lines of a document, as stored in the doc values of an
+ * {@link OcrLineIndexField}.
+ *
+ * The lines of every page are grouped into parts of consecutive lines, which are stored as separate values keyed by
+ * the page and the index of their first line, see {@link PagedDocValues}. A lookup only reads the parts with the
+ * requested lines. All structures of a part that are needed for a lookup have a fixed width:
+ *
+ * - Line directory: the number of lines and `(line index, first word)` for every line, sorted by line index, followed
+ *   by the total number of words
+ * - For every word in reading order: `(word index, end of its text)`
+ * - The UTF-8 encoded words
+ */
+final class LineIndex {
+
+  private final PagedDocValues parts;
+  /** Parts that were already read, by their index in the values of the document **/
+  private final IntObjectHashMap<Part> cache = new IntObjectHashMap<>();
+
+  private LineIndex(PagedDocValues parts) {
+    this.parts = parts;
+  }
+
+  /**
+   * Open the line index of a document.
+   *
+   * @param reader    Reader for the segment of the document
+   * @param fieldName Field with the line index
+   * @param docId     Identifier of the document in the segment
+   * @return the index or null if the document has none
+   * @throws IOException Error during retrieval from index
+   */
+  static LineIndex open(LeafReader reader, String fieldName, int docId) throws IOException {
+    PagedDocValues parts = PagedDocValues.open(reader, fieldName, docId);
+    return parts != null ? new LineIndex(parts) : null;
+  }
+
+  /**
+   * Get the text of a line.
+   *
+   * @param page Index of the page
+   * @param line Index of the line on the page
+   * @return the words of the line, separated by spaces, or null if the line is not in the index
+   * @throws IOException Error during retrieval from index
+   */
+  String lineText(int page, int line) throws IOException {
+    int idx = parts.floor(page, line);
+    if (idx < 0) {
+      return null;
+    }
+    Part part = read(idx);
+    int localLine = part.findLine(line);
+    if (localLine < 0) {
+      return null;
+    }
+    StringJoiner text = new StringJoiner(" ");
+    for (int w = part.firstWord(localLine); w < part.firstWord(localLine + 1); w++) {
+      text.add(part.wordText(w));
+    }
+    return text.toString();
+  }
+
+  /**
+   * Get the text around a word, which can span several lines of its page.
+   *
+   * @param page     Index of the page
+   * @param line     Index of the line on the page
+   * @param word     Index of the word on the line
+   * @param numWords Number of words before and after the word
+   * @return the words, separated by spaces, or null if the word is not in the index
+   * @throws IOException Error during retrieval from index
+   */
+  String wordContext(int page, int line, int word, int numWords) throws IOException {
+    int hitIdx = parts.floor(page, line);
+    if (hitIdx < 0) {
+      return null;
+    }
+    Part hitPart = read(hitIdx);
+    int hitWord = hitPart.findWord(line, word);
+    if (hitWord < 0) {
+      return null;
+    }
+
+    Deque<String> words = new ArrayDeque<>();
+    words.add(hitPart.wordText(hitWord));
+    int idx = hitIdx;
+    Part part = hitPart;
+    int w = hitWord;
+    for (int i = 0; i < numWords; i++) {
+      if (--w < 0) {
+        if (idx == 0 || parts.page(idx - 1) != page) {
+          break;
+        }
+        part = read(--idx);
+        w = part.numWords() - 1;
+      }
+      words.addFirst(part.wordText(w));
+    }
+    idx = hitIdx;
+    part = hitPart;
+    w = hitWord;
+    for (int i = 0; i < numWords; i++) {
+      if (++w >= part.numWords()) {
+        if (idx + 1 >= parts.size() || parts.page(idx + 1) != page) {
+          break;
+        }
+        part = read(++idx);
+        w = 0;
+      }
+      words.addLast(part.wordText(w));
+    }
+    return String.join(" ", words);
+  }
+
+  private Part read(int idx) throws IOException {
+    Part part = cache.get(idx);
+    if (part == null) {
+      part = new Part(parts.read(idx));
+      cache.put(idx, part);
+    }
+    return part;
+  }
+
+  /**
+   * A group of consecutive lines of a page.
+   */
+  private static final class Part {
+    private final ByteArrayDataInput in;
+    private final int base;
+    private final int numLines;
+    private final int numWords;
+    private final int wordsStart;
+    private final int textStart;
+
+    Part(BytesRef data) {
+      this.in = new ByteArrayDataInput(data.bytes, data.offset, data.length);
+      this.base = data.offset;
+      this.numLines = in.readInt();
+      this.numWords = readIntAt(4 + numLines * 8);
+      this.wordsStart = 4 + numLines * 8 + 4;
+      this.textStart = wordsStart + numWords * 8;
+    }
+
+    int numWords() {
+      return numWords;
+    }
+
+    /**
+     * @return the position of the line in the directory or -1 if the part doesn't have the line
+     */
+    int findLine(int line) {
+      int low = 0;
+      int high = numLines - 1;
+      while (low <= high) {
+        int mid = (low + high) >>> 1;
+        int midLine = readIntAt(4 + mid * 8);
+        if (midLine < line) {
+          low = mid + 1;
+        } else if (midLine > line) {
+          high = mid - 1;
+        } else {
+          return mid;
+        }
+      }
+      return -1;
+    }
+
+    /**
+     * @return the first word of the line at the given position in the directory, the number of words for the
+     *         position after the last line
+     */
+    int firstWord(int localLine) {
+      return localLine < numLines ? readIntAt(4 + localLine * 8 + 4) : numWords;
+    }
+
+    /**
+     * @return the ordinal of the word in the part or -1 if the part doesn't have the word
+     */
+    int findWord(int line, int word) {
+      int localLine = findLine(line);
+      if (localLine < 0) {
+        return -1;
+      }
+      // Lines are short, so the words are simply scanned
+      for (int w = firstWord(localLine); w < firstWord(localLine + 1); w++) {
+        if (readIntAt(wordsStart + w * 8) == word) {
+          return w;
+        }
+      }
+      return -1;
+    }
+
+    String wordText(int w) {
+      int start = w > 0 ? readIntAt(wordsStart + (w - 1) * 8 + 4) : 0;
+      int end = readIntAt(wordsStart + w * 8 + 4);
+      byte[] bytes = new byte[end - start];
+      in.setPosition(base + textStart + start);
+      in.readBytes(bytes, 0, bytes.length);
+      return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private int readIntAt(int position) {
+      in.setPosition(base + position);
+      return in.readInt();
+    }
+  }
+
+  /**
+   * Collects the words of a document and encodes them into parts.
+   */
+  static final class Builder {
+    private final Map<Integer, TreeMap<Integer, List<Word>>> pages = new TreeMap<>();
+
+    private static final class Word {
+      final int index;
+      final byte[] text;
+
+      Word(int index, String text) {
+        this.index = index;
+        this.text = text.getBytes(StandardCharsets.UTF_8);
+      }
+    }
+
+    /**
+     * Add a word, words without a word index have to be added in reading order.
+     */
+    void add(String text, int page, int line, int word) {
+      pages.computeIfAbsent(page, p -> new TreeMap<>())
+              .computeIfAbsent(line, l -> new ArrayList<>())
+              .add(new Word(word, text));
+    }
+
+    /**
+     * Encode the parts of a page.
+     *
+     * @param page    Index of the page
+     * @param maxSize Maximum size of a part in bytes, a line that doesn't fit on its own is still put into a part
+     * @return the encoded parts, by the index of their first line
+     */
+    Map<Integer, byte[]> build(int page, int maxSize) {
+      Map<Integer, byte[]> encoded = new TreeMap<>();
+      List<Integer> partLines = new ArrayList<>();
+      int partSize = 8;
+      for (Map.Entry<Integer, List<Word>> line : pages.get(page).entrySet()) {
+        // The sort is stable, so words without a word index keep their order
+        line.getValue().sort(Comparator.comparingInt(w -> w.index));
+        int lineSize = 8;
+        for (Word word : line.getValue()) {
+          lineSize += 8 + word.text.length;
+        }
+        if (!partLines.isEmpty() && partSize + lineSize > maxSize) {
+          encoded.put(partLines.get(0), encodePart(page, partLines));
+          partLines.clear();
+          partSize = 8;
+        }
+        partLines.add(line.getKey());
+        partSize += lineSize;
+      }
+      if (!partLines.isEmpty()) {
+        encoded.put(partLines.get(0), encodePart(page, partLines));
+      }
+      return encoded;
+    }
+
+    /**
+     * @return the indices of the pages with words, in ascending order
+     */
+    Iterable<Integer> pages() {
+      return pages.keySet();
+    }
+
+    private byte[] encodePart(int page, List<Integer> lines) {
+      TreeMap<Integer, List<Word>> pageLines = pages.get(page);
+      try {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutput out = new OutputStreamDataOutput(bytes);
+        out.writeInt(lines.size());
+        int firstWord = 0;
+        for (int line : lines) {
+          out.writeInt(line);
+          out.writeInt(firstWord);
+          firstWord += pageLines.get(line).size();
+        }
+        out.writeInt(firstWord);
+        int textEnd = 0;
+        for (int line : lines) {
+          for (Word word : pageLines.get(line)) {
+            textEnd += word.text.length;
+            out.writeInt(word.index);
+            out.writeInt(textEnd);
+          }
+        }
+        for (int line : lines) {
+          for (Word word : pageLines.get(line)) {
+            out.writeBytes(word.text, word.text.length);
+          }
+        }
+        return bytes.toByteArray();
+      } catch (IOException e) {
+        // Writing into memory doesn't fail
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+}
@@ -0,0 +1,97 @@
+package de.digitalcollections.solr.plugin.components.ocrhighlighting;
+
+import de.digitalcollections.lucene.analysis.payloads.OcrInfo;
+import java.util.Arrays;
+
+/**
+ * Coalesces the hits on a line into line-level regions.
+ *
+ * Two consecutive hits are merged if they are on the same page and line and either have adjacent word indices or
+ * are at most a given horizontal distance apart. The merged region is the union of the bounding boxes, its term
+ * consists of the terms of all merged hits, separated by {@link #TERM_SEPARATOR}.
+ */
+class LineMerger {
+
+  /**
+   * Separates the terms of merged hits. An analyzer can produce terms that contain it, e.g. from synonyms, these are
+   * split up when the terms of a merged hit are listed.
+   */
+  static final String TERM_SEPARATOR = " ";
+
+  private LineMerger() {
+    // Cannot be instantiated, is only here for the static methods
+  }
+
+  /**
+   * Merge adjacent hits.
+   *
+   * Works in-place on the sorted hits: The first hit of every run of adjacent hits is extended to cover the complete
+   * run, the others are dropped. The terms of a run are joined in a single builder that is reused for all runs, no
+   * objects besides it and the merged terms are allocated.
+   *
+   * @param infos Hits to merge, sorted by page, line and word index, will be modified
+   * @param maxGap Maximum horizontal distance between two hits that are merged, in the units of the coordinates
+   * @return The merged hits, in document order
+   */
+  static OcrInfo[] merge(OcrInfo[] infos, float maxGap) {
+    if (infos.length < 2) {
+      return infos;
+    }
+    int numMerged = 0;
+    int lastWord = infos[0].getWordIndex();
+    // Terms of the current run, empty as long as no other hit was merged into its first hit
+    StringBuilder terms = null;
+    for (int i = 1; i < infos.length; i++) {
+      OcrInfo region = infos[numMerged];
+      OcrInfo hit = infos[i];
+      if (isAdjacent(region, lastWord, hit, maxGap)) {
+        float left = Math.min(region.getHorizontalOffset(), hit.getHorizontalOffset());
+        float top = Math.min(region.getVerticalOffset(), hit.getVerticalOffset());
+        float right = Math.max(
+                region.getHorizontalOffset() + region.getWidth(), hit.getHorizontalOffset() + hit.getWidth());
+        float bottom = Math.max(
+                region.getVerticalOffset() + region.getHeight(), hit.getVerticalOffset() + hit.getHeight());
+        float maxExtent = region.getHasAbsoluteCoordinates() ? Float.MAX_VALUE : 1f;
+        region.setHorizontalOffset(left);
+        region.setVerticalOffset(top);
+        region.setWidth(Math.min(right - left, maxExtent));
+        region.setHeight(Math.min(bottom - top, maxExtent));
+        if (terms == null) {
+          terms = new StringBuilder();
+        }
+        if (terms.length() == 0) {
+          terms.append(region.getTerm());
+        }
+        terms.append(TERM_SEPARATOR).append(hit.getTerm());
+      } else {
+        finishRun(region, terms);
+        infos[++numMerged] = hit;
+      }
+      lastWord = hit.getWordIndex();
+    }
+    finishRun(infos[numMerged], terms);
+    return Arrays.copyOf(infos, numMerged + 1);
+  }
+
+  /**
+   * Set the joined terms of a run on its region and empty the builder for the next run.
+   */
+  private static void finishRun(OcrInfo region, StringBuilder terms) {
+    if (terms != null && terms.length() > 0) {
+      region.setTerm(terms.toString());
+      terms.setLength(0);
+    }
+  }
+
+  private static boolean isAdjacent(OcrInfo region, int lastWord, OcrInfo hit, float maxGap) {
+    if (region.getLineIndex() < 0 || region.getPageIndex() != hit.getPageIndex()
+            || region.getLineIndex() != hit.getLineIndex()) {
+      return false;
+    }
+    if (lastWord >= 0 && hit.getWordIndex() >= 0 && hit.getWordIndex() - lastWord <= 1) {
+      return true;
+    }
+    float gap = hit.getHorizontalOffset() - (region.getHorizontalOffset() + region.getWidth());
+    return gap <= maxGap;
+  }
+}
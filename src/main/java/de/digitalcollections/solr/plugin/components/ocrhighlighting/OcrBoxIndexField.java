@@ -0,0 +1,144 @@
+package de.digitalcollections.solr.plugin.components.ocrhighlighting;
+
+import de.digitalcollections.lucene.analysis.payloads.OcrInfo;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.search.SortField;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.response.TextResponseWriter;
+import org.apache.solr.schema.FieldType;
+import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.uninverting.UninvertingReader;
+
+/**
+ * Field type that indexes the word boxes of the OCR text of a document into a spatial index, used by the
+ * {@link OcrRegionRequestHandler} to find the words in a region of a page.
+ *
+ * Takes the same input as the OCR field, usually with a `copyField`: whitespace-separated tokens of the form
+ * `<word><delimiter><OCR information>`, see {@link de.digitalcollections.lucene.analysis.payloads.OcrInfo}. The
+ * words are kept as they are, without any analysis, so they can be copied from the region as they were printed.
+ * Tokens without OCR information are skipped. The index of every page is stored in the doc values, see
+ * {@link BoxIndex}.
+ *
+ * Takes the following configuration parameters:
+ *
+ * `delimiter`
+ * : Delimiting character between the word and its OCR information, `|` by default
+ *
+ * `gridSize`
+ * : Number of rows and columns of the grid over every page, 16 by default. A finer grid has to read fewer boxes for
+ *   small regions, but stores boxes that span several cells more often.
+ *
+ * `absoluteCoordinates`
+ * : Whether the coordinates are absolute (integers) or relative (percentages), `false` by default
+ *
+ * Configuration:
+ * ```
+ * <pre>{@code
+ * <fieldType name="ocr_boxes" class="de.digitalcollections.solr.plugin.components.ocrhighlighting.OcrBoxIndexField"
+ *            indexed="false" stored="false" docValues="true" gridSize="16"/>
+ * }</pre>
+ * ```
+ */
+public class OcrBoxIndexField extends FieldType {
+
+  private char delimiter = '|';
+  private int gridSize = 16;
+  private boolean absoluteCoordinates = false;
+
+  @Override
+  protected void init(IndexSchema schema, Map<String, String> args) {
+    String delimiterArg = args.remove("delimiter");
+    if (delimiterArg != null) {
+      if (delimiterArg.length() != 1) {
+        throw new SolrException(SolrException.ErrorCode.SERVER_ERROR,
+                "delimiter must be a single character, was: '" + delimiterArg + "'");
+      }
+      delimiter = delimiterArg.charAt(0);
+    }
+    String gridSizeArg = args.remove("gridSize");
+    if (gridSizeArg != null) {
+      gridSize = Integer.parseInt(gridSizeArg);
+      if (gridSize < 1 || gridSize > 256) {
+        throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "gridSize must be between 1 and 256.");
+      }
+    }
+    absoluteCoordinates = Boolean.parseBoolean(args.remove("absoluteCoordinates"));
+    super.init(schema, args);
+  }
+
+  @Override
+  public void checkSchemaField(SchemaField field) {
+    super.checkSchemaField(field);
+    if (!field.hasDocValues() || field.indexed() || field.stored() || field.multiValued()) {
+      throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, String.format(
+              "Field '%s' needs docValues=\"true\", indexed=\"false\", stored=\"false\" and multiValued=\"false\".",
+              field.getName()));
+    }
+  }
+
+  @Override
+  protected void checkSupportsDocValues() {
+    // The boxes are only stored in the doc values
+  }
+
+  @Override
+  public List<IndexableField> createFields(SchemaField field, Object value) {
+    List<IndexableField> fields = new ArrayList<>();
+    buildIndex(value.toString()).forEach(
+            (page, index) -> fields.addAll(PagedDocValues.createFields(field.getName(), page, index)));
+    return fields;
+  }
+
+  /**
+   * Parse the OCR text of a document and build the spatial index of the boxes of every page.
+   */
+  Map<Integer, byte[]> buildIndex(String ocrText) {
+    BoxIndex.Builder builder = new BoxIndex.Builder(gridSize, absoluteCoordinates);
+    for (String token : ocrText.split("\\s+")) {
+      int idx = token.lastIndexOf(delimiter);
+      if (idx > 0) {
+        builder.add(parseBox(token.substring(0, idx), token.substring(idx + 1)));
+      }
+    }
+    return builder.build();
+  }
+
+  private BoxIndex.Box parseBox(String word, String ocrInfo) {
+    OcrInfo info;
+    try {
+      // Relative coordinates are stored as fractions of the page size like in the payloads
+      info = OcrInfo.parse(ocrInfo, absoluteCoordinates);
+    } catch (IllegalArgumentException e) {
+      throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+              "Could not parse OCR bounding box information '" + ocrInfo + "' of word '" + word + "'.", e);
+    }
+    return new BoxIndex.Box(word, info.getPageIndex(), info.getLineIndex(), info.getWordIndex(),
+            info.getHorizontalOffset(), info.getVerticalOffset(), info.getWidth(), info.getHeight());
+  }
+
+  boolean hasAbsoluteCoordinates() {
+    return absoluteCoordinates;
+  }
+
+  @Override
+  public SortField getSortField(SchemaField field, boolean top) {
+    throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+            "Can't sort on the OCR boxes in field '" + field.getName() + "'.");
+  }
+
+  @Override
+  public UninvertingReader.Type getUninversionType(SchemaField sf) {
+    return null;
+  }
+
+  @Override
+  public void write(TextResponseWriter writer, String name, IndexableField f) throws IOException {
+    // The field is never stored
+    writer.writeNull(name);
+  }
+}
@@ -0,0 +1,115 @@
+package de.digitalcollections.solr.plugin.components.ocrhighlighting;
+
+import de.digitalcollections.lucene.analysis.payloads.PayloadLayout;
+import de.digitalcollections.lucene.search.OcrConfidenceQuery;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.TermToBytesRefAttribute;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.MatchNoDocsQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.util.BytesRef;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.search.QParser;
+import org.apache.solr.search.QParserPlugin;
+import org.apache.solr.search.QueryParsing;
+import org.apache.solr.search.SyntaxError;
+
+/**
+ * Query parser that only matches OCR terms with a minimum confidence, i.e. low-confidence positions are excluded from
+ * matching.
+ *
+ * The query string is run through the query analyzer of the field, every resulting term has to occur at least once
+ * with a confidence of at least `min` (between 0 and 1) in a matching document. Needs a field that was indexed with
+ * `confidenceBits`.
+ *
+ * ```xml
+ * <pre>{@code
+ * <queryParser name="ocr_confidence"
+ *              class="de.digitalcollections.solr.plugin.components.ocrhighlighting.OcrConfidenceQParserPlugin" />
+ * }</pre>
+ * ```
+ *
+ * `q={!ocr_confidence f=ocr_text min=0.8}augsburg`
+ */
+public class OcrConfidenceQParserPlugin extends QParserPlugin {
+
+  public static final String NAME = "ocr_confidence";
+
+  @Override
+  public QParser createParser(String qstr, SolrParams localParams, SolrParams params, SolrQueryRequest req) {
+    return new QParser(qstr, localParams, params, req) {
+      @Override
+      public Query parse() throws SyntaxError {
+        String fieldName = getParam(QueryParsing.F);
+        if (fieldName == null) {
+          fieldName = getParam(CommonParams.DF);
+        }
+        if (fieldName == null) {
+          throw new SyntaxError("The ocr_confidence parser needs a field, pass it with 'f'.");
+        }
+        String minParam = getParam("min");
+        if (minParam == null) {
+          throw new SyntaxError("The ocr_confidence parser needs a minimum confidence, pass it with 'min'.");
+        }
+        float minConfidence;
+        try {
+          minConfidence = Float.parseFloat(minParam);
+        } catch (NumberFormatException e) {
+          throw new SyntaxError("Invalid minimum confidence: " + minParam, e);
+        }
+        if (minConfidence < 0 || minConfidence > 1) {
+          throw new SyntaxError("The minimum confidence must be between 0 and 1, was: " + minParam);
+        }
+
+        SchemaField field = req.getSchema().getField(fieldName);
+        PayloadLayout layout = OcrHighlighting.findLayout(field.getType());
+        if (layout == null || layout.getConfidenceBits() <= 0) {
+          throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+                  "Field '" + fieldName + "' was indexed without confidences, set 'confidenceBits' on its "
+                  + "DelimitedOcrInfoPayloadTokenFilterFactory.");
+        }
+
+        List<BytesRef> terms = analyze(field, qstr);
+        if (terms.isEmpty()) {
+          return new MatchNoDocsQuery();
+        }
+        if (terms.size() == 1) {
+          return new OcrConfidenceQuery(new Term(fieldName, terms.get(0)), layout, minConfidence);
+        }
+        BooleanQuery.Builder builder = new BooleanQuery.Builder();
+        for (BytesRef term : terms) {
+          builder.add(new OcrConfidenceQuery(new Term(fieldName, term), layout, minConfidence),
+                  BooleanClause.Occur.MUST);
+        }
+        return builder.build();
+      }
+    };
+  }
+
+  private static List<BytesRef> analyze(SchemaField field, String text) {
+    List<BytesRef> terms = new ArrayList<>();
+    if (text == null) {
+      return terms;
+    }
+    try (TokenStream tokens = field.getType().getQueryAnalyzer().tokenStream(field.getName(), text)) {
+      TermToBytesRefAttribute termAttr = tokens.addAttribute(TermToBytesRefAttribute.class);
+      tokens.reset();
+      while (tokens.incrementToken()) {
+        terms.add(BytesRef.deepCopyOf(termAttr.getBytesRef()));
+      }
+      tokens.end();
+    } catch (IOException e) {
+      throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "Error analyzing query: " + text, e);
+    }
+    return terms;
+  }
+}
@@ -0,0 +1,39 @@
+package de.digitalcollections.solr.plugin.components.ocrhighlighting;
+
+import java.io.IOException;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.handler.component.SearchComponent;
+import org.apache.solr.search.CacheRegenerator;
+import org.apache.solr.search.SolrCache;
+import org.apache.solr.search.SolrIndexSearcher;
+
+/**
+ * Regenerates the entries of the highlighting cache when a new searcher is opened.
+ *
+ * To use it, configure the highlighting cache in the `query` section of your `solrconfig.xml`:
+ *
+ * ```xml
+ * <pre>{@code
+ * <cache name="ocrHighlightCache" class="solr.LRUCache" size="1024" initialSize="128" autowarmCount="256"
+ *        regenerator="de.digitalcollections.solr.plugin.components.ocrhighlighting.OcrHighlightCacheRegenerator" />
+ * }</pre>
+ * ```
+ */
+public class OcrHighlightCacheRegenerator implements CacheRegenerator {
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public boolean regenerateItem(SolrIndexSearcher newSearcher, SolrCache newCache, SolrCache oldCache, Object oldKey,
+          Object oldVal) throws IOException {
+    HighlightCacheKey key = (HighlightCacheKey) oldKey;
+    SearchComponent component = newSearcher.getCore().getSearchComponent(key.getComponentName());
+    if (!(component instanceof OcrHighlighting)) {
+      return true;
+    }
+    NamedList<Object> hits = ((OcrHighlighting) component).regenerateCacheEntry(newSearcher, key);
+    if (hits != null) {
+      newCache.put(key, hits);
+    }
+    return true;
+  }
+}
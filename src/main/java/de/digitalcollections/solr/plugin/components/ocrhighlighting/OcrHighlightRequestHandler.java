@@ -0,0 +1,114 @@
+package de.digitalcollections.solr.plugin.components.ocrhighlighting;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.StrUtils;
+import org.apache.solr.handler.RequestHandlerBase;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.search.QParser;
+import org.apache.solr.search.SolrIndexSearcher;
+
+/**
+ * Request handler that only retrieves the OCR highlighting for a given list of documents.
+ *
+ * This allows clients to run the search without highlighting and to fetch the highlighting lazily, only for the
+ * documents that are actually displayed. The documents are resolved by a lookup of their unique keys in the terms
+ * index, no scoring, sorting or retrieval of stored fields takes place. The highlighting itself is done by the
+ * {@link OcrHighlighting} component, so it supports the same `ocr_hl.*` parameters.
+ *
+ * Takes the following request parameters:
+ *
+ * `q`
+ * : The query to highlight (mandatory), parsed with the query parser from `defType`
+ *
+ * `ids`
+ * : Comma-separated unique keys of the documents to highlight (mandatory, can be repeated)
+ *
+ * `ocr_hl.fields`
+ * : Fields to highlight (mandatory)
+ *
+ * Configuration:
+ * ```
+ * <pre>{@code
+ * <requestHandler name="/ocr_hl"
+ *                 class="de.digitalcollections.solr.plugin.components.ocrhighlighting.OcrHighlightRequestHandler">
+ *   <str name="component">ocr_highlight</str>
+ * </requestHandler>
+ * }</pre>
+ * ```
+ */
+public class OcrHighlightRequestHandler extends RequestHandlerBase {
+
+  private String componentName = "ocr_highlight";
+
+  @Override
+  public void init(NamedList args) {
+    super.init(args);
+    Object component = args.get("component");
+    if (component != null) {
+      componentName = component.toString();
+    }
+  }
+
+  @Override
+  public void handleRequestBody(SolrQueryRequest req, SolrQueryResponse rsp) throws Exception {
+    SolrParams params = req.getParams();
+    OcrHighlighting highlighter = (OcrHighlighting) req.getCore().getSearchComponent(componentName);
+    if (highlighter == null) {
+      throw new SolrException(SolrException.ErrorCode.SERVER_ERROR,
+              "No OCR highlighting component named '" + componentName + "' configured.");
+    }
+    String queryString = params.get(CommonParams.Q);
+    if (queryString == null) {
+      throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "Missing query, pass it with the 'q' parameter.");
+    }
+    String[] idParams = params.getParams("ids");
+    if (idParams == null) {
+      throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+              "Missing document identifiers, pass them with the 'ids' parameter.");
+    }
+    if (params.getParams("ocr_hl.fields") == null) {
+      throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+              "Missing fields to highlight, pass them with the 'ocr_hl.fields' parameter.");
+    }
+
+    SolrIndexSearcher searcher = req.getSearcher();
+    SchemaField keyField = searcher.getSchema().getUniqueKeyField();
+    if (keyField == null) {
+      throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "Schema needs to have a unique key field.");
+    }
+
+    // Resolve the unique keys to document identifiers, unknown keys are skipped
+    List<String> keys = new ArrayList<>();
+    List<Integer> docIds = new ArrayList<>();
+    BytesRefBuilder indexedId = new BytesRefBuilder();
+    for (String idParam : idParams) {
+      for (String id : StrUtils.splitSmart(idParam, ",", true)) {
+        keyField.getType().readableToIndexed(id, indexedId);
+        int docId = searcher.getFirstMatch(new Term(keyField.getName(), indexedId.get()));
+        if (docId >= 0) {
+          keys.add(id);
+          docIds.add(docId);
+        }
+      }
+    }
+
+    Query query = QParser.getParser(queryString, req).getQuery();
+    highlighter.highlight(
+            docIds.stream().mapToInt(Integer::intValue).toArray(), keys.toArray(new String[0]), query, req, rsp);
+  }
+
+  @Override
+  public String getDescription() {
+    return "Retrieves OCR highlighting for a list of documents";
+  }
+}
@@ -1,16 +1,26 @@
 package de.digitalcollections.solr.plugin.components.ocrhighlighting;
 
+import com.carrotsearch.hppc.IntIntHashMap;
 import de.digitalcollections.lucene.analysis.payloads.OcrInfo;
-import de.digitalcollections.lucene.analysis.payloads.OcrPayloadHelper;
+import de.digitalcollections.lucene.analysis.payloads.PayloadLayout;
+import de.digitalcollections.lucene.analysis.util.DelimitedOcrInfoPayloadTokenFilterFactory;
+import de.digitalcollections.lucene.codecs.OcrPayloadPostingsFormat;
+import de.digitalcollections.lucene.jfr.OcrEvents;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.WeakHashMap;
+import java.util.stream.Collectors;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.util.TokenFilterFactory;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.LeafReader;
@@ -23,27 +33,48 @@ import org.apache.lucene.index.Terms;
 import org.apache.lucene.index.TermsEnum;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.join.BitSetProducer;
+import org.apache.lucene.search.join.ToParentBlockJoinQuery;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.solr.analysis.TokenizerChain;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.ShardParams;
 import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.common.util.NamedList;
 import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.common.util.StrUtils;
 import org.apache.solr.core.PluginInfo;
+import org.apache.solr.core.SolrCore;
 import org.apache.solr.handler.component.ResponseBuilder;
 import org.apache.solr.handler.component.SearchComponent;
 import org.apache.solr.handler.component.ShardRequest;
 import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.schema.FieldType;
 import org.apache.solr.schema.IndexSchema;
 import org.apache.solr.schema.SchemaField;
 import org.apache.solr.search.DocIterator;
 import org.apache.solr.search.DocList;
+import org.apache.solr.search.DocSet;
+import org.apache.solr.search.QParser;
+import org.apache.solr.search.SolrCache;
 import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.search.SyntaxError;
+import org.apache.solr.search.join.BlockJoinParentQParser;
 import org.apache.solr.util.SolrPluginUtils;
 import org.apache.solr.util.plugin.PluginInfoInitialized;
+import org.apache.solr.util.plugin.SolrCoreAware;
 
-public class OcrHighlighting extends SearchComponent implements PluginInfoInitialized {
+public class OcrHighlighting extends SearchComponent implements PluginInfoInitialized, SolrCoreAware {
 
   private static final IndexSearcher EMPTY_INDEXSEARCHER;
 
+  /** Options of the regular highlighting that are not supported when highlighting the children of a block-join **/
+  private static final String[] UNSUPPORTED_CHILD_PARAMS = {
+          "ocr_hl.maxTotal", "ocr_hl.maxPerPage", "ocr_hl.pageRange", "ocr_hl.start", "ocr_hl.rows", "ocr_hl.cursor",
+          "ocr_hl.sort", "ocr_hl.pages", "ocr_hl.passages", "ocr_hl.context", "ocr_hl.heatmap", "ocr_hl.format"};
+
   static {
     try {
       IndexReader emptyReader = new MultiReader();
@@ -54,29 +85,216 @@ public class OcrHighlighting extends SearchComponent implements PluginInfoInitia
     }
   }
 
-  private int coordBits;
-  private int wordBits;
-  private int lineBits;
-  private int pageBits;
-  private boolean absoluteCoordinates;
+  /** Layout for fields whose analyzer doesn't tell us how the payloads are encoded **/
+  private PayloadLayout defaultLayout;
+  /** Layouts discovered from the analyzers, field types from outdated schemas are dropped automatically **/
+  private final Map<FieldType, PayloadLayout> layouts = Collections.synchronizedMap(new WeakHashMap<>());
+  private int maxHighlightsTotalCeiling;
+  /** Field with the page dimensions of the documents, used for `ocr_hl.scale=pixels` **/
+  private String pageDimensionsField;
+  /** Field with the original text of the lines, used for `ocr_hl.context` **/
+  private String contextField;
+  private String componentName;
+  private String cacheName;
 
   @Override
   public void prepare(ResponseBuilder rb) {
-    // NOP
+    if (rb.req.getParams().getBool("ocr_hl.pageFacet", false)) {
+      // Page facets are computed over all matching documents, not only the returned ones
+      rb.setNeedDocSet(true);
+    }
   }
 
   @Override
   public void process(ResponseBuilder rb) throws IOException {
+    if (rb.req.getParams().getBool("ocr_hl.pageFacet", false)) {
+      rb.rsp.add("ocr_pageFacets", doPageFacets(rb.getResults().docSet, rb.getQuery(), rb.req));
+    }
     if (rb.req.getParams().getBool("ocr_hl", false)) {
-      NamedList<Object> highlighting = doHighlighting(rb.getResults().docList, rb.getQuery(), rb.req);
-      rb.rsp.add("ocr_highlighting", highlighting);
+      int[] docIds = toDocIDs(rb.getResults().docList);
+      String[] keys = getUniqueKeys(rb.req.getSearcher(), docIds);
+      if (isChildHighlighting(rb)) {
+        highlightChildren(docIds, keys, (ToParentBlockJoinQuery) rb.getQuery(), getParentsFilter(rb), rb.req, rb.rsp);
+      } else {
+        highlight(docIds, keys, rb.getQuery(), rb.req, rb.rsp);
+      }
+    }
+  }
+
+  /**
+   * Whether the hits should be taken from the children of the returned documents, i.e. for `{!parent}` queries.
+   */
+  private boolean isChildHighlighting(ResponseBuilder rb) {
+    return rb.getQuery() instanceof ToParentBlockJoinQuery && rb.req.getParams().getBool("ocr_hl.children", true);
+  }
+
+  /**
+   * Determine the filter that identifies the parent documents, either from `ocr_hl.parentFilter` or from the
+   * `which` parameter of the `{!parent}` query.
+   */
+  private Query getParentsFilter(ResponseBuilder rb) {
+    String which = rb.req.getParams().get("ocr_hl.parentFilter");
+    if (which == null && rb.getQparser() != null && rb.getQparser().getLocalParams() != null) {
+      which = rb.getQparser().getLocalParams().get("which");
+    }
+    if (which == null) {
+      throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+              "Highlighting the children of a block-join query needs the filter for the parent documents, "
+              + "pass it with ocr_hl.parentFilter.");
+    }
+    try {
+      return QParser.getParser(which, rb.req).getQuery();
+    } catch (SyntaxError e) {
+      throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "Invalid parent filter: " + which, e);
+    }
+  }
+
+  /**
+   * Highlight the children of a list of parent documents and add the result to the response.
+   *
+   * Only the children that match the child query of the block-join are highlighted. The hits of every parent are
+   * grouped by the unique keys of its children, children without any hits are left out.
+   *
+   * @param parentIds     identifiers of the parent documents
+   * @param parentKeys    unique keys of the parent documents
+   * @param query         the block-join query
+   * @param parentsFilter filter that matches all parent documents
+   * @param req           the current request
+   * @param rsp           the response to add the highlighting to
+   */
+  private void highlightChildren(int[] parentIds, String[] parentKeys, ToParentBlockJoinQuery query,
+          Query parentsFilter, SolrQueryRequest req, SolrQueryResponse rsp) throws IOException {
+    SolrParams params = req.getParams();
+    for (String paramName : UNSUPPORTED_CHILD_PARAMS) {
+      if (params.get(paramName) != null) {
+        throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+                paramName + " is not supported when highlighting the children of a block-join query.");
+      }
+    }
+    HighlightDeadline deadline = HighlightDeadline.fromRequest(req);
+    String[] fieldNames = params.getParams("ocr_hl.fields");
+    Object event = OcrEvents.beginHighlightRequest(parentIds.length, fieldNames.length);
+    try {
+      doHighlightChildren(parentIds, parentKeys, query, parentsFilter, req, rsp, fieldNames, deadline);
+    } finally {
+      OcrEvents.endHighlightRequest(event, deadline.hasExpired());
+    }
+    if (deadline.hasExpired()) {
+      markPartialResults(rsp);
+    }
+  }
+
+  private void doHighlightChildren(int[] parentIds, String[] parentKeys, ToParentBlockJoinQuery query,
+          Query parentsFilter, SolrQueryRequest req, SolrQueryResponse rsp, String[] fieldNames,
+          HighlightDeadline deadline) throws IOException {
+    SolrParams params = req.getParams();
+    SolrIndexSearcher searcher = req.getSearcher();
+    Query childQuery = query.getChildQuery();
+    // The bit sets of the parents are taken from the same cache as the ones of the {!parent} query
+    BitSetProducer parents = BlockJoinParentQParser.getCachedFilter(req, parentsFilter).getFilter();
+    int[][] children = ChildHighlighter.findChildren(searcher, parentIds, parents, childQuery,
+            params.getInt("ocr_hl.maxChildren", -1), deadline);
+
+    // The children of all parents in document order, every segment is then read in a single pass
+    int[] childIds = Arrays.stream(children).flatMapToInt(Arrays::stream).sorted().toArray();
+    String[] childKeys = getUniqueKeys(searcher, childIds);
+    int maxHighlightsPerChild = params.getInt("ocr_hl.maxPerDoc", -1);
+    Map<String, OcrInfo[][]> hits = new HashMap<>();
+    for (String fieldName : fieldNames) {
+      PayloadLayout layout = getLayout(req.getSchema(), fieldName);
+      hits.put(fieldName, new ChildHighlighter(layout).highlight(
+              searcher.getIndexReader(), childIds, fieldName, getTerms(childQuery, fieldName), maxHighlightsPerChild,
+              getConfidenceThreshold(params, fieldName, layout), deadline));
+    }
+
+    boolean mergeLines = "line".equals(params.get("ocr_hl.merge"));
+    float mergeGap = params.getFloat("ocr_hl.merge.gap", 0f);
+    String dimensionsField = getPageDimensionsField(params, req.getSchema());
+    NamedList<Object> list = new SimpleOrderedMap<>();
+    for (int i = 0; i < parentIds.length; i++) {
+      NamedList<Object> summary = new SimpleOrderedMap<>();
+      for (int childId : children[i]) {
+        int idx = Arrays.binarySearch(childIds, childId);
+        NamedList<Object> childSummary = new SimpleOrderedMap<>();
+        boolean hasHits = false;
+        PageDimensions pageDimensions = dimensionsField != null
+                ? PageDimensions.read(searcher.getIndexReader(), childId, dimensionsField) : null;
+        for (String fieldName : fieldNames) {
+          OcrInfo[] ocrInfos = hits.get(fieldName)[idx];
+          if (mergeLines) {
+            ocrInfos = LineMerger.merge(ocrInfos, mergeGap);
+          }
+          if (pageDimensions != null) {
+            pageDimensions.scale(ocrInfos);
+          }
+          OcrEvents.addHits(ocrInfos.length, false);
+          hasHits |= ocrInfos.length > 0;
+          childSummary.add(fieldName, Arrays.stream(ocrInfos).map(this::encodeOcrInfo).toArray());
+        }
+        if (hasHits) {
+          summary.add(childKeys[idx], childSummary);
+        }
+      }
+      list.add(parentKeys[i], summary);
+    }
+    rsp.add("ocr_highlighting", list);
+  }
+
+  /**
+   * Highlight a list of documents and add the result to the response.
+   *
+   * Also used by the {@link OcrHighlightRequestHandler}, which resolves the documents on its own.
+   *
+   * @param docIds        identifiers of the documents to highlight
+   * @param keys          unique keys of the documents to highlight
+   * @param query         the query
+   * @param req           the current request
+   * @param rsp           the response to add the highlighting to
+   */
+  void highlight(int[] docIds, String[] keys, Query query, SolrQueryRequest req, SolrQueryResponse rsp)
+          throws IOException {
+    HighlightDeadline deadline = HighlightDeadline.fromRequest(req);
+    String[] fieldNames = req.getParams().getParams("ocr_hl.fields");
+    Object event = OcrEvents.beginHighlightRequest(docIds.length, fieldNames != null ? fieldNames.length : 0);
+    try {
+      if (isPackedFormat(req.getParams())) {
+        rsp.add("ocr_highlightingLayout", encodeLayout(req.getSchema(), fieldNames));
+      }
+      rsp.add("ocr_highlighting", doHighlighting(docIds, keys, query, req, deadline));
+    } finally {
+      OcrEvents.endHighlightRequest(event, deadline.hasExpired());
+    }
+    if (deadline.hasExpired()) {
+      markPartialResults(rsp);
+    }
+  }
+
+  /**
+   * Flag the response as incomplete in the response header.
+   */
+  private void markPartialResults(SolrQueryResponse rsp) {
+    NamedList<Object> header = rsp.getResponseHeader();
+    if (header != null && header.get(SolrQueryResponse.RESPONSE_HEADER_PARTIAL_RESULTS_KEY) == null) {
+      header.add(SolrQueryResponse.RESPONSE_HEADER_PARTIAL_RESULTS_KEY, Boolean.TRUE);
     }
   }
 
   // Adapted from solr's own HighlightComponent
   @Override
   public void modifyRequest(ResponseBuilder rb, SearchComponent who, ShardRequest sreq) {
-    if (!(rb.req.getParams().getBool("ocr_hl", false))) {
+    SolrParams params = rb.req.getParams();
+    if (params.getBool("ocr_hl.pageFacet", false)) {
+      // Page facets are only computed during the main query, the shards have to send their complete counts,
+      // limit and sorting are applied on the merged counts
+      if ((sreq.purpose & ShardRequest.PURPOSE_GET_TOP_IDS) != 0) {
+        sreq.params.set("ocr_hl.pageFacet.limit", "-1");
+        sreq.params.set("ocr_hl.pageFacet.mincount", "1");
+      } else {
+        sreq.params.set("ocr_hl.pageFacet", "false");
+      }
+    }
+
+    if (!(params.getBool("ocr_hl", false))) {
       return;
     }
 
@@ -85,6 +303,21 @@ public class OcrHighlighting extends SearchComponent implements PluginInfoInitia
       sreq.purpose |= ShardRequest.PURPOSE_GET_HIGHLIGHTS;
       // should already be true...
       sreq.params.set("ocr_hl", "true");     // TODO: Maybe set hl_params?
+      // Shards send their hits in the compact binary representation, they are only expanded once at the end.
+      // The context, the hits of child documents and hits scaled to pixels can't be packed, though.
+      if (params.get("ocr_hl.context") == null && !isChildHighlighting(rb)
+              && !"pixels".equals(params.get("ocr_hl.scale"))) {
+        sreq.params.set("ocr_hl.format", "packed");
+      }
+
+      // Every shard gets a share of the global budget that is proportional to the number of documents it returns
+      int maxTotal = getMaxHighlightsTotal(params);
+      String ids = sreq.params.get(ShardParams.IDS);
+      if (maxTotal >= 0 && ids != null && rb.resultIds != null && !rb.resultIds.isEmpty()) {
+        int numShardDocs = StrUtils.splitSmart(ids, ",", true).size();
+        sreq.params.set("ocr_hl.maxTotal",
+            (int) Math.ceil((double) maxTotal * numShardDocs / rb.resultIds.size()));
+      }
     } else {
       sreq.params.set("ocr_hl", "false");
     }
@@ -94,6 +327,9 @@ public class OcrHighlighting extends SearchComponent implements PluginInfoInitia
   @SuppressWarnings("unchecked")
   @Override
   public void finishStage(ResponseBuilder rb) {
+    if (rb.req.getParams().getBool("ocr_hl.pageFacet", false) && rb.stage == ResponseBuilder.STAGE_EXECUTE_QUERY) {
+      finishPageFacets(rb);
+    }
     if (!rb.req.getParams().getBool("ocr_hl", false) || rb.stage != ResponseBuilder.STAGE_GET_FIELDS) {
       return;
     }
@@ -105,11 +341,225 @@ public class OcrHighlighting extends SearchComponent implements PluginInfoInitia
             // can't expect the highlight content if there was an exception for this request
             // this should only happen when using shards.tolerant=true
             .filter(resp -> resp.getException() == null)
-            .map(resp -> (NamedList) resp.getSolrResponse().getResponse().get("ocr_highlighting"))
-            .forEach(hl -> SolrPluginUtils.copyNamedListIntoArrayByDocPosInResponse(hl, rb.resultIds, arr));
+            .map(resp -> resp.getSolrResponse().getResponse())
+            .forEach(shardRsp -> {
+              // Propagate partial highlighting results from the shards
+              NamedList<Object> header = (NamedList<Object>) shardRsp.get("responseHeader");
+              if (header != null
+                  && Boolean.TRUE.equals(header.get(SolrQueryResponse.RESPONSE_HEADER_PARTIAL_RESULTS_KEY))) {
+                markPartialResults(rb.rsp);
+              }
+              SolrPluginUtils.copyNamedListIntoArrayByDocPosInResponse(
+                  (NamedList) shardRsp.get("ocr_highlighting"), rb.resultIds, arr);
+            });
 
     // remove nulls in case not all docs were able to be retrieved
-    rb.rsp.add("ocr_highlighting", SolrPluginUtils.removeNulls(arr, new SimpleOrderedMap<>()));
+    NamedList<Object> highlighting = SolrPluginUtils.removeNulls(arr, new SimpleOrderedMap<>());
+    int maxTotal = getMaxHighlightsTotal(rb.req.getParams());
+    if (maxTotal >= 0 && isBudgeted(rb)) {
+      trimToBudget(highlighting, rb.req.getParams().getParams("ocr_hl.fields"), maxTotal, rb.req.getSchema());
+    }
+    if (isPackedFormat(rb.req.getParams())) {
+      rb.rsp.add("ocr_highlightingLayout",
+              encodeLayout(rb.req.getSchema(), rb.req.getParams().getParams("ocr_hl.fields")));
+    } else {
+      unpackHighlighting(highlighting, rb.req.getSchema());
+    }
+    rb.rsp.add("ocr_highlighting", highlighting);
+  }
+
+  /**
+   * Whether the response contains individual hits that are subject to the global budget, as opposed to heatmaps,
+   * passages or the hits of child documents.
+   */
+  private boolean isBudgeted(ResponseBuilder rb) {
+    SolrParams params = rb.req.getParams();
+    return params.get("ocr_hl.heatmap") == null && !params.getBool("ocr_hl.passages", false)
+            && !isChildHighlighting(rb);
+  }
+
+  /**
+   * Trim the merged hits of all shards to the global budget.
+   *
+   * Every shard rounds its share of the budget up, so together they can return a few more hits than allowed. The
+   * merged hits are distributed across the documents just like the budget itself and documents that lose hits are
+   * marked as truncated.
+   */
+  @SuppressWarnings("unchecked")
+  private void trimToBudget(NamedList<Object> highlighting, String[] fieldNames, int maxTotal, IndexSchema schema) {
+    int[] counts = new int[highlighting.size()];
+    long total = 0;
+    for (int i = 0; i < highlighting.size(); i++) {
+      NamedList<Object> summary = (NamedList<Object>) highlighting.getVal(i);
+      for (String fieldName : fieldNames) {
+        counts[i] += getHits(summary.get(fieldName), schema, fieldName).size();
+      }
+      total += counts[i];
+    }
+    if (total <= maxTotal) {
+      return;
+    }
+    int[] allocation = HitBudget.allocate(counts, maxTotal);
+    for (int i = 0; i < highlighting.size(); i++) {
+      if (allocation[i] >= counts[i]) {
+        continue;
+      }
+      NamedList<Object> summary = (NamedList<Object>) highlighting.getVal(i);
+      int remaining = allocation[i];
+      for (String fieldName : fieldNames) {
+        int idx = summary.indexOf(fieldName, 0);
+        if (idx < 0) {
+          continue;
+        }
+        Object value = summary.getVal(idx);
+        List<?> hits = getHits(value, schema, fieldName);
+        int numKept = Math.min(hits.size(), remaining);
+        remaining -= numKept;
+        if (PackedHits.isPacked(value)) {
+          summary.setVal(idx, PackedHits.pack(hits.subList(0, numKept).toArray(new OcrInfo[0]),
+                  getLayout(schema, fieldName)));
+        } else {
+          summary.setVal(idx, new ArrayList<>(hits.subList(0, numKept)));
+        }
+      }
+      if (summary.get("truncated") == null) {
+        summary.add("truncated", true);
+      }
+    }
+  }
+
+  /**
+   * Get the hits of a field from the highlighting of a shard, either packed or as a list of encoded hits.
+   */
+  private List<?> getHits(Object value, IndexSchema schema, String fieldName) {
+    if (value == null) {
+      return Collections.emptyList();
+    } else if (PackedHits.isPacked(value)) {
+      return Arrays.asList(PackedHits.unpack((NamedList<?>) value, getLayout(schema, fieldName)));
+    } else if (value instanceof Object[]) {
+      return Arrays.asList((Object[]) value);
+    }
+    return (List<?>) value;
+  }
+
+  /**
+   * Whether the hits should be returned in the compact binary representation, see {@link PackedHits}.
+   */
+  private boolean isPackedFormat(SolrParams params) {
+    return "packed".equals(params.get("ocr_hl.format")) && params.get("ocr_hl.heatmap") == null;
+  }
+
+  /**
+   * Expand the packed hits received from the shards into the regular representation.
+   */
+  @SuppressWarnings("unchecked")
+  private void unpackHighlighting(NamedList<Object> highlighting, IndexSchema schema) {
+    for (int i = 0; i < highlighting.size(); i++) {
+      NamedList<Object> summary = (NamedList<Object>) highlighting.getVal(i);
+      for (int j = 0; j < summary.size(); j++) {
+        Object value = summary.getVal(j);
+        if (PackedHits.isPacked(value)) {
+          OcrInfo[] infos = PackedHits.unpack((NamedList<?>) value, getLayout(schema, summary.getName(j)));
+          summary.setVal(j, Arrays.stream(infos).map(this::encodeOcrInfo).toArray());
+        }
+      }
+    }
+  }
+
+  /**
+   * Describe the payload layout of every highlighted field, needed by clients to decode packed hits.
+   */
+  private NamedList<Object> encodeLayout(IndexSchema schema, String[] fieldNames) {
+    NamedList<Object> layouts = new SimpleOrderedMap<>();
+    for (String fieldName : fieldNames) {
+      PayloadLayout layout = getLayout(schema, fieldName);
+      NamedList<Object> encoded = new SimpleOrderedMap<>();
+      encoded.add("coordinateBits", layout.getCoordBits());
+      encoded.add("wordBits", layout.getWordBits());
+      encoded.add("lineBits", layout.getLineBits());
+      encoded.add("pageBits", layout.getPageBits());
+      encoded.add("confidenceBits", layout.getConfidenceBits());
+      encoded.add("absoluteCoordinates", layout.hasAbsoluteCoordinates());
+      encoded.add("payloadVersion", layout.getVersion());
+      layouts.add(fieldName, encoded);
+    }
+    return layouts;
+  }
+
+  /**
+   * Determine the payload layout of a field.
+   *
+   * The layout is taken from the {@link DelimitedOcrInfoPayloadTokenFilterFactory} in the index analyzer of the
+   * field's type, so it always matches what was used for indexing. Fields without such a filter fall back to the
+   * layout configured on the component. The result is cached per field type.
+   */
+  PayloadLayout getLayout(IndexSchema schema, String fieldName) {
+    SchemaField field = schema.getFieldOrNull(fieldName);
+    if (field == null) {
+      return defaultLayout;
+    }
+    return layouts.computeIfAbsent(field.getType(), this::discoverLayout);
+  }
+
+  private PayloadLayout discoverLayout(FieldType fieldType) {
+    PayloadLayout layout = findLayout(fieldType);
+    if (layout != null && !layout.isFixedWidth()
+            && OcrPayloadPostingsFormat.NAME.equals(fieldType.getPostingsFormat())) {
+      throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, String.format(
+              "Field type '%s' uses the %s postings format, which only supports payloadVersion=1.",
+              fieldType.getTypeName(), OcrPayloadPostingsFormat.NAME));
+    }
+    return layout != null ? layout : defaultLayout;
+  }
+
+  /**
+   * Find the payload layout in the index analyzer of a field type.
+   *
+   * @return the layout of the {@link DelimitedOcrInfoPayloadTokenFilterFactory} or null if the analyzer has none
+   */
+  static PayloadLayout findLayout(FieldType fieldType) {
+    Analyzer analyzer = fieldType.getIndexAnalyzer();
+    if (analyzer instanceof TokenizerChain) {
+      for (TokenFilterFactory filterFactory : ((TokenizerChain) analyzer).getTokenFilterFactories()) {
+        if (filterFactory instanceof DelimitedOcrInfoPayloadTokenFilterFactory) {
+          return ((DelimitedOcrInfoPayloadTokenFilterFactory) filterFactory).getLayout();
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Discover the layouts of all explicitly defined fields when the core is loaded, dynamic fields are resolved on
+   * first use.
+   */
+  @Override
+  public void inform(SolrCore core) {
+    IndexSchema schema = core.getLatestSchema();
+    for (String fieldName : schema.getFields().keySet()) {
+      getLayout(schema, fieldName);
+    }
+  }
+
+  /**
+   * Merge the per-shard page facet counts and apply limit, sorting and minimum count on the result.
+   */
+  @SuppressWarnings("unchecked")
+  private void finishPageFacets(ResponseBuilder rb) {
+    Map<String, IntIntHashMap> counts = new LinkedHashMap<>();
+    rb.finished.stream()
+            .filter(sreq -> (sreq.purpose & ShardRequest.PURPOSE_GET_TOP_IDS) != 0)
+            .flatMap(sreq -> sreq.responses.stream())
+            .filter(resp -> resp.getException() == null)
+            .map(resp -> (NamedList<NamedList<?>>) resp.getSolrResponse().getResponse().get("ocr_pageFacets"))
+            .filter(Objects::nonNull)
+            .forEach(facets -> facets.forEach(
+                entry -> PageFacetCounter.merge(
+                    counts.computeIfAbsent(entry.getKey(), k -> new IntIntHashMap()), entry.getValue())));
+
+    NamedList<Object> pageFacets = new SimpleOrderedMap<>();
+    counts.forEach((field, fieldCounts) -> pageFacets.add(field, formatPageFacets(fieldCounts, rb.req.getParams())));
+    rb.rsp.add("ocr_pageFacets", pageFacets);
   }
 
   @Override
@@ -119,14 +569,23 @@ public class OcrHighlighting extends SearchComponent implements PluginInfoInitia
 
   @Override
   public void init(PluginInfo info) {
-    this.coordBits = Integer.parseInt(info.attributes.getOrDefault("coordinateBits", "12"));
-    this.pageBits = Integer.parseInt(info.attributes.getOrDefault("pageBits", "0"));
-    this.lineBits = Integer.parseInt(info.attributes.getOrDefault("lineBits", "0"));
-    this.wordBits = Integer.parseInt(info.attributes.getOrDefault("wordBits", "0"));
-    this.absoluteCoordinates = Boolean.parseBoolean(info.attributes.getOrDefault("absoluteCoordinates", "false"));
+    this.defaultLayout = new PayloadLayout(
+            Integer.parseInt(info.attributes.getOrDefault("coordinateBits", "12")),
+            Integer.parseInt(info.attributes.getOrDefault("wordBits", "0")),
+            Integer.parseInt(info.attributes.getOrDefault("lineBits", "0")),
+            Integer.parseInt(info.attributes.getOrDefault("pageBits", "0")),
+            Integer.parseInt(info.attributes.getOrDefault("confidenceBits", "0")),
+            Boolean.parseBoolean(info.attributes.getOrDefault("absoluteCoordinates", "false")),
+            Integer.parseInt(info.attributes.getOrDefault("payloadVersion", "1")));
+    this.maxHighlightsTotalCeiling = Integer.parseInt(info.attributes.getOrDefault("maxTotal", "-1"));
+    this.pageDimensionsField = info.attributes.get("pageDimensionsField");
+    this.contextField = info.attributes.get("contextField");
+    this.componentName = info.name;
+    this.cacheName = info.attributes.getOrDefault("cache", "ocrHighlightCache");
   }
 
   private Set<BytesRef> getTerms(Query query, String fieldName) throws IOException {
+    Object event = OcrEvents.beginTermExtraction(fieldName);
     Set<BytesRef> terms = new TreeSet<>();
     Set<Term> extractPosInsensitiveTermsTarget = new TreeSet<Term>() {
       @Override
@@ -139,42 +598,557 @@ public class OcrHighlighting extends SearchComponent implements PluginInfoInitia
     };
     query.createWeight(EMPTY_INDEXSEARCHER, false, 1.0f)
             .extractTerms(extractPosInsensitiveTermsTarget);
+    OcrEvents.endTermExtraction(event, terms.size());
     return terms;
   }
 
+  /**
+   * Count the query term hits per page for all documents in a set.
+   *
+   * @param docs          all matching documents
+   * @param query         the query
+   * @param req           the current request
+   * @return              NamedList containing a {@link NamedList} for each field,
+   *                      which in turn contains `(page index, number of hits)` pairs.
+   */
+  private NamedList<Object> doPageFacets(DocSet docs, Query query, SolrQueryRequest req) throws IOException {
+    SolrParams params = req.getParams();
+    IndexReader reader = req.getSearcher().getIndexReader();
+    NamedList<Object> pageFacets = new SimpleOrderedMap<>();
+    for (String fieldName : params.getParams("ocr_hl.fields")) {
+      PayloadLayout layout = getLayout(req.getSchema(), fieldName);
+      if (layout.getPageBits() <= 0) {
+        throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+                "ocr_hl.pageFacet needs page indices, but field '" + fieldName + "' was indexed without them.");
+      }
+      PageFacetCounter counter = new PageFacetCounter(layout);
+      IntIntHashMap counts = docs == null
+              ? new IntIntHashMap()
+              : counter.count(reader, docs, fieldName, getTerms(query, fieldName),
+                      getConfidenceThreshold(params, fieldName, layout));
+      pageFacets.add(fieldName, formatPageFacets(counts, params));
+    }
+    return pageFacets;
+  }
+
+  private NamedList<Integer> formatPageFacets(IntIntHashMap counts, SolrParams params) {
+    String sort = params.get("ocr_hl.pageFacet.sort", "count");
+    if (!"count".equals(sort) && !"index".equals(sort)) {
+      throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+              "Invalid value for ocr_hl.pageFacet.sort: '" + sort + "', must be either 'count' or 'index'.");
+    }
+    return PageFacetCounter.format(
+            counts, params.getInt("ocr_hl.pageFacet.limit", 100), params.getInt("ocr_hl.pageFacet.mincount", 1),
+            "count".equals(sort));
+  }
+
   /**
    * Generates a list of highlighted query term coordinates for each item in a list of documents, or returns null if highlighting is disabled.
    *
-   * @param docs          query results
+   * @param docIds        identifiers of the documents to highlight
+   * @param keys          unique keys of the documents to highlight
    * @param query         the query
    * @param req           the current request
+   * @param deadline      deadline for the highlighting, once it has passed only partial results are returned
    * @return              NamedList containing a {@link NamedList} for each document,
    *                      which in turns contains `({@link String} field, {@link OcrInfo} coordinates)` pairs.
    */
-  private NamedList<Object> doHighlighting(DocList docs, Query query, SolrQueryRequest req) throws IOException {
+  private NamedList<Object> doHighlighting(int[] docIds, String[] keys, Query query, SolrQueryRequest req,
+          HighlightDeadline deadline) throws IOException {
     SolrParams params = req.getParams();
     int maxHighlightsPerDoc = params.getInt("ocr_hl.maxPerDoc", -1);
     int maxHighlightsPerPage = params.getInt("ocr_hl.maxPerPage", -1);
+    int[] pageRange = parsePageRange(params.get("ocr_hl.pageRange"));
     IndexReader reader = req.getSearcher().getIndexReader();
-
-    int[] docIds = toDocIDs(docs);
-    String[] keys = getUniqueKeys(req.getSearcher(), docIds);
     String[] fieldNames = params.getParams("ocr_hl.fields");
+    Map<String, PayloadLayout> fieldLayouts = new HashMap<>();
+    Map<String, Integer> minConfidences = new HashMap<>();
+    for (String fieldName : fieldNames) {
+      PayloadLayout layout = getLayout(req.getSchema(), fieldName);
+      if (pageRange != null && layout.getPageBits() <= 0) {
+        throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+                "ocr_hl.pageRange needs page indices, but field '" + fieldName + "' was indexed without them.");
+      }
+      fieldLayouts.put(fieldName, layout);
+      minConfidences.put(fieldName, getConfidenceThreshold(params, fieldName, layout));
+    }
+
+    if (params.get("ocr_hl.heatmap") != null) {
+      return doHeatmaps(docIds, keys, fieldNames, query, req, pageRange, deadline);
+    }
+
+    // We grab the terms in their UTF-8 encoded form to avoid costly decoding operations
+    // when checking for term equality down the line
+    Map<String, Set<BytesRef>> termSets = new HashMap<>();
+    for (String fieldName : fieldNames) {
+      termSets.put(fieldName, getTerms(query, fieldName));
+    }
+
+    // Distribute the global highlighting budget across all documents by their term frequencies, so no payload has
+    // to be decoded for it. Every document receives its share of what's left when it is highlighted, so whatever a
+    // document doesn't use because of the filters is passed on to the documents after it.
+    int[] demands = null;
+    int remainingBudget = getMaxHighlightsTotal(params);
+    if (remainingBudget >= 0) {
+      demands = new int[docIds.length];
+      for (int i = 0; i < docIds.length; i++) {
+        for (String fieldName : fieldNames) {
+          int numCandidates = countCandidates(reader, docIds[i], fieldName, termSets.get(fieldName));
+          demands[i] += maxHighlightsPerDoc >= 0 ? Math.min(numCandidates, maxHighlightsPerDoc) : numCandidates;
+        }
+      }
+    }
+
+    // Paging through the hits of a document in document order, either with start/rows or with a cursor
+    String cursorParam = params.get("ocr_hl.cursor");
+    boolean paging = cursorParam != null || params.get("ocr_hl.start") != null || params.get("ocr_hl.rows") != null;
+    HitPager.Cursor cursor = cursorParam != null ? HitPager.decodeCursor(cursorParam) : null;
+    int hitStart = params.getInt("ocr_hl.start", 0);
+    int hitRows = params.getInt("ocr_hl.rows", -1);
+    String[] nextCursors = new String[docIds.length];
+
+    // Instead of the first hits in document order, return the hits on the pages with the highest density of hits
+    boolean sortByDensity = "density".equals(params.get("ocr_hl.sort", "position"));
+    if (sortByDensity && paging) {
+      throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+              "ocr_hl.sort=density cannot be combined with ocr_hl.start, ocr_hl.rows or ocr_hl.cursor");
+    }
+    if (cursor != null && docIds.length > 1 && req.getSchema().getUniqueKeyField() == null) {
+      throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+              "ocr_hl.cursor needs a unique key to tell the documents apart when more than one is highlighted");
+    }
+    if (maxHighlightsPerPage >= 0 && paging) {
+      throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+              "ocr_hl.maxPerPage cannot be combined with ocr_hl.start, ocr_hl.rows or ocr_hl.cursor");
+    }
+    int numBestPages = params.getInt("ocr_hl.pages", 10);
+    List<Map<String, int[]>> bestPages = new ArrayList<>();
+
+    // Coalesce adjacent hits on the same line into a single region
+    boolean mergeLines = "line".equals(params.get("ocr_hl.merge"));
+    // Instead of the individual hits, return clusters of hits of different terms
+    boolean passages = params.getBool("ocr_hl.passages", false);
+    float mergeGap = params.getFloat("ocr_hl.merge.gap", 0f);
+
+    // Scale relative coordinates to pixels with the page dimensions of the documents
+    String dimensionsField = getPageDimensionsField(params, req.getSchema());
+    if (dimensionsField != null && isPackedFormat(params)) {
+      throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+              "ocr_hl.scale=pixels cannot be combined with ocr_hl.format=packed");
+    }
+
+    // Text around the hits, either the hit's line or a number of words before and after it
+    String contextParam = params.get("ocr_hl.context");
+    int contextWords = 0;
+    if (contextParam != null && !"line".equals(contextParam)) {
+      try {
+        contextWords = Integer.parseInt(contextParam);
+      } catch (NumberFormatException e) {
+        throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+                "ocr_hl.context must be 'line' or a number of words, was: " + contextParam, e);
+      }
+    } else if (contextParam != null) {
+      contextWords = -1;
+    }
+    Map<String, String> contextFields = contextParam != null && !passages
+            ? getContextFields(params, req.getSchema(), fieldNames) : null;
 
     // For each document, obtain a mapping from field names to their matching OCR boxes
     List<Map<String, OcrInfo[]>> boxes = new ArrayList<>();
-    for (int docId : docIds) {
+    boolean[] partial = new boolean[docIds.length];
+    boolean[] truncated = new boolean[docIds.length];
+    for (int i = 0; i < docIds.length; i++) {
       Map<String, OcrInfo[]> docBoxes = new HashMap<>();
+      Map<String, int[]> docPages = new LinkedHashMap<>();
+      Map<String, Integer> lastPositions = new LinkedHashMap<>();
+      // The cursor belongs to a single document, all others are paged from their first hit
+      Map<String, Integer> docCursor = cursor != null && cursor.appliesTo(keys[i]) ? cursor.lastPositions : null;
+      // The budget of the document is shared by all of its fields, ocr_hl.maxPerDoc applies to every field on its own
+      int docShare = demands != null ? HitBudget.share(demands, i, remainingBudget) : -1;
+      int docLimit = docShare;
+      PageDimensions pageDimensions = dimensionsField != null
+              ? PageDimensions.read(reader, docIds[i], dimensionsField) : null;
       for (String fieldName : fieldNames) {
-        // We grab the terms in their UTF-8 encoded form to avoid costly decoding operations
-        // when checking for term equality down the line
-        Set<BytesRef> termSet = getTerms(query, fieldName);
-        OcrInfo[] ocrInfos = getOcrInfos(reader, docId, fieldName, termSet, maxHighlightsPerDoc, maxHighlightsPerPage);
+        Object event = OcrEvents.beginDocumentHighlight(docIds[i], fieldName);
+        int fieldLimit = docLimit < 0
+                ? maxHighlightsPerDoc
+                : (maxHighlightsPerDoc < 0 ? docLimit : Math.min(docLimit, maxHighlightsPerDoc));
+        OcrInfo[] ocrInfos;
+        if (sortByDensity) {
+          List<LeafReaderContext> leaves = reader.leaves();
+          LeafReaderContext leafReaderContext = leaves.get(ReaderUtil.subIndex(docIds[i], leaves));
+          int[] pages = new PageRanker(fieldLayouts.get(fieldName)).rank(
+                  leafReaderContext.reader(), docIds[i] - leafReaderContext.docBase, fieldName,
+                  termSets.get(fieldName), numBestPages, pageRange, minConfidences.get(fieldName), deadline);
+          docPages.put(fieldName, pages);
+          int[] sortedPages = Arrays.copyOf(pages, pages.length);
+          Arrays.sort(sortedPages);
+          ocrInfos = getOcrInfos(reader, docIds[i], fieldName, fieldLayouts.get(fieldName),
+                  termSets.get(fieldName), fieldLimit, maxHighlightsPerPage, pageRange, sortedPages,
+                  minConfidences.get(fieldName), deadline);
+        } else if (!paging && !passages) {
+          ocrInfos = getCachedOcrInfos(req.getSearcher(), docIds[i], keys[i], fieldName, termSets.get(fieldName),
+                  fieldLimit, maxHighlightsPerPage, pageRange, minConfidences.get(fieldName), deadline);
+        } else if (!paging) {
+          // Passages need the token positions of the hits, which the cache doesn't keep
+          ocrInfos = getOcrInfos(reader, docIds[i], fieldName, fieldLayouts.get(fieldName), termSets.get(fieldName),
+                  fieldLimit, maxHighlightsPerPage, pageRange, null, minConfidences.get(fieldName), deadline);
+        } else if (docCursor != null && !docCursor.containsKey(fieldName)) {
+          // The field was already exhausted on a previous page
+          ocrInfos = new OcrInfo[]{};
+        } else {
+          List<LeafReaderContext> leaves = reader.leaves();
+          LeafReaderContext leafReaderContext = leaves.get(ReaderUtil.subIndex(docIds[i], leaves));
+          int rows = fieldLimit < 0 ? hitRows : (hitRows < 0 ? fieldLimit : Math.min(hitRows, fieldLimit));
+          HitPager.Window window = new HitPager(fieldLayouts.get(fieldName)).read(
+                  leafReaderContext.reader(), docIds[i] - leafReaderContext.docBase, fieldName,
+                  termSets.get(fieldName), docCursor != null ? docCursor.get(fieldName) : -1, hitStart, rows, pageRange,
+                  minConfidences.get(fieldName), deadline);
+          ocrInfos = window.hits;
+          if (window.hasMore) {
+            lastPositions.put(fieldName, window.lastPosition);
+          }
+        }
+        boolean limitReached = fieldLimit >= 0 && ocrInfos.length >= fieldLimit;
+        if (docLimit >= 0) {
+          docLimit -= ocrInfos.length;
+        }
+        if (contextFields != null) {
+          new ContextBuilder(fieldLayouts.get(fieldName))
+                  .addContext(reader, docIds[i], contextFields.get(fieldName), ocrInfos, contextWords);
+        }
+        if (mergeLines && !passages) {
+          ocrInfos = LineMerger.merge(ocrInfos, mergeGap);
+        }
+        if (pageDimensions != null) {
+          pageDimensions.scale(ocrInfos);
+        }
         docBoxes.put(fieldName, ocrInfos);
+        OcrEvents.endDocumentHighlight(event, ocrInfos.length,
+                limitReached || lastPositions.containsKey(fieldName) || deadline.hasExpired());
       }
       boxes.add(docBoxes);
+      bestPages.add(docPages);
+      partial[i] = deadline.hasExpired();
+      // The filters might have kept us from exhausting the share, in which case nothing was cut off
+      truncated[i] = demands != null && docShare < demands[i] && docLimit == 0;
+      if (demands != null) {
+        remainingBudget -= docShare - docLimit;
+      }
+      if (!lastPositions.isEmpty()) {
+        nextCursors[i] = HitPager.encodeCursor(keys[i], lastPositions);
+      }
+    }
+    if (passages) {
+      return encodePassages(keys, fieldNames, fieldLayouts, boxes, partial, params);
+    }
+    return encodeSnippets(keys, fieldNames, fieldLayouts, boxes, bestPages, partial, truncated, nextCursors,
+            isPackedFormat(params));
+  }
+
+  /**
+   * Retrieve all {@link OcrInfo}s for matching terms from a given field in a document, using the highlighting cache
+   * if it is configured.
+   *
+   * See {@link #getOcrInfos(IndexReader, int, String, PayloadLayout, Set, int, int, int[], int[], int,
+   * HighlightDeadline)} for the parameters, the unique key of the document is needed to identify it across searchers.
+   */
+  @SuppressWarnings("unchecked")
+  private OcrInfo[] getCachedOcrInfos(SolrIndexSearcher searcher, int docId, String uniqueKey, String fieldName,
+          Set<BytesRef> termSet, int maxHighlightsPerDoc, int maxHighlightsPerPage, int[] pageRange, int minConfidence,
+          HighlightDeadline deadline) throws IOException {
+    SolrCache<HighlightCacheKey, NamedList<Object>> cache = searcher.getCache(cacheName);
+    PayloadLayout layout = getLayout(searcher.getSchema(), fieldName);
+    if (cache == null || uniqueKey == null) {
+      return getOcrInfos(searcher.getIndexReader(), docId, fieldName, layout, termSet, maxHighlightsPerDoc,
+              maxHighlightsPerPage, pageRange, null, minConfidence, deadline);
+    }
+    HighlightCacheKey key = new HighlightCacheKey(componentName, fieldName, termSet, uniqueKey, maxHighlightsPerDoc,
+            maxHighlightsPerPage, pageRange, minConfidence);
+    NamedList<Object> cached = cache.get(key);
+    if (cached != null) {
+      return PackedHits.unpack(cached, layout);
+    }
+    OcrInfo[] ocrInfos = getOcrInfos(searcher.getIndexReader(), docId, fieldName, layout, termSet,
+            maxHighlightsPerDoc, maxHighlightsPerPage, pageRange, null, minConfidence, deadline);
+    // Incomplete results must not end up in the cache
+    if (!deadline.hasExpired()) {
+      cache.put(key, PackedHits.pack(ocrInfos, layout));
+    }
+    return ocrInfos;
+  }
+
+  /**
+   * Recompute a cache entry on a new searcher, used by the {@link OcrHighlightCacheRegenerator}.
+   *
+   * @return the hits in their packed representation or null if the document no longer exists
+   */
+  NamedList<Object> regenerateCacheEntry(SolrIndexSearcher searcher, HighlightCacheKey key) throws IOException {
+    SchemaField keyField = searcher.getSchema().getUniqueKeyField();
+    if (keyField == null) {
+      return null;
+    }
+    BytesRefBuilder indexedId = new BytesRefBuilder();
+    keyField.getType().readableToIndexed(key.getUniqueKey(), indexedId);
+    int docId = searcher.getFirstMatch(new Term(keyField.getName(), indexedId.get()));
+    if (docId < 0) {
+      return null;
+    }
+    PayloadLayout layout = getLayout(searcher.getSchema(), key.getFieldName());
+    OcrInfo[] ocrInfos = getOcrInfos(searcher.getIndexReader(), docId, key.getFieldName(), layout,
+            key.getTermSet(), key.getMaxHighlights(), key.getMaxHighlightsPerPage(), key.getPageRange(), null,
+            key.getMinConfidence(), HighlightDeadline.none());
+    return PackedHits.pack(ocrInfos, layout);
+  }
+
+  /**
+   * Determine the fields with the original text of the lines for `ocr_hl.context`.
+   *
+   * The field is taken from `ocr_hl.context.field`, which can be set per field with
+   * `f.<field>.ocr_hl.context.field`, or from the `contextField` component attribute.
+   *
+   * @return the names of the fields with the lines, by the names of the OCR fields
+   */
+  private Map<String, String> getContextFields(SolrParams params, IndexSchema schema, String[] fieldNames) {
+    Map<String, String> contextFields = new HashMap<>();
+    for (String fieldName : fieldNames) {
+      String lineField = params.getFieldParam(fieldName, "ocr_hl.context.field", contextField);
+      if (lineField == null) {
+        throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, String.format(
+                "ocr_hl.context needs the field with the lines of '%s', pass it with ocr_hl.context.field.",
+                fieldName));
+      }
+      SchemaField field = schema.getFieldOrNull(lineField);
+      if (field == null || !(field.getType() instanceof OcrLineIndexField)) {
+        throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "Field '" + lineField
+                + "' does not hold the lines of the OCR text, it needs to be an OcrLineIndexField.");
+      }
+      contextFields.put(fieldName, lineField);
+    }
+    return contextFields;
+  }
+
+  /**
+   * Determine the field with the page dimensions if the hits should be scaled to pixels with `ocr_hl.scale=pixels`.
+   *
+   * The field is taken from `ocr_hl.pageDimensions` or from the `pageDimensionsField` component attribute.
+   *
+   * @return the name of the field or null if the coordinates should be returned as they were indexed
+   */
+  private String getPageDimensionsField(SolrParams params, IndexSchema schema) {
+    String scale = params.get("ocr_hl.scale", "index");
+    if ("index".equals(scale)) {
+      return null;
+    }
+    if (!"pixels".equals(scale)) {
+      throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+              "ocr_hl.scale must be 'index' or 'pixels', was: " + scale);
+    }
+    String fieldName = params.get("ocr_hl.pageDimensions", pageDimensionsField);
+    if (fieldName == null) {
+      throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+              "ocr_hl.scale=pixels needs the field with the page dimensions, pass it with ocr_hl.pageDimensions.");
+    }
+    SchemaField field = schema.getFieldOrNull(fieldName);
+    if (field == null || !(field.getType() instanceof PageDimensionsField)) {
+      throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+              "Field '" + fieldName + "' does not hold page dimensions, it needs to be a PageDimensionsField.");
+    }
+    return fieldName;
+  }
+
+  /**
+   * Parse a page range of the form `<first>-<last>` or `<page>`.
+   *
+   * @return array with the first and last page of the range (both inclusive) or null if no range was passed
+   */
+  private int[] parsePageRange(String pageRange) {
+    if (pageRange == null) {
+      return null;
+    }
+    try {
+      int sep = pageRange.indexOf('-');
+      if (sep < 0) {
+        int page = Integer.parseInt(pageRange.trim());
+        return new int[]{page, page};
+      }
+      return new int[]{
+          Integer.parseInt(pageRange.substring(0, sep).trim()), Integer.parseInt(pageRange.substring(sep + 1).trim())};
+    } catch (NumberFormatException e) {
+      throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+              "Invalid value for ocr_hl.pageRange: '" + pageRange + "', must be of the form '<first>-<last>'.", e);
+    }
+  }
+
+  /**
+   * Determine the raw confidence threshold of a field from `ocr_hl.minConfidence`.
+   *
+   * @return the threshold for {@link PayloadLayout#isConfident}, 0 if the hits are not filtered
+   */
+  private int getConfidenceThreshold(SolrParams params, String fieldName, PayloadLayout layout) {
+    Float minConfidence = params.getFloat("ocr_hl.minConfidence");
+    if (minConfidence == null) {
+      return 0;
+    }
+    if (minConfidence < 0 || minConfidence > 1) {
+      throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+              "ocr_hl.minConfidence must be between 0 and 1, was: " + minConfidence);
+    }
+    if (layout.getConfidenceBits() <= 0) {
+      throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+              "ocr_hl.minConfidence needs confidences, but field '" + fieldName + "' was indexed without them.");
+    }
+    return layout.getConfidenceThreshold(minConfidence);
+  }
+
+  /**
+   * Determine the maximum number of highlights for the whole request, taking into account both the `ocr_hl.maxTotal`
+   * parameter and the hard limit from the component configuration.
+   *
+   * @return maximum number of highlights or -1 if there is no limit
+   */
+  private int getMaxHighlightsTotal(SolrParams params) {
+    int maxTotal = params.getInt("ocr_hl.maxTotal", -1);
+    if (maxHighlightsTotalCeiling < 0) {
+      return maxTotal;
+    } else if (maxTotal < 0) {
+      return maxHighlightsTotalCeiling;
+    }
+    return Math.min(maxTotal, maxHighlightsTotalCeiling);
+  }
+
+  /**
+   * Determine an upper bound for the number of hits for matching terms in a field of a document.
+   *
+   * This is the sum of the term frequencies, so no payloads have to be read. Hits that are removed by a page range, a
+   * confidence threshold or a limit per page are still counted, the budget they would receive is passed on to the
+   * following documents once the document was highlighted.
+   */
+  private int countCandidates(IndexReader reader, int docId, String fieldName, Set<BytesRef> termSet)
+          throws IOException {
+    List<LeafReaderContext> leaves = reader.leaves();
+    LeafReaderContext leafReaderContext = leaves.get(ReaderUtil.subIndex(docId, leaves));
+    docId -= leafReaderContext.docBase;
+
+    final Terms terms = leafReaderContext.reader().terms(fieldName);
+    if (terms == null || !terms.hasPositions() || !terms.hasPayloads()) {
+      return 0;
     }
-    return encodeSnippets(keys, fieldNames, boxes);
+    final TermsEnum termsEnum = terms.iterator();
+    PostingsEnum postingsEnum = null;
+    int numCandidates = 0;
+    for (BytesRef term : termSet) {
+      if (!termsEnum.seekExact(term)) {
+        continue;
+      }
+      postingsEnum = termsEnum.postings(postingsEnum, PostingsEnum.FREQS);
+      if (docId == postingsEnum.advance(docId)) {
+        numCandidates += postingsEnum.freq();
+      }
+    }
+    return numCandidates;
+  }
+
+  /**
+   * Generates per-page heatmaps of the highlighted query terms for each item in a list of documents.
+   *
+   * Used instead of the regular highlighting if `ocr_hl.heatmap` is set.
+   *
+   * @return NamedList containing a {@link NamedList} for each document, which in turn contains a {@link NamedList}
+   *         with `(page index, cells)` pairs for each field.
+   */
+  private NamedList<Object> doHeatmaps(int[] docIds, String[] keys, String[] fieldNames, Query query,
+          SolrQueryRequest req, int[] pageRange, HighlightDeadline deadline) throws IOException {
+    SolrParams params = req.getParams();
+    // Relative coordinates always cover the full range of values, for absolute coordinates we need to know the
+    // dimensions of the page
+    Map<String, HeatmapBuilder> heatmaps = new HashMap<>();
+    Map<String, Set<BytesRef>> termSets = new HashMap<>();
+    Map<String, Integer> minConfidences = new HashMap<>();
+    for (String fieldName : fieldNames) {
+      PayloadLayout layout = getLayout(req.getSchema(), fieldName);
+      minConfidences.put(fieldName, getConfidenceThreshold(params, fieldName, layout));
+      long maxCoordinate = 1L << layout.getCoordBits();
+      long pageWidth = layout.hasAbsoluteCoordinates()
+              ? params.getLong("ocr_hl.heatmap.pageWidth", maxCoordinate) : maxCoordinate;
+      long pageHeight = layout.hasAbsoluteCoordinates()
+              ? params.getLong("ocr_hl.heatmap.pageHeight", maxCoordinate) : maxCoordinate;
+      heatmaps.put(fieldName, new HeatmapBuilder(params.get("ocr_hl.heatmap"), pageWidth, pageHeight, layout));
+      termSets.put(fieldName, getTerms(query, fieldName));
+    }
+    IndexReader reader = req.getSearcher().getIndexReader();
+
+    NamedList<Object> list = new SimpleOrderedMap<>();
+    for (int i = 0; i < docIds.length; i++) {
+      NamedList<Object> summary = new SimpleOrderedMap<>();
+      for (String fieldName : fieldNames) {
+        summary.add(fieldName,
+                getHeatmaps(reader, docIds[i], fieldName, termSets.get(fieldName), heatmaps.get(fieldName),
+                        pageRange, minConfidences.get(fieldName), deadline));
+      }
+      if (deadline.hasExpired()) {
+        summary.add("partialResults", true);
+      }
+      list.add(keys[i], summary);
+    }
+    return list;
+  }
+
+  /**
+   * Bin all matching terms from a given field in a document into per-page heatmaps.
+   *
+   * @param reader A reader into the search index
+   * @param docId Identifier of the matching document
+   * @param fieldName Field to obtain OCR information from
+   * @param termSet Set of matching terms
+   * @param heatmaps Builder for the heatmaps of the field, shared across all documents
+   * @param pageRange First and last page to bin hits from, null to bin hits from all pages
+   * @param minConfidence Raw confidence threshold of the hits, 0 to bin all hits
+   * @param deadline Deadline for the highlighting, no more hits are added once it has passed
+   * @return NamedList with `(page index, cells)` pairs for all pages with at least one hit
+   * @throws IOException Error during retrieval from index
+   */
+  private NamedList<Object> getHeatmaps(IndexReader reader, int docId, String fieldName, Set<BytesRef> termSet,
+          HeatmapBuilder heatmaps, int[] pageRange, int minConfidence, HighlightDeadline deadline)
+          throws IOException {
+    List<LeafReaderContext> leaves = reader.leaves();
+    LeafReaderContext leafReaderContext = leaves.get(ReaderUtil.subIndex(docId, leaves));
+    docId -= leafReaderContext.docBase;
+
+    final Terms terms = leafReaderContext.reader().terms(fieldName);
+    if (terms == null || !terms.hasPositions() || !terms.hasPayloads()) {
+      return heatmaps.finish();
+    }
+
+    final TermsEnum termsEnum = terms.iterator();
+    final PayloadReader payloads = new PayloadReader(heatmaps.getLayout());
+    PostingsEnum postingsEnum = null;
+    for (BytesRef term : termSet) {
+      if (deadline.checkExpired()) {
+        break;
+      }
+      if (!termsEnum.seekExact(term)) {
+        continue;
+      }
+      postingsEnum = termsEnum.postings(postingsEnum, PostingsEnum.PAYLOADS);
+      if (docId != postingsEnum.advance(docId)) {
+        continue;
+      }
+      payloads.reset(postingsEnum);
+      while (!deadline.checkExpired() && payloads.nextPosition() != PayloadReader.NO_MORE_POSITIONS) {
+        if (!payloads.isConfident(minConfidence)) {
+          continue;
+        }
+        if (pageRange != null) {
+          int page = payloads.pageIndex();
+          if (page < pageRange[0] || page > pageRange[1]) {
+            continue;
+          }
+        }
+        heatmaps.add(payloads);
+      }
+    }
+    return heatmaps.finish();
   }
 
   /**
@@ -225,14 +1199,21 @@ public class OcrHighlighting extends SearchComponent implements PluginInfoInitia
    * @param reader A reader into the search index
    * @param docId Identifier of the matching document
    * @param fieldName Field to obtain OCR information from
+   * @param layout Layout of the payloads in the field
    * @param termSet Set of matching terms
    * @param maxHighlightsPerDoc Maximum number of OCR terms per document
    * @param maxHighlightsPerPage Maximum number of OCR terms per page
+   * @param pageRange First and last page to retrieve OCR terms from, null to retrieve terms from all pages
+   * @param pages Sorted indices of the pages to retrieve OCR terms from, null to retrieve terms from all pages
+   * @param minConfidence Raw confidence threshold from {@link PayloadLayout#getConfidenceThreshold}, 0 to retrieve
+   *                      all terms
+   * @param deadline Deadline for the highlighting, no more terms are retrieved once it has passed
    * @return All OCR information for matching terms on all positions in the field
    * @throws IOException Error during retrieval from index
    */
-  private OcrInfo[] getOcrInfos(IndexReader reader, int docId, String fieldName, Set<BytesRef> termSet,
-          int maxHighlightsPerDoc, int maxHighlightsPerPage) throws IOException {
+  private OcrInfo[] getOcrInfos(IndexReader reader, int docId, String fieldName, PayloadLayout layout,
+          Set<BytesRef> termSet, int maxHighlightsPerDoc, int maxHighlightsPerPage, int[] pageRange, int[] pages,
+          int minConfidence, HighlightDeadline deadline) throws IOException {
     List<OcrInfo> ocrList = new ArrayList<>();
 
     final LeafReader leafReader;
@@ -251,10 +1232,16 @@ public class OcrHighlighting extends SearchComponent implements PluginInfoInitia
     }
 
     final TermsEnum termsEnum = terms.iterator();
-    int currentPage = -1;
-    int matchesOnCurrentPage = 0;
+    final PayloadReader payloads = new PayloadReader(layout);
+    // The terms are read one after the other, so the hits on a page are counted across all of them
+    final IntIntHashMap matchesPerPage = maxHighlightsPerPage >= 0 ? new IntIntHashMap() : null;
+    int numPayloads = 0;
+    long payloadBytes = 0;
 
     for (BytesRef term : termSet) {
+      if (deadline.checkExpired()) {
+        break;
+      }
       if (!termsEnum.seekExact(term)) {
         continue;
       }
@@ -267,22 +1254,43 @@ public class OcrHighlighting extends SearchComponent implements PluginInfoInitia
         continue;
       }
 
-      final int freq = postingsEnum.freq();
-      for (int i = 0; i < freq && (maxHighlightsPerDoc < 0 || ocrList.size() < maxHighlightsPerDoc); i++) {
-        postingsEnum.nextPosition();
-        BytesRef payload = postingsEnum.getPayload();
-        OcrInfo info = OcrPayloadHelper.decodeOcrInfo(payload, coordBits, wordBits, lineBits, pageBits, absoluteCoordinates);
-        if (info.getPageIndex() != currentPage) {  // Are we on a new page?
-          matchesOnCurrentPage = 0;
-          currentPage = info.getPageIndex();
+      payloads.reset(postingsEnum);
+      while (maxHighlightsPerDoc < 0 || ocrList.size() < maxHighlightsPerDoc) {
+        if (deadline.checkExpired()) {
+          break;
+        }
+        int position = payloads.nextPosition();
+        if (position == PayloadReader.NO_MORE_POSITIONS) {
+          break;
         }
-        if (maxHighlightsPerPage < 0 || matchesOnCurrentPage < maxHighlightsPerPage) {  // Limit matches per page?
-          info.setTerm(term.utf8ToString());
-          ocrList.add(info);
-          matchesOnCurrentPage++;
+        numPayloads++;
+        payloadBytes += payloads.payloadLength();
+        // Checking the confidence only needs the last bits of the payload, do it before anything else is decoded
+        if (!payloads.isConfident(minConfidence)) {
+          continue;
         }
+        if (pageRange != null || pages != null || matchesPerPage != null) {
+          int page = payloads.pageIndex();
+          if (pageRange != null && (page < pageRange[0] || page > pageRange[1])) {
+            continue;
+          }
+          if (pages != null && Arrays.binarySearch(pages, page) < 0) {
+            continue;
+          }
+          if (matchesPerPage != null) {  // Limit matches per page?
+            if (matchesPerPage.get(page) >= maxHighlightsPerPage) {
+              continue;
+            }
+            matchesPerPage.addTo(page, 1);
+          }
+        }
+        OcrInfo info = payloads.decodeOcrInfo();
+        info.setTerm(term.utf8ToString());
+        info.setPosition(position);
+        ocrList.add(info);
       }
     }
+    OcrEvents.addPayloads(numPayloads, payloadBytes);
     return ocrList.stream().sorted().toArray(OcrInfo[]::new);
   }
 
@@ -298,8 +1306,17 @@ public class OcrHighlighting extends SearchComponent implements PluginInfoInitia
       encoded.add("word", info.getWordIndex());
     }
     encoded.add("term", info.getTerm());
+    if (info.getConfidence() >= 0) {
+      encoded.add("confidence", info.getConfidence());
+    }
+    if (info.getContext() != null) {
+      encoded.add("context", info.getContext());
+    }
+    if (info.getTerm() != null && info.getTerm().contains(LineMerger.TERM_SEPARATOR)) {
+      encoded.add("terms", StrUtils.splitWS(info.getTerm(), false));
+    }
 
-    if (absoluteCoordinates) {
+    if (info.getHasAbsoluteCoordinates()) {
       encoded.add("x", (int) info.getHorizontalOffset());
       encoded.add("y", (int) info.getVerticalOffset());
       encoded.add("width", (int) info.getWidth());
@@ -313,17 +1330,94 @@ public class OcrHighlighting extends SearchComponent implements PluginInfoInitia
     return encoded;
   }
 
+  /**
+   * Cluster the hits of every document into passages and encode the best passages.
+   */
+  private NamedList<Object> encodePassages(String[] keys, String[] fieldNames, Map<String, PayloadLayout> layouts,
+          List<Map<String, OcrInfo[]>> ocrInfos, boolean[] partial, SolrParams params) {
+    PassageClusterer clusterer = new PassageClusterer(
+            params.getInt("ocr_hl.passages.minTerms", 2),
+            params.getInt("ocr_hl.passages.window", 10),
+            "line".equals(params.get("ocr_hl.passages.unit", "word")));
+    int maxPassages = params.getInt("ocr_hl.passages.max", 3);
+    NamedList<Object> list = new SimpleOrderedMap<>();
+    for (int i = 0; i < keys.length; i++) {
+      NamedList<Object> summary = new SimpleOrderedMap<>();
+      for (String field : fieldNames) {
+        OcrInfo[] sorted = Arrays.stream(ocrInfos.get(i).get(field)).sorted().toArray(OcrInfo[]::new);
+        // Scaled hits have absolute coordinates, too
+        boolean absolute = layouts.get(field).hasAbsoluteCoordinates()
+                || (sorted.length > 0 && Arrays.stream(sorted).allMatch(OcrInfo::getHasAbsoluteCoordinates));
+        summary.add(field, clusterer.cluster(sorted, maxPassages).stream()
+                .map(passage -> encodePassage(passage, absolute)).toArray());
+      }
+      if (partial[i]) {
+        summary.add("partialResults", true);
+      }
+      list.add(keys[i], summary);
+    }
+    return list;
+  }
+
+  private NamedList<Object> encodePassage(PassageClusterer.Passage passage, boolean absoluteCoordinates) {
+    NamedList<Object> encoded = new SimpleOrderedMap<>();
+    if (passage.pageIndex >= 0) {
+      encoded.add("page", passage.pageIndex);
+    }
+    if (passage.firstLine >= 0) {
+      encoded.add("firstLine", passage.firstLine);
+      encoded.add("lastLine", passage.lastLine);
+    }
+    encoded.add("score", passage.score);
+    encoded.add("numHits", passage.numHits);
+    encoded.add("terms", new ArrayList<>(passage.terms));
+    if (absoluteCoordinates) {
+      encoded.add("x", (int) passage.x);
+      encoded.add("y", (int) passage.y);
+      encoded.add("width", (int) passage.width);
+      encoded.add("height", (int) passage.height);
+    } else {
+      encoded.add("x", passage.x);
+      encoded.add("y", passage.y);
+      encoded.add("width", passage.width);
+      encoded.add("height", passage.height);
+    }
+    return encoded;
+  }
+
   /**
    * Encode the highlighting result into a format that can be used by upstream users.
    */
-  private NamedList<Object> encodeSnippets(String[] keys, String[] fieldNames, List<Map<String, OcrInfo[]>> ocrInfos) {
+  private NamedList<Object> encodeSnippets(String[] keys, String[] fieldNames, Map<String, PayloadLayout> layouts,
+          List<Map<String, OcrInfo[]>> ocrInfos, List<Map<String, int[]>> bestPages, boolean[] partial,
+          boolean[] truncated, String[] nextCursors, boolean packed) {
     NamedList<Object> list = new SimpleOrderedMap<>();
     for (int i = 0; i < keys.length; i++) {
       NamedList<Object> summary = new SimpleOrderedMap<>();
       Map<String, OcrInfo[]> docBoxes = ocrInfos.get(i);
       for (String field : fieldNames) {
-        summary.add(field,
-                Arrays.stream(docBoxes.get(field)).sorted().map(this::encodeOcrInfo).toArray());
+        if (packed) {
+          OcrInfo[] sorted = Arrays.stream(docBoxes.get(field)).sorted().toArray(OcrInfo[]::new);
+          summary.add(field, PackedHits.pack(sorted, layouts.get(field)));
+        } else {
+          summary.add(field,
+                  Arrays.stream(docBoxes.get(field)).sorted().map(this::encodeOcrInfo).toArray());
+        }
+      }
+      if (!bestPages.get(i).isEmpty()) {
+        NamedList<Object> pages = new SimpleOrderedMap<>();
+        bestPages.get(i).forEach((field, fieldPages) ->
+                pages.add(field, Arrays.stream(fieldPages).boxed().collect(Collectors.toList())));
+        summary.add("bestPages", pages);
+      }
+      if (partial[i]) {
+        summary.add("partialResults", true);
+      }
+      if (truncated[i]) {
+        summary.add("truncated", true);
+      }
+      if (nextCursors[i] != null) {
+        summary.add("nextCursor", nextCursors[i]);
       }
       list.add(keys[i], summary);
     }
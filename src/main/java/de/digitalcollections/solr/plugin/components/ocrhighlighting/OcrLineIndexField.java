@@ -0,0 +1,131 @@
+package de.digitalcollections.solr.plugin.components.ocrhighlighting;
+
+import de.digitalcollections.lucene.analysis.payloads.OcrInfo;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.search.SortField;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.response.TextResponseWriter;
+import org.apache.solr.schema.FieldType;
+import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.uninverting.UninvertingReader;
+
+/**
+ * Field type that keeps the original text of the lines of a document, used to return the text around the hits with
+ * `ocr_hl.context`.
+ *
+ * Takes the same input as the OCR field, usually with a `copyField`: whitespace-separated tokens of the form
+ * `<word><delimiter><OCR information>`, see {@link de.digitalcollections.lucene.analysis.payloads.OcrInfo}. Only the
+ * page, line and word indices are used, the words are kept as they are, without any analysis. Tokens without OCR
+ * information are skipped. The OCR information is parsed like the payloads, so it has to contain the coordinates, too.
+ * The lines are stored in the doc values, see {@link LineIndex}.
+ *
+ * Takes the following configuration parameters:
+ *
+ * `delimiter`
+ * : Delimiting character between the word and its OCR information, `|` by default
+ *
+ * `absoluteCoordinates`
+ * : Whether the coordinates are absolute (integers) or relative (percentages), `false` by default
+ *
+ * Configuration:
+ * ```
+ * <pre>{@code
+ * <fieldType name="ocr_lines" class="de.digitalcollections.solr.plugin.components.ocrhighlighting.OcrLineIndexField"
+ *            indexed="false" stored="false" docValues="true"/>
+ * }</pre>
+ * ```
+ */
+public class OcrLineIndexField extends FieldType {
+
+  private char delimiter = '|';
+  private boolean absoluteCoordinates = false;
+
+  @Override
+  protected void init(IndexSchema schema, Map<String, String> args) {
+    String delimiterArg = args.remove("delimiter");
+    if (delimiterArg != null) {
+      if (delimiterArg.length() != 1) {
+        throw new SolrException(SolrException.ErrorCode.SERVER_ERROR,
+                "delimiter must be a single character, was: '" + delimiterArg + "'");
+      }
+      delimiter = delimiterArg.charAt(0);
+    }
+    absoluteCoordinates = Boolean.parseBoolean(args.remove("absoluteCoordinates"));
+    super.init(schema, args);
+  }
+
+  @Override
+  public void checkSchemaField(SchemaField field) {
+    super.checkSchemaField(field);
+    if (!field.hasDocValues() || field.indexed() || field.stored() || field.multiValued()) {
+      throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, String.format(
+              "Field '%s' needs docValues=\"true\", indexed=\"false\", stored=\"false\" and multiValued=\"false\".",
+              field.getName()));
+    }
+  }
+
+  @Override
+  protected void checkSupportsDocValues() {
+    // The lines are only stored in the doc values
+  }
+
+  @Override
+  public List<IndexableField> createFields(SchemaField field, Object value) {
+    LineIndex.Builder builder = buildIndex(value.toString());
+    List<IndexableField> fields = new ArrayList<>();
+    for (int page : builder.pages()) {
+      for (Map.Entry<Integer, byte[]> part : builder.build(page, PagedDocValues.MAX_PART_BYTES).entrySet()) {
+        fields.add(PagedDocValues.createField(field.getName(), page, part.getKey(), part.getValue()));
+      }
+    }
+    return fields;
+  }
+
+  /**
+   * Parse the OCR text of a document and collect its words by page and line.
+   */
+  LineIndex.Builder buildIndex(String ocrText) {
+    LineIndex.Builder builder = new LineIndex.Builder();
+    for (String token : ocrText.split("\\s+")) {
+      int idx = token.lastIndexOf(delimiter);
+      if (idx > 0) {
+        addWord(builder, token.substring(0, idx), token.substring(idx + 1));
+      }
+    }
+    return builder;
+  }
+
+  private void addWord(LineIndex.Builder builder, String word, String ocrInfo) {
+    OcrInfo info;
+    try {
+      // Parsed like the payloads, the coordinates are of no use for the text
+      info = OcrInfo.parse(ocrInfo, absoluteCoordinates);
+    } catch (IllegalArgumentException e) {
+      throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+              "Could not parse OCR information '" + ocrInfo + "' of word '" + word + "'.", e);
+    }
+    builder.add(word, info.getPageIndex(), info.getLineIndex(), info.getWordIndex());
+  }
+
+  @Override
+  public SortField getSortField(SchemaField field, boolean top) {
+    throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+            "Can't sort on the OCR lines in field '" + field.getName() + "'.");
+  }
+
+  @Override
+  public UninvertingReader.Type getUninversionType(SchemaField sf) {
+    return null;
+  }
+
+  @Override
+  public void write(TextResponseWriter writer, String name, IndexableField f) throws IOException {
+    // The field is never stored
+    writer.writeNull(name);
+  }
+}
@@ -0,0 +1,298 @@
+package de.digitalcollections.solr.plugin.components.ocrhighlighting;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.TermToBytesRefAttribute;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.BytesRef;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.AbstractSolrEventListener;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pre-touches the positions and payloads of frequently queried terms when a new searcher is opened.
+ *
+ * After a commit or a replication, the first highlighting requests would otherwise have to page in the position and
+ * payload data from disk. This listener iterates over the postings of a configured list of hot terms (or the terms
+ * with the highest document frequency) in all segments that are new to the searcher, which loads the data into the
+ * OS page cache before the searcher is registered.
+ *
+ * Takes the following configuration parameters:
+ *
+ * `fields`
+ * : OCR fields to warm (mandatory)
+ *
+ * `terms`
+ * : Hot terms to warm, these are analyzed with the query analyzer of the field
+ *
+ * `termsFile`
+ * : File with one hot term per line, relative to the core's configuration directory
+ *
+ * `topTerms`
+ * : Additionally warm the given number of terms with the highest document frequency in every new segment
+ *
+ * `timeAllowed`
+ * : Maximum time in milliseconds to spend on warming (default: 30000)
+ *
+ * Here is a sample configuration:
+ * ```
+ * <pre>{@code
+ * <listener event="newSearcher"
+ *           class="de.digitalcollections.solr.plugin.components.ocrhighlighting.OcrPayloadWarmer">
+ *   <arr name="fields"><str>ocr_text</str></arr>
+ *   <str name="termsFile">hot_terms.txt</str>
+ *   <int name="topTerms">100</int>
+ *   <int name="timeAllowed">10000</int>
+ * </listener>
+ * }</pre>
+ * ```
+ */
+public class OcrPayloadWarmer extends AbstractSolrEventListener {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(OcrPayloadWarmer.class);
+
+  /** The deadline is checked every 1024 terms while scanning the terms dictionary **/
+  private static final int CHECK_INTERVAL_MASK = 0x3FF;
+
+  private List<String> fieldNames = Collections.emptyList();
+  private List<String> hotTerms = new ArrayList<>();
+  private String termsFile;
+  private int topTerms = 0;
+  private long timeAllowed = 30000;
+
+  public OcrPayloadWarmer(SolrCore core) {
+    super(core);
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public void init(NamedList args) {
+    super.init(args);
+    Object fields = args.get("fields");
+    if (fields instanceof List) {
+      fieldNames = (List<String>) fields;
+    } else if (fields != null) {
+      fieldNames = Collections.singletonList(fields.toString());
+    }
+    Object terms = args.get("terms");
+    if (terms instanceof List) {
+      hotTerms.addAll((List<String>) terms);
+    } else if (terms != null) {
+      hotTerms.add(terms.toString());
+    }
+    Object file = args.get("termsFile");
+    termsFile = file != null ? file.toString() : null;
+    Object top = args.get("topTerms");
+    topTerms = top != null ? Integer.parseInt(top.toString()) : 0;
+    Object time = args.get("timeAllowed");
+    timeAllowed = time != null ? Long.parseLong(time.toString()) : timeAllowed;
+    if (fieldNames.isEmpty()) {
+      throw new IllegalArgumentException("OcrPayloadWarmer needs at least one field, set the 'fields' option.");
+    }
+  }
+
+  @Override
+  public void newSearcher(SolrIndexSearcher newSearcher, SolrIndexSearcher currentSearcher) {
+    warm(newSearcher, currentSearcher);
+  }
+
+  /**
+   * Warm the configured fields in all segments of the new searcher that were not part of the current searcher.
+   *
+   * @return the number of positions that were touched or -1 if the time limit was reached
+   */
+  long warm(SolrIndexSearcher newSearcher, SolrIndexSearcher currentSearcher) {
+    long start = System.nanoTime();
+    long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeAllowed);
+    List<LeafReaderContext> newLeaves = getNewLeaves(newSearcher, currentSearcher);
+    if (newLeaves.isEmpty()) {
+      return 0;
+    }
+
+    List<String> configuredTerms = new ArrayList<>(hotTerms);
+    if (termsFile != null) {
+      try {
+        configuredTerms.addAll(getCore().getResourceLoader().getLines(termsFile));
+      } catch (IOException e) {
+        LOGGER.warn("Could not read hot terms from {}.", termsFile, e);
+      }
+    }
+
+    long numPositions = 0;
+    boolean timedOut = false;
+    outer:
+    for (String fieldName : fieldNames) {
+      Set<BytesRef> fieldTerms;
+      try {
+        fieldTerms = analyzeTerms(newSearcher, fieldName, configuredTerms);
+      } catch (IOException e) {
+        LOGGER.warn("Could not analyze the hot terms for field {}.", fieldName, e);
+        continue;
+      }
+      for (LeafReaderContext leafReaderContext : newLeaves) {
+        try {
+          long touched = warmLeaf(leafReaderContext.reader(), fieldName, fieldTerms, deadline);
+          if (touched < 0) {
+            timedOut = true;
+            break outer;
+          }
+          numPositions += touched;
+        } catch (IOException e) {
+          // Only this segment is affected, the other segments and fields can still be warmed
+          LOGGER.warn("Could not warm OCR payloads of field {} in segment {}.", fieldName, leafReaderContext.ord, e);
+        }
+      }
+    }
+    LOGGER.info("Warmed {} positions in {} new segments in {}ms{}", numPositions, newLeaves.size(),
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), timedOut ? " (time limit reached)" : "");
+    return timedOut ? -1 : numPositions;
+  }
+
+  /**
+   * Determine the segments of the new searcher that were not part of the current searcher.
+   */
+  private List<LeafReaderContext> getNewLeaves(SolrIndexSearcher newSearcher, SolrIndexSearcher currentSearcher) {
+    Set<Object> knownCores = new HashSet<>();
+    if (currentSearcher != null) {
+      for (LeafReaderContext leafReaderContext : currentSearcher.getIndexReader().leaves()) {
+        IndexReader.CacheHelper cacheHelper = leafReaderContext.reader().getCoreCacheHelper();
+        if (cacheHelper != null) {
+          knownCores.add(cacheHelper.getKey());
+        }
+      }
+    }
+    List<LeafReaderContext> newLeaves = new ArrayList<>();
+    for (LeafReaderContext leafReaderContext : newSearcher.getIndexReader().leaves()) {
+      IndexReader.CacheHelper cacheHelper = leafReaderContext.reader().getCoreCacheHelper();
+      if (cacheHelper == null || !knownCores.contains(cacheHelper.getKey())) {
+        newLeaves.add(leafReaderContext);
+      }
+    }
+    return newLeaves;
+  }
+
+  /**
+   * Run the configured hot terms through the query analyzer of the field to obtain their indexed form.
+   */
+  private Set<BytesRef> analyzeTerms(SolrIndexSearcher searcher, String fieldName, List<String> terms)
+          throws IOException {
+    Set<BytesRef> analyzed = new LinkedHashSet<>();
+    SchemaField field = searcher.getSchema().getFieldOrNull(fieldName);
+    if (field == null) {
+      return analyzed;
+    }
+    Analyzer analyzer = field.getType().getQueryAnalyzer();
+    for (String term : terms) {
+      try (TokenStream ts = analyzer.tokenStream(fieldName, term)) {
+        TermToBytesRefAttribute termAtt = ts.addAttribute(TermToBytesRefAttribute.class);
+        ts.reset();
+        while (ts.incrementToken()) {
+          analyzed.add(BytesRef.deepCopyOf(termAtt.getBytesRef()));
+        }
+        ts.end();
+      }
+    }
+    return analyzed;
+  }
+
+  /**
+   * Iterate over all positions and payloads of the hot terms and the top terms of a field in a segment.
+   *
+   * A single terms enum is used to look up all terms and its postings enum is reused from term to term.
+   *
+   * @return the number of positions that were touched or -1 if the deadline has passed
+   */
+  private long warmLeaf(LeafReader reader, String fieldName, Set<BytesRef> fieldTerms, long deadline)
+          throws IOException {
+    Terms terms = reader.terms(fieldName);
+    if (terms == null || !terms.hasPayloads()) {
+      return 0;
+    }
+    Set<BytesRef> leafTerms = new LinkedHashSet<>(fieldTerms);
+    if (topTerms > 0) {
+      List<BytesRef> top = getTopTerms(terms, topTerms, deadline);
+      if (top == null) {
+        return -1;
+      }
+      leafTerms.addAll(top);
+    }
+    TermsEnum termsEnum = terms.iterator();
+    PostingsEnum postingsEnum = null;
+    long numPositions = 0;
+    for (BytesRef term : leafTerms) {
+      if (!termsEnum.seekExact(term)) {
+        continue;
+      }
+      postingsEnum = termsEnum.postings(postingsEnum, PostingsEnum.PAYLOADS);
+      for (int docId = postingsEnum.nextDoc(); docId != DocIdSetIterator.NO_MORE_DOCS;
+           docId = postingsEnum.nextDoc()) {
+        if (System.nanoTime() - deadline >= 0) {
+          return -1;
+        }
+        int freq = postingsEnum.freq();
+        for (int i = 0; i < freq; i++) {
+          postingsEnum.nextPosition();
+          postingsEnum.getPayload();
+        }
+        numPositions += freq;
+      }
+    }
+    return numPositions;
+  }
+
+  /**
+   * Find the terms with the highest document frequency in a segment.
+   *
+   * @return the terms or null if the deadline has passed before the whole terms dictionary was scanned
+   */
+  private List<BytesRef> getTopTerms(Terms terms, int numTerms, long deadline) throws IOException {
+    PriorityQueue<TermFreq> queue = new PriorityQueue<>(numTerms, Comparator.comparingInt(t -> t.docFreq));
+    TermsEnum termsEnum = terms.iterator();
+    int numScanned = 0;
+    for (BytesRef term = termsEnum.next(); term != null; term = termsEnum.next()) {
+      if ((++numScanned & CHECK_INTERVAL_MASK) == 0 && System.nanoTime() - deadline >= 0) {
+        return null;
+      }
+      int docFreq = termsEnum.docFreq();
+      if (queue.size() < numTerms) {
+        queue.add(new TermFreq(BytesRef.deepCopyOf(term), docFreq));
+      } else if (queue.peek().docFreq < docFreq) {
+        queue.poll();
+        queue.add(new TermFreq(BytesRef.deepCopyOf(term), docFreq));
+      }
+    }
+    List<BytesRef> top = new ArrayList<>(queue.size());
+    queue.forEach(t -> top.add(t.term));
+    return top;
+  }
+
+  private static class TermFreq {
+    private final BytesRef term;
+    private final int docFreq;
+
+    TermFreq(BytesRef term, int docFreq) {
+      this.term = term;
+      this.docFreq = docFreq;
+    }
+  }
+}
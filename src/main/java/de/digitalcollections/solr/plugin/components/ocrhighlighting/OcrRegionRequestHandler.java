@@ -0,0 +1,178 @@
+package de.digitalcollections.solr.plugin.components.ocrhighlighting;
+
+import java.util.Collections;
+import java.util.List;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.common.util.StrUtils;
+import org.apache.solr.handler.RequestHandlerBase;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.search.SolrIndexSearcher;
+
+/**
+ * Request handler that returns the words in a rectangular region of a page, e.g. to copy the text of a region that
+ * was selected in a viewer.
+ *
+ * The words are looked up in the spatial index of an {@link OcrBoxIndexField}, which only reads the boxes in the
+ * grid cells that intersect the region. All words whose boxes intersect the region are returned in reading order,
+ * along with their text joined into lines.
+ *
+ * Takes the following request parameters:
+ *
+ * `id`
+ * : Unique key of the document (mandatory)
+ *
+ * `page`
+ * : Index of the page, can be left out for documents without page indices
+ *
+ * `region`
+ * : The region as `x,y,width,height` (mandatory), in the units of the coordinates of the highlighting, i.e. pixels
+ *   for absolute coordinates and fractions of the page size for relative coordinates
+ *
+ * `field`
+ * : Field with the box index, defaults to the `field` of the configuration
+ *
+ * Configuration:
+ * ```
+ * <pre>{@code
+ * <requestHandler name="/ocr_region"
+ *                 class="de.digitalcollections.solr.plugin.components.ocrhighlighting.OcrRegionRequestHandler">
+ *   <str name="field">ocr_boxes</str>
+ * </requestHandler>
+ * }</pre>
+ * ```
+ */
+public class OcrRegionRequestHandler extends RequestHandlerBase {
+
+  private String defaultField;
+
+  @Override
+  public void init(NamedList args) {
+    super.init(args);
+    Object field = args.get("field");
+    if (field != null) {
+      defaultField = field.toString();
+    }
+  }
+
+  @Override
+  public void handleRequestBody(SolrQueryRequest req, SolrQueryResponse rsp) throws Exception {
+    SolrParams params = req.getParams();
+    String id = params.get("id");
+    if (id == null) {
+      throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+              "Missing document identifier, pass it with the 'id' parameter.");
+    }
+    int page = params.getInt("page", -1);
+    float[] region = parseRegion(params.get("region"));
+    String fieldName = params.get("field", defaultField);
+    SolrIndexSearcher searcher = req.getSearcher();
+    SchemaField field = fieldName != null ? searcher.getSchema().getFieldOrNull(fieldName) : null;
+    if (field == null || !(field.getType() instanceof OcrBoxIndexField)) {
+      throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+              "Missing or invalid field '" + fieldName + "', pass an OcrBoxIndexField with the 'field' parameter.");
+    }
+    SchemaField keyField = searcher.getSchema().getUniqueKeyField();
+    if (keyField == null) {
+      throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "Schema needs to have a unique key field.");
+    }
+
+    BytesRefBuilder indexedId = new BytesRefBuilder();
+    keyField.getType().readableToIndexed(id, indexedId);
+    int docId = searcher.getFirstMatch(new Term(keyField.getName(), indexedId.get()));
+    if (docId < 0) {
+      throw new SolrException(SolrException.ErrorCode.NOT_FOUND, "No document with id '" + id + "'.");
+    }
+    List<LeafReaderContext> leaves = searcher.getIndexReader().leaves();
+    LeafReaderContext leaf = leaves.get(ReaderUtil.subIndex(docId, leaves));
+    // Only the index of the requested page is read
+    BoxIndex pageIndex = BoxIndex.open(leaf.reader(), fieldName, docId - leaf.docBase, page);
+    List<BoxIndex.Box> boxes = pageIndex != null
+            ? pageIndex.lookup(region[0], region[1], region[2], region[3])
+            : Collections.emptyList();
+
+    boolean absolute = ((OcrBoxIndexField) field.getType()).hasAbsoluteCoordinates();
+    NamedList<Object> result = new SimpleOrderedMap<>();
+    result.add("id", id);
+    if (page >= 0) {
+      result.add("page", page);
+    }
+    result.add("text", joinText(boxes));
+    result.add("words", boxes.stream().map(box -> encodeBox(box, absolute)).toArray());
+    rsp.add("ocr_region", result);
+  }
+
+  /**
+   * Parse a region of the form `x,y,width,height`.
+   */
+  private float[] parseRegion(String region) {
+    if (region == null) {
+      throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+              "Missing region, pass it as 'x,y,width,height' with the 'region' parameter.");
+    }
+    List<String> parts = StrUtils.splitSmart(region, ',');
+    try {
+      if (parts.size() != 4) {
+        throw new NumberFormatException();
+      }
+      float[] parsed = new float[4];
+      for (int i = 0; i < 4; i++) {
+        parsed[i] = Float.parseFloat(parts.get(i).trim());
+      }
+      return parsed;
+    } catch (NumberFormatException e) {
+      throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+              "Invalid region '" + region + "', must be of the form 'x,y,width,height'.", e);
+    }
+  }
+
+  /**
+   * Join the words into text, with a line break between words on different lines.
+   */
+  private String joinText(List<BoxIndex.Box> boxes) {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < boxes.size(); i++) {
+      if (i > 0) {
+        text.append(boxes.get(i).line != boxes.get(i - 1).line ? '\n' : ' ');
+      }
+      text.append(boxes.get(i).text);
+    }
+    return text.toString();
+  }
+
+  private NamedList<Object> encodeBox(BoxIndex.Box box, boolean absoluteCoordinates) {
+    NamedList<Object> encoded = new SimpleOrderedMap<>();
+    encoded.add("text", box.text);
+    if (box.line >= 0) {
+      encoded.add("line", box.line);
+    }
+    if (box.word >= 0) {
+      encoded.add("word", box.word);
+    }
+    if (absoluteCoordinates) {
+      encoded.add("x", (int) box.x);
+      encoded.add("y", (int) box.y);
+      encoded.add("width", (int) box.width);
+      encoded.add("height", (int) box.height);
+    } else {
+      encoded.add("x", box.x);
+      encoded.add("y", box.y);
+      encoded.add("width", box.width);
+      encoded.add("height", box.height);
+    }
+    return encoded;
+  }
+
+  @Override
+  public String getDescription() {
+    return "Retrieves the words in a region of a page";
+  }
+}
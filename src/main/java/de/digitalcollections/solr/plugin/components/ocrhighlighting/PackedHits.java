@@ -0,0 +1,126 @@
+package de.digitalcollections.solr.plugin.components.ocrhighlighting;
+
+import de.digitalcollections.lucene.analysis.payloads.OcrInfo;
+import de.digitalcollections.lucene.analysis.payloads.OcrPayloadHelper;
+import de.digitalcollections.lucene.analysis.payloads.PayloadLayout;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.lucene.util.BytesRef;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+
+/**
+ * Compact binary representation of the hits in a field of a document.
+ *
+ * Used to transport the highlighting from the shards to the coordinator in SolrCloud and for clients that want to
+ * decode the hits on their own. Consists of two entries:
+ *
+ * `terms`
+ * : Dictionary of all terms that occur in the hits
+ *
+ * `hits`
+ * : Packed hits, every hit consists of the index of its term in the dictionary (two bytes, big endian), followed by
+ *   its OCR information in the payload format (see {@link OcrPayloadHelper#encodeOcrInfo(OcrInfo, int, int, int, int)}),
+ *   left-padded with null-bytes to the full payload length. Payloads in the variable-width format (see
+ *   {@link OcrPayloadHelper#encodeVariableWidth}) are self-delimiting and are stored without padding.
+ */
+class PackedHits {
+
+  private static final int TERM_ORD_LENGTH = 2;
+
+  private PackedHits() {
+    // Cannot be instantiated, is only here for the static methods
+  }
+
+  /**
+   * Pack the hits into their compact binary representation.
+   *
+   * @param infos Hits to pack
+   * @param layout Layout to encode the OCR information with
+   * @return NamedList with the term dictionary and the packed hits
+   */
+  static NamedList<Object> pack(OcrInfo[] infos, PayloadLayout layout) {
+    int maxRecordLength = TERM_ORD_LENGTH + layout.getPayloadLength();
+    Map<String, Integer> termOrds = new LinkedHashMap<>();
+    byte[] data = new byte[infos.length * maxRecordLength];
+    int offset = 0;
+    for (int i = 0; i < infos.length; i++) {
+      int termOrd = termOrds.computeIfAbsent(infos[i].getTerm(), t -> termOrds.size());
+      if (termOrd > 0xFFFF) {
+        throw new IllegalStateException("Too many distinct terms to pack, at most 65536 are supported.");
+      }
+      data[offset] = (byte) (termOrd >>> 8);
+      data[offset + 1] = (byte) termOrd;
+      byte[] payload = layout.encodeOcrInfo(infos[i]);
+      int recordLength = layout.isFixedWidth() ? maxRecordLength : TERM_ORD_LENGTH + payload.length;
+      System.arraycopy(payload, 0, data, offset + recordLength - payload.length, payload.length);
+      offset += recordLength;
+    }
+    NamedList<Object> packed = new SimpleOrderedMap<>();
+    packed.add("terms", new ArrayList<>(termOrds.keySet()));
+    packed.add("hits", offset < data.length ? Arrays.copyOf(data, offset) : data);
+    return packed;
+  }
+
+  /**
+   * Check if a highlighting value is in the packed representation.
+   */
+  static boolean isPacked(Object value) {
+    return value instanceof NamedList && ((NamedList<?>) value).get("hits") instanceof byte[];
+  }
+
+  /**
+   * Unpack hits from their compact binary representation.
+   *
+   * @param packed NamedList with the term dictionary and the packed hits, as created by {@link #pack}
+   * @param layout Layout the OCR information was encoded with
+   * @return The unpacked hits
+   */
+  static OcrInfo[] unpack(NamedList<?> packed, PayloadLayout layout) {
+    byte[] data = (byte[]) packed.get("hits");
+    List<OcrInfo> infos = new ArrayList<>(data.length / (TERM_ORD_LENGTH + layout.getPayloadLength()));
+    try {
+      forEach(packed, layout, infos::add);
+    } catch (IOException e) {
+      // Collecting into a list doesn't do any I/O
+      throw new UncheckedIOException(e);
+    }
+    return infos.toArray(new OcrInfo[0]);
+  }
+
+  /**
+   * Decode the packed hits one by one, without collecting them first.
+   *
+   * @param packed  NamedList with the term dictionary and the packed hits, as created by {@link #pack}
+   * @param layout  Layout the OCR information was encoded with
+   * @param visitor Called with every hit, in the order they were packed
+   */
+  static void forEach(NamedList<?> packed, PayloadLayout layout, HitVisitor visitor) throws IOException {
+    Object terms = packed.get("terms");
+    List<?> termList = terms instanceof Object[] ? Arrays.asList((Object[]) terms) : (List<?>) terms;
+    byte[] data = (byte[]) packed.get("hits");
+    BytesRef payload = new BytesRef(data, 0, 0);
+    int offset = 0;
+    while (offset < data.length) {
+      int termOrd = ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+      payload.offset = offset + TERM_ORD_LENGTH;
+      payload.length = layout.getPayloadLength(data, payload.offset);
+      OcrInfo info = layout.decodeOcrInfo(payload);
+      info.setTerm(termList.get(termOrd).toString());
+      visitor.visit(info);
+      offset = payload.offset + payload.length;
+    }
+  }
+
+  /**
+   * Receives the hits decoded by {@link #forEach}.
+   */
+  interface HitVisitor {
+    void visit(OcrInfo info) throws IOException;
+  }
+}
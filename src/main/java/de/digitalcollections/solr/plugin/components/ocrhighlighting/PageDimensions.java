@@ -0,0 +1,126 @@
+package de.digitalcollections.solr.plugin.components.ocrhighlighting;
+
+import de.digitalcollections.lucene.analysis.payloads.OcrInfo;
+import java.io.IOException;
+import java.util.List;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Width and height of every page of a document, as stored in the doc values of a {@link PageDimensionsField}.
+ *
+ * The table is a single byte with the number of bytes per value, followed by the width and height of every page
+ * index from 0 to the highest page index of the document, as big-endian unsigned integers. The dimensions of a page
+ * are thus found at a fixed offset, pages without dimensions have a width and height of 0.
+ */
+final class PageDimensions {
+
+  private static final PageDimensions EMPTY = new PageDimensions(new byte[]{1}, 0, 1);
+
+  private final byte[] bytes;
+  private final int offset;
+  private final int length;
+  private final int bytesPerValue;
+
+  private PageDimensions(byte[] bytes, int offset, int length) {
+    this.bytes = bytes;
+    this.offset = offset;
+    this.length = length;
+    this.bytesPerValue = length > 0 ? bytes[offset] : 1;
+  }
+
+  /**
+   * Encode the dimensions of the pages of a document.
+   *
+   * @param pages       Page indices
+   * @param widths      Widths of the pages, in the same order as the page indices
+   * @param heights     Heights of the pages, in the same order as the page indices
+   * @return the encoded table
+   */
+  static byte[] encode(int[] pages, int[] widths, int[] heights) {
+    int maxPage = -1;
+    int maxValue = 0;
+    for (int i = 0; i < pages.length; i++) {
+      maxPage = Math.max(maxPage, pages[i]);
+      maxValue = Math.max(maxValue, Math.max(widths[i], heights[i]));
+    }
+    int bytesPerValue = Math.max(1, (32 - Integer.numberOfLeadingZeros(maxValue) + 7) / 8);
+    byte[] encoded = new byte[1 + (maxPage + 1) * 2 * bytesPerValue];
+    encoded[0] = (byte) bytesPerValue;
+    for (int i = 0; i < pages.length; i++) {
+      int entry = 1 + pages[i] * 2 * bytesPerValue;
+      writeValue(encoded, entry, bytesPerValue, widths[i]);
+      writeValue(encoded, entry + bytesPerValue, bytesPerValue, heights[i]);
+    }
+    return encoded;
+  }
+
+  private static void writeValue(byte[] bytes, int offset, int bytesPerValue, int value) {
+    for (int i = bytesPerValue - 1; i >= 0; i--) {
+      bytes[offset + i] = (byte) value;
+      value >>>= 8;
+    }
+  }
+
+  /**
+   * Read the page dimensions of a document.
+   *
+   * @return the page dimensions, without any pages if the document has none
+   */
+  static PageDimensions read(IndexReader reader, int docId, String fieldName) throws IOException {
+    List<LeafReaderContext> leaves = reader.leaves();
+    LeafReaderContext leaf = leaves.get(ReaderUtil.subIndex(docId, leaves));
+    BinaryDocValues docValues = DocValues.getBinary(leaf.reader(), fieldName);
+    if (!docValues.advanceExact(docId - leaf.docBase)) {
+      return EMPTY;
+    }
+    // The doc values reuse their buffer for the next document
+    BytesRef value = BytesRef.deepCopyOf(docValues.binaryValue());
+    return new PageDimensions(value.bytes, value.offset, value.length);
+  }
+
+  int getWidth(int pageIndex) {
+    return readValue(pageIndex, 0);
+  }
+
+  int getHeight(int pageIndex) {
+    return readValue(pageIndex, 1);
+  }
+
+  private int readValue(int pageIndex, int dimension) {
+    int entry = 1 + (pageIndex * 2 + dimension) * bytesPerValue;
+    if (pageIndex < 0 || entry + bytesPerValue > length) {
+      return 0;
+    }
+    int value = 0;
+    for (int i = 0; i < bytesPerValue; i++) {
+      value = (value << 8) | (bytes[offset + entry + i] & 0xFF);
+    }
+    return value;
+  }
+
+  /**
+   * Scale the relative coordinates of hits to pixels, in place.
+   *
+   * Hits with absolute coordinates and hits on pages without dimensions are left alone.
+   */
+  void scale(OcrInfo[] infos) {
+    for (OcrInfo info : infos) {
+      int width = getWidth(info.getPageIndex());
+      int height = getHeight(info.getPageIndex());
+      if (info.getHasAbsoluteCoordinates() || width == 0 || height == 0) {
+        continue;
+      }
+      // Relative coordinates are fractions of the page size, the flag has to be set first to allow larger values
+      info.setHasAbsoluteCoordinates(true);
+      info.setHorizontalOffset(Math.round(info.getHorizontalOffset() * width));
+      info.setVerticalOffset(Math.round(info.getVerticalOffset() * height));
+      info.setWidth(Math.round(info.getWidth() * width));
+      info.setHeight(Math.round(info.getHeight() * height));
+    }
+  }
+}
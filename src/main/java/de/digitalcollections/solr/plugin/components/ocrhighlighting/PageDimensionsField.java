@@ -0,0 +1,109 @@
+package de.digitalcollections.solr.plugin.components.ocrhighlighting;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.util.BytesRef;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.util.StrUtils;
+import org.apache.solr.response.TextResponseWriter;
+import org.apache.solr.schema.FieldType;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.uninverting.UninvertingReader;
+
+/**
+ * Field type for the width and height of the pages of a document, used to scale relative coordinates to pixels with
+ * `ocr_hl.scale=pixels`.
+ *
+ * The value is a whitespace-separated list of `<page index>:<width>x<height>` entries, e.g.
+ * `0:2480x3508 1:2480x3508 2:2500x3500`. It is stored in the doc values as a table with the dimensions of every page
+ * at a fixed offset, see {@link PageDimensions}, so the dimensions of the page of a hit are looked up in constant
+ * time. The field has to have doc values and can't be indexed.
+ *
+ * Configuration:
+ * ```
+ * <pre>{@code
+ * <fieldType name="page_dimensions"
+ *            class="de.digitalcollections.solr.plugin.components.ocrhighlighting.PageDimensionsField"
+ *            indexed="false" stored="false" docValues="true"/>
+ * }</pre>
+ * ```
+ */
+public class PageDimensionsField extends FieldType {
+
+  @Override
+  public void checkSchemaField(SchemaField field) {
+    super.checkSchemaField(field);
+    if (!field.hasDocValues() || field.indexed() || field.multiValued()) {
+      throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, String.format(
+              "Field '%s' needs docValues=\"true\", indexed=\"false\" and multiValued=\"false\".", field.getName()));
+    }
+  }
+
+  @Override
+  protected void checkSupportsDocValues() {
+    // The dimensions are only stored in the doc values
+  }
+
+  @Override
+  public List<IndexableField> createFields(SchemaField field, Object value) {
+    String dimensions = value.toString();
+    List<IndexableField> fields = new ArrayList<>(2);
+    fields.add(new BinaryDocValuesField(field.getName(), new BytesRef(parse(dimensions))));
+    if (field.stored()) {
+      fields.add(new StoredField(field.getName(), dimensions));
+    }
+    return fields;
+  }
+
+  /**
+   * Parse the page dimensions of a document into their doc values representation.
+   */
+  static byte[] parse(String dimensions) {
+    List<String> entries = StrUtils.splitWS(dimensions, false);
+    int[] pages = new int[entries.size()];
+    int[] widths = new int[entries.size()];
+    int[] heights = new int[entries.size()];
+    for (int i = 0; i < entries.size(); i++) {
+      String entry = entries.get(i);
+      int colon = entry.indexOf(':');
+      int times = entry.indexOf('x', colon + 1);
+      try {
+        if (colon < 0 || times < 0) {
+          throw new NumberFormatException();
+        }
+        pages[i] = Integer.parseInt(entry.substring(0, colon));
+        widths[i] = Integer.parseInt(entry.substring(colon + 1, times));
+        heights[i] = Integer.parseInt(entry.substring(times + 1));
+      } catch (NumberFormatException e) {
+        throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+                "Invalid page dimensions '" + entry + "', must be of the form '<page index>:<width>x<height>'.", e);
+      }
+      if (pages[i] < 0 || widths[i] < 0 || heights[i] < 0) {
+        throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+                "Invalid page dimensions '" + entry + "', page index and dimensions can't be negative.");
+      }
+    }
+    return PageDimensions.encode(pages, widths, heights);
+  }
+
+  @Override
+  public SortField getSortField(SchemaField field, boolean top) {
+    throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+            "Can't sort on the page dimensions in field '" + field.getName() + "'.");
+  }
+
+  @Override
+  public UninvertingReader.Type getUninversionType(SchemaField sf) {
+    return null;
+  }
+
+  @Override
+  public void write(TextResponseWriter writer, String name, IndexableField f) throws IOException {
+    writer.writeStr(name, f.stringValue(), true);
+  }
+}
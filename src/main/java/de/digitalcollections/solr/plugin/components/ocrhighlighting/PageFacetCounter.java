@@ -0,0 +1,160 @@
+package de.digitalcollections.solr.plugin.components.ocrhighlighting;
+
+import com.carrotsearch.hppc.IntIntHashMap;
+import com.carrotsearch.hppc.cursors.IntIntCursor;
+import de.digitalcollections.lucene.analysis.payloads.PayloadLayout;
+import de.digitalcollections.lucene.codecs.OcrPayloadPostingsEnum;
+import de.digitalcollections.lucene.jfr.OcrEvents;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.BytesRef;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.search.DocSet;
+
+/**
+ * Counts the number of query term hits per page across all documents of a {@link DocSet}.
+ *
+ * Unlike the regular highlighting, this walks the postings of every matching document, not just the ones that are
+ * returned to the user. To keep this cheap, only the page bits are decoded from the payloads and the counts are
+ * accumulated into primitive maps.
+ */
+class PageFacetCounter {
+
+  private final PayloadLayout layout;
+
+  PageFacetCounter(PayloadLayout layout) {
+    this.layout = layout;
+  }
+
+  /**
+   * Count the hits per page for all documents in the set.
+   *
+   * @param reader A reader into the search index
+   * @param docs Set of documents to count the hits for
+   * @param fieldName Field to obtain the OCR information from
+   * @param termSet Set of matching terms
+   * @param minConfidence Raw confidence threshold from {@link PayloadLayout#getConfidenceThreshold}, 0 to count
+   *                      all hits
+   * @return Mapping from page indices to the number of hits on these pages
+   * @throws IOException Error during retrieval from index
+   */
+  IntIntHashMap count(IndexReader reader, DocSet docs, String fieldName, Set<BytesRef> termSet, int minConfidence)
+          throws IOException {
+    Object event = OcrEvents.beginBulkDecode(fieldName);
+    int numDocs = 0;
+    long numPayloads = 0;
+    long numPacked = 0;
+    IntIntHashMap counts = new IntIntHashMap();
+    long[] lowBits = new long[OcrPayloadPostingsEnum.BLOCK_SIZE];
+    long[] highBits = new long[OcrPayloadPostingsEnum.BLOCK_SIZE];
+    PostingsEnum postingsEnum = null;
+    for (LeafReaderContext leafReaderContext : reader.leaves()) {
+      final Terms terms = leafReaderContext.reader().terms(fieldName);
+      if (terms == null || !terms.hasPositions() || !terms.hasPayloads()) {
+        continue;
+      }
+      final TermsEnum termsEnum = terms.iterator();
+      for (BytesRef term : termSet) {
+        if (!termsEnum.seekExact(term)) {
+          continue;
+        }
+        postingsEnum = termsEnum.postings(postingsEnum, PostingsEnum.PAYLOADS);
+        for (int docId = postingsEnum.nextDoc(); docId != DocIdSetIterator.NO_MORE_DOCS;
+                docId = postingsEnum.nextDoc()) {
+          if (!docs.exists(leafReaderContext.docBase + docId)) {
+            continue;
+          }
+          numDocs++;
+          if (postingsEnum instanceof OcrPayloadPostingsEnum) {
+            numPacked += countPacked((OcrPayloadPostingsEnum) postingsEnum, counts, minConfidence, lowBits,
+                    highBits);
+            continue;
+          }
+          final int freq = postingsEnum.freq();
+          numPayloads += freq;
+          for (int i = 0; i < freq; i++) {
+            postingsEnum.nextPosition();
+            BytesRef payload = postingsEnum.getPayload();
+            if (layout.isConfident(payload, minConfidence)) {
+              counts.addTo(layout.decodePageIndex(payload), 1);
+            }
+          }
+        }
+      }
+    }
+    OcrEvents.endBulkDecode(event, numDocs, numPayloads + numPacked, numPacked);
+    return counts;
+  }
+
+  /**
+   * Count the hits of the current document from payloads that were packed by the
+   * {@link de.digitalcollections.lucene.codecs.OcrPayloadPostingsFormat}, a block at a time and without turning them
+   * into bytes.
+   *
+   * @return the number of payloads that were decoded
+   */
+  private long countPacked(OcrPayloadPostingsEnum postingsEnum, IntIntHashMap counts, int minConfidence,
+          long[] lowBits, long[] highBits) {
+    long numDecoded = 0;
+    for (int numPayloads = postingsEnum.nextPayloads(lowBits, highBits); numPayloads > 0;
+            numPayloads = postingsEnum.nextPayloads(lowBits, highBits)) {
+      for (int i = 0; i < numPayloads; i++) {
+        if (layout.isConfident(lowBits[i], minConfidence)) {
+          counts.addTo(layout.decodePageIndex(lowBits[i], highBits[i]), 1);
+        }
+      }
+      numDecoded += numPayloads;
+    }
+    return numDecoded;
+  }
+
+  /**
+   * Add the counts from a shard response to the accumulated counts.
+   */
+  static void merge(IntIntHashMap target, NamedList<?> shardCounts) {
+    for (Map.Entry<String, ?> entry : shardCounts) {
+      target.addTo(Integer.parseInt(entry.getKey()), ((Number) entry.getValue()).intValue());
+    }
+  }
+
+  /**
+   * Encode the counts into a format that can be used by upstream users.
+   *
+   * @param counts Mapping from page indices to the number of hits on these pages
+   * @param limit Maximum number of pages to return, negative values disable the limit
+   * @param mincount Minimum number of hits a page needs to be returned
+   * @param sortByCount Sort by descending number of hits if true, by ascending page index otherwise
+   * @return NamedList with `(page index, number of hits)` pairs
+   */
+  static NamedList<Integer> format(IntIntHashMap counts, int limit, int mincount, boolean sortByCount) {
+    // Pack count and page into a single long so we can sort without boxing, the count is inverted in the upper
+    // 32 bits to obtain a descending order by count and an ascending order by page index for ties
+    long[] entries = new long[counts.size()];
+    int numEntries = 0;
+    for (IntIntCursor cursor : counts) {
+      if (cursor.value < mincount) {
+        continue;
+      }
+      long sortKey = sortByCount ? Integer.MAX_VALUE - cursor.value : 0;
+      entries[numEntries++] = (sortKey << 32) | (cursor.key & 0xFFFFFFFFL);
+    }
+    Arrays.sort(entries, 0, numEntries);
+
+    int numReturned = limit < 0 ? numEntries : Math.min(limit, numEntries);
+    NamedList<Integer> formatted = new SimpleOrderedMap<>();
+    for (int i = 0; i < numReturned; i++) {
+      int page = (int) entries[i];
+      formatted.add(Integer.toString(page), counts.get(page));
+    }
+    return formatted;
+  }
+}
@@ -0,0 +1,224 @@
+package de.digitalcollections.solr.plugin.components.ocrhighlighting;
+
+import de.digitalcollections.lucene.analysis.payloads.PayloadLayout;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Determines the pages of a document with the highest density of hits.
+ *
+ * The hits of all matching terms are visited in document order, which only requires decoding the page and line
+ * index from the payloads. Since the positions of a page are contiguous, every page can be scored as soon as the
+ * first hit on the next page shows up, so only the statistics of the current page and the top pages are kept in
+ * memory, no matter how many hits the document has.
+ *
+ * The score of a page is the sum of
+ *
+ * - the number of hits on the page
+ * - twice the number of distinct terms on the page
+ * - the number of hits that are on the same line as the preceding hit
+ *
+ * Ties are broken in favor of the earlier page.
+ */
+class PageRanker {
+
+  private static final int DIVERSITY_WEIGHT = 2;
+  private static final int PROXIMITY_WEIGHT = 1;
+
+  private final PayloadLayout layout;
+
+  PageRanker(PayloadLayout layout) {
+    this.layout = layout;
+  }
+
+  /**
+   * Rank the pages of a document by the density of their hits.
+   *
+   * @param leafReader Reader for the segment the document is in
+   * @param docId Identifier of the document, relative to the segment
+   * @param fieldName Field to obtain OCR information from
+   * @param termSet Set of matching terms
+   * @param numPages Maximum number of pages to return
+   * @param pageRange First and last page to consider, null to consider all pages
+   * @param minConfidence Raw confidence threshold from {@link PayloadLayout#getConfidenceThreshold}, 0 to consider
+   *                      all hits
+   * @param deadline Deadline for the highlighting, ranking ends early once it has passed
+   * @return Indices of the best pages, best page first
+   * @throws IOException Error during retrieval from index
+   */
+  int[] rank(LeafReader leafReader, int docId, String fieldName, Set<BytesRef> termSet, int numPages,
+          int[] pageRange, int minConfidence, HighlightDeadline deadline) throws IOException {
+    final Terms terms = leafReader.terms(fieldName);
+    if (layout.getPageBits() <= 0 || numPages <= 0 || terms == null || !terms.hasPositions()
+            || !terms.hasPayloads()) {
+      return new int[0];
+    }
+
+    final TermsEnum termsEnum = terms.iterator();
+    List<PayloadReader> readers = new ArrayList<>(termSet.size());
+    for (BytesRef term : termSet) {
+      if (!termsEnum.seekExact(term)) {
+        continue;
+      }
+      PostingsEnum postingsEnum = termsEnum.postings(null, PostingsEnum.PAYLOADS);
+      if (docId == postingsEnum.advance(docId)) {
+        readers.add(new PayloadReader(layout).reset(postingsEnum));
+      }
+    }
+
+    int[] positions = new int[readers.size()];
+    for (int i = 0; i < positions.length; i++) {
+      positions[i] = readers.get(i).nextPosition();
+    }
+
+    TopPages topPages = new TopPages(numPages);
+    int currentPage = -1;
+    int previousLine = -1;
+    int numHits = 0;
+    int numSameLine = 0;
+    long termMask = 0;
+    while (positions.length > 0 && !deadline.checkExpired()) {
+      int next = 0;
+      for (int i = 1; i < positions.length; i++) {
+        if (positions[i] < positions[next]) {
+          next = i;
+        }
+      }
+      if (positions[next] == PayloadReader.NO_MORE_POSITIONS) {
+        break;
+      }
+      // The payload is only valid until the reader is advanced
+      PayloadReader payload = readers.get(next);
+      boolean confident = payload.isConfident(minConfidence);
+      int page = payload.pageIndex();
+      int line = payload.lineIndex();
+      positions[next] = payload.nextPosition();
+      if (!confident || (pageRange != null && (page < pageRange[0] || page > pageRange[1]))) {
+        continue;
+      }
+      if (page != currentPage) {
+        if (numHits > 0) {
+          topPages.offer(currentPage, score(numHits, termMask, numSameLine));
+        }
+        currentPage = page;
+        previousLine = -1;
+        numHits = 0;
+        numSameLine = 0;
+        termMask = 0;
+      }
+      if (line >= 0 && line == previousLine) {
+        numSameLine++;
+      }
+      previousLine = line;
+      numHits++;
+      // Terms beyond the 64th share a bit, which only underestimates the diversity of very long queries
+      termMask |= 1L << Math.min(next, 63);
+    }
+    if (numHits > 0) {
+      topPages.offer(currentPage, score(numHits, termMask, numSameLine));
+    }
+    return topPages.toSortedArray();
+  }
+
+  private static int score(int numHits, long termMask, int numSameLine) {
+    return numHits + DIVERSITY_WEIGHT * Long.bitCount(termMask) + PROXIMITY_WEIGHT * numSameLine;
+  }
+
+  /**
+   * Bounded min-heap of pages and their scores, backed by primitive arrays.
+   *
+   * The root is the worst page that is currently retained, it is replaced when a better page is offered.
+   */
+  static class TopPages {
+    private final int[] pages;
+    private final int[] scores;
+    private int size = 0;
+
+    TopPages(int capacity) {
+      this.pages = new int[capacity];
+      this.scores = new int[capacity];
+    }
+
+    void offer(int page, int score) {
+      // A page can only show up again if its positions are not contiguous, merge its scores in that case
+      for (int i = 0; i < size; i++) {
+        if (pages[i] == page) {
+          scores[i] += score;
+          siftDown(i);
+          return;
+        }
+      }
+      if (size < pages.length) {
+        pages[size] = page;
+        scores[size] = score;
+        siftUp(size++);
+      } else if (size > 0 && isWorse(pages[0], scores[0], page, score)) {
+        pages[0] = page;
+        scores[0] = score;
+        siftDown(0);
+      }
+    }
+
+    /**
+     * Get the retained pages, best page first. Empties the heap.
+     */
+    int[] toSortedArray() {
+      int[] sorted = new int[size];
+      for (int i = sorted.length - 1; i >= 0; i--) {
+        sorted[i] = pages[0];
+        size--;
+        pages[0] = pages[size];
+        scores[0] = scores[size];
+        siftDown(0);
+      }
+      return sorted;
+    }
+
+    private static boolean isWorse(int pageA, int scoreA, int pageB, int scoreB) {
+      return scoreA < scoreB || (scoreA == scoreB && pageA > pageB);
+    }
+
+    private void siftUp(int idx) {
+      while (idx > 0) {
+        int parent = (idx - 1) / 2;
+        if (!isWorse(pages[idx], scores[idx], pages[parent], scores[parent])) {
+          break;
+        }
+        swap(idx, parent);
+        idx = parent;
+      }
+    }
+
+    private void siftDown(int idx) {
+      while (true) {
+        int worst = idx;
+        for (int child = 2 * idx + 1; child <= 2 * idx + 2 && child < size; child++) {
+          if (isWorse(pages[child], scores[child], pages[worst], scores[worst])) {
+            worst = child;
+          }
+        }
+        if (worst == idx) {
+          return;
+        }
+        swap(idx, worst);
+        idx = worst;
+      }
+    }
+
+    private void swap(int a, int b) {
+      int page = pages[a];
+      int score = scores[a];
+      pages[a] = pages[b];
+      scores[a] = scores[b];
+      pages[b] = page;
+      scores[b] = score;
+    }
+  }
+}
@@ -0,0 +1,200 @@
+package de.digitalcollections.solr.plugin.components.ocrhighlighting;
+
+import com.carrotsearch.hppc.LongArrayList;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.lucene.document.SortedSetDocValuesField;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.solr.common.SolrException;
+
+/**
+ * Stores a per-page structure of a document in parts, one sorted set doc value per part, so a lookup only reads the
+ * parts of the pages it needs. A single binary doc value would have to be copied completely for every lookup.
+ *
+ * Every value starts with a key of the page index and the number of the part on the page, both as big-endian
+ * integers with their sign bit flipped. The values of a document are therefore sorted by page and part, and the
+ * part of a page is found with a binary search over the ordinals of the document, which only has to look up a
+ * logarithmic number of values. Lucene limits the values of sorted set doc values to {@value #MAX_VALUE_BYTES} bytes,
+ * so a structure is either split into parts by its writer, keyed by e.g. the first line of a part, or split into
+ * parts of the maximum size by {@link #createFields(String, int, byte[])}.
+ */
+final class PagedDocValues {
+
+  private static final int MAX_VALUE_BYTES = 32766;
+  private static final int KEY_BYTES = 8;
+
+  /** Maximum number of bytes in a part **/
+  static final int MAX_PART_BYTES = MAX_VALUE_BYTES - KEY_BYTES;
+
+  private final SortedSetDocValues values;
+  /** Ordinals of the parts of the document, sorted by page and part **/
+  private final long[] ords;
+
+  private PagedDocValues(SortedSetDocValues values, long[] ords) {
+    this.values = values;
+    this.ords = ords;
+  }
+
+  /**
+   * Create the doc value for a part of a page.
+   *
+   * @param fieldName Name of the field
+   * @param page      Index of the page
+   * @param part      Number of the part on the page, parts are numbered in ascending order
+   * @param data      Encoded part, at most {@link #MAX_PART_BYTES} long
+   * @return the doc value
+   */
+  static SortedSetDocValuesField createField(String fieldName, int page, int part, byte[] data) {
+    if (data.length > MAX_PART_BYTES) {
+      throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, String.format(
+              "Part %d of page %d of field '%s' is too large, %d bytes instead of at most %d.",
+              part, page, fieldName, data.length, MAX_PART_BYTES));
+    }
+    byte[] value = new byte[KEY_BYTES + data.length];
+    writeKey(value, 0, page);
+    writeKey(value, 4, part);
+    System.arraycopy(data, 0, value, KEY_BYTES, data.length);
+    return new SortedSetDocValuesField(fieldName, new BytesRef(value));
+  }
+
+  /**
+   * Create the doc values for a page that is split into parts of the maximum size.
+   *
+   * @param fieldName Name of the field
+   * @param page      Index of the page
+   * @param data      Encoded page
+   * @return the doc values, to be read with {@link #readPage(int)}
+   */
+  static List<IndexableField> createFields(String fieldName, int page, byte[] data) {
+    List<IndexableField> fields = new ArrayList<>();
+    for (int start = 0, part = 0; start < data.length || part == 0; start += MAX_PART_BYTES, part++) {
+      fields.add(createField(fieldName, page, part,
+              Arrays.copyOfRange(data, start, Math.min(data.length, start + MAX_PART_BYTES))));
+    }
+    return fields;
+  }
+
+  /**
+   * Open the parts of a document.
+   *
+   * @param reader    Reader for the segment of the document
+   * @param fieldName Name of the field
+   * @param docId     Identifier of the document in the segment
+   * @return the parts or null if the document has none
+   * @throws IOException Error during retrieval from index
+   */
+  static PagedDocValues open(LeafReader reader, String fieldName, int docId) throws IOException {
+    SortedSetDocValues values = DocValues.getSortedSet(reader, fieldName);
+    if (!values.advanceExact(docId)) {
+      return null;
+    }
+    // Only the ordinals are read here, the values themselves are only read when a part is needed
+    LongArrayList ords = new LongArrayList();
+    for (long ord = values.nextOrd(); ord != SortedSetDocValues.NO_MORE_ORDS; ord = values.nextOrd()) {
+      ords.add(ord);
+    }
+    return new PagedDocValues(values, ords.toArray());
+  }
+
+  /**
+   * @return the number of parts of the document
+   */
+  int size() {
+    return ords.length;
+  }
+
+  /**
+   * Find the last part of a page that starts at or before a part number.
+   *
+   * @param page Index of the page
+   * @param part Number of the part
+   * @return the index of the part or -1 if the page has no such part
+   * @throws IOException Error during retrieval from index
+   */
+  int floor(int page, int part) throws IOException {
+    int low = 0;
+    int high = ords.length - 1;
+    int found = -1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      BytesRef value = values.lookupOrd(ords[mid]);
+      int midPage = readKey(value, 0);
+      if (midPage < page || (midPage == page && readKey(value, 4) <= part)) {
+        if (midPage == page) {
+          found = mid;
+        }
+        low = mid + 1;
+      } else {
+        high = mid - 1;
+      }
+    }
+    return found;
+  }
+
+  /**
+   * @param idx Index of the part
+   * @return the index of the page of the part
+   * @throws IOException Error during retrieval from index
+   */
+  int page(int idx) throws IOException {
+    return readKey(values.lookupOrd(ords[idx]), 0);
+  }
+
+  /**
+   * Read the data of a part.
+   *
+   * @param idx Index of the part
+   * @return a copy of the encoded part
+   * @throws IOException Error during retrieval from index
+   */
+  BytesRef read(int idx) throws IOException {
+    BytesRef value = values.lookupOrd(ords[idx]);
+    return BytesRef.deepCopyOf(
+            new BytesRef(value.bytes, value.offset + KEY_BYTES, value.length - KEY_BYTES));
+  }
+
+  /**
+   * Read a page that was split into parts with {@link #createFields(String, int, byte[])}.
+   *
+   * @param page Index of the page
+   * @return the encoded page or null if the document doesn't have the page
+   * @throws IOException Error during retrieval from index
+   */
+  BytesRef readPage(int page) throws IOException {
+    int idx = floor(page, 0);
+    if (idx < 0) {
+      return null;
+    }
+    BytesRefBuilder data = new BytesRefBuilder();
+    for (; idx < ords.length; idx++) {
+      BytesRef value = values.lookupOrd(ords[idx]);
+      if (readKey(value, 0) != page) {
+        break;
+      }
+      data.append(value.bytes, value.offset + KEY_BYTES, value.length - KEY_BYTES);
+    }
+    return data.get();
+  }
+
+  private static void writeKey(byte[] bytes, int offset, int key) {
+    int sortable = key ^ Integer.MIN_VALUE;
+    bytes[offset] = (byte) (sortable >>> 24);
+    bytes[offset + 1] = (byte) (sortable >>> 16);
+    bytes[offset + 2] = (byte) (sortable >>> 8);
+    bytes[offset + 3] = (byte) sortable;
+  }
+
+  private static int readKey(BytesRef value, int offset) {
+    int start = value.offset + offset;
+    int sortable = ((value.bytes[start] & 0xFF) << 24) | ((value.bytes[start + 1] & 0xFF) << 16)
+            | ((value.bytes[start + 2] & 0xFF) << 8) | (value.bytes[start + 3] & 0xFF);
+    return sortable ^ Integer.MIN_VALUE;
+  }
+}
@@ -0,0 +1,150 @@
+package de.digitalcollections.solr.plugin.components.ocrhighlighting;
+
+import de.digitalcollections.lucene.analysis.payloads.OcrInfo;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Groups hits of different query terms that occur close to each other into passages.
+ *
+ * A sweep over the hits in document order maintains a window of hits on the same page that are at most a given
+ * number of words or lines apart. Words are counted with the token positions of the hits, since the word indices in
+ * the payloads restart on every line. As soon as the window contains enough distinct terms, it is extended as far as
+ * the distance allows and emitted as a passage, the sweep then continues after it. This way, every hit is part of at
+ * most one passage and the pass is linear in the number of hits.
+ *
+ * The score of a passage is twice the number of its distinct terms plus the number of its hits, ties are broken in
+ * favor of the earlier passage.
+ */
+class PassageClusterer {
+
+  private static final int DIVERSITY_WEIGHT = 2;
+
+  /** A cluster of hits. **/
+  static class Passage {
+    final int pageIndex;
+    final int firstLine;
+    final int lastLine;
+    final float x;
+    final float y;
+    final float width;
+    final float height;
+    final int numHits;
+    final Set<String> terms;
+    final int score;
+    /** Position of the passage in document order, used to break ties **/
+    final int ordinal;
+
+    Passage(OcrInfo[] hits, int from, int to, Set<String> terms, int ordinal) {
+      float left = Float.MAX_VALUE;
+      float top = Float.MAX_VALUE;
+      float right = 0;
+      float bottom = 0;
+      for (int i = from; i <= to; i++) {
+        left = Math.min(left, hits[i].getHorizontalOffset());
+        top = Math.min(top, hits[i].getVerticalOffset());
+        right = Math.max(right, hits[i].getHorizontalOffset() + hits[i].getWidth());
+        bottom = Math.max(bottom, hits[i].getVerticalOffset() + hits[i].getHeight());
+      }
+      this.pageIndex = hits[from].getPageIndex();
+      this.firstLine = hits[from].getLineIndex();
+      this.lastLine = hits[to].getLineIndex();
+      this.x = left;
+      this.y = top;
+      this.width = right - left;
+      this.height = bottom - top;
+      this.numHits = to - from + 1;
+      this.terms = terms;
+      this.score = DIVERSITY_WEIGHT * terms.size() + numHits;
+      this.ordinal = ordinal;
+    }
+  }
+
+  private static final Comparator<Passage> WORST_FIRST = Comparator
+          .<Passage>comparingInt(p -> p.score)
+          .thenComparing(Comparator.<Passage>comparingInt(p -> p.ordinal).reversed());
+
+  private final int minTerms;
+  private final int maxDistance;
+  private final boolean byLine;
+
+  /**
+   * @param minTerms Minimum number of distinct terms in a passage
+   * @param maxDistance Maximum distance between the first and the last hit of a passage
+   * @param byLine Whether the distance is measured in lines instead of words
+   */
+  PassageClusterer(int minTerms, int maxDistance, boolean byLine) {
+    this.minTerms = minTerms;
+    this.maxDistance = maxDistance;
+    this.byLine = byLine;
+  }
+
+  /**
+   * Find the best passages.
+   *
+   * @param hits Hits sorted by page, line and word index, with their token positions
+   * @param maxPassages Maximum number of passages to return
+   * @return The best passages, best passage first
+   */
+  List<Passage> cluster(OcrInfo[] hits, int maxPassages) {
+    PriorityQueue<Passage> top = new PriorityQueue<>(Math.max(maxPassages, 1), WORST_FIRST);
+    Map<String, Integer> termCounts = new HashMap<>();
+    int numPassages = 0;
+    int start = 0;
+    for (int end = 0; end < hits.length; end++) {
+      while (start < end && !fits(hits[start], hits[end])) {
+        termCounts.computeIfPresent(hits[start].getTerm(), (t, c) -> c > 1 ? c - 1 : null);
+        start++;
+      }
+      termCounts.merge(hits[end].getTerm(), 1, Integer::sum);
+      if (termCounts.size() < minTerms) {
+        continue;
+      }
+      // Extend the window as far as possible, more hits can only make the passage better
+      while (end + 1 < hits.length && fits(hits[start], hits[end + 1])) {
+        end++;
+      }
+      Set<String> terms = new LinkedHashSet<>();
+      for (int i = start; i <= end; i++) {
+        terms.add(hits[i].getTerm());
+      }
+      Passage passage = new Passage(hits, start, end, terms, numPassages++);
+      if (top.size() < maxPassages) {
+        top.add(passage);
+      } else if (maxPassages > 0 && WORST_FIRST.compare(top.peek(), passage) < 0) {
+        top.poll();
+        top.add(passage);
+      }
+      termCounts.clear();
+      start = end + 1;
+    }
+
+    List<Passage> passages = new ArrayList<>(top);
+    passages.sort(WORST_FIRST.reversed());
+    return passages;
+  }
+
+  private boolean fits(OcrInfo first, OcrInfo last) {
+    if (first.getPageIndex() != last.getPageIndex()) {
+      return false;
+    }
+    if (byLine) {
+      return last.getLineIndex() - first.getLineIndex() <= maxDistance;
+    }
+    // Word indices restart on every line, only the token positions count the words across lines
+    if (first.getPosition() >= 0 && last.getPosition() >= 0) {
+      return last.getPosition() - first.getPosition() <= maxDistance;
+    }
+    if (first.getWordIndex() >= 0 && first.getLineIndex() == last.getLineIndex()) {
+      return last.getWordIndex() - first.getWordIndex() <= maxDistance;
+    }
+    // Without positions or word indices, lines are the best we can do
+    return last.getLineIndex() - first.getLineIndex() <= maxDistance;
+  }
+}
@@ -0,0 +1,132 @@
+package de.digitalcollections.solr.plugin.components.ocrhighlighting;
+
+import de.digitalcollections.lucene.analysis.payloads.OcrInfo;
+import de.digitalcollections.lucene.analysis.payloads.PayloadLayout;
+import de.digitalcollections.lucene.codecs.OcrPayloadPostingsEnum;
+import java.io.IOException;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Reads the positions of a term in the current document of its postings, together with their payloads.
+ *
+ * If the payloads were packed by the {@link de.digitalcollections.lucene.codecs.OcrPayloadPostingsFormat}, the
+ * positions and payloads are read a block at a time with {@link OcrPayloadPostingsEnum#nextPositions} and decoded
+ * from the packed integers, without turning them into bytes. Otherwise every payload is read with
+ * {@link PostingsEnum#getPayload()}. Either way, only the current payload can be decoded.
+ */
+final class PayloadReader {
+
+  /** Returned by {@link #nextPosition()} once all positions were read, larger than any actual position **/
+  static final int NO_MORE_POSITIONS = Integer.MAX_VALUE;
+
+  private final PayloadLayout layout;
+  private final boolean bulk;
+
+  private PostingsEnum postingsEnum;
+  private OcrPayloadPostingsEnum packed;
+  private int remaining;
+  private BytesRef payload;
+
+  // Buffers for the packed postings, only allocated once they are needed
+  private int[] positions;
+  private long[] lowBits;
+  private long[] highBits;
+  private int numBuffered;
+  private int idx;
+
+  PayloadReader(PayloadLayout layout) {
+    this(layout, true);
+  }
+
+  /**
+   * @param layout Layout of the payloads in the field
+   * @param bulk   Whether packed payloads are read in bulk, only disabled to compare both ways in the load tests
+   */
+  PayloadReader(PayloadLayout layout, boolean bulk) {
+    this.layout = layout;
+    this.bulk = bulk;
+  }
+
+  /**
+   * Start reading the positions of the current document of a postings enum.
+   *
+   * @param postingsEnum Postings of a term with payloads, positioned on a document
+   * @return this reader
+   * @throws IOException Error during retrieval from index
+   */
+  PayloadReader reset(PostingsEnum postingsEnum) throws IOException {
+    this.postingsEnum = postingsEnum;
+    // Only fixed-width payloads can be decoded from the packed integers
+    this.packed = bulk && layout.isFixedWidth() && postingsEnum instanceof OcrPayloadPostingsEnum
+            ? (OcrPayloadPostingsEnum) postingsEnum : null;
+    if (packed != null && positions == null) {
+      positions = new int[OcrPayloadPostingsEnum.BLOCK_SIZE];
+      lowBits = new long[OcrPayloadPostingsEnum.BLOCK_SIZE];
+      highBits = new long[OcrPayloadPostingsEnum.BLOCK_SIZE];
+    }
+    this.remaining = postingsEnum.freq();
+    this.payload = null;
+    this.numBuffered = 0;
+    this.idx = 0;
+    return this;
+  }
+
+  /**
+   * Advance to the next position of the document.
+   *
+   * @return the position or {@link #NO_MORE_POSITIONS}
+   * @throws IOException Error during retrieval from index
+   */
+  int nextPosition() throws IOException {
+    if (packed != null) {
+      if (++idx >= numBuffered) {
+        numBuffered = packed.nextPositions(positions, lowBits, highBits);
+        idx = 0;
+        if (numBuffered == 0) {
+          return NO_MORE_POSITIONS;
+        }
+      }
+      return positions[idx];
+    }
+    if (remaining == 0) {
+      return NO_MORE_POSITIONS;
+    }
+    remaining--;
+    int position = postingsEnum.nextPosition();
+    payload = postingsEnum.getPayload();
+    return position;
+  }
+
+  /** See {@link PayloadLayout#isConfident(BytesRef, int)} **/
+  boolean isConfident(int threshold) {
+    return packed != null ? layout.isConfident(lowBits[idx], threshold) : layout.isConfident(payload, threshold);
+  }
+
+  /** @return the page index of the current payload or -1 if the layout has no page indices **/
+  int pageIndex() {
+    return packed != null ? layout.decodePageIndex(lowBits[idx], highBits[idx]) : layout.decodePageIndex(payload);
+  }
+
+  /** @return the line index of the current payload or -1 if the layout has no line indices **/
+  int lineIndex() {
+    return packed != null ? layout.decodeLineIndex(lowBits[idx], highBits[idx]) : layout.decodeLineIndex(payload);
+  }
+
+  /** See {@link PayloadLayout#decodeRawCoordinate(BytesRef, int)} **/
+  int rawCoordinate(int coordIndex) {
+    return packed != null
+            ? layout.decodeRawCoordinate(lowBits[idx], highBits[idx], coordIndex)
+            : layout.decodeRawCoordinate(payload, coordIndex);
+  }
+
+  /** @return the OCR information of the current payload **/
+  OcrInfo decodeOcrInfo() {
+    return packed != null ? layout.decodeOcrInfo(lowBits[idx], highBits[idx]) : layout.decodeOcrInfo(payload);
+  }
+
+  /** @return the length of the current payload in bytes, the length of the fixed-width format for packed payloads **/
+  int payloadLength() {
+    return packed != null ? layout.getPayloadLength() : payload.length;
+  }
+}
@@ -0,0 +1,31 @@
+package de.digitalcollections.lucene.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Decoding of the payloads of all matching documents of a field, e.g. to count the hits per page.
+ */
+@Name("de.digitalcollections.ocr.BulkDecode")
+@Label("OCR Bulk Decode")
+@Category({"OCR Highlighting"})
+@Description("Decoding of the payloads of all matching documents of a field")
+final class BulkDecodeEvent extends Event {
+
+  @Label("Field")
+  String field;
+
+  @Label("Documents")
+  int numDocs;
+
+  @Label("Payloads")
+  long numPayloads;
+
+  @Label("Packed Payloads")
+  @Description("Number of payloads that were read in bulk from the OCR payload postings format, without turning "
+          + "them into bytes")
+  long numPacked;
+}
@@ -0,0 +1,40 @@
+package de.digitalcollections.lucene.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Highlighting of a single field of a document.
+ */
+@Name("de.digitalcollections.ocr.DocumentHighlight")
+@Label("OCR Document Highlight")
+@Category({"OCR Highlighting"})
+@Description("Highlighting of a single field of a document")
+final class DocumentHighlightEvent extends Event {
+
+  @Label("Document")
+  @Description("Internal Lucene id of the document")
+  int docId;
+
+  @Label("Field")
+  String field;
+
+  @Label("Hits")
+  int numHits;
+
+  @Label("Payloads")
+  @Description("Number of payloads that were read from the postings")
+  int numPayloads;
+
+  @Label("Payload Bytes")
+  @DataAmount
+  long payloadBytes;
+
+  @Label("Truncated")
+  @Description("Whether the hits were cut off by a limit or the deadline")
+  boolean truncated;
+}
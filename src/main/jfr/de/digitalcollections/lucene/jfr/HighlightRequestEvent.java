@@ -0,0 +1,35 @@
+package de.digitalcollections.lucene.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Highlighting of all documents of a request.
+ */
+@Name("de.digitalcollections.ocr.HighlightRequest")
+@Label("OCR Highlight Request")
+@Category({"OCR Highlighting"})
+@Description("Highlighting of all documents of a request")
+final class HighlightRequestEvent extends Event {
+
+  @Label("Documents")
+  int numDocs;
+
+  @Label("Fields")
+  int numFields;
+
+  @Label("Hits")
+  @Description("Number of hits of all documents and fields")
+  int numHits;
+
+  @Label("Truncated Fields")
+  @Description("Number of document fields whose hits were cut off by a limit or the deadline")
+  int numTruncated;
+
+  @Label("Partial")
+  @Description("Whether the deadline passed before all documents were highlighted")
+  boolean partial;
+}
@@ -0,0 +1,182 @@
+package de.digitalcollections.lucene.jfr;
+
+import jdk.jfr.EventType;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Recording;
+
+/**
+ * Records the events with the Flight Recorder API, loaded reflectively by {@link OcrEvents}.
+ */
+final class JfrEventRecorder implements EventRecorder {
+
+  private static final Class<?>[] EVENT_CLASSES = {
+      HighlightRequestEvent.class, DocumentHighlightEvent.class, TermExtractionEvent.class,
+      BulkDecodeEvent.class, PayloadEncodingEvent.class};
+
+  private static final ThreadLocal<HighlightRequestEvent> CURRENT_REQUEST = new ThreadLocal<>();
+  private static final ThreadLocal<DocumentHighlightEvent> CURRENT_DOCUMENT = new ThreadLocal<>();
+
+  JfrEventRecorder() {
+    // Recordings that are already running are reported as initialization, the others as state changes
+    FlightRecorder.addListener(new FlightRecorderListener() {
+      @Override
+      public void recorderInitialized(FlightRecorder recorder) {
+        update();
+      }
+
+      @Override
+      public void recordingStateChanged(Recording recording) {
+        update();
+      }
+    });
+  }
+
+  @SuppressWarnings("unchecked")
+  private static void update() {
+    boolean anyEnabled = false;
+    for (Class<?> eventClass : EVENT_CLASSES) {
+      anyEnabled |= EventType.getEventType((Class<? extends jdk.jfr.Event>) eventClass).isEnabled();
+    }
+    OcrEvents.setEnabled(anyEnabled);
+  }
+
+  @Override
+  public Object beginHighlightRequest(int numDocs, int numFields) {
+    HighlightRequestEvent event = new HighlightRequestEvent();
+    if (!event.isEnabled()) {
+      return null;
+    }
+    event.numDocs = numDocs;
+    event.numFields = numFields;
+    event.begin();
+    CURRENT_REQUEST.set(event);
+    return event;
+  }
+
+  @Override
+  public void endHighlightRequest(Object request, boolean partial) {
+    HighlightRequestEvent event = (HighlightRequestEvent) request;
+    CURRENT_REQUEST.remove();
+    event.partial = partial;
+    event.end();
+    if (event.shouldCommit()) {
+      event.commit();
+    }
+  }
+
+  @Override
+  public Object beginDocumentHighlight(int docId, String field) {
+    DocumentHighlightEvent event = new DocumentHighlightEvent();
+    if (!event.isEnabled()) {
+      return null;
+    }
+    event.docId = docId;
+    event.field = field;
+    event.begin();
+    CURRENT_DOCUMENT.set(event);
+    return event;
+  }
+
+  @Override
+  public void endDocumentHighlight(Object document, int numHits, boolean truncated) {
+    addHits(numHits, truncated);
+    if (document == null) {
+      return;
+    }
+    DocumentHighlightEvent event = (DocumentHighlightEvent) document;
+    CURRENT_DOCUMENT.remove();
+    event.numHits = numHits;
+    event.truncated = truncated;
+    event.end();
+    if (event.shouldCommit()) {
+      event.commit();
+    }
+  }
+
+  @Override
+  public void addHits(int numHits, boolean truncated) {
+    HighlightRequestEvent request = CURRENT_REQUEST.get();
+    if (request != null) {
+      request.numHits += numHits;
+      if (truncated) {
+        request.numTruncated++;
+      }
+    }
+  }
+
+  @Override
+  public void addPayloads(int numPayloads, long payloadBytes) {
+    DocumentHighlightEvent document = CURRENT_DOCUMENT.get();
+    if (document != null) {
+      document.numPayloads += numPayloads;
+      document.payloadBytes += payloadBytes;
+    }
+  }
+
+  @Override
+  public Object beginTermExtraction(String field) {
+    TermExtractionEvent event = new TermExtractionEvent();
+    if (!event.isEnabled()) {
+      return null;
+    }
+    event.field = field;
+    event.begin();
+    return event;
+  }
+
+  @Override
+  public void endTermExtraction(Object extraction, int numTerms) {
+    TermExtractionEvent event = (TermExtractionEvent) extraction;
+    event.numTerms = numTerms;
+    event.end();
+    if (event.shouldCommit()) {
+      event.commit();
+    }
+  }
+
+  @Override
+  public Object beginBulkDecode(String field) {
+    BulkDecodeEvent event = new BulkDecodeEvent();
+    if (!event.isEnabled()) {
+      return null;
+    }
+    event.field = field;
+    event.begin();
+    return event;
+  }
+
+  @Override
+  public void endBulkDecode(Object decode, int numDocs, long numPayloads, long numPacked) {
+    BulkDecodeEvent event = (BulkDecodeEvent) decode;
+    event.numDocs = numDocs;
+    event.numPayloads = numPayloads;
+    event.numPacked = numPacked;
+    event.end();
+    if (event.shouldCommit()) {
+      event.commit();
+    }
+  }
+
+  @Override
+  public Object beginPayloadEncoding() {
+    PayloadEncodingEvent event = new PayloadEncodingEvent();
+    if (!event.isEnabled()) {
+      return null;
+    }
+    event.begin();
+    return event;
+  }
+
+  @Override
+  public void endPayloadEncoding(Object encoding, int numTokens, int numPayloads, long payloadBytes) {
+    PayloadEncodingEvent event = (PayloadEncodingEvent) encoding;
+    event.numTokens = numTokens;
+    event.numPayloads = numPayloads;
+    event.payloadBytes = payloadBytes;
+    event.end();
+    if (event.shouldCommit()) {
+      event.commit();
+    }
+  }
+}
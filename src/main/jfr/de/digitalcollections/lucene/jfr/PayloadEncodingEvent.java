@@ -0,0 +1,29 @@
+package de.digitalcollections.lucene.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Encoding of the OCR information of a single field value into payloads during indexing.
+ */
+@Name("de.digitalcollections.ocr.PayloadEncoding")
+@Label("OCR Payload Encoding")
+@Category({"OCR Highlighting", "Indexing"})
+@Description("Encoding of the OCR information of a field value into payloads, from the start to the end of its "
+        + "token stream")
+final class PayloadEncodingEvent extends Event {
+
+  @Label("Tokens")
+  int numTokens;
+
+  @Label("Payloads")
+  int numPayloads;
+
+  @Label("Payload Bytes")
+  @DataAmount
+  long payloadBytes;
+}
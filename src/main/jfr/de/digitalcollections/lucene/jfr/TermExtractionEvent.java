@@ -0,0 +1,23 @@
+package de.digitalcollections.lucene.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Extraction of the terms of a field from the query.
+ */
+@Name("de.digitalcollections.ocr.TermExtraction")
+@Label("OCR Term Extraction")
+@Category({"OCR Highlighting"})
+@Description("Extraction of the terms of a field from the query")
+final class TermExtractionEvent extends Event {
+
+  @Label("Field")
+  String field;
+
+  @Label("Terms")
+  int numTerms;
+}
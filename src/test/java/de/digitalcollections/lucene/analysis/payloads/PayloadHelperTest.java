@@ -2,6 +2,7 @@ package de.digitalcollections.lucene.analysis.payloads;
 
 import org.apache.lucene.util.BytesRef;
 import org.assertj.core.data.Offset;
+import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.Arguments;
 import org.junit.jupiter.params.provider.MethodSource;
@@ -9,6 +10,7 @@ import org.junit.jupiter.params.provider.MethodSource;
 import java.util.stream.Stream;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
 
 
 public class PayloadHelperTest {
@@ -63,6 +65,46 @@ public class PayloadHelperTest {
     }
   }
 
+  @ParameterizedTest
+  @MethodSource("fixtureProvider")
+  public void decodeOcrInfoFromIntegers(OcrInfo ocrInfo, byte[] payload) {
+    int coordBits = ocrInfo.getHasAbsoluteCoordinates() ? 12 : 10;
+    int wordBits = ocrInfo.getWordIndex() >= 0 ? 9 : 0;
+    int lineBits = ocrInfo.getLineIndex() >= 0 ? 11 : 0;
+    int pageBits = ocrInfo.getPageIndex() >= 0 ? 12 : 0;
+    long[] bits = toIntegers(payload);
+    OcrInfo fromBytes = OcrPayloadHelper.decodeOcrInfo(
+        new BytesRef(payload), coordBits, wordBits, lineBits, pageBits, ocrInfo.getHasAbsoluteCoordinates());
+    OcrInfo fromIntegers = OcrPayloadHelper.decodeOcrInfo(
+        bits[0], bits[1], coordBits, wordBits, lineBits, pageBits, 0, ocrInfo.getHasAbsoluteCoordinates());
+    assertThat(fromIntegers).isEqualToComparingFieldByField(fromBytes);
+    assertThat(OcrPayloadHelper.decodeLineIndex(bits[0], bits[1], coordBits, wordBits, lineBits, 0))
+        .isEqualTo(fromBytes.getLineIndex());
+    for (int i = 0; i < 4; i++) {
+      assertThat(OcrPayloadHelper.decodeRawCoordinate(bits[0], bits[1], coordBits, 0, i))
+          .isEqualTo(OcrPayloadHelper.decodeRawCoordinate(new BytesRef(payload), coordBits, i));
+    }
+  }
+
+  /** Turn a payload into an unsigned integer, split into its lower and upper 64 bits, like the packed postings **/
+  private static long[] toIntegers(byte[] payload) {
+    long low = 0;
+    long high = 0;
+    for (byte b : payload) {
+      high = (high << 8) | (low >>> 56);
+      low = (low << 8) | (b & 0xFF);
+    }
+    return new long[]{low, high};
+  }
+
+  @Test
+  public void decodeWithHighBitSet() {
+    OcrInfo info = new OcrInfo(4000, 1000, 500, 200, 100, 4000, 50);
+    byte[] encoded = OcrPayloadHelper.encodeOcrInfo(info, 12, 9, 11, 12);
+    OcrInfo decoded = OcrPayloadHelper.decodeOcrInfo(new BytesRef(encoded), 12, 9, 11, 12, true);
+    assertThat(decoded).isEqualToComparingFieldByField(info);
+  }
+
   @ParameterizedTest
   @MethodSource("fixtureProvider")
   public void doesNotDegradeAccuracy(OcrInfo ocrInfo, byte[] payload) {
@@ -79,4 +121,73 @@ public class PayloadHelperTest {
       assertAreAboutEqual(decodedInfo, ocrInfo);
     }      assertAreAboutEqual(decodedInfo, ocrInfo);
   }
-}
\ No newline at end of file
+
+  @ParameterizedTest
+  @MethodSource("fixtureProvider")
+  public void roundtripVariableWidth(OcrInfo ocrInfo, byte[] payload) {
+    int coordBits = ocrInfo.getHasAbsoluteCoordinates() ? 12 : 10;
+    int wordBits = ocrInfo.getWordIndex() >= 0 ? 9 : 0;
+    int lineBits = ocrInfo.getLineIndex() >= 0 ? 11 : 0;
+    int pageBits = ocrInfo.getPageIndex() >= 0 ? 12 : 0;
+    byte[] encoded = OcrPayloadHelper.encodeVariableWidth(ocrInfo, coordBits, wordBits, lineBits, pageBits);
+    assertThat(encoded.length).isLessThanOrEqualTo(payload.length);
+    OcrInfo decoded = OcrPayloadHelper.decodeVariableWidth(
+        new BytesRef(encoded), coordBits, wordBits, lineBits, pageBits, ocrInfo.getHasAbsoluteCoordinates());
+    if (ocrInfo.getHasAbsoluteCoordinates()) {
+      assertThat(decoded).isEqualToComparingFieldByField(ocrInfo);
+    } else {
+      assertThat(decoded.getPageIndex()).isEqualTo(ocrInfo.getPageIndex());
+      assertThat(decoded.getLineIndex()).isEqualTo(ocrInfo.getLineIndex());
+      assertAreAboutEqual(decoded, ocrInfo);
+    }
+  }
+
+  @Test
+  public void variableWidthIndices() {
+    PayloadLayout layout = new PayloadLayout(10, 9, 11, 20, false, OcrPayloadHelper.VARIABLE_WIDTH_VERSION);
+    int[] pages = {0, 17, 127, 128, 837, 16383, 16384, 1000000};
+    int[] lengths = {8, 8, 8, 9, 9, 9, 10, 10};
+    for (int i = 0; i < pages.length; i++) {
+      OcrInfo info = new OcrInfo(pages[i], 13, 20, .131f, .527f, .879f, .053f);
+      byte[] encoded = layout.encodeOcrInfo(info);
+      assertThat(encoded).hasSize(lengths[i]);
+      assertThat(layout.getPayloadLength(encoded, 0)).isEqualTo(encoded.length);
+      BytesRef ref = new BytesRef(encoded);
+      assertThat(layout.decodePageIndex(ref)).isEqualTo(pages[i]);
+      assertThat(layout.decodeLineIndex(ref)).isEqualTo(13);
+      assertThat(layout.decodeWordIndex(ref)).isEqualTo(20);
+      assertThat(layout.decodeRawCoordinate(ref, 2)).isEqualTo(Math.round(.879f * 1024));
+    }
+    // The fixed-width format needs 9 bytes for every token with these widths
+    assertThat(new PayloadLayout(10, 9, 11, 12, false).getPayloadLength()).isEqualTo(9);
+  }
+
+  @Test
+  public void confidenceRoundTrip() {
+    for (int version : new int[]{1, OcrPayloadHelper.VARIABLE_WIDTH_VERSION}) {
+      PayloadLayout layout = new PayloadLayout(10, 9, 11, 12, 7, false, version);
+      OcrInfo info = new OcrInfo(837, 13, 20, .131f, .527f, .879f, .053f);
+      info.setConfidence(.4f);
+      BytesRef confident = new BytesRef(layout.encodeOcrInfo(new OcrInfo(837, 13, 20, .131f, .527f, .879f, .053f)));
+      BytesRef doubtful = new BytesRef(layout.encodeOcrInfo(info));
+
+      OcrInfo decoded = layout.decodeOcrInfo(doubtful);
+      assertThat(decoded.getPageIndex()).isEqualTo(837);
+      assertThat(decoded.getWordIndex()).isEqualTo(20);
+      assertThat(decoded.getConfidence()).isCloseTo(.4f, within(1f / 127));
+      assertThat(layout.decodeRawCoordinate(doubtful, 2)).isEqualTo(Math.round(.879f * 1024));
+      // Words without a confidence are fully confident
+      assertThat(layout.decodeOcrInfo(confident).getConfidence()).isEqualTo(1f);
+
+      if (layout.isFixedWidth()) {
+        long[] bits = toIntegers(doubtful.bytes);
+        assertThat(layout.decodeOcrInfo(bits[0], bits[1])).isEqualToComparingFieldByField(decoded);
+      }
+
+      int threshold = layout.getConfidenceThreshold(.5f);
+      assertThat(layout.isConfident(confident, threshold)).isTrue();
+      assertThat(layout.isConfident(doubtful, threshold)).isFalse();
+      assertThat(layout.isConfident(doubtful, layout.getConfidenceThreshold(.3f))).isTrue();
+    }
+  }
+}
@@ -0,0 +1,76 @@
+package de.digitalcollections.lucene.analysis.payloads;
+
+import org.apache.lucene.util.BytesRef;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PayloadStatsTest {
+
+  private static PayloadStats collect(PayloadLayout layout, OcrInfo... infos) {
+    PayloadStats stats = new PayloadStats();
+    for (OcrInfo info : infos) {
+      stats.add(new BytesRef(layout.encodeOcrInfo(info)), layout);
+    }
+    return stats;
+  }
+
+  @Test
+  public void collectsMaximaAndHistograms() {
+    PayloadLayout layout = new PayloadLayout(10, 9, 11, 12, false);
+    PayloadStats stats = collect(layout,
+        new OcrInfo(3, 4, 5, .1f, .2f, .3f, .4f),
+        new OcrInfo(17, 40, 300, .1f, .2f, .3f, .4f),
+        new OcrInfo(837, 1, 1, .1f, .2f, .3f, .4f));
+    assertThat(stats.getNumPayloads()).isEqualTo(3);
+    assertThat(stats.getNumMalformed()).isEqualTo(0);
+    assertThat(stats.getMaximum(PayloadStats.PAGE)).isEqualTo(837);
+    assertThat(stats.getMaximum(PayloadStats.LINE)).isEqualTo(40);
+    assertThat(stats.getMaximum(PayloadStats.WORD)).isEqualTo(300);
+    assertThat(stats.getCount(PayloadStats.PAGE, 2)).isEqualTo(1);
+    assertThat(stats.getCount(PayloadStats.PAGE, 5)).isEqualTo(1);
+    assertThat(stats.getCount(PayloadStats.PAGE, 10)).isEqualTo(1);
+
+    PayloadStats other = collect(layout, new OcrInfo(2000, 1, 1, .1f, .2f, .3f, .4f));
+    stats.merge(other);
+    assertThat(stats.getNumPayloads()).isEqualTo(4);
+    assertThat(stats.getMaximum(PayloadStats.PAGE)).isEqualTo(2000);
+  }
+
+  @Test
+  public void recommendsSmallestLayout() {
+    PayloadLayout layout = new PayloadLayout(10, 9, 11, 12, false);
+    PayloadStats stats = collect(layout,
+        new OcrInfo(20, 40, 200, .1f, .2f, .3f, .4f),
+        new OcrInfo(3, 4, 5, .1f, .2f, .3f, .4f));
+    PayloadLayout recommended = stats.recommend(layout, 0);
+    // 40 bits for the coordinates, 8 for the words, 6 for the lines and the rest of the bytes for the pages
+    assertThat(recommended.getCoordBits()).isEqualTo(10);
+    assertThat(recommended.getWordBits()).isEqualTo(8);
+    assertThat(recommended.getLineBits()).isEqualTo(6);
+    assertThat(recommended.getPageBits()).isEqualTo(10);
+    assertThat(recommended.getPayloadLength()).isEqualTo(8);
+    assertThat(stats.estimatePayloadBytes(recommended)).isLessThan(stats.getPayloadBytes());
+    assertThat(stats.countWastedBits(recommended)).isLessThan(stats.countWastedBits(layout));
+  }
+
+  @Test
+  public void estimatesVariableWidthExactly() {
+    PayloadLayout fixed = new PayloadLayout(10, 9, 11, 12, false);
+    PayloadLayout variable = new PayloadLayout(10, 9, 11, 12, false, OcrPayloadHelper.VARIABLE_WIDTH_VERSION);
+    OcrInfo[] infos = {
+        new OcrInfo(20, 40, 200, .1f, .2f, .3f, .4f),
+        new OcrInfo(837, 4, 5, .1f, .2f, .3f, .4f)};
+    PayloadStats stats = collect(fixed, infos);
+    assertThat(stats.estimatePayloadBytes(variable)).isEqualTo(collect(variable, infos).getPayloadBytes());
+  }
+
+  @Test
+  public void countsMalformedPayloads() {
+    PayloadLayout layout = new PayloadLayout(10, 0, 0, 12, false);
+    PayloadStats stats = new PayloadStats();
+    stats.add(new BytesRef(new byte[12]), layout);
+    assertThat(stats.getNumPayloads()).isEqualTo(0);
+    assertThat(stats.getNumMalformed()).isEqualTo(1);
+  }
+}
@@ -0,0 +1,194 @@
+package de.digitalcollections.solr.convert;
+
+import de.digitalcollections.lucene.analysis.payloads.PayloadInspector;
+import de.digitalcollections.lucene.analysis.payloads.PayloadLayout;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.solr.SolrTestCaseJ4;
+import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class OcrBulkConverterTest extends SolrTestCaseJ4 {
+
+  private static final PayloadLayout LAYOUT =
+      PayloadInspector.parseLayout("coordinateBits=10,pageBits=12,lineBits=11,wordBits=9");
+
+  private static final String HOCR = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+      + "<!DOCTYPE html PUBLIC \"-//W3C//DTD XHTML 1.0 Transitional//EN\" "
+      + "\"http://www.w3.org/TR/xhtml1/DTD/xhtml1-transitional.dtd\">\n"
+      + "<html xmlns=\"http://www.w3.org/1999/xhtml\"><body>"
+      + "<div class=\"ocr_page\" title=\"image page.png; bbox 0 0 1000 2000; ppageno 0\">"
+      + "<span class=\"ocr_line\" title=\"bbox 100 200 400 260\">"
+      + "<span class=\"ocrx_word\" title=\"bbox 100 200 300 260; x_wconf 93\"><strong>Hello</strong></span> "
+      + "<span class=\"ocrx_word\" title=\"bbox 310 200 400 260; x_wconf 90\">world</span>"
+      + "</span></div>"
+      + "<div class=\"ocr_page\" title=\"image page2.png; bbox 0 0 1000 1000; ppageno 1\">"
+      + "<span class=\"ocr_line\" title=\"bbox 0 0 500 100\">"
+      + "<span class=\"ocrx_word\" title=\"bbox 0 0 500 100\">again</span>"
+      + "</span></div>"
+      + "</body></html>";
+
+  private static final String ALTO = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+      + "<alto xmlns=\"http://www.loc.gov/standards/alto/ns-v3#\"><Layout>"
+      + "<Page ID=\"p1\" WIDTH=\"2000\" HEIGHT=\"1000\"><PrintSpace><TextBlock>"
+      + "<TextLine><String CONTENT=\"Lorem\" HPOS=\"200\" VPOS=\"100\" WIDTH=\"400\" HEIGHT=\"50\"/><SP/>"
+      + "<String CONTENT=\"ipsum\" HPOS=\"700\" VPOS=\"100\" WIDTH=\"300\" HEIGHT=\"50\"/></TextLine>"
+      + "<TextLine><String CONTENT=\"dolor\" HPOS=\"200\" VPOS=\"200.4\" WIDTH=\"400\" HEIGHT=\"50\"/></TextLine>"
+      + "</TextBlock></PrintSpace></Page></Layout></alto>";
+
+  /** ALTO without page dimensions can't be converted into relative coordinates **/
+  private static final String ALTO_WITHOUT_DIMENSIONS = "<alto><Layout><Page><PrintSpace><TextBlock><TextLine>"
+      + "<String CONTENT=\"nowhere\" HPOS=\"1\" VPOS=\"2\" WIDTH=\"3\" HEIGHT=\"4\"/>"
+      + "</TextLine></TextBlock></PrintSpace></Page></Layout></alto>";
+
+  private static final List<String> INDEXED = new CopyOnWriteArrayList<>();
+  private static final Map<String, Exception> FAILED = new ConcurrentHashMap<>();
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    initCore("solrconfig.xml", "schema.xml", "src/test/resources/solr", "alldata");
+
+    Path root = createTempDir("ocr");
+    Files.createDirectories(root.resolve("vol1"));
+    Files.createDirectories(root.resolve("vol2/nested"));
+    Files.write(root.resolve("vol1/201.hocr"), HOCR.getBytes(StandardCharsets.UTF_8));
+    Files.write(root.resolve("vol2/nested/202.xml"), ALTO.getBytes(StandardCharsets.UTF_8));
+    Files.write(root.resolve("vol2/203.xml"), ALTO_WITHOUT_DIMENSIONS.getBytes(StandardCharsets.UTF_8));
+    Files.write(root.resolve("vol2/204.xml"), "<alto><Layout>".getBytes(StandardCharsets.UTF_8));
+    Files.write(root.resolve("vol2/README.txt"), "not OCR".getBytes(StandardCharsets.UTF_8));
+
+    OcrBulkConverter.Listener listener = new OcrBulkConverter.Listener() {
+      @Override
+      public void converted(Path file, int numPages, int numWords) {
+      }
+
+      @Override
+      public void indexed(Path file) {
+        INDEXED.add(file.getFileName().toString());
+      }
+
+      @Override
+      public void failed(Path file, Exception e) {
+        FAILED.put(file.getFileName().toString(), e);
+      }
+    };
+    // The server shares the container of the test harness, which shuts it down
+    EmbeddedSolrServer server = new EmbeddedSolrServer(h.getCoreContainer(), h.coreName);
+    new OcrBulkConverter(server, null, LAYOUT, listener)
+        .withThreads(2, 2)
+        .withBatchSize(1)
+        .withIdsFromNames(true)
+        .convert(Collections.singletonList(root));
+    assertU(commit());
+  }
+
+  @Test
+  public void testReportsEveryFile() {
+    assertEquals(2, INDEXED.size());
+    assertTrue(INDEXED.contains("201.hocr"));
+    assertTrue(INDEXED.contains("202.xml"));
+    assertEquals(2, FAILED.size());
+    assertTrue(FAILED.get("203.xml").getMessage().contains("no dimensions"));
+    assertTrue(FAILED.containsKey("204.xml"));
+  }
+
+  @Test
+  public void testHocr() {
+    assertQ(
+        "hOCR boxes are converted into percentages of their page",
+        req("q", "hello", "ocr_hl", "true", "ocr_hl.fields", "ocr_text", "df", "ocr_text"),
+        "count(//lst[@name='ocr_highlighting']/lst[@name='201']/arr[@name='ocr_text']/lst)=1",
+        "//lst[@name='201']/arr[@name='ocr_text']/lst/int[@name='page']='0'",
+        "//lst[@name='201']/arr[@name='ocr_text']/lst/int[@name='line']='0'",
+        "//lst[@name='201']/arr[@name='ocr_text']/lst/int[@name='word']='0'",
+        "//lst[@name='201']/arr[@name='ocr_text']/lst/float[@name='x'][. > 0.09 and . < 0.11]",
+        "//lst[@name='201']/arr[@name='ocr_text']/lst/float[@name='width'][. > 0.19 and . < 0.21]");
+    assertQ(
+        "pages are numbered within the file",
+        req("q", "again", "ocr_hl", "true", "ocr_hl.fields", "ocr_text", "df", "ocr_text"),
+        "//lst[@name='201']/arr[@name='ocr_text']/lst/int[@name='page']='1'",
+        "//lst[@name='201']/arr[@name='ocr_text']/lst/float[@name='width'][. > 0.49 and . < 0.51]");
+  }
+
+  @Test
+  public void testAlto() {
+    assertQ(
+        "ALTO strings are numbered within their lines",
+        req("q", "dolor", "ocr_hl", "true", "ocr_hl.fields", "ocr_text", "df", "ocr_text"),
+        "//lst[@name='202']/arr[@name='ocr_text']/lst/int[@name='line']='1'",
+        "//lst[@name='202']/arr[@name='ocr_text']/lst/int[@name='word']='0'",
+        "//lst[@name='202']/arr[@name='ocr_text']/lst/float[@name='y'][. > 0.19 and . < 0.21]");
+  }
+
+  @Test
+  public void testFailingListenerDoesNotStopTheSenders() throws Exception {
+    // More documents than the queue between the workers and the single sender can hold
+    Path root = createTempDir("ocr");
+    for (int i = 0; i < 20; i++) {
+      Files.write(root.resolve("failing_" + i + ".hocr"), HOCR.getBytes(StandardCharsets.UTF_8));
+    }
+    AtomicInteger numIndexed = new AtomicInteger();
+    OcrBulkConverter.Listener listener = new OcrBulkConverter.Listener() {
+      @Override
+      public void converted(Path file, int numPages, int numWords) {
+      }
+
+      @Override
+      public void indexed(Path file) {
+        numIndexed.incrementAndGet();
+        throw new IllegalStateException("listener failed");
+      }
+
+      @Override
+      public void failed(Path file, Exception e) {
+      }
+    };
+    EmbeddedSolrServer server = new EmbeddedSolrServer(h.getCoreContainer(), h.coreName);
+    try {
+      new OcrBulkConverter(server, null, LAYOUT, listener)
+          .withThreads(2, 1)
+          .withBatchSize(1)
+          .withIdsFromNames(true)
+          .convert(Collections.singletonList(root));
+      fail("the exception of the listener was not thrown");
+    } catch (IllegalStateException e) {
+      assertEquals("listener failed", e.getMessage());
+    } finally {
+      assertU(delQ("id:failing_*"));
+      assertU(commit());
+    }
+    // Every document was sent once, although the listener failed for all of them
+    assertEquals(20, numIndexed.get());
+  }
+
+  @Test
+  public void testTokensOnlyContainIndicesOfTheLayout() throws Exception {
+    TokenWriter writer = new TokenWriter('|', PayloadInspector.parseLayout("coordinateBits=10,pageBits=12"));
+    OcrParser.parse(new ByteArrayInputStream(HOCR.getBytes(StandardCharsets.UTF_8)), writer);
+    assertEquals("Hello|p:0,x:10,y:10,w:20,h:3 world|p:0,x:31,y:10,w:9,h:3 again|p:1,x:0,y:0,w:50,h:10",
+        writer.getTokens());
+    assertEquals(2, writer.getNumPages());
+    assertEquals(3, writer.getNumWords());
+  }
+
+  @Test
+  public void testAbsoluteCoordinatesMustFitTheLayout() throws Exception {
+    TokenWriter writer = new TokenWriter('|',
+        PayloadInspector.parseLayout("coordinateBits=8,absoluteCoordinates=true"));
+    try {
+      OcrParser.parse(new ByteArrayInputStream(HOCR.getBytes(StandardCharsets.UTF_8)), writer);
+      fail("coordinates above 255 were accepted");
+    } catch (IllegalArgumentException e) {
+      assertTrue(e.getMessage().contains("doesn't fit the payload layout"));
+    }
+  }
+}
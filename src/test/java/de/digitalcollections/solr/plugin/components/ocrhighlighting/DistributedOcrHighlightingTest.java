@@ -1,41 +1,154 @@
 package de.digitalcollections.solr.plugin.components.ocrhighlighting;
 
+import de.digitalcollections.lucene.analysis.payloads.OcrInfo;
+import de.digitalcollections.lucene.analysis.payloads.PayloadLayout;
+import java.util.List;
 import org.apache.solr.BaseDistributedSearchTestCase;
-import org.apache.solr.handler.component.SearchComponent;
-import org.junit.BeforeClass;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.util.NamedList;
 import org.junit.Test;
 
+/**
+ * Runs the highlighting on several shards and compares the merged responses with those of a single core.
+ *
+ * The documents are distributed by the hash of their id, with three shards every shard receives some of the
+ * documents that match "alpha beta": 303 on the first, 301 and 304 on the second and 302 and 305 on the third.
+ */
 public class DistributedOcrHighlightingTest extends BaseDistributedSearchTestCase {
 
-  @BeforeClass
-  public static void beforeClass() throws Exception {
-    System.setProperty("managed.schema.mutable", "true");
+  @Test
+  @ShardsFixed(num = 3)
+  public void test() throws Exception {
+    del("*:*");
+    index("id", "105", "ocr_text",
+        "contains|p:20,l:3,n:5,x:11.1,y:22.2,w:33.3,h:44.4, position|p:20,l:4,n:6,x:55.5,y:66.6,w:77.7,h:88.8,");
+    index("id", "301", "ocr_text", "alpha|p:1,l:1,n:1,x:11.1,y:22.2,w:5.5,h:1.1 "
+        + "alpha|p:2,l:1,n:1,x:11.1,y:22.2,w:5.5,h:1.1 beta|p:2,l:1,n:2,x:17.7,y:22.2,w:5.5,h:1.1");
+    index("id", "302", "ocr_text", "alpha|p:2,l:3,n:1,x:11.1,y:33.3,w:5.5,h:1.1 "
+        + "alpha|p:3,l:1,n:1,x:11.1,y:22.2,w:5.5,h:1.1");
+    index("id", "303", "ocr_text", "alpha|p:3,l:2,n:1,x:11.1,y:24.4,w:5.5,h:1.1 "
+        + "alpha|p:3,l:3,n:1,x:11.1,y:26.6,w:5.5,h:1.1 alpha|p:3,l:4,n:1,x:11.1,y:28.8,w:5.5,h:1.1 "
+        + "beta|p:3,l:4,n:2,x:17.7,y:28.8,w:5.5,h:1.1");
+    index("id", "304", "ocr_text", "beta|p:4,l:1,n:1,x:11.1,y:22.2,w:5.5,h:1.1 "
+        + "gamma|p:4,l:1,n:2,x:17.7,y:22.2,w:5.5,h:1.1");
+    index("id", "305", "ocr_text", "alpha|p:1,l:5,n:1,x:11.1,y:44.4,w:5.5,h:1.1");
+    index("id", "306", "ocr_text", "gamma|p:5,l:1,n:1,x:11.1,y:22.2,w:5.5,h:1.1");
+    commit();
 
-    initCore("conf/solrconfig.xml", "conf/schema.xml", "src/test/resources/solr", "alldata");
+    handle.clear();
+    handle.put("QTime", SKIPVAL);
+    handle.put("timestamp", SKIPVAL);
+    handle.put("maxScore", SKIPVAL);
 
-    // The highlighting component should be active
-    SearchComponent highlighter = h.getCore().getSearchComponent("ocr_highlight");
-    assertTrue("wrong highlighter: " + highlighter.getClass(),
-        highlighter instanceof OcrHighlighting);
+    checkHighlighting();
+    checkPageFacets();
+    checkPartialResults();
+    checkBudget();
+    checkPackedFormat();
+  }
 
-    assertU(adoc("ocr_text", "contains|p:20,l:3,n:5,x:11.1,y:22.2,w:33.3,h:44.4, position|p:20,l:4,n:6,x:55.5,y:66.6,w:77.7,h:88.8,", "id", "105"));
+  private void checkHighlighting() throws Exception {
+    QueryResponse rsp = query("q", "contains position", "fl", "id", "sort", "id asc", "df", "ocr_text",
+        "ocr_hl", "true", "ocr_hl.fields", "ocr_text");
+    List<NamedList<Object>> hits = getHits(rsp, "105");
+    assertEquals(2, hits.size());
+    assertEquals(20, hits.get(0).get("page"));
+    assertEquals(3, hits.get(0).get("line"));
+    assertEquals(5, hits.get(0).get("word"));
+    assertEquals(20, hits.get(1).get("page"));
+    assertEquals(4, hits.get(1).get("line"));
+    assertEquals(6, hits.get(1).get("word"));
+  }
 
-    assertU(BaseDistributedSearchTestCase.commit());
+  @SuppressWarnings("unchecked")
+  private void checkPageFacets() throws Exception {
+    // The shards send their complete counts, the limit is only applied to the merged counts
+    QueryResponse rsp = query("q", "alpha beta", "fl", "id", "sort", "id asc", "df", "ocr_text",
+        "ocr_hl.pageFacet", "true", "ocr_hl.fields", "ocr_text", "ocr_hl.pageFacet.limit", "3");
+    NamedList<Integer> counts =
+        ((NamedList<NamedList<Integer>>) rsp.getResponse().get("ocr_pageFacets")).get("ocr_text");
+    assertEquals(3, counts.size());
+    assertEquals("3", counts.getName(0));
+    assertEquals(5, (int) counts.getVal(0));
+    assertEquals("2", counts.getName(1));
+    assertEquals(3, (int) counts.getVal(1));
+    assertEquals("1", counts.getName(2));
+    assertEquals(2, (int) counts.getVal(2));
   }
 
-  @Test
-  @ShardsRepeat(max=5)
-  public void testWithPageNumberAndPosition() {
-    assertQ(
-        "terms with both page number and word position",
-        req("q", "contains position", "sort", "id asc", "ocr_hl", "true","ocr_hl.fields", "ocr_text", "df", "ocr_text"),
-        "count(//lst[@name='ocr_highlighting']/*)=1",
-        "count(//lst[@name='ocr_highlighting']/lst[@name='105']/arr[@name='ocr_text']/lst)=2",
-        "(//lst[@name='ocr_highlighting']/lst[@name='105']/arr[@name='ocr_text']/lst)[1]/int[@name='page']='20'",
-        "(//lst[@name='ocr_highlighting']/lst[@name='105']/arr[@name='ocr_text']/lst)[1]/int[@name='line']='3'",
-        "(//lst[@name='ocr_highlighting']/lst[@name='105']/arr[@name='ocr_text']/lst)[1]/int[@name='word']='5'",
-        "(//lst[@name='ocr_highlighting']/lst[@name='105']/arr[@name='ocr_text']/lst)[2]/int[@name='page']='20'",
-        "(//lst[@name='ocr_highlighting']/lst[@name='105']/arr[@name='ocr_text']/lst)[2]/int[@name='line']='4'",
-        "(//lst[@name='ocr_highlighting']/lst[@name='105']/arr[@name='ocr_text']/lst)[2]/int[@name='word']='6'");
+  private void checkPartialResults() throws Exception {
+    QueryResponse rsp = query("q", "alpha beta", "fl", "id", "sort", "id asc", "df", "ocr_text",
+        "ocr_hl", "true", "ocr_hl.fields", "ocr_text", "ocr_hl.timeAllowed", "0");
+    assertEquals(Boolean.TRUE, rsp.getHeader().get("partialResults"));
+    assertEquals(Boolean.TRUE, getHighlighting(rsp).get("303").get("partialResults"));
+  }
+
+  private void checkBudget() throws Exception {
+    // Every shard rounds its share up, so the shards return five hits that are trimmed to the budget of four. The
+    // single core distributes the budget differently, so only the totals are compared.
+    handle.put("ocr_highlighting", SKIP);
+    QueryResponse rsp = query("q", "alpha beta", "fl", "id", "sort", "id asc", "df", "ocr_text",
+        "ocr_hl", "true", "ocr_hl.fields", "ocr_text", "ocr_hl.maxTotal", "4");
+    handle.remove("ocr_highlighting");
+    NamedList<NamedList<Object>> highlighting = getHighlighting(rsp);
+    int total = 0;
+    for (int i = 0; i < highlighting.size(); i++) {
+      total += getHits(rsp, highlighting.getName(i)).size();
+    }
+    assertEquals(4, total);
+    assertEquals(Boolean.TRUE, highlighting.get("301").get("truncated"));
+    assertEquals(Boolean.TRUE, highlighting.get("305").get("truncated"));
+    assertEquals(0, getHits(rsp, "305").size());
+  }
+
+  @SuppressWarnings("unchecked")
+  private void checkPackedFormat() throws Exception {
+    Object[] params = {"q", "alpha beta", "fl", "id", "sort", "id asc", "df", "ocr_text", "ocr_hl", "true",
+        "ocr_hl.fields", "ocr_text"};
+    QueryResponse plain = query(params);
+    Object[] packedParams = new Object[params.length + 2];
+    System.arraycopy(params, 0, packedParams, 0, params.length);
+    packedParams[params.length] = "ocr_hl.format";
+    packedParams[params.length + 1] = "packed";
+    QueryResponse packed = query(packedParams);
+
+    NamedList<Object> encodedLayout =
+        ((NamedList<NamedList<Object>>) packed.getResponse().get("ocr_highlightingLayout")).get("ocr_text");
+    PayloadLayout layout = new PayloadLayout(
+        (Integer) encodedLayout.get("coordinateBits"), (Integer) encodedLayout.get("wordBits"),
+        (Integer) encodedLayout.get("lineBits"), (Integer) encodedLayout.get("pageBits"),
+        (Integer) encodedLayout.get("confidenceBits"), (Boolean) encodedLayout.get("absoluteCoordinates"),
+        (Integer) encodedLayout.get("payloadVersion"));
+    NamedList<NamedList<Object>> packedHighlighting = getHighlighting(packed);
+    NamedList<NamedList<Object>> plainHighlighting = getHighlighting(plain);
+    assertEquals(5, plainHighlighting.size());
+    assertEquals(plainHighlighting.size(), packedHighlighting.size());
+    for (int i = 0; i < plainHighlighting.size(); i++) {
+      String key = plainHighlighting.getName(i);
+      List<NamedList<Object>> expected = getHits(plain, key);
+      OcrInfo[] actual = PackedHits.unpack((NamedList<?>) packedHighlighting.get(key).get("ocr_text"), layout);
+      assertEquals(expected.size(), actual.length);
+      for (int j = 0; j < actual.length; j++) {
+        NamedList<Object> hit = expected.get(j);
+        assertEquals(hit.get("term"), actual[j].getTerm());
+        assertEquals(hit.get("page"), actual[j].getPageIndex());
+        assertEquals(hit.get("line"), actual[j].getLineIndex());
+        assertEquals(hit.get("word"), actual[j].getWordIndex());
+        assertEquals(((Number) hit.get("x")).floatValue(), actual[j].getHorizontalOffset(), 0f);
+        assertEquals(((Number) hit.get("y")).floatValue(), actual[j].getVerticalOffset(), 0f);
+        assertEquals(((Number) hit.get("width")).floatValue(), actual[j].getWidth(), 0f);
+        assertEquals(((Number) hit.get("height")).floatValue(), actual[j].getHeight(), 0f);
+      }
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static NamedList<NamedList<Object>> getHighlighting(QueryResponse rsp) {
+    return (NamedList<NamedList<Object>>) rsp.getResponse().get("ocr_highlighting");
+  }
+
+  @SuppressWarnings("unchecked")
+  private static List<NamedList<Object>> getHits(QueryResponse rsp, String key) {
+    return (List<NamedList<Object>>) getHighlighting(rsp).get(key).get("ocr_text");
   }
 }
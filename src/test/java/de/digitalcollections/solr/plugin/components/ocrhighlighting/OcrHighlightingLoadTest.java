@@ -0,0 +1,391 @@
+package de.digitalcollections.solr.plugin.components.ocrhighlighting;
+
+import com.carrotsearch.randomizedtesting.annotations.TimeoutSuite;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import org.apache.lucene.util.TimeUnits;
+import org.apache.solr.SolrTestCaseJ4;
+import org.apache.solr.client.solrj.impl.CloudSolrClient;
+import org.apache.solr.client.solrj.impl.NoOpResponseParser;
+import org.apache.solr.client.solrj.request.CollectionAdminRequest;
+import org.apache.solr.client.solrj.request.QueryRequest;
+import org.apache.solr.cloud.AbstractDistribZkTestBase;
+import org.apache.solr.cloud.SolrCloudTestCase;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Measures how the OCR highlighting scales with the number of shards, `rows`, `ocr_hl.maxPerDoc` and the length of
+ * the documents.
+ *
+ * Starts a cluster of Solr nodes in-process, indexes a synthetic corpus into collections with different numbers of
+ * shards and runs the same concurrent query mix with and without highlighting against each of them. For every
+ * combination, the throughput, the latency percentiles, the mean response size and the heap allocated per query
+ * are printed to stdout and written to a CSV file.
+ *
+ * Skipped unless the `loadtest` profile is active, run it with `mvn test -P loadtest`. All settings are system
+ * properties, e.g. `mvn test -P loadtest -Dload.shards=1,2,4,8 -Dload.docs=1000`:
+ *
+ * `load.nodes`
+ * : Number of Solr nodes (default: 2)
+ *
+ * `load.shards`
+ * : Comma-separated numbers of shards to test (default: 1,2,4)
+ *
+ * `load.docs`
+ * : Number of documents in the corpus (default: 200)
+ *
+ * `load.pages.min`, `load.pages.max`
+ * : Range of pages per document, the number of pages is distributed log-uniformly, so most documents are short and
+ *   a few are very long (default: 1 and 1000)
+ *
+ * `load.lines`, `load.words`
+ * : Mean number of lines per page and words per line, varying by up to 50% (default: 30 and 8)
+ *
+ * `load.vocabulary`
+ * : Number of distinct words, their frequencies follow Zipf's law (default: 20000)
+ *
+ * `load.rows`, `load.maxPerDoc`
+ * : Comma-separated values of `rows` and `ocr_hl.maxPerDoc` to test (default: 10,50 and 10,100)
+ *
+ * `load.threads`, `load.queries`, `load.warmup`
+ * : Number of concurrent clients, measured queries and unmeasured warm-up queries per combination
+ *   (default: 4, 500 and 100)
+ *
+ * `load.seed`
+ * : Seed for the corpus and the queries, the same seed always produces the same workload (default: 42)
+ *
+ * `load.report`
+ * : Path of the CSV report (default: target/ocr-highlighting-load.csv)
+ *
+ * The heap allocation is the difference of the bytes allocated by all threads of the JVM, i.e. the Solr nodes and
+ * the clients, and includes the parsing of the responses. Threads that terminate during a run are not accounted for.
+ */
+@SolrTestCaseJ4.SuppressSSL
+@TimeoutSuite(millis = 24 * TimeUnits.HOUR)
+public class OcrHighlightingLoadTest extends SolrCloudTestCase {
+
+  private static final String CONFIG_NAME = "ocr";
+  private static final int BATCH_SIZE = 20;
+
+  @BeforeClass
+  public static void setupCluster() throws Exception {
+    assumeTrue("Load test, run with -P loadtest", Boolean.getBoolean("tests.load"));
+    configureCluster(Integer.getInteger("load.nodes", 2))
+        .addConfig(CONFIG_NAME, Paths.get("src/test/resources/solr/cloud/conf"))
+        .configure();
+  }
+
+  @Test
+  public void measureHighlighting() throws Exception {
+    long seed = Long.getLong("load.seed", 42);
+    SyntheticCorpus corpus = new SyntheticCorpus(seed, Integer.getInteger("load.vocabulary", 20000),
+        Integer.getInteger("load.pages.min", 1), Integer.getInteger("load.pages.max", 1000),
+        Integer.getInteger("load.lines", 30), Integer.getInteger("load.words", 8));
+    int numDocs = Integer.getInteger("load.docs", 200);
+    int numThreads = Integer.getInteger("load.threads", 4);
+    int numQueries = Integer.getInteger("load.queries", 500);
+    int numWarmup = Integer.getInteger("load.warmup", 100);
+    Path reportPath = Paths.get(System.getProperty("load.report", "target/ocr-highlighting-load.csv"));
+    Files.createDirectories(reportPath.toAbsolutePath().getParent());
+
+    CloudSolrClient client = cluster.getSolrClient();
+    List<Result> results = new ArrayList<>();
+    try (PrintWriter report = new PrintWriter(Files.newBufferedWriter(reportPath, StandardCharsets.UTF_8))) {
+      report.println(Result.CSV_HEADER);
+      for (int numShards : parseInts(System.getProperty("load.shards", "1,2,4"))) {
+        String collection = "ocr_" + numShards;
+        CollectionAdminRequest.createCollection(collection, CONFIG_NAME, numShards, 1)
+            .setMaxShardsPerNode(numShards)
+            .process(client);
+        AbstractDistribZkTestBase.waitForRecoveriesToFinish(
+            collection, client.getZkStateReader(), false, true, 120);
+        long numTokens = indexCorpus(client, collection, corpus, numDocs);
+        System.out.printf(Locale.ROOT, "Indexed %d documents with %d tokens into %d shards%n", numDocs, numTokens,
+            numShards);
+
+        for (int rows : parseInts(System.getProperty("load.rows", "10,50"))) {
+          for (int maxPerDoc : parseInts(System.getProperty("load.maxPerDoc", "10,100"))) {
+            // Highlighting on and off run the same queries
+            List<String> queries = corpus.queries(seed + rows * 31L + maxPerDoc, numWarmup + numQueries);
+            for (boolean highlight : new boolean[]{false, true}) {
+              ModifiableSolrParams params = new ModifiableSolrParams();
+              params.set("rows", rows);
+              params.set("fl", "id");
+              params.set("ocr_hl", highlight);
+              params.set("ocr_hl.fields", "ocr_text");
+              params.set("ocr_hl.maxPerDoc", maxPerDoc);
+              Result result = run(client, collection, params, queries, numWarmup, numThreads);
+              result.describe(numShards, rows, maxPerDoc, highlight);
+              results.add(result);
+              report.println(result.toCsv());
+              report.flush();
+            }
+          }
+        }
+        CollectionAdminRequest.deleteCollection(collection).process(client);
+      }
+    }
+    System.out.printf(Locale.ROOT, "OCR highlighting load test (seed %d):%n%s%n%s%n", seed, Result.TABLE_HEADER,
+        results.stream().map(Result::toString).collect(Collectors.joining("\n")));
+  }
+
+  private static long indexCorpus(CloudSolrClient client, String collection, SyntheticCorpus corpus, int numDocs)
+      throws Exception {
+    long numTokens = 0;
+    List<SolrInputDocument> batch = new ArrayList<>();
+    for (int i = 0; i < numDocs; i++) {
+      SolrInputDocument doc = new SolrInputDocument();
+      doc.addField("id", Integer.toString(i));
+      StringBuilder text = new StringBuilder();
+      numTokens += corpus.document(i, text);
+      doc.addField("ocr_text", text.toString());
+      batch.add(doc);
+      if (batch.size() == BATCH_SIZE) {
+        client.add(collection, batch);
+        batch.clear();
+      }
+    }
+    if (!batch.isEmpty()) {
+      client.add(collection, batch);
+    }
+    client.commit(collection);
+    return numTokens;
+  }
+
+  /**
+   * Run the queries concurrently and measure them.
+   */
+  private static Result run(CloudSolrClient client, String collection, ModifiableSolrParams baseParams,
+      List<String> queries, int numWarmup, int numThreads) throws Exception {
+    long[] latencies = new long[queries.size() - numWarmup];
+    long[] responseSizes = new long[latencies.length];
+    AtomicInteger next = new AtomicInteger();
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    try {
+      // Warm up the caches and the JIT, the measured queries start once all warm-up queries are done
+      runQueries(executor, numThreads, () -> {
+        for (int i = next.getAndIncrement(); i < numWarmup; i = next.getAndIncrement()) {
+          query(client, collection, baseParams, queries.get(i));
+        }
+        return null;
+      });
+      next.set(0);
+      long allocatedBefore = allocatedBytes();
+      long start = System.nanoTime();
+      runQueries(executor, numThreads, () -> {
+        for (int i = next.getAndIncrement(); i < latencies.length; i = next.getAndIncrement()) {
+          long queryStart = System.nanoTime();
+          responseSizes[i] = query(client, collection, baseParams, queries.get(numWarmup + i));
+          latencies[i] = System.nanoTime() - queryStart;
+        }
+        return null;
+      });
+      long elapsed = System.nanoTime() - start;
+      return new Result(latencies, responseSizes, elapsed, allocatedBytes() - allocatedBefore);
+    } finally {
+      executor.shutdown();
+      executor.awaitTermination(1, TimeUnit.MINUTES);
+    }
+  }
+
+  private static void runQueries(ExecutorService executor, int numThreads,
+      Callable<Void> worker) throws Exception {
+    List<Future<Void>> futures = new ArrayList<>();
+    for (int i = 0; i < numThreads; i++) {
+      futures.add(executor.submit(worker));
+    }
+    for (Future<Void> future : futures) {
+      future.get();
+    }
+  }
+
+  /**
+   * Run a single query.
+   *
+   * @return The size of the response in bytes
+   */
+  private static long query(CloudSolrClient client, String collection, ModifiableSolrParams baseParams,
+      String query) throws Exception {
+    ModifiableSolrParams params = new ModifiableSolrParams(baseParams);
+    params.set("q", query);
+    QueryRequest request = new QueryRequest(params);
+    // Keep the raw response to measure its size
+    request.setResponseParser(new NoOpResponseParser("json"));
+    NamedList<Object> response = client.request(request, collection);
+    return ((String) response.get("response")).getBytes(StandardCharsets.UTF_8).length;
+  }
+
+  /**
+   * Sum up the bytes allocated by all live threads.
+   */
+  private static long allocatedBytes() {
+    com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long total = 0;
+    for (long bytes : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+      total += Math.max(bytes, 0);
+    }
+    return total;
+  }
+
+  private static int[] parseInts(String values) {
+    return Arrays.stream(values.split(",")).map(String::trim).mapToInt(Integer::parseInt).toArray();
+  }
+
+  /**
+   * Measurements of a single combination of settings.
+   */
+  private static class Result {
+    static final String CSV_HEADER =
+        "shards,rows,maxPerDoc,highlight,queries,qps,p50_ms,p95_ms,p99_ms,mean_response_bytes,allocated_bytes_per_query";
+    static final String TABLE_HEADER = String.format(Locale.ROOT, "%6s %5s %9s %3s %8s %8s %8s %8s %12s %12s",
+        "shards", "rows", "maxPerDoc", "hl", "qps", "p50 ms", "p95 ms", "p99 ms", "resp. bytes", "alloc/query");
+
+    private final long[] latencies;
+    private final double qps;
+    private final long meanResponseSize;
+    private final long allocatedPerQuery;
+    private int numShards;
+    private int rows;
+    private int maxPerDoc;
+    private boolean highlight;
+
+    Result(long[] latencies, long[] responseSizes, long elapsedNanos, long allocatedBytes) {
+      this.latencies = latencies.clone();
+      Arrays.sort(this.latencies);
+      this.qps = latencies.length / (elapsedNanos / 1e9);
+      this.meanResponseSize = latencies.length == 0 ? 0 : Arrays.stream(responseSizes).sum() / latencies.length;
+      this.allocatedPerQuery = latencies.length == 0 ? 0 : allocatedBytes / latencies.length;
+    }
+
+    void describe(int numShards, int rows, int maxPerDoc, boolean highlight) {
+      this.numShards = numShards;
+      this.rows = rows;
+      this.maxPerDoc = maxPerDoc;
+      this.highlight = highlight;
+    }
+
+    double percentileMillis(double percentile) {
+      if (latencies.length == 0) {
+        return 0;
+      }
+      int idx = (int) Math.ceil(percentile / 100.0 * latencies.length) - 1;
+      return latencies[Math.max(0, idx)] / 1e6;
+    }
+
+    String toCsv() {
+      return String.format(Locale.ROOT, "%d,%d,%d,%b,%d,%.1f,%.2f,%.2f,%.2f,%d,%d", numShards, rows, maxPerDoc,
+          highlight, latencies.length, qps, percentileMillis(50), percentileMillis(95), percentileMillis(99),
+          meanResponseSize, allocatedPerQuery);
+    }
+
+    @Override
+    public String toString() {
+      return String.format(Locale.ROOT, "%6d %5d %9d %3s %8.1f %8.2f %8.2f %8.2f %12d %12d", numShards, rows,
+          maxPerDoc, highlight ? "on" : "off", qps, percentileMillis(50), percentileMillis(95),
+          percentileMillis(99), meanResponseSize, allocatedPerQuery);
+    }
+  }
+
+  /**
+   * Generates OCR documents and queries from a fixed seed.
+   */
+  static class SyntheticCorpus {
+    private final long seed;
+    private final double[] cumulativeFrequencies;
+    private final int minPages;
+    private final int maxPages;
+    private final int meanLines;
+    private final int meanWords;
+
+    SyntheticCorpus(long seed, int vocabularySize, int minPages, int maxPages, int meanLines, int meanWords) {
+      this.seed = seed;
+      this.minPages = minPages;
+      this.maxPages = maxPages;
+      this.meanLines = meanLines;
+      this.meanWords = meanWords;
+      // Zipf's law: the frequency of a word is inversely proportional to its rank
+      this.cumulativeFrequencies = new double[vocabularySize];
+      double sum = 0;
+      for (int rank = 0; rank < vocabularySize; rank++) {
+        sum += 1.0 / (rank + 1);
+        cumulativeFrequencies[rank] = sum;
+      }
+      for (int rank = 0; rank < vocabularySize; rank++) {
+        cumulativeFrequencies[rank] /= sum;
+      }
+    }
+
+    private String word(Random random) {
+      int rank = Arrays.binarySearch(cumulativeFrequencies, random.nextDouble());
+      return "w" + Integer.toString(rank < 0 ? -rank - 1 : rank, Character.MAX_RADIX);
+    }
+
+    private static int vary(Random random, int mean) {
+      return Math.max(1, mean / 2 + random.nextInt(mean + 1));
+    }
+
+    /**
+     * Generate the OCR text of a document, every document only depends on the seed and its number.
+     *
+     * @return The number of tokens in the document
+     */
+    int document(int docNum, StringBuilder text) {
+      Random random = new Random(seed * 31 + docNum);
+      // Log-uniform, so most documents are short and a few are very long
+      double logPages = Math.log(minPages) + random.nextDouble() * (Math.log(maxPages) - Math.log(minPages));
+      int numPages = Math.min(4095, (int) Math.round(Math.exp(logPages)));
+      int numTokens = 0;
+      for (int page = 0; page < numPages; page++) {
+        int numLines = Math.min(2047, vary(random, meanLines));
+        for (int line = 0; line < numLines; line++) {
+          int numWords = Math.min(511, vary(random, meanWords));
+          for (int word = 0; word < numWords; word++) {
+            text.append(word(random)).append('|')
+                .append(String.format(Locale.ROOT, "p:%d,l:%d,n:%d,x:%.1f,y:%.1f,w:%.1f,h:%.1f ", page, line, word,
+                    90.0 * word / numWords, 90.0 * line / numLines, 80.0 / numWords, 80.0 / numLines));
+            numTokens++;
+          }
+        }
+      }
+      return numTokens;
+    }
+
+    /**
+     * Generate queries with one to three words, drawn with the same frequencies as the words of the corpus.
+     */
+    List<String> queries(long querySeed, int numQueries) {
+      Random random = new Random(querySeed);
+      List<String> queries = new ArrayList<>(numQueries);
+      for (int i = 0; i < numQueries; i++) {
+        int numTerms = 1 + random.nextInt(3);
+        StringBuilder query = new StringBuilder();
+        for (int j = 0; j < numTerms; j++) {
+          query.append(j > 0 ? " " : "").append(word(random));
+        }
+        queries.add(query.toString());
+      }
+      return queries;
+    }
+  }
+}
@@ -2,10 +2,16 @@ package de.digitalcollections.solr.plugin.components.ocrhighlighting;
 
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
 import org.apache.solr.SolrTestCaseJ4;
+import org.apache.solr.common.SolrInputDocument;
 import org.apache.solr.handler.component.SearchComponent;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.util.RefCounted;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import org.noggit.ObjectBuilder;
 
 public class OcrHighlightingTest extends SolrTestCaseJ4 {
   @BeforeClass
@@ -19,13 +25,66 @@ public class OcrHighlightingTest extends SolrTestCaseJ4 {
 
     String ocrText = String.join(" ", Files
         .readAllLines(Paths.get(OcrHighlighting.class.getResource("/data/ocrtext_full.txt").toURI())));
-    assertU(adoc("ocr_text", "two|p:27,l:13,n:24,x:12.3,y:43.2,w:54.3,h:65.4, one|p:28,l:27,n:64,x:65.4,y:54.3,w:43.2,h:32.1", "id", "101"));
+    assertU(adoc("ocr_text", "two|p:27,l:13,n:24,x:12.3,y:43.2,w:54.3,h:65.4, one|p:28,l:27,n:64,x:65.4,y:54.3,w:43.2,h:32.1", "id", "101",
+        "page_dims", "27:1000x2000 28:2000x1000"));
     assertU(adoc("ocr_text", "three|p:28,l:14,n:25,x:12.7,y:48.2,w:54.9,h:65.4, two|p:29,l:27,n:64,x:65.4,y:54.3,w:43.1,h:34.1, five|p:30,l:17,n:80,x:0,y:0,w:0,h:0, "
         + "four|p:31,l:32,n:33,x:11.1,y:11.1,w:11.1,h:11.1", "id", "102"));
     assertU(adoc("ocr_text", ocrText, "id", "103"));
 
+    // Test with a field that uses a different payload layout than the component
+    assertU(adoc("compact_text", "one|p:17,l:4,x:11.1,y:22.2,w:33.3,h:44.4, two|p:18,l:5,x:55.5,y:66.6,w:22.2,h:11.1", "id", "107"));
+
+    // Test with a document that has hits in two fields
+    assertU(adoc("ocr_text", "six|p:1,l:1,n:1,x:11.1,y:22.2,w:33.3,h:44.4, six|p:2,l:1,n:1,x:11.1,y:22.2,w:33.3,h:44.4",
+        "compact_text", "six|p:1,l:1,x:11.1,y:22.2,w:33.3,h:44.4, six|p:2,l:1,x:11.1,y:22.2,w:33.3,h:44.4", "id", "113"));
+
+    // Test with a field that uses the variable-width payload format
+    assertU(adoc("variable_text", "one|p:3,l:4,n:5,x:11.1,y:22.2,w:33.3,h:44.4, one|p:837,l:1500,n:300,x:55.5,y:66.6,w:22.2,h:11.1", "id", "108"));
+
+    // Test with a field that stores the OCR confidences of the words
+    assertU(adoc("confidence_text", "one|p:5,l:1,n:1,x:11.1,y:22.2,w:33.3,h:44.4,c:95, one|p:6,l:2,n:2,x:55.5,y:66.6,w:22.2,h:11.1,c:40, "
+        + "two|p:7,l:3,n:3,x:11.1,y:22.2,w:33.3,h:44.4", "id", "109"));
+    assertU(adoc("confidence_text", "one|p:1,l:1,n:1,x:11.1,y:22.2,w:33.3,h:44.4,c:30", "id", "110"));
+
+    // Test with a field whose payloads are packed by the postings format
+    assertU(adoc("packed_text", "one|p:3,l:4,n:5,x:11.1,y:22.2,w:33.3,h:44.4, two|p:0,l:0,n:0,x:0,y:0,w:0,h:0, "
+        + "one|p:4000,l:2000,n:500,x:55.5,y:66.6,w:22.2,h:11.1, one|p:4000,l:2001,n:1,x:1.1,y:2.2,w:3.3,h:4.4", "id", "111"));
+
+    // Test with volumes whose pages are indexed as child documents
+    SolrInputDocument volume = sdoc("id", "200", "doctype", "volume");
+    volume.addChildDocument(sdoc("id", "201", "doctype", "page", "pages_ocr", "one|p:1,l:2,n:3,x:11.1,y:22.2,w:33.3,h:44.4"));
+    volume.addChildDocument(sdoc("id", "202", "doctype", "page", "pages_ocr", "two|p:2,l:2,n:3,x:11.1,y:22.2,w:33.3,h:44.4"));
+    volume.addChildDocument(sdoc("id", "203", "doctype", "page", "pages_ocr", "two|p:3,l:7,n:1,x:11.1,y:22.2,w:33.3,h:44.4, "
+        + "one|p:3,l:7,n:2,x:55.5,y:22.2,w:11.1,h:44.4"));
+    assertU(adoc(volume));
+    volume = sdoc("id", "210", "doctype", "volume");
+    volume.addChildDocument(sdoc("id", "211", "doctype", "page", "pages_ocr", "one|p:1,l:1,n:1,x:11.1,y:22.2,w:33.3,h:44.4, "
+        + "one|p:1,l:5,n:4,x:55.5,y:66.6,w:22.2,h:11.1"));
+    assertU(adoc(volume));
+
     // Test with a dynamic field
-    assertU(adoc("body_ocr", "one|p:42,l:13,n:55,x:11.1,y:22.2,w:33.3,h:44.4, two|p:42,l:13,n:66,x:55.5,y:66.6,w:77.7,h:88.8", "id", "106"));
+    String bodyOcr = "one|p:42,l:13,n:55,x:11.1,y:22.2,w:33.3,h:44.4, two|p:42,l:13,n:66,x:55.5,y:66.6,w:77.7,h:88.8";
+    assertU(adoc("body_ocr", bodyOcr, "ocr_boxes", bodyOcr, "ocr_lines", bodyOcr, "id", "106"));
+
+    // Test with hits on different lines, the word indices restart on every line
+    StringBuilder passageOcr = new StringBuilder("alpha|p:1,l:1,n:3,x:11.1,y:1.1,w:5.5,h:1.1");
+    for (int line = 2; line < 40; line++) {
+      passageOcr.append(" filler|p:1,l:").append(line).append(",n:0,x:11.1,y:").append(line).append(",w:5.5,h:1.1");
+    }
+    passageOcr.append(" beta|p:1,l:40,n:5,x:22.2,y:40.0,w:5.5,h:1.1")
+        .append(" gamma|p:1,l:41,n:20,x:88.8,y:41.0,w:5.5,h:1.1")
+        .append(" delta|p:1,l:42,n:0,x:11.1,y:42.0,w:5.5,h:1.1");
+    assertU(adoc("body_ocr", passageOcr.toString(), "id", "112"));
+
+    // Test with words that are changed by the analysis, the context has to be the original text
+    String contextOcr = "The|p:3,l:7,n:0,x:11.1,y:22.2,w:5.5,h:1.1 Dogs|p:3,l:7,n:1,x:17.7,y:22.2,w:5.5,h:1.1 "
+        + "Barking|p:3,l:7,n:2,x:23.3,y:22.2,w:5.5,h:1.1 loudly.|p:3,l:8,n:0,x:11.1,y:24.4,w:5.5,h:1.1";
+    assertU(adoc("body_ocr", contextOcr, "ocr_lines", contextOcr, "id", "114"));
+
+    // Test with two terms that both have hits on the same page
+    assertU(adoc("ocr_text", "kappa|p:5,l:1,n:1,x:11.1,y:22.2,w:5.5,h:1.1 lambda|p:5,l:1,n:2,x:17.7,y:22.2,w:5.5,h:1.1 "
+        + "kappa|p:5,l:2,n:1,x:11.1,y:24.4,w:5.5,h:1.1 lambda|p:5,l:2,n:2,x:17.7,y:24.4,w:5.5,h:1.1 "
+        + "kappa|p:6,l:1,n:1,x:11.1,y:22.2,w:5.5,h:1.1 lambda|p:6,l:1,n:2,x:17.7,y:22.2,w:5.5,h:1.1", "id", "115"));
 
     assertU(commit());
   }
@@ -85,6 +144,555 @@ public class OcrHighlightingTest extends SolrTestCaseJ4 {
         "count(//lst[@name='ocr_highlighting']/lst[@name='103']/arr[@name='ocr_text']/lst[int[@name='page']='183'])=number('5')");
   }
 
+  @Test
+  public void testLimitHighlightsPerPageAcrossTerms() {
+    assertQ(
+        "the limit per page applies to the hits of all terms together",
+        req("q", "kappa lambda", "ocr_hl", "true", "ocr_hl.fields", "ocr_text", "ocr_hl.maxPerPage", "3", "df",
+            "ocr_text"),
+        "count(//lst[@name='ocr_highlighting']/lst[@name='115']/arr[@name='ocr_text']/lst[int[@name='page']='5'])=3",
+        "count(//lst[@name='ocr_highlighting']/lst[@name='115']/arr[@name='ocr_text']/lst[int[@name='page']='6'])=2");
+  }
+
+  @Test
+  public void testLimitHighlightsTotal() {
+    assertQ(
+        "the total number of highlights is distributed across all documents",
+        req("q", "two und", "sort", "id asc", "ocr_hl", "true", "ocr_hl.fields", "ocr_text", "ocr_hl.maxTotal", "4",
+            "df", "ocr_text"),
+        "count(//lst[@name='ocr_highlighting']/*)=3",
+        "count(//lst[@name='ocr_highlighting']/lst[@name='101']/arr[@name='ocr_text']/lst)=1",
+        "count(//lst[@name='ocr_highlighting']/lst[@name='102']/arr[@name='ocr_text']/lst)=1",
+        "count(//lst[@name='ocr_highlighting']/lst[@name='103']/arr[@name='ocr_text']/lst)=2",
+        "count(//lst[@name='ocr_highlighting']/lst[@name='101']/bool[@name='truncated'])=0",
+        "//lst[@name='ocr_highlighting']/lst[@name='103']/bool[@name='truncated']='true'");
+  }
+
+  @Test
+  public void testLimitHighlightsPerDocAppliesToEveryField() {
+    assertQ(
+        "the limit per document applies to every field on its own",
+        req("q", "ocr_text:six compact_text:six", "ocr_hl", "true", "ocr_hl.fields", "ocr_text",
+            "ocr_hl.fields", "compact_text", "ocr_hl.maxPerDoc", "1"),
+        "count(//lst[@name='ocr_highlighting']/lst[@name='113']/arr[@name='ocr_text']/lst)=1",
+        "count(//lst[@name='ocr_highlighting']/lst[@name='113']/arr[@name='compact_text']/lst)=1");
+    assertQ(
+        "the total budget is shared by all fields of a document",
+        req("q", "ocr_text:six compact_text:six", "ocr_hl", "true", "ocr_hl.fields", "ocr_text",
+            "ocr_hl.fields", "compact_text", "ocr_hl.maxTotal", "3"),
+        "count(//lst[@name='ocr_highlighting']/lst[@name='113']/arr[@name='ocr_text']/lst)=2",
+        "count(//lst[@name='ocr_highlighting']/lst[@name='113']/arr[@name='compact_text']/lst)=1",
+        "//lst[@name='ocr_highlighting']/lst[@name='113']/bool[@name='truncated']='true'");
+  }
+
+  @Test
+  public void testLimitHighlightsTotalOnlyCountsUsableHits() {
+    assertQ(
+        "documents without hits in the page range don't receive any of the budget",
+        req("q", "two und", "sort", "id asc", "ocr_hl", "true", "ocr_hl.fields", "ocr_text", "ocr_hl.maxTotal", "4",
+            "ocr_hl.pageRange", "183", "df", "ocr_text"),
+        "count(//lst[@name='ocr_highlighting']/lst[@name='101']/arr[@name='ocr_text']/lst)=0",
+        "count(//lst[@name='ocr_highlighting']/lst[@name='103']/arr[@name='ocr_text']/lst)=4",
+        "//lst[@name='ocr_highlighting']/lst[@name='103']/bool[@name='truncated']='true'");
+  }
+
+  @Test
+  public void testPagingWithStartAndRows() {
+    assertQ(
+        "page through the hits of a document",
+        req("q", "five four", "sort", "id asc", "ocr_hl", "true", "ocr_hl.fields", "ocr_text", "ocr_hl.start", "1",
+            "ocr_hl.rows", "1", "df", "ocr_text"),
+        "count(//lst[@name='ocr_highlighting']/lst[@name='102']/arr[@name='ocr_text']/lst)=1",
+        "//lst[@name='ocr_highlighting']/lst[@name='102']/arr[@name='ocr_text']/lst[1]/str[@name='term']='four'",
+        "count(//lst[@name='ocr_highlighting']/lst[@name='102']/str[@name='nextCursor'])=0");
+    assertQ(
+        "hits outside of the page range don't count as more hits",
+        req("q", "five four", "sort", "id asc", "ocr_hl", "true", "ocr_hl.fields", "ocr_text", "ocr_hl.rows", "1",
+            "ocr_hl.pageRange", "30", "df", "ocr_text"),
+        "count(//lst[@name='ocr_highlighting']/lst[@name='102']/arr[@name='ocr_text']/lst)=1",
+        "//lst[@name='ocr_highlighting']/lst[@name='102']/arr[@name='ocr_text']/lst[1]/str[@name='term']='five'",
+        "count(//lst[@name='ocr_highlighting']/lst[@name='102']/str[@name='nextCursor'])=0");
+  }
+
+  @Test
+  public void testPagingWithCursor() throws Exception {
+    String response = h.query(req(
+        "q", "five four", "sort", "id asc", "ocr_hl", "true", "ocr_hl.fields", "ocr_text", "ocr_hl.rows", "1",
+        "df", "ocr_text"));
+    String cursor = response.replaceAll("(?s).*<str name=\"nextCursor\">([^<]+)</str>.*", "$1");
+    assertQ(
+        "resume paging with a cursor",
+        req("q", "five four", "sort", "id asc", "ocr_hl", "true", "ocr_hl.fields", "ocr_text", "ocr_hl.rows", "1",
+            "ocr_hl.cursor", cursor, "df", "ocr_text"),
+        "count(//lst[@name='ocr_highlighting']/lst[@name='102']/arr[@name='ocr_text']/lst)=1",
+        "//lst[@name='ocr_highlighting']/lst[@name='102']/arr[@name='ocr_text']/lst[1]/str[@name='term']='four'",
+        "count(//lst[@name='ocr_highlighting']/lst[@name='102']/str[@name='nextCursor'])=0");
+  }
+
+  @Test
+  public void testCursorOnlyAppliesToItsDocument() throws Exception {
+    String response = h.query(req(
+        "q", "three two", "sort", "id desc", "ocr_hl", "true", "ocr_hl.fields", "ocr_text", "ocr_hl.rows", "1",
+        "df", "ocr_text"));
+    String cursor = response.replaceAll("(?s).*<str name=\"nextCursor\">([^<]+)</str>.*", "$1");
+    assertQ(
+        "the other documents start at their first hit",
+        req("q", "three two", "sort", "id desc", "ocr_hl", "true", "ocr_hl.fields", "ocr_text", "ocr_hl.rows", "1",
+            "ocr_hl.cursor", cursor, "df", "ocr_text"),
+        "//lst[@name='ocr_highlighting']/lst[@name='102']/arr[@name='ocr_text']/lst[1]/str[@name='term']='two'",
+        "count(//lst[@name='ocr_highlighting']/lst[@name='101']/arr[@name='ocr_text']/lst)=1",
+        "//lst[@name='ocr_highlighting']/lst[@name='101']/arr[@name='ocr_text']/lst[1]/str[@name='term']='two'");
+    assertQEx(
+        "the limit per page can't be applied while paging",
+        req("q", "three two", "ocr_hl", "true", "ocr_hl.fields", "ocr_text", "ocr_hl.rows", "1",
+            "ocr_hl.maxPerPage", "1", "df", "ocr_text"),
+        400);
+  }
+
+  @Test
+  public void testRegionLookup() {
+    assertQ(
+        "the words in a region are returned in reading order",
+        req("qt", "/ocr_region", "id", "106", "page", "42", "region", "0,0,1,1"),
+        "//lst[@name='ocr_region']/str[@name='text']='one two'",
+        "count(//lst[@name='ocr_region']/arr[@name='words']/lst)=2",
+        "//lst[@name='ocr_region']/arr[@name='words']/lst[1]/str[@name='text']='one'",
+        "//lst[@name='ocr_region']/arr[@name='words']/lst[1]/int[@name='word']='55'",
+        "//lst[@name='ocr_region']/arr[@name='words']/lst[2]/str[@name='text']='two'");
+    assertQ(
+        "only words whose boxes intersect the region are returned",
+        req("qt", "/ocr_region", "id", "106", "page", "42", "region", "0.5,0.7,0.1,0.1"),
+        "//lst[@name='ocr_region']/str[@name='text']='two'",
+        "count(//lst[@name='ocr_region']/arr[@name='words']/lst)=1");
+    assertQ(
+        "pages without words yield an empty region",
+        req("qt", "/ocr_region", "id", "106", "page", "41", "region", "0,0,1,1"),
+        "count(//lst[@name='ocr_region']/arr[@name='words']/lst)=0");
+    assertQEx(
+        "the region has to have four coordinates",
+        req("qt", "/ocr_region", "id", "106", "page", "42", "region", "0,0,1"),
+        400);
+  }
+
+  @Test
+  public void testScaleToPixels() {
+    assertQ(
+        "relative coordinates are scaled with the dimensions of the hit's page",
+        req("q", "two", "fq", "id:101", "ocr_hl", "true", "ocr_hl.fields", "ocr_text", "df", "ocr_text",
+            "ocr_hl.scale", "pixels"),
+        "count(//lst[@name='101']/arr[@name='ocr_text']/lst[1]/int[@name='x'][. >= 122 and . <= 124])=1",
+        "count(//lst[@name='101']/arr[@name='ocr_text']/lst[1]/int[@name='y'][. >= 862 and . <= 866])=1",
+        "count(//lst[@name='101']/arr[@name='ocr_text']/lst[1]/int[@name='width'][. >= 542 and . <= 544])=1",
+        "count(//lst[@name='101']/arr[@name='ocr_text']/lst[1]/int[@name='height'][. >= 1306 and . <= 1310])=1");
+    assertQ(
+        "documents without page dimensions keep their relative coordinates",
+        req("q", "two", "fq", "id:102", "ocr_hl", "true", "ocr_hl.fields", "ocr_text", "df", "ocr_text",
+            "ocr_hl.scale", "pixels"),
+        "count(//lst[@name='102']/arr[@name='ocr_text']/lst[1]/float[@name='x'])=1");
+    assertQEx(
+        "scaled hits can't be packed",
+        req("q", "two", "ocr_hl", "true", "ocr_hl.fields", "ocr_text", "df", "ocr_text", "ocr_hl.scale", "pixels",
+            "ocr_hl.format", "packed"),
+        400);
+    assertQEx(
+        "the page dimensions need a page dimensions field",
+        req("q", "two", "ocr_hl", "true", "ocr_hl.fields", "ocr_text", "df", "ocr_text", "ocr_hl.scale", "pixels",
+            "ocr_hl.pageDimensions", "doctype"),
+        400);
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testIiifSearchResponse() throws Exception {
+    String response = h.query(req(
+        "q", "one", "fq", "id:101", "ocr_hl", "true", "ocr_hl.fields", "ocr_text", "df", "ocr_text", "wt", "iiif",
+        "iiif.id", "https://example.com/search?q=one", "iiif.pageWidth", "1000", "iiif.pageHeight", "2000"));
+    Map<String, Object> json = (Map<String, Object>) ObjectBuilder.fromJSON(response);
+    assertEquals("https://example.com/search?q=one", json.get("@id"));
+    assertEquals("sc:AnnotationList", json.get("@type"));
+    assertEquals(1L, ((Map<String, Object>) json.get("within")).get("total"));
+    List<Map<String, Object>> resources = (List<Map<String, Object>>) json.get("resources");
+    assertEquals(1, resources.size());
+    assertEquals("one", ((Map<String, Object>) resources.get(0).get("resource")).get("chars"));
+    String target = (String) resources.get(0).get("on");
+    assertTrue(target, target.startsWith("https://iiif.example.com/101/canvas/p28#xywh="));
+    // The relative coordinates are scaled to the page size, up to the precision of the payload
+    String[] xywh = target.substring(target.indexOf('=') + 1).split(",");
+    assertEquals(654, Integer.parseInt(xywh[0]), 2);
+    assertEquals(1086, Integer.parseInt(xywh[1]), 4);
+    assertEquals(432, Integer.parseInt(xywh[2]), 2);
+    assertEquals(642, Integer.parseInt(xywh[3]), 4);
+    List<Map<String, Object>> hits = (List<Map<String, Object>>) json.get("hits");
+    assertEquals(1, hits.size());
+    assertEquals(resources.get(0).get("@id"), ((List<Object>) hits.get(0).get("annotations")).get(0));
+    assertEquals("one", hits.get(0).get("match"));
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testIiifSearchResponseFromPackedHits() throws Exception {
+    String response = h.query(req(
+        "q", "five four", "sort", "id asc", "ocr_hl", "true", "ocr_hl.fields", "ocr_text", "df", "ocr_text",
+        "ocr_hl.format", "packed", "wt", "iiif", "iiif.version", "2"));
+    Map<String, Object> json = (Map<String, Object>) ObjectBuilder.fromJSON(response);
+    assertEquals("AnnotationPage", json.get("type"));
+    assertEquals(2L, ((Map<String, Object>) json.get("partOf")).get("total"));
+    List<Map<String, Object>> items = (List<Map<String, Object>>) json.get("items");
+    assertEquals(2, items.size());
+    assertEquals("five", ((Map<String, Object>) items.get(0).get("body")).get("value"));
+    // Without the page size, the relative coordinates are kept as percentages
+    assertTrue(items.get(0).get("target").toString().startsWith("https://iiif.example.com/102/canvas/p30#xywh=percent:"));
+    assertEquals("four", ((Map<String, Object>) items.get(1).get("body")).get("value"));
+    assertTrue(items.get(1).get("target").toString().startsWith("https://iiif.example.com/102/canvas/p31#xywh=percent:"));
+  }
+
+  @Test
+  public void testLimitToPageRange() {
+    assertQ(
+        "only highlight hits in the page range",
+        req("q", "und", "sort", "id asc", "ocr_hl", "true", "ocr_hl.fields", "ocr_text", "ocr_hl.pageRange", "183",
+            "df", "ocr_text"),
+        "count(//lst[@name='ocr_highlighting']/lst[@name='103']/arr[@name='ocr_text']/lst[int[@name='page']='183'])>0",
+        "count(//lst[@name='ocr_highlighting']/lst[@name='103']/arr[@name='ocr_text']/lst[int[@name='page']!='183'])=0");
+  }
+
+  @Test
+  public void testSortByDensity() {
+    assertQ(
+        "only return hits on the densest pages",
+        req("q", "und", "sort", "id asc", "ocr_hl", "true", "ocr_hl.fields", "ocr_text", "ocr_hl.sort", "density",
+            "ocr_hl.pages", "1", "df", "ocr_text"),
+        "count(//lst[@name='ocr_highlighting']/lst[@name='103']/lst[@name='bestPages']/arr[@name='ocr_text']/int)=1",
+        "count(//lst[@name='ocr_highlighting']/lst[@name='103']/arr[@name='ocr_text']/lst)>0",
+        "count(//lst[@name='ocr_highlighting']/lst[@name='103']/arr[@name='ocr_text']/lst[int[@name='page']"
+            + "!=//lst[@name='ocr_highlighting']/lst[@name='103']/lst[@name='bestPages']/arr[@name='ocr_text']/int])=0");
+  }
+
+  @Test
+  public void testHighlightRequestHandler() {
+    assertQ(
+        "highlight documents by their unique key",
+        req("qt", "/ocr_hl", "q", "two", "ids", "102,101,999", "ocr_hl.fields", "ocr_text", "df", "ocr_text"),
+        "count(//result)=0",
+        "count(//lst[@name='ocr_highlighting']/*)=2",
+        "//lst[@name='ocr_highlighting']/lst[1]/@name='102'",
+        "//lst[@name='ocr_highlighting']/lst[@name='101']/arr[@name='ocr_text']/lst[1]/int[@name='page']='27'",
+        "//lst[@name='ocr_highlighting']/lst[@name='102']/arr[@name='ocr_text']/lst[1]/int[@name='page']='29'");
+  }
+
+  @Test
+  public void testPackedFormat() {
+    assertQ(
+        "hits are returned in the compact binary representation",
+        req("q", "five four", "sort", "id asc", "ocr_hl", "true", "ocr_hl.fields", "ocr_text", "ocr_hl.format",
+            "packed", "df", "ocr_text"),
+        "//lst[@name='ocr_highlightingLayout']/lst[@name='ocr_text']/int[@name='pageBits']='12'",
+        "count(//lst[@name='ocr_highlighting']/lst[@name='102']/lst[@name='ocr_text']/arr[@name='terms']/str)=2",
+        "//lst[@name='ocr_highlighting']/lst[@name='102']/lst[@name='ocr_text']/arr[@name='terms']/str[1]='five'",
+        "count(//lst[@name='ocr_highlighting']/lst[@name='102']/lst[@name='ocr_text']/str[@name='hits'])=1");
+  }
+
+  @Test
+  public void testLayoutFromAnalyzer() {
+    OcrHighlighting highlighter = (OcrHighlighting) h.getCore().getSearchComponent("ocr_highlight");
+    assertEquals(12, highlighter.getLayout(h.getCore().getLatestSchema(), "ocr_text").getPageBits());
+    assertEquals(0, highlighter.getLayout(h.getCore().getLatestSchema(), "compact_text").getWordBits());
+    assertQ(
+        "the payloads are decoded with the layout of the field's analyzer",
+        req("q", "compact_text:two", "ocr_hl", "true", "ocr_hl.fields", "compact_text"),
+        "count(//lst[@name='ocr_highlighting']/lst[@name='107']/arr[@name='compact_text']/lst)=1",
+        "//lst[@name='ocr_highlighting']/lst[@name='107']/arr[@name='compact_text']/lst/int[@name='page']='18'",
+        "//lst[@name='ocr_highlighting']/lst[@name='107']/arr[@name='compact_text']/lst/int[@name='line']='5'",
+        "packed hits describe the layout of every field",
+        req("q", "compact_text:two", "ocr_hl", "true", "ocr_hl.fields", "compact_text", "ocr_hl.format", "packed"),
+        "//lst[@name='ocr_highlightingLayout']/lst[@name='compact_text']/int[@name='coordinateBits']='8'",
+        "//lst[@name='ocr_highlightingLayout']/lst[@name='compact_text']/int[@name='pageBits']='8'");
+  }
+
+  @Test
+  public void testVariableWidthPayloads() {
+    String[] params = {
+        "q", "variable_text:one", "ocr_hl", "true", "ocr_hl.fields", "variable_text", "ocr_hl.pageFacet", "true"};
+    String[] tests = {
+        "count(//lst[@name='ocr_highlighting']/lst[@name='108']/arr[@name='variable_text']/lst)=2",
+        "//lst[@name='ocr_highlighting']/lst[@name='108']/arr[@name='variable_text']/lst[1]/int[@name='page']='3'",
+        "//lst[@name='ocr_highlighting']/lst[@name='108']/arr[@name='variable_text']/lst[2]/int[@name='page']='837'",
+        "//lst[@name='ocr_highlighting']/lst[@name='108']/arr[@name='variable_text']/lst[2]/int[@name='line']='1500'",
+        "//lst[@name='ocr_highlighting']/lst[@name='108']/arr[@name='variable_text']/lst[2]/int[@name='word']='300'",
+        "//lst[@name='ocr_pageFacets']/lst[@name='variable_text']/int[@name='837']='1'"};
+    assertQ("payloads in the variable-width format are decoded", req(params), tests);
+    assertQ("and survive the round trip through the cache", req(params), tests);
+  }
+
+  @Test
+  public void testMinimumConfidence() {
+    assertQ(
+        "all hits are returned without a minimum confidence",
+        req("q", "confidence_text:one", "sort", "id asc", "ocr_hl", "true", "ocr_hl.fields", "confidence_text"),
+        "count(//lst[@name='ocr_highlighting']/lst[@name='109']/arr[@name='confidence_text']/lst)=2",
+        "count(//lst[@name='ocr_highlighting']/lst[@name='110']/arr[@name='confidence_text']/lst)=1",
+        "//lst[@name='ocr_highlighting']/lst[@name='109']/arr[@name='confidence_text']/lst[1]/float[@name='confidence']>0.94");
+    assertQ(
+        "hits below the minimum confidence are skipped",
+        req("q", "confidence_text:one", "sort", "id asc", "ocr_hl", "true", "ocr_hl.fields", "confidence_text",
+            "ocr_hl.minConfidence", "0.8"),
+        "count(//lst[@name='ocr_highlighting']/lst[@name='109']/arr[@name='confidence_text']/lst)=1",
+        "//lst[@name='ocr_highlighting']/lst[@name='109']/arr[@name='confidence_text']/lst[1]/int[@name='page']='5'",
+        "count(//lst[@name='ocr_highlighting']/lst[@name='110']/arr[@name='confidence_text']/lst)=0");
+    assertQ(
+        "words without a confidence are fully confident",
+        req("q", "confidence_text:two", "ocr_hl", "true", "ocr_hl.fields", "confidence_text",
+            "ocr_hl.minConfidence", "0.99"),
+        "//lst[@name='ocr_highlighting']/lst[@name='109']/arr[@name='confidence_text']/lst[1]/float[@name='confidence']='1.0'");
+    assertQEx(
+        "a minimum confidence needs a field with confidences",
+        req("q", "ocr_text:two", "ocr_hl", "true", "ocr_hl.fields", "ocr_text", "ocr_hl.minConfidence", "0.8"),
+        400);
+  }
+
+  @Test
+  public void testConfidenceQueryParser() {
+    assertQ(
+        "documents whose only matches are below the minimum confidence don't match",
+        req("q", "{!ocr_confidence f=confidence_text min=0.8}one", "ocr_hl", "true",
+            "ocr_hl.fields", "confidence_text", "ocr_hl.minConfidence", "0.8"),
+        "//result[@numFound='1']",
+        "//result/doc/int[@name='id']='109'",
+        "count(//lst[@name='ocr_highlighting']/lst[@name='109']/arr[@name='confidence_text']/lst)=1");
+    assertQ(
+        "every term needs a confident match",
+        req("q", "{!ocr_confidence f=confidence_text min=0.2}one two"),
+        "//result[@numFound='1']",
+        "//result/doc/int[@name='id']='109'");
+    assertQEx(
+        "the field needs confidences",
+        req("q", "{!ocr_confidence f=ocr_text min=0.8}one"),
+        400);
+  }
+
+  @Test
+  public void testPackedPayloadPostingsFormat() {
+    assertQ(
+        "packed payloads are decoded like regular ones",
+        req("q", "packed_text:one", "ocr_hl", "true", "ocr_hl.fields", "packed_text", "ocr_hl.pageFacet", "true"),
+        "count(//lst[@name='ocr_highlighting']/lst[@name='111']/arr[@name='packed_text']/lst)=3",
+        "//lst[@name='ocr_highlighting']/lst[@name='111']/arr[@name='packed_text']/lst[1]/int[@name='page']='3'",
+        "//lst[@name='ocr_highlighting']/lst[@name='111']/arr[@name='packed_text']/lst[1]/int[@name='word']='5'",
+        "//lst[@name='ocr_highlighting']/lst[@name='111']/arr[@name='packed_text']/lst[1]/float[@name='x']>0.11",
+        "//lst[@name='ocr_highlighting']/lst[@name='111']/arr[@name='packed_text']/lst[1]/float[@name='x']<0.112",
+        "//lst[@name='ocr_highlighting']/lst[@name='111']/arr[@name='packed_text']/lst[2]/int[@name='page']='4000'",
+        "//lst[@name='ocr_highlighting']/lst[@name='111']/arr[@name='packed_text']/lst[2]/int[@name='line']='2000'",
+        "//lst[@name='ocr_highlighting']/lst[@name='111']/arr[@name='packed_text']/lst[3]/int[@name='line']='2001'",
+        "//lst[@name='ocr_pageFacets']/lst[@name='packed_text']/int[@name='3']='1'",
+        "//lst[@name='ocr_pageFacets']/lst[@name='packed_text']/int[@name='4000']='2'");
+    assertQ(
+        "a payload without any bits set survives the packing",
+        req("q", "packed_text:two", "ocr_hl", "true", "ocr_hl.fields", "packed_text"),
+        "//lst[@name='ocr_highlighting']/lst[@name='111']/arr[@name='packed_text']/lst[1]/int[@name='page']='0'",
+        "//lst[@name='ocr_highlighting']/lst[@name='111']/arr[@name='packed_text']/lst[1]/float[@name='width']='0.0'");
+  }
+
+  @Test
+  public void testBlockJoinChildren() {
+    assertQ(
+        "hits are taken from the matching children of the returned parents",
+        req("q", "{!parent which=doctype:volume}pages_ocr:one", "sort", "id asc", "ocr_hl", "true",
+            "ocr_hl.fields", "pages_ocr"),
+        "count(//lst[@name='ocr_highlighting']/lst)=2",
+        "count(//lst[@name='ocr_highlighting']/lst[@name='200']/lst)=2",
+        "//lst[@name='ocr_highlighting']/lst[@name='200']/lst[@name='201']/arr[@name='pages_ocr']/lst[1]/int[@name='page']='1'",
+        "count(//lst[@name='ocr_highlighting']/lst[@name='200']/lst[@name='203']/arr[@name='pages_ocr']/lst)=1",
+        "//lst[@name='ocr_highlighting']/lst[@name='200']/lst[@name='203']/arr[@name='pages_ocr']/lst[1]/int[@name='word']='2'",
+        "count(//lst[@name='ocr_highlighting']/lst[@name='210']/lst[@name='211']/arr[@name='pages_ocr']/lst)=2");
+    assertQ(
+        "the number of children per parent can be limited",
+        req("q", "{!parent which=doctype:volume}pages_ocr:one", "sort", "id asc", "ocr_hl", "true",
+            "ocr_hl.fields", "pages_ocr", "ocr_hl.maxChildren", "1"),
+        "count(//lst[@name='ocr_highlighting']/lst[@name='200']/lst)=1",
+        "//lst[@name='ocr_highlighting']/lst[@name='200']/lst[@name='201']");
+    assertQ(
+        "the parent filter can be passed explicitly",
+        req("q", "{!parent which=doctype:volume}pages_ocr:two", "ocr_hl", "true", "ocr_hl.fields", "pages_ocr",
+            "ocr_hl.parentFilter", "doctype:volume"),
+        "count(//lst[@name='ocr_highlighting']/lst[@name='200']/lst)=2",
+        "//lst[@name='ocr_highlighting']/lst[@name='200']/lst[@name='202']/arr[@name='pages_ocr']/lst[1]/int[@name='page']='2'");
+    assertQEx(
+        "options of the regular highlighting are rejected for children",
+        req("q", "{!parent which=doctype:volume}pages_ocr:one", "ocr_hl", "true", "ocr_hl.fields", "pages_ocr",
+            "ocr_hl.maxTotal", "1"),
+        400);
+    assertQEx(
+        "options of the regular highlighting are rejected for children",
+        req("q", "{!parent which=doctype:volume}pages_ocr:one", "ocr_hl", "true", "ocr_hl.fields", "pages_ocr",
+            "ocr_hl.pageRange", "1-2"),
+        400);
+  }
+
+  @Test
+  public void testCachedHighlighting() {
+    String[] params = {
+        "q", "three", "sort", "id asc", "ocr_hl", "true", "ocr_hl.fields", "ocr_text", "df", "ocr_text"};
+    String[] tests = {
+        "count(//lst[@name='ocr_highlighting']/lst[@name='102']/arr[@name='ocr_text']/lst)=1",
+        "//lst[@name='ocr_highlighting']/lst[@name='102']/arr[@name='ocr_text']/lst[1]/int[@name='page']='28'",
+        "//lst[@name='ocr_highlighting']/lst[@name='102']/arr[@name='ocr_text']/lst[1]/str[@name='term']='three'"};
+    assertQ("uncached highlighting", req(params), tests);
+
+    RefCounted<SolrIndexSearcher> searcher = h.getCore().getSearcher();
+    try {
+      assertTrue(searcher.get().getCache("ocrHighlightCache").size() > 0);
+    } finally {
+      searcher.decref();
+    }
+    assertQ("cached highlighting", req(params), tests);
+  }
+
+  @Test
+  public void testPageFacets() {
+    assertQ(
+        "page facets are computed for all matching documents",
+        req("q", "two", "rows", "0", "ocr_hl.pageFacet", "true", "ocr_hl.fields", "ocr_text", "df", "ocr_text"),
+        "count(//lst[@name='ocr_highlighting'])=0",
+        "count(//lst[@name='ocr_pageFacets']/lst[@name='ocr_text']/int)=2",
+        "//lst[@name='ocr_pageFacets']/lst[@name='ocr_text']/int[@name='27']='1'",
+        "//lst[@name='ocr_pageFacets']/lst[@name='ocr_text']/int[@name='29']='1'");
+  }
+
+  @Test
+  public void testPageFacetsLimitAndSort() {
+    assertQ(
+        "page facets are limited and sorted by count",
+        req("q", "und", "rows", "0", "ocr_hl.pageFacet", "true", "ocr_hl.pageFacet.limit", "3", "ocr_hl.fields",
+            "ocr_text", "df", "ocr_text"),
+        "count(//lst[@name='ocr_pageFacets']/lst[@name='ocr_text']/int)=3",
+        "//lst[@name='ocr_pageFacets']/lst[@name='ocr_text']/int[1] >= //lst[@name='ocr_pageFacets']/lst[@name='ocr_text']/int[2]",
+        "//lst[@name='ocr_pageFacets']/lst[@name='ocr_text']/int[2] >= //lst[@name='ocr_pageFacets']/lst[@name='ocr_text']/int[3]");
+  }
+
+  @Test
+  public void testHeatmaps() {
+    assertQ(
+        "hits are binned into per-page heatmaps",
+        req("q", "five four", "sort", "id asc", "ocr_hl", "true", "ocr_hl.fields", "ocr_text", "ocr_hl.heatmap", "4x2",
+            "df", "ocr_text"),
+        "count(//lst[@name='ocr_highlighting']/lst[@name='102']/lst[@name='ocr_text']/arr)=2",
+        "count(//lst[@name='ocr_highlighting']/lst[@name='102']/lst[@name='ocr_text']/arr[@name='30']/int)=2",
+        "//lst[@name='ocr_highlighting']/lst[@name='102']/lst[@name='ocr_text']/arr[@name='30']/int[1]='0'",
+        "//lst[@name='ocr_highlighting']/lst[@name='102']/lst[@name='ocr_text']/arr[@name='30']/int[2]='1'",
+        "//lst[@name='ocr_highlighting']/lst[@name='102']/lst[@name='ocr_text']/arr[@name='31']/int[1]='0'",
+        "//lst[@name='ocr_highlighting']/lst[@name='102']/lst[@name='ocr_text']/arr[@name='31']/int[2]='1'",
+        "sum(//lst[@name='ocr_highlighting']/lst[@name='102']/lst[@name='ocr_text']/arr/int[position() mod 2 = 0])=2");
+    assertQ(
+        "only hits in the page range are binned",
+        req("q", "five four", "sort", "id asc", "ocr_hl", "true", "ocr_hl.fields", "ocr_text", "ocr_hl.heatmap", "4x2",
+            "ocr_hl.pageRange", "31", "df", "ocr_text"),
+        "count(//lst[@name='ocr_highlighting']/lst[@name='102']/lst[@name='ocr_text']/arr)=1",
+        "count(//lst[@name='ocr_highlighting']/lst[@name='102']/lst[@name='ocr_text']/arr[@name='31']/int)=2");
+  }
+
+  @Test
+  public void testPartialResultsWhenTimeIsUp() {
+    assertQ(
+        "highlighting stops once the time is up",
+        req("q", "und", "sort", "id asc", "ocr_hl", "true", "ocr_hl.fields", "ocr_text", "ocr_hl.timeAllowed", "0",
+            "df", "ocr_text"),
+        "//lst[@name='responseHeader']/bool[@name='partialResults']='true'",
+        "//lst[@name='ocr_highlighting']/lst[@name='103']/bool[@name='partialResults']='true'",
+        "count(//lst[@name='ocr_highlighting']/lst[@name='103']/arr[@name='ocr_text']/lst)=0");
+  }
+
+  @Test
+  public void testMergeLines() {
+    assertQ(
+        "hits on the same line are merged into a single region",
+        req("q", "one two", "sort", "id asc", "ocr_hl", "true", "ocr_hl.fields", "body_ocr", "df", "body_ocr",
+            "ocr_hl.merge", "line", "ocr_hl.merge.gap", "0.2"),
+        "count(//lst[@name='ocr_highlighting']/lst[@name='106']/arr[@name='body_ocr']/lst)=1",
+        "//lst[@name='ocr_highlighting']/lst[@name='106']/arr[@name='body_ocr']/lst[1]/int[@name='word']='55'",
+        "//lst[@name='ocr_highlighting']/lst[@name='106']/arr[@name='body_ocr']/lst[1]/arr[@name='terms']/str[1]='one'",
+        "//lst[@name='ocr_highlighting']/lst[@name='106']/arr[@name='body_ocr']/lst[1]/arr[@name='terms']/str[2]='two'");
+    assertQ(
+        "hits that are too far apart are not merged",
+        req("q", "one two", "sort", "id asc", "ocr_hl", "true", "ocr_hl.fields", "body_ocr", "df", "body_ocr",
+            "ocr_hl.merge", "line"),
+        "count(//lst[@name='ocr_highlighting']/lst[@name='106']/arr[@name='body_ocr']/lst)=2");
+  }
+
+  @Test
+  public void testPassages() {
+    assertQ(
+        "hits of different terms close to each other are clustered into passages",
+        req("q", "one two", "sort", "id asc", "ocr_hl", "true", "ocr_hl.fields", "body_ocr", "df", "body_ocr",
+            "ocr_hl.passages", "true", "ocr_hl.passages.window", "20"),
+        "count(//lst[@name='ocr_highlighting']/lst[@name='106']/arr[@name='body_ocr']/lst)=1",
+        "//lst[@name='ocr_highlighting']/lst[@name='106']/arr[@name='body_ocr']/lst[1]/int[@name='page']='42'",
+        "//lst[@name='ocr_highlighting']/lst[@name='106']/arr[@name='body_ocr']/lst[1]/int[@name='numHits']='2'",
+        "count(//lst[@name='ocr_highlighting']/lst[@name='106']/arr[@name='body_ocr']/lst[1]/arr[@name='terms']/str)=2");
+    assertQ(
+        "no passages if the hits are too far apart",
+        req("q", "alpha beta", "sort", "id asc", "ocr_hl", "true", "ocr_hl.fields", "body_ocr", "df", "body_ocr",
+            "ocr_hl.passages", "true", "ocr_hl.passages.window", "5"),
+        "count(//lst[@name='ocr_highlighting']/lst[@name='112']/arr[@name='body_ocr']/lst)=0");
+  }
+
+  @Test
+  public void testPassagesAcrossLines() {
+    assertQ(
+        "the distance between hits on different lines is measured in words, not with their word indices",
+        req("q", "alpha beta gamma delta", "sort", "id asc", "ocr_hl", "true", "ocr_hl.fields", "body_ocr",
+            "df", "body_ocr", "ocr_hl.passages", "true", "ocr_hl.passages.window", "5"),
+        "count(//lst[@name='ocr_highlighting']/lst[@name='112']/arr[@name='body_ocr']/lst)=1",
+        "//lst[@name='ocr_highlighting']/lst[@name='112']/arr[@name='body_ocr']/lst[1]/int[@name='firstLine']='40'",
+        "//lst[@name='ocr_highlighting']/lst[@name='112']/arr[@name='body_ocr']/lst[1]/int[@name='lastLine']='42'",
+        "//lst[@name='ocr_highlighting']/lst[@name='112']/arr[@name='body_ocr']/lst[1]/int[@name='numHits']='3'");
+  }
+
+  @Test
+  public void testLineContext() {
+    assertQ(
+        "the text of the hit's line is returned as its context",
+        req("q", "one", "sort", "id asc", "ocr_hl", "true", "ocr_hl.fields", "body_ocr", "df", "body_ocr",
+            "ocr_hl.context", "line"),
+        "//lst[@name='ocr_highlighting']/lst[@name='106']/arr[@name='body_ocr']/lst[1]/str[@name='context']='one two'");
+  }
+
+  @Test
+  public void testWordContext() {
+    assertQ(
+        "the words around the hit are returned as its context",
+        req("q", "two", "sort", "id asc", "ocr_hl", "true", "ocr_hl.fields", "body_ocr", "df", "body_ocr",
+            "ocr_hl.context", "1"),
+        "//lst[@name='ocr_highlighting']/lst[@name='106']/arr[@name='body_ocr']/lst[1]/str[@name='context']='one two'");
+  }
+
+  @Test
+  public void testContextIsOriginalText() {
+    assertQ(
+        "the context is the text as it was indexed, not the analyzed tokens",
+        req("q", "barking", "sort", "id asc", "ocr_hl", "true", "ocr_hl.fields", "body_ocr", "df", "body_ocr",
+            "ocr_hl.context", "line"),
+        "//lst[@name='ocr_highlighting']/lst[@name='114']/arr[@name='body_ocr']/lst[1]/str[@name='context']='The Dogs Barking'");
+    assertQ(
+        "the words around the hit continue on the next line",
+        req("q", "barking", "sort", "id asc", "ocr_hl", "true", "ocr_hl.fields", "body_ocr", "df", "body_ocr",
+            "ocr_hl.context", "1"),
+        "//lst[@name='ocr_highlighting']/lst[@name='114']/arr[@name='body_ocr']/lst[1]/str[@name='context']='Dogs Barking loudly.'");
+    assertQEx(
+        "the context needs a field with the lines",
+        req("q", "barking", "ocr_hl", "true", "ocr_hl.fields", "body_ocr", "df", "body_ocr",
+            "ocr_hl.context", "line", "ocr_hl.context.field", "ocr_boxes"),
+        400);
+  }
+
+  @Test
+  public void testInvalidOcrInformation() {
+    // The line and box indices parse the OCR information like the payloads
+    assertFailedU(adoc("ocr_lines", "one|p:1,l:1,n:1,x:11.1,y:22.2,w:5.5,h:1.1,q:3", "id", "120"));
+    assertFailedU(adoc("ocr_boxes", "one|p:1,l:1,n:1,x:11.1,y:22.2,w:5.5,h:1.1,q:3", "id", "120"));
+    assertFailedU(adoc("ocr_lines", "one|p:1,l:1,n:1,p:2,x:11.1,y:22.2,w:5.5,h:1.1", "id", "120"));
+    assertFailedU(adoc("ocr_lines", "one|p:1,l:1,n:1,x:11.1,w:5.5,h:1.1", "id", "120"));
+  }
+
   @Test
   public void testDynamicField() {
     assertQ(
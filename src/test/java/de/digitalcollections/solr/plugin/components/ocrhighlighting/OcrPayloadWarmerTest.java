@@ -0,0 +1,66 @@
+package de.digitalcollections.solr.plugin.components.ocrhighlighting;
+
+import org.apache.solr.SolrTestCaseJ4;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.util.RefCounted;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class OcrPayloadWarmerTest extends SolrTestCaseJ4 {
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    initCore("solrconfig.xml", "schema.xml", "src/test/resources/solr", "alldata");
+  }
+
+  private static OcrPayloadWarmer createWarmer(long timeAllowed) {
+    NamedList<Object> args = new NamedList<>();
+    args.add("fields", "ocr_text");
+    args.add("terms", "alpha");
+    args.add("timeAllowed", timeAllowed);
+    OcrPayloadWarmer warmer = new OcrPayloadWarmer(h.getCore());
+    warmer.init(args);
+    return warmer;
+  }
+
+  @Test
+  public void testWarmNewSegments() throws Exception {
+    clearIndex();
+    assertU(adoc("ocr_text", "alpha|p:1,l:1,n:1,x:11.1,y:22.2,w:5.5,h:1.1 alpha|p:1,l:2,n:1,x:11.1,y:24.4,w:5.5,h:1.1 "
+        + "alpha|p:2,l:1,n:1,x:11.1,y:22.2,w:5.5,h:1.1", "id", "201"));
+    assertU(commit());
+    RefCounted<SolrIndexSearcher> oldSearcher = h.getCore().getSearcher();
+    try {
+      assertU(adoc("ocr_text", "alpha|p:3,l:1,n:1,x:11.1,y:22.2,w:5.5,h:1.1 "
+          + "alpha|p:3,l:2,n:1,x:11.1,y:24.4,w:5.5,h:1.1 beta|p:3,l:2,n:2,x:17.7,y:24.4,w:5.5,h:1.1", "id", "202"));
+      assertU(commit());
+      RefCounted<SolrIndexSearcher> newSearcher = h.getCore().getSearcher();
+      try {
+        OcrPayloadWarmer warmer = createWarmer(10000);
+        // Only the segment with the second document is new
+        assertEquals(2, warmer.warm(newSearcher.get(), oldSearcher.get()));
+        assertEquals(0, warmer.warm(newSearcher.get(), newSearcher.get()));
+        // Without a current searcher, all segments are new
+        assertEquals(5, warmer.warm(newSearcher.get(), null));
+      } finally {
+        newSearcher.decref();
+      }
+    } finally {
+      oldSearcher.decref();
+    }
+  }
+
+  @Test
+  public void testTimeAllowed() throws Exception {
+    clearIndex();
+    assertU(adoc("ocr_text", "alpha|p:1,l:1,n:1,x:11.1,y:22.2,w:5.5,h:1.1", "id", "203"));
+    assertU(commit());
+    RefCounted<SolrIndexSearcher> searcher = h.getCore().getSearcher();
+    try {
+      assertEquals(-1, createWarmer(0).warm(searcher.get(), null));
+      assertEquals(1, createWarmer(10000).warm(searcher.get(), null));
+    } finally {
+      searcher.decref();
+    }
+  }
+}
@@ -0,0 +1,308 @@
+package de.digitalcollections.solr.plugin.components.ocrhighlighting;
+
+import de.digitalcollections.lucene.analysis.payloads.OcrInfo;
+import de.digitalcollections.lucene.analysis.payloads.PayloadLayout;
+import de.digitalcollections.lucene.analysis.util.DelimitedOcrInfoPayloadTokenFilterFactory;
+import de.digitalcollections.lucene.codecs.OcrPayloadPostingsEnum;
+import de.digitalcollections.lucene.codecs.OcrPayloadPostingsFormat;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.core.LowerCaseFilterFactory;
+import org.apache.lucene.analysis.core.WhitespaceTokenizerFactory;
+import org.apache.lucene.analysis.custom.CustomAnalyzer;
+import org.apache.lucene.codecs.Codec;
+import org.apache.lucene.codecs.PostingsFormat;
+import org.apache.lucene.codecs.lucene70.Lucene70Codec;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IOUtils;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Compares the {@link OcrPayloadPostingsFormat} with the default postings format, in terms of index size and the
+ * throughput of decoding the payloads.
+ *
+ * The same synthetic corpus as in the {@link OcrHighlightingLoadTest} is indexed into two single-segment indices,
+ * once with the default format and once with the packed payloads. Decoding is measured in two ways, each from the
+ * payload bytes for both formats and with the bulk accessors of the packed format:
+ *
+ * - Walking the postings of all terms and decoding the page index of every position, like the page facets do
+ * - Decoding the complete OCR information of every position of a set of query terms in every document with a
+ *   {@link PayloadReader}, like the highlighting does
+ *
+ * Both formats have to decode the same values, also when documents are skipped.
+ *
+ * Skipped unless the `loadtest` profile is active, run it with `mvn test -P loadtest -Dtest=PostingsFormatLoadTest`.
+ * The corpus is configured with the `load.docs`, `load.pages.*`, `load.lines`, `load.words`, `load.vocabulary` and
+ * `load.seed` properties of the {@link OcrHighlightingLoadTest}, `load.rounds` is the number of measured decoding
+ * passes (default: 5) and `load.queryTerms` the number of query terms for the highlighting (default: 50).
+ */
+public class PostingsFormatLoadTest {
+
+  private static final String FIELD = "ocr_text";
+
+  private final PayloadLayout layout = new PayloadLayout(10, 9, 11, 12, false);
+
+  @Test
+  public void compareFormats() throws Exception {
+    assumeTrue("Load test, run with -P loadtest", Boolean.getBoolean("tests.load"));
+    OcrHighlightingLoadTest.SyntheticCorpus corpus = new OcrHighlightingLoadTest.SyntheticCorpus(
+        Long.getLong("load.seed", 42), Integer.getInteger("load.vocabulary", 20000),
+        Integer.getInteger("load.pages.min", 1), Integer.getInteger("load.pages.max", 1000),
+        Integer.getInteger("load.lines", 30), Integer.getInteger("load.words", 8));
+    int numDocs = Integer.getInteger("load.docs", 200);
+    int rounds = Integer.getInteger("load.rounds", 5);
+
+    Codec packedCodec = new Lucene70Codec() {
+      @Override
+      public PostingsFormat getPostingsFormatForField(String field) {
+        return FIELD.equals(field) ? new OcrPayloadPostingsFormat() : super.getPostingsFormatForField(field);
+      }
+    };
+    Path tempDir = Files.createTempDirectory("ocr-postings");
+    try (Directory defaultDir = FSDirectory.open(tempDir.resolve("default"));
+         Directory packedDir = FSDirectory.open(tempDir.resolve("packed"))) {
+      long numTokens = index(defaultDir, Codec.getDefault(), corpus, numDocs);
+      index(packedDir, packedCodec, corpus, numDocs);
+      System.out.printf(Locale.ROOT, "Indexed %d documents with %d tokens%n", numDocs, numTokens);
+      System.out.printf(Locale.ROOT, "Index size with the default format: %d bytes%n", directorySize(defaultDir));
+      System.out.printf(Locale.ROOT, "Index size with packed payloads:    %d bytes%n", directorySize(packedDir));
+
+      try (DirectoryReader defaultReader = DirectoryReader.open(defaultDir);
+           DirectoryReader packedReader = DirectoryReader.open(packedDir)) {
+        long expected = decodePages(defaultReader, false);
+        assertEquals("packed payloads decode to different pages", expected, decodePages(packedReader, false));
+        assertEquals("bulk decoding yields different pages", expected, decodePages(packedReader, true));
+        for (int stride : new int[]{3, 200, 5000}) {
+          assertEquals("skipping documents yields different pages",
+              decodeSkipping(defaultReader, stride), decodeSkipping(packedReader, stride));
+        }
+
+        measure("page indices, default format, payload bytes", this::decodePages, defaultReader, false, rounds,
+            numTokens);
+        measure("page indices, packed payloads, payload bytes", this::decodePages, packedReader, false, rounds,
+            numTokens);
+        measure("page indices, packed payloads, bulk", this::decodePages, packedReader, true, rounds, numTokens);
+
+        List<BytesRef> queryTerms = pickTerms(defaultReader, Integer.getInteger("load.queryTerms", 50));
+        Decoder highlighter = (reader, bulk) -> decodeHits(reader, queryTerms, bulk);
+        long expectedHits = decodeHits(defaultReader, queryTerms, false);
+        assertEquals("packed payloads decode to different hits", expectedHits,
+            decodeHits(packedReader, queryTerms, false));
+        assertEquals("bulk decoding yields different hits", expectedHits, decodeHits(packedReader, queryTerms, true));
+        long numHits = countPositions(defaultReader, queryTerms);
+        measure("hits, default format, payload bytes", highlighter, defaultReader, false, rounds, numHits);
+        measure("hits, packed payloads, payload bytes", highlighter, packedReader, false, rounds, numHits);
+        measure("hits, packed payloads, bulk", highlighter, packedReader, true, rounds, numHits);
+      }
+    } finally {
+      IOUtils.rm(tempDir);
+    }
+  }
+
+  private static long index(Directory dir, Codec codec, OcrHighlightingLoadTest.SyntheticCorpus corpus, int numDocs)
+      throws IOException {
+    Analyzer analyzer = CustomAnalyzer.builder()
+        .withTokenizer(WhitespaceTokenizerFactory.class)
+        .addTokenFilter(DelimitedOcrInfoPayloadTokenFilterFactory.class, "delimiter", "|", "coordinateBits", "10",
+            "pageBits", "12", "lineBits", "11", "wordBits", "9")
+        .addTokenFilter(LowerCaseFilterFactory.class)
+        .build();
+    long numTokens = 0;
+    try (IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(analyzer).setCodec(codec))) {
+      for (int i = 0; i < numDocs; i++) {
+        StringBuilder text = new StringBuilder();
+        numTokens += corpus.document(i, text);
+        Document doc = new Document();
+        doc.add(new StringField("id", Integer.toString(i), Field.Store.NO));
+        doc.add(new TextField(FIELD, text.toString(), Field.Store.NO));
+        writer.addDocument(doc);
+      }
+      writer.forceMerge(1);
+    }
+    return numTokens;
+  }
+
+  private static long directorySize(Directory dir) throws IOException {
+    long size = 0;
+    for (String file : dir.listAll()) {
+      size += dir.fileLength(file);
+    }
+    return size;
+  }
+
+  /** One way of decoding the payloads of an index **/
+  @FunctionalInterface
+  private interface Decoder {
+    /** @return a checksum of the decoded values, to compare the formats **/
+    long decode(DirectoryReader reader, boolean bulk) throws IOException;
+  }
+
+  private void measure(String label, Decoder decoder, DirectoryReader reader, boolean bulk, int rounds,
+      long numPayloads) throws IOException {
+    // One unmeasured pass to warm up the JIT and the page cache
+    decoder.decode(reader, bulk);
+    long start = System.nanoTime();
+    for (int i = 0; i < rounds; i++) {
+      decoder.decode(reader, bulk);
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+    System.out.printf(Locale.ROOT, "Decoding %s: %.1f million payloads/s%n", label,
+        rounds * numPayloads / seconds / 1e6);
+  }
+
+  /**
+   * Decode the page index of every position of every term.
+   *
+   * @return The sum of all page indices, to compare the formats
+   */
+  private long decodePages(DirectoryReader reader, boolean bulk) throws IOException {
+    long[] lowBits = new long[OcrPayloadPostingsEnum.BLOCK_SIZE];
+    long[] highBits = new long[OcrPayloadPostingsEnum.BLOCK_SIZE];
+    long sum = 0;
+    for (LeafReaderContext leaf : reader.leaves()) {
+      Terms terms = leaf.reader().terms(FIELD);
+      TermsEnum termsEnum = terms.iterator();
+      PostingsEnum postingsEnum = null;
+      while (termsEnum.next() != null) {
+        postingsEnum = termsEnum.postings(postingsEnum, PostingsEnum.PAYLOADS);
+        while (postingsEnum.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+          if (bulk) {
+            OcrPayloadPostingsEnum packed = (OcrPayloadPostingsEnum) postingsEnum;
+            for (int n = packed.nextPayloads(lowBits, highBits); n > 0; n = packed.nextPayloads(lowBits, highBits)) {
+              for (int i = 0; i < n; i++) {
+                sum += layout.decodePageIndex(lowBits[i], highBits[i]);
+              }
+            }
+          } else {
+            sum += sumPages(postingsEnum);
+          }
+        }
+      }
+    }
+    return sum;
+  }
+
+  /**
+   * Decode the page indices of every `stride`th document of every term, skipping the others with
+   * {@link PostingsEnum#advance(int)}.
+   */
+  private long decodeSkipping(DirectoryReader reader, int stride) throws IOException {
+    long sum = 0;
+    for (LeafReaderContext leaf : reader.leaves()) {
+      TermsEnum termsEnum = leaf.reader().terms(FIELD).iterator();
+      PostingsEnum postingsEnum = null;
+      while (termsEnum.next() != null) {
+        postingsEnum = termsEnum.postings(postingsEnum, PostingsEnum.PAYLOADS);
+        for (int doc = postingsEnum.advance(stride - 1); doc != DocIdSetIterator.NO_MORE_DOCS;
+            doc = doc + stride < leaf.reader().maxDoc() ? postingsEnum.advance(doc + stride)
+                : DocIdSetIterator.NO_MORE_DOCS) {
+          sum = 31 * sum + sumPages(postingsEnum);
+        }
+      }
+    }
+    return sum;
+  }
+
+  /**
+   * Pick query terms that are spread evenly over the terms of the field.
+   */
+  private static List<BytesRef> pickTerms(DirectoryReader reader, int numTerms) throws IOException {
+    List<BytesRef> allTerms = new ArrayList<>();
+    for (LeafReaderContext leaf : reader.leaves()) {
+      TermsEnum termsEnum = leaf.reader().terms(FIELD).iterator();
+      for (BytesRef term = termsEnum.next(); term != null; term = termsEnum.next()) {
+        allTerms.add(BytesRef.deepCopyOf(term));
+      }
+    }
+    int stride = Math.max(1, allTerms.size() / numTerms);
+    List<BytesRef> picked = new ArrayList<>();
+    for (int i = 0; i < allTerms.size() && picked.size() < numTerms; i += stride) {
+      picked.add(allTerms.get(i));
+    }
+    return picked;
+  }
+
+  private static long countPositions(DirectoryReader reader, List<BytesRef> queryTerms) throws IOException {
+    long numPositions = 0;
+    for (LeafReaderContext leaf : reader.leaves()) {
+      TermsEnum termsEnum = leaf.reader().terms(FIELD).iterator();
+      for (BytesRef term : queryTerms) {
+        if (termsEnum.seekExact(term)) {
+          numPositions += termsEnum.totalTermFreq();
+        }
+      }
+    }
+    return numPositions;
+  }
+
+  /**
+   * Decode the OCR information of every position of the query terms, a document at a time, like the highlighting.
+   *
+   * @return A checksum of the positions and the decoded OCR information
+   */
+  private long decodeHits(DirectoryReader reader, List<BytesRef> queryTerms, boolean bulk) throws IOException {
+    PayloadReader payloads = new PayloadReader(layout, bulk);
+    long sum = 0;
+    for (LeafReaderContext leaf : reader.leaves()) {
+      TermsEnum termsEnum = leaf.reader().terms(FIELD).iterator();
+      for (int doc = 0; doc < leaf.reader().maxDoc(); doc++) {
+        for (BytesRef term : queryTerms) {
+          if (!termsEnum.seekExact(term)) {
+            continue;
+          }
+          PostingsEnum postingsEnum = termsEnum.postings(null, PostingsEnum.PAYLOADS);
+          if (postingsEnum.advance(doc) != doc) {
+            continue;
+          }
+          payloads.reset(postingsEnum);
+          for (int position = payloads.nextPosition(); position != PayloadReader.NO_MORE_POSITIONS;
+              position = payloads.nextPosition()) {
+            OcrInfo info = payloads.decodeOcrInfo();
+            sum = 31 * sum + position;
+            sum = 31 * sum + info.getPageIndex();
+            sum = 31 * sum + info.getLineIndex();
+            sum = 31 * sum + info.getWordIndex();
+            sum = 31 * sum + Float.floatToIntBits(info.getHorizontalOffset());
+            sum = 31 * sum + Float.floatToIntBits(info.getVerticalOffset());
+            sum = 31 * sum + Float.floatToIntBits(info.getWidth());
+            sum = 31 * sum + Float.floatToIntBits(info.getHeight());
+          }
+        }
+      }
+    }
+    return sum;
+  }
+
+  private long sumPages(PostingsEnum postingsEnum) throws IOException {
+    long sum = 0;
+    int freq = postingsEnum.freq();
+    for (int i = 0; i < freq; i++) {
+      postingsEnum.nextPosition();
+      BytesRef payload = postingsEnum.getPayload();
+      sum += layout.decodePageIndex(payload);
+    }
+    return sum;
+  }
+}
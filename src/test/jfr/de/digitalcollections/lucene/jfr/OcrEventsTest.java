@@ -0,0 +1,76 @@
+package de.digitalcollections.lucene.jfr;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+public class OcrEventsTest {
+
+  @BeforeEach
+  public void requireFlightRecorder() {
+    assumeTrue(OcrEvents.isAvailable(), "the JVM has no Flight Recorder");
+  }
+
+  private static List<RecordedEvent> record(Runnable action) throws Exception {
+    Path dump = Files.createTempFile("ocr-events", ".jfr");
+    try (Recording recording = new Recording()) {
+      recording.enable(HighlightRequestEvent.class);
+      recording.enable(DocumentHighlightEvent.class);
+      recording.start();
+      action.run();
+      recording.stop();
+      recording.dump(dump);
+      return RecordingFile.readAllEvents(dump).stream()
+          .filter(e -> e.getEventType().getName().startsWith("de.digitalcollections.ocr."))
+          .collect(Collectors.toList());
+    } finally {
+      Files.deleteIfExists(dump);
+    }
+  }
+
+  @Test
+  public void createsNoEventsWithoutRecording() {
+    assertThat(OcrEvents.beginHighlightRequest(10, 1)).isNull();
+    assertThat(OcrEvents.beginDocumentHighlight(1, "ocr_text")).isNull();
+    assertThat(OcrEvents.beginPayloadEncoding()).isNull();
+  }
+
+  @Test
+  public void recordsRequestWithItsDocuments() throws Exception {
+    List<RecordedEvent> events = record(() -> {
+      Object request = OcrEvents.beginHighlightRequest(2, 1);
+      Object first = OcrEvents.beginDocumentHighlight(4, "ocr_text");
+      OcrEvents.addPayloads(3, 24);
+      OcrEvents.endDocumentHighlight(first, 3, false);
+      Object second = OcrEvents.beginDocumentHighlight(7, "ocr_text");
+      OcrEvents.addPayloads(5, 40);
+      OcrEvents.endDocumentHighlight(second, 2, true);
+      OcrEvents.endHighlightRequest(request, false);
+    });
+    List<RecordedEvent> documents = events.stream()
+        .filter(e -> e.getEventType().getName().endsWith(".DocumentHighlight"))
+        .collect(Collectors.toList());
+    assertThat(documents).hasSize(2);
+    assertThat(documents.get(1).getInt("docId")).isEqualTo(7);
+    assertThat(documents.get(1).getInt("numPayloads")).isEqualTo(5);
+    assertThat(documents.get(1).getLong("payloadBytes")).isEqualTo(40);
+    assertThat(documents.get(1).getBoolean("truncated")).isTrue();
+
+    RecordedEvent request = events.stream()
+        .filter(e -> e.getEventType().getName().endsWith(".HighlightRequest"))
+        .findFirst().orElseThrow(AssertionError::new);
+    assertThat(request.getInt("numDocs")).isEqualTo(2);
+    assertThat(request.getInt("numHits")).isEqualTo(5);
+    assertThat(request.getInt("numTruncated")).isEqualTo(1);
+    assertThat(request.getBoolean("partial")).isFalse();
+  }
+}